@@ -0,0 +1,296 @@
+package com.example.mymatauapp;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.SphericalUtil;
+
+/**
+ * Chooses how often, and how accurately, to sample the vehicle's position during a trip.
+ *
+ * A fixed interval wastes fixes while a matatu sits at a stage filling up, and is too coarse
+ * when it is arriving at or leaving a stop. The controller looks at the smoothed speed, the
+ * distance to the next stop on the route and the battery, and picks one of three modes:
+ * <ul>
+ *     <li>MOVING: the interval keeps the spacing between fixes near SPACING_METERS.</li>
+ *     <li>APPROACHING_STOP: dense sampling within APPROACH_RADIUS_METERS of the next stop.</li>
+ *     <li>PARKED: after PARKED_AFTER_MILLIS below PARKED_SPEED, balanced-power sampling
+ *     that only delivers a fix once the vehicle has moved UNPARKED_DISTANCE_METERS, so a
+ *     matatu standing at a stage costs next to no fixes, yet moving off is seen within
+ *     PARKED_INTERVAL_MILLIS.</li>
+ * </ul>
+ * On low battery, when not charging, every interval is doubled and balanced power is used.
+ *
+ * The controller is plain Java so traces can be replayed through it on the JVM. It is not
+ * thread-safe.
+ */
+public class AdaptiveSamplingController {
+
+    // Intervals are quantised to these steps so small speed changes do not re-request updates.
+    private static final long[] MOVING_INTERVALS_MILLIS = {3000, 5000, 10000};
+    private static final long APPROACHING_INTERVAL_MILLIS = 3000;
+    // Short, as the distance filter keeps fixes from being delivered while standing.
+    private static final long PARKED_INTERVAL_MILLIS = 5000;
+    private static final double SPACING_METERS = 75;
+
+    private static final double APPROACH_RADIUS_METERS = 150;
+
+    private static final double PARKED_SPEED = 1.0; // m/s
+    private static final double UNPARKED_SPEED = 2.0; // m/s
+    private static final long PARKED_AFTER_MILLIS = 60000;
+    private static final double UNPARKED_DISTANCE_METERS = 30;
+
+    private static final int LOW_BATTERY_PERCENT = 20;
+    // Weight of the newest speed in the moving average.
+    private static final double SPEED_SMOOTHING = 0.4;
+
+    public enum Mode {
+        MOVING,
+        APPROACHING_STOP,
+        PARKED
+    }
+
+    /**
+     * A location request: the parameters of LocationRequest.Builder.
+     */
+    public static final class Policy {
+        private final Mode mode;
+        private final long intervalMillis;
+        private final boolean highAccuracy;
+        private final double minDistanceMeters;
+
+        Policy(Mode mode, long intervalMillis, boolean highAccuracy, double minDistanceMeters) {
+            this.mode = mode;
+            this.intervalMillis = intervalMillis;
+            this.highAccuracy = highAccuracy;
+            this.minDistanceMeters = minDistanceMeters;
+        }
+
+        public Mode getMode() {
+            return mode;
+        }
+
+        public long getIntervalMillis() {
+            return intervalMillis;
+        }
+
+        /** Fixes that other apps request may be delivered this often, but no more. */
+        public long getMinIntervalMillis() {
+            return intervalMillis / 2;
+        }
+
+        /** True for PRIORITY_HIGH_ACCURACY, false for PRIORITY_BALANCED_POWER_ACCURACY. */
+        public boolean isHighAccuracy() {
+            return highAccuracy;
+        }
+
+        /** Fixes are only delivered once the vehicle has moved this far since the last, or 0. */
+        public double getMinDistanceMeters() {
+            return minDistanceMeters;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Policy)) {
+                return false;
+            }
+            Policy other = (Policy) o;
+            return mode == other.mode && intervalMillis == other.intervalMillis
+                    && highAccuracy == other.highAccuracy && minDistanceMeters == other.minDistanceMeters;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((mode.hashCode() * 31 + Long.hashCode(intervalMillis)) * 31 + (highAccuracy ? 1 : 0)) * 31
+                    + Double.hashCode(minDistanceMeters);
+        }
+
+        @Override
+        public String toString() {
+            return mode + " every " + intervalMillis / 1000 + " s" + (highAccuracy ? "" : ", balanced power")
+                    + (minDistanceMeters > 0 ? ", once moved " + (int) minDistanceMeters + " m" : "");
+        }
+    }
+
+    private RoutePolyline route;
+    private boolean lowBattery;
+
+    private LatLng lastPosition;
+    private long lastTimeMillis;
+    private double smoothedSpeed = Double.NaN;
+    private double lastDistanceAlong = Double.NaN;
+    private boolean forward = true;
+    private double distanceToNextStop = Double.NaN;
+
+    private Mode mode = Mode.MOVING;
+    private LatLng slowSince; // where the vehicle was when it dropped below PARKED_SPEED
+    private long slowSinceMillis = -1;
+
+    private Policy policy;
+
+    /**
+     * @param route The trip's route, or null if it is not known (yet); see setRoute.
+     */
+    public AdaptiveSamplingController(RoutePolyline route) {
+        this.route = route;
+        policy = computePolicy();
+    }
+
+    /**
+     * Sets the trip's route, which is usually loaded after tracking starts.
+     */
+    public void setRoute(RoutePolyline route) {
+        this.route = route;
+        lastDistanceAlong = Double.NaN;
+        distanceToNextStop = Double.NaN;
+    }
+
+    /**
+     * @return The policy currently in effect.
+     */
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return The smoothed speed in m/s, or NaN before the first speed is known.
+     */
+    public double getSmoothedSpeed() {
+        return smoothedSpeed;
+    }
+
+    /**
+     * @return The distance in metres along the route to the next stop, or NaN if unknown.
+     */
+    public double getDistanceToNextStop() {
+        return distanceToNextStop;
+    }
+
+    /**
+     * Updates the battery state, as reported by ACTION_BATTERY_CHANGED.
+     * @return The policy to use from now on.
+     */
+    public Policy onBatteryChanged(int percent, boolean charging) {
+        lowBattery = percent >= 0 && percent < LOW_BATTERY_PERCENT && !charging;
+        policy = computePolicy();
+        return policy;
+    }
+
+    /**
+     * Takes in a fix.
+     * @param speed The speed the provider reported in m/s, or NaN if it reported none; the
+     * speed is then derived from the previous fix.
+     * @param accuracy The fix's horizontal accuracy in metres, or 0 if unknown.
+     * @return The policy to use from now on.
+     */
+    public Policy onLocation(double latitude, double longitude, double speed, double accuracy, long timeMillis) {
+        LatLng position = new LatLng(latitude, longitude);
+        if (Double.isNaN(speed) && lastPosition != null && timeMillis > lastTimeMillis) {
+            speed = SphericalUtil.computeDistanceBetween(lastPosition, position) * 1000 / (timeMillis - lastTimeMillis);
+        }
+        if (!Double.isNaN(speed)) {
+            smoothedSpeed = Double.isNaN(smoothedSpeed)
+                    ? speed : smoothedSpeed + SPEED_SMOOTHING * (speed - smoothedSpeed);
+        }
+        lastPosition = position;
+        lastTimeMillis = timeMillis;
+
+        updateNextStop(position);
+        updateMode(position, accuracy, timeMillis);
+        policy = computePolicy();
+        return policy;
+    }
+
+    private void updateNextStop(LatLng position) {
+        distanceToNextStop = Double.NaN;
+        if (route == null) {
+            return;
+        }
+        RoutePolyline.Projection projection = route.project(position);
+        if (!projection.isOnRoute()) {
+            lastDistanceAlong = Double.NaN;
+            return;
+        }
+        double along = projection.getDistanceAlong();
+        // The direction only changes on clear progress, not on jitter while standing.
+        if (Double.isNaN(lastDistanceAlong)) {
+            lastDistanceAlong = along;
+        } else if (Math.abs(along - lastDistanceAlong) > 10) {
+            forward = along > lastDistanceAlong;
+            lastDistanceAlong = along;
+        }
+        int next = route.nextStop(along, forward);
+        if (next >= 0) {
+            distanceToNextStop = Math.abs(route.stopDistance(next) - along);
+        }
+    }
+
+    private void updateMode(LatLng position, double accuracy, long timeMillis) {
+        if (Double.isNaN(smoothedSpeed)) {
+            return;
+        }
+        if (mode == Mode.PARKED) {
+            double moved = SphericalUtil.computeDistanceBetween(slowSince, position);
+            if (smoothedSpeed <= UNPARKED_SPEED && moved <= Math.max(UNPARKED_DISTANCE_METERS, accuracy)) {
+                return;
+            }
+            slowSince = null;
+            slowSinceMillis = -1;
+        } else if (smoothedSpeed < PARKED_SPEED) {
+            if (slowSince == null) {
+                slowSince = position;
+                slowSinceMillis = timeMillis;
+            } else if (timeMillis - slowSinceMillis >= PARKED_AFTER_MILLIS) {
+                mode = Mode.PARKED;
+                return;
+            }
+        } else {
+            slowSince = null;
+            slowSinceMillis = -1;
+        }
+        // Standing at a stop needs no dense sampling; arriving at one does.
+        mode = distanceToNextStop <= APPROACH_RADIUS_METERS && smoothedSpeed >= PARKED_SPEED
+                ? Mode.APPROACHING_STOP : Mode.MOVING;
+    }
+
+    private Policy computePolicy() {
+        long interval;
+        boolean highAccuracy;
+        double minDistance = 0;
+        switch (mode) {
+            case PARKED:
+                interval = PARKED_INTERVAL_MILLIS;
+                highAccuracy = false;
+                minDistance = UNPARKED_DISTANCE_METERS;
+                break;
+            case APPROACHING_STOP:
+                interval = APPROACHING_INTERVAL_MILLIS;
+                highAccuracy = true;
+                break;
+            default:
+                interval = movingInterval();
+                highAccuracy = true;
+        }
+        if (lowBattery) {
+            interval *= 2;
+            highAccuracy = false;
+        }
+        return new Policy(mode, interval, highAccuracy, minDistance);
+    }
+
+    /**
+     * @return The longest interval step that keeps fixes about SPACING_METERS apart at the
+     * smoothed speed.
+     */
+    private long movingInterval() {
+        if (Double.isNaN(smoothedSpeed) || smoothedSpeed <= 0) {
+            return MOVING_INTERVALS_MILLIS[MOVING_INTERVALS_MILLIS.length - 1];
+        }
+        double wanted = SPACING_METERS * 1000 / smoothedSpeed;
+        long interval = MOVING_INTERVALS_MILLIS[0];
+        for (long step : MOVING_INTERVALS_MILLIS) {
+            if (step <= wanted) {
+                interval = step;
+            }
+        }
+        return interval;
+    }
+}
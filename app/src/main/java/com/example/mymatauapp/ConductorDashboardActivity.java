@@ -27,8 +27,6 @@ import com.google.android.gms.maps.model.MarkerOptions;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
-import com.google.firebase.firestore.FirebaseFirestore;
-import com.google.firebase.firestore.CollectionReference;
 import com.google.firebase.firestore.DocumentReference;
 
 import java.util.HashMap;
@@ -45,6 +43,10 @@ public class ConductorDashboardActivity extends AppCompatActivity implements OnM
     private static final String TAG = "ConductorDashboard";
     private static final int LOCATION_PERMISSION_REQUEST_CODE = 101;
     private static final int BACKGROUND_LOCATION_PERMISSION_REQUEST_CODE = 102;
+    // The route every trip runs on until conductors can pick one.
+    private static final String ROUTE_ID = "Roysambu to Nairobi Town";
+    // A sample matatu registration number.
+    private static final String MATATU_ID = "KCA 123A";
 
     private GoogleMap mMap;
     private FusedLocationProviderClient fusedLocationClient;
@@ -58,18 +60,17 @@ public class ConductorDashboardActivity extends AppCompatActivity implements OnM
 
     // Firebase instances
     private FirebaseAuth mAuth;
-    private FirebaseFirestore db;
-    private CollectionReference tripsCollection;
+    // Trip writes go through the journal, so they survive dead zones and app restarts.
+    private TripEventJournal journal;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_conductor_dashboard);
 
-        // Initialize Firebase Authentication and Firestore
+        // Initialize Firebase Authentication and the trip journal, which writes to Firestore
         mAuth = FirebaseAuth.getInstance();
-        db = FirebaseFirestore.getInstance();
-        tripsCollection = db.collection("trips");
+        journal = TripEventJournal.get(this);
 
         // Initialize FusedLocationProviderClient for location updates
         fusedLocationClient = LocationServices.getFusedLocationProviderClient(this);
@@ -144,6 +145,33 @@ public class ConductorDashboardActivity extends AppCompatActivity implements OnM
         }
     }
 
+    /**
+     * Follows the trip's position, as tracked by the LocationTrackingService, while the
+     * dashboard is visible.
+     */
+    @Override
+    protected void onStart() {
+        super.onStart();
+        LocationTrackingService.setSnapshotListener(this::onTrackingSnapshot);
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        LocationTrackingService.setSnapshotListener(null);
+    }
+
+    /**
+     * Keeps the camera on the vehicle during a trip. The service sends at most one snapshot a
+     * second, so this is the map's only per-fix work.
+     */
+    private void onTrackingSnapshot(LocationTrackingService.Snapshot snapshot) {
+        if (!isTripActive || mMap == null) {
+            return;
+        }
+        mMap.animateCamera(CameraUpdateFactory.newLatLng(new LatLng(snapshot.getLatitude(), snapshot.getLongitude())));
+    }
+
     /**
      * Handles the logic for starting a new trip.
      * This method creates a new trip document in Firestore and starts the
@@ -176,28 +204,32 @@ public class ConductorDashboardActivity extends AppCompatActivity implements OnM
             tripData.put("startTime", startTime);
             tripData.put("status", currentStatus);
             // Replacing placeholder with a real route ID from our MatatuRouteManager.
-            tripData.put("routeId", "Roysambu to Nairobi Town");
+            tripData.put("routeId", ROUTE_ID);
             // Replacing placeholder with a sample matatu registration number.
-            tripData.put("matatuId", "KCA 123A");
-
-            // Set the initial trip data in Firestore
-            tripsCollection.document(currentTripId).set(tripData)
-                    .addOnSuccessListener(aVoid -> {
-                        Toast.makeText(ConductorDashboardActivity.this, "Trip started successfully!", Toast.LENGTH_SHORT).show();
-                        // START THE LOCATION TRACKING SERVICE
-                        Intent serviceIntent = new Intent(this, LocationTrackingService.class);
-                        serviceIntent.putExtra("tripId", currentTripId);
-                        serviceIntent.putExtra("conductorId", conductorId);
-                        ContextCompat.startForegroundService(this, serviceIntent);
-                    })
-                    .addOnFailureListener(e -> {
-                        Toast.makeText(ConductorDashboardActivity.this, "Failed to start trip: " + e.getMessage(), Toast.LENGTH_LONG).show();
-                        Log.e(TAG, "Error starting trip", e);
-                        // Reset state on failure
-                        isTripActive = false;
-                        startTripButton.setText("Start Trip");
-                        statusButton.setVisibility(View.GONE);
-                    });
+            tripData.put("matatuId", MATATU_ID);
+
+            // Journal the initial trip data; it reaches Firestore as soon as there is a network.
+            String tripId = currentTripId;
+            journal.append(TripEvent.start(tripId, tripData), error -> runOnUiThread(() -> {
+                if (error == null) {
+                    Toast.makeText(ConductorDashboardActivity.this, "Trip started successfully!", Toast.LENGTH_SHORT).show();
+                    // START THE LOCATION TRACKING SERVICE
+                    Intent serviceIntent = new Intent(this, LocationTrackingService.class);
+                    serviceIntent.putExtra("tripId", tripId);
+                    serviceIntent.putExtra("conductorId", conductorId);
+                    serviceIntent.putExtra("routeId", ROUTE_ID);
+                    serviceIntent.putExtra("matatuId", MATATU_ID);
+                    ContextCompat.startForegroundService(this, serviceIntent);
+                } else {
+                    Toast.makeText(ConductorDashboardActivity.this, "Failed to start trip: " + error.getMessage(), Toast.LENGTH_LONG).show();
+                    Log.e(TAG, "Error starting trip", error);
+                    // Reset state on failure
+                    isTripActive = false;
+                    currentTripId = null;
+                    startTripButton.setText("Start Trip");
+                    statusButton.setVisibility(View.GONE);
+                }
+            }));
         } else {
             Toast.makeText(this, "Location permissions are required to start a trip.", Toast.LENGTH_LONG).show();
             // Request permissions again if they were denied
@@ -210,8 +242,8 @@ public class ConductorDashboardActivity extends AppCompatActivity implements OnM
 
     /**
      * Handles the logic for ending a trip.
-     * This method stops the LocationTrackingService and updates the trip
-     * document in Firestore with a 'complete' status and end time.
+     * This method stops the LocationTrackingService and journals the trip's
+     * 'complete' status and end time, which the journal sends to Firestore.
      */
     private void endTrip() {
         if (currentTripId == null) {
@@ -226,25 +258,22 @@ public class ConductorDashboardActivity extends AppCompatActivity implements OnM
         Intent serviceIntent = new Intent(this, LocationTrackingService.class);
         stopService(serviceIntent);
 
-        // Update the trip status to 'complete' in the database
+        // Journal the trip's 'complete' status; the journal retries until Firestore has it,
+        // so the trip cannot be left 'available' by a failed write.
         long endTime = System.currentTimeMillis();
-        Map<String, Object> updates = new HashMap<>();
-        updates.put("status", "complete");
-        updates.put("endTime", endTime);
-
-        tripsCollection.document(currentTripId).update(updates)
-                .addOnSuccessListener(aVoid -> {
-                    Toast.makeText(ConductorDashboardActivity.this, "Trip ended successfully!", Toast.LENGTH_SHORT).show();
-                    // Reset the UI and state
-                    isTripActive = false;
-                    currentTripId = null;
-                    startTripButton.setText("Start Trip");
-                    statusButton.setVisibility(View.GONE);
-                })
-                .addOnFailureListener(e -> {
-                    Toast.makeText(ConductorDashboardActivity.this, "Failed to end trip: " + e.getMessage(), Toast.LENGTH_LONG).show();
-                    Log.e(TAG, "Error ending trip", e);
-                });
+        journal.append(TripEvent.end(currentTripId, endTime), error -> runOnUiThread(() -> {
+            if (error == null) {
+                Toast.makeText(ConductorDashboardActivity.this, "Trip ended successfully!", Toast.LENGTH_SHORT).show();
+                // Reset the UI and state
+                isTripActive = false;
+                currentTripId = null;
+                startTripButton.setText("Start Trip");
+                statusButton.setVisibility(View.GONE);
+            } else {
+                Toast.makeText(ConductorDashboardActivity.this, "Failed to end trip: " + error.getMessage(), Toast.LENGTH_LONG).show();
+                Log.e(TAG, "Error ending trip", error);
+            }
+        }));
     }
 
     /**
@@ -259,14 +288,15 @@ public class ConductorDashboardActivity extends AppCompatActivity implements OnM
         currentStatus = currentStatus.equals("available") ? "full" : "available";
         statusButton.setText(currentStatus.equals("available") ? "Mark as Full" : "Mark as Available");
 
-        // Update the status in Firestore
-        tripsCollection.document(currentTripId).update("status", currentStatus)
-                .addOnSuccessListener(aVoid -> {
-                    Toast.makeText(ConductorDashboardActivity.this, "Status updated to " + currentStatus, Toast.LENGTH_SHORT).show();
-                })
-                .addOnFailureListener(e -> {
-                    Log.e(TAG, "Failed to update status", e);
-                });
+        // Journal the status change for Firestore
+        String status = currentStatus;
+        journal.append(TripEvent.status(currentTripId, status), error -> runOnUiThread(() -> {
+            if (error == null) {
+                Toast.makeText(ConductorDashboardActivity.this, "Status updated to " + status, Toast.LENGTH_SHORT).show();
+            } else {
+                Log.e(TAG, "Failed to update status", error);
+            }
+        }));
     }
 
     // Helper method to check foreground location permissions
@@ -0,0 +1,279 @@
+package com.example.mymatauapp;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.SphericalUtil;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.TimeZone;
+
+/**
+ * Estimates when a matatu reaches a stop, from how far along the route it is and how fast
+ * each segment of the route has been driven at that time of day.
+ *
+ * The engine learns as it goes. Trips report their distance along the route (see
+ * RouteMatcher) through observe; each time a trip passes one stop after another, the time it
+ * took is folded into a moving average pace (seconds per metre) for that segment and hour of
+ * day, and one for the segment at any hour. A segment's time runs from reaching its first
+ * stop to reaching the next, so it includes the dwell at the first stop.
+ *
+ * An estimate walks the segments from the matatu to the stop, using each segment's pace for
+ * the hour the matatu will be on it. Without data for that hour the segment's all-day pace is
+ * used, and without any data DEFAULT_SPEED_MPS.
+ *
+ * Thread-safe. The learned profile can be saved and restored with writeTo and readFrom.
+ */
+public class EtaEngine {
+
+    /** The speed assumed where nothing has been learned: 20 km/h. */
+    public static final double DEFAULT_SPEED_MPS = 5.55;
+
+    private static final int FILE_VERSION = 1;
+    private static final int HOURS = 24;
+    // Bucket HOURS of each segment holds its all-day pace.
+    private static final int ALL_DAY = HOURS;
+    // Weight of the newest traversal once a bucket has this many; earlier ones are averaged.
+    private static final double SMOOTHING = 0.2;
+    // A matatu this far beyond a stop has passed it, rather than showing GPS noise.
+    private static final double PASSED_METERS = 50;
+    // Crossings are not timed across gaps longer than this between reports.
+    private static final long MAX_GAP_MILLIS = 10 * 60 * 1000;
+    // Going back this far along the route means a new run (or a turnaround); start afresh.
+    private static final double RESTART_METERS = 200;
+    private static final int MAX_TRIPS = 256;
+    private static final long TRIP_EXPIRY_MILLIS = 60 * 60 * 1000;
+
+    private static class TripState {
+        long lastTimeMillis;
+        double lastDistanceAlong;
+        int lastStop = -1; // the last stop reached
+        long lastStopTimeMillis;
+    }
+
+    private final RoutePolyline route;
+    private final TimeZone zone;
+    // [segment][hour, or ALL_DAY]
+    private final double[][] pace;
+    private final int[][] count;
+    // Oldest report first.
+    private final LinkedHashMap<String, TripState> trips = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long traversalCount;
+
+    /**
+     * @param route The route; at least two stops.
+     * @param zone The time zone whose hours of day the profile is kept in.
+     */
+    public EtaEngine(RoutePolyline route, TimeZone zone) {
+        if (route.segmentCount() < 1) {
+            throw new IllegalArgumentException("An ETA engine needs a route with at least two stops");
+        }
+        this.route = route;
+        this.zone = zone;
+        pace = new double[route.segmentCount()][HOURS + 1];
+        count = new int[route.segmentCount()][HOURS + 1];
+    }
+
+    public RoutePolyline getRoute() {
+        return route;
+    }
+
+    /**
+     * Takes in a trip's position. Reports for a trip must come in time order; older ones are
+     * ignored, so the same report can be passed in more than once.
+     * @param distanceAlong The trip's distance along the route in metres.
+     */
+    public synchronized void observe(String tripId, long timeMillis, double distanceAlong) {
+        TripState trip = trips.get(tripId);
+        if (trip == null) {
+            expireTrips(timeMillis);
+            trip = new TripState();
+            trip.lastTimeMillis = timeMillis;
+            trip.lastDistanceAlong = distanceAlong;
+            trips.put(tripId, trip);
+            return;
+        }
+        if (timeMillis <= trip.lastTimeMillis) {
+            return;
+        }
+        if (distanceAlong < trip.lastDistanceAlong - RESTART_METERS
+                || timeMillis - trip.lastTimeMillis > MAX_GAP_MILLIS) {
+            trip.lastStop = -1;
+        } else {
+            for (int stop = trip.lastStop + 1; stop < route.stopCount(); stop++) {
+                double stopDistance = route.stopDistance(stop);
+                if (stopDistance > distanceAlong) {
+                    break;
+                }
+                if (stopDistance < trip.lastDistanceAlong) {
+                    continue;
+                }
+                // Reached between the two reports; interpolate when.
+                double fraction = distanceAlong > trip.lastDistanceAlong
+                        ? (stopDistance - trip.lastDistanceAlong) / (distanceAlong - trip.lastDistanceAlong) : 0;
+                long reachedAt = trip.lastTimeMillis + Math.round(fraction * (timeMillis - trip.lastTimeMillis));
+                if (trip.lastStop == stop - 1 && trip.lastStop >= 0) {
+                    learn(stop - 1, trip.lastStopTimeMillis, reachedAt - trip.lastStopTimeMillis);
+                }
+                trip.lastStop = stop;
+                trip.lastStopTimeMillis = reachedAt;
+            }
+        }
+        trip.lastTimeMillis = timeMillis;
+        trip.lastDistanceAlong = distanceAlong;
+    }
+
+    private void learn(int segment, long startMillis, long durationMillis) {
+        double length = route.stopDistance(segment + 1) - route.stopDistance(segment);
+        if (length <= 0 || durationMillis <= 0) {
+            return;
+        }
+        double sample = durationMillis / 1000.0 / length;
+        update(segment, hourOf(startMillis), sample);
+        update(segment, ALL_DAY, sample);
+        traversalCount++;
+    }
+
+    private void update(int segment, int bucket, double sample) {
+        int n = ++count[segment][bucket];
+        double weight = Math.max(SMOOTHING, 1.0 / n);
+        pace[segment][bucket] += weight * (sample - pace[segment][bucket]);
+    }
+
+    private void expireTrips(long nowMillis) {
+        Iterator<TripState> iterator = trips.values().iterator();
+        while (iterator.hasNext()) {
+            TripState oldest = iterator.next();
+            if (trips.size() < MAX_TRIPS && nowMillis - oldest.lastTimeMillis < TRIP_EXPIRY_MILLIS) {
+                break;
+            }
+            iterator.remove();
+        }
+    }
+
+    private int hourOf(long timeMillis) {
+        long local = timeMillis + zone.getOffset(timeMillis);
+        return (int) Math.floorMod(local / (60 * 60 * 1000), (long) HOURS);
+    }
+
+    /**
+     * @return The pace in seconds per metre for a segment at an hour of day.
+     */
+    private double paceAt(int segment, int hour) {
+        if (count[segment][hour] > 0) {
+            return pace[segment][hour];
+        }
+        if (count[segment][ALL_DAY] > 0) {
+            return pace[segment][ALL_DAY];
+        }
+        return 1 / DEFAULT_SPEED_MPS;
+    }
+
+    /**
+     * @return The expected speed in m/s on a segment at an hour of day (0 to 23, local time).
+     */
+    public synchronized double getSegmentSpeed(int segment, int hour) {
+        return 1 / paceAt(segment, hour);
+    }
+
+    /**
+     * @return The stop closest to a position: where a passenger there would board.
+     */
+    public int pickupStop(LatLng position) {
+        int best = 0;
+        double bestDistance = Double.MAX_VALUE;
+        for (int stop = 0; stop < route.stopCount(); stop++) {
+            double distance = SphericalUtil.computeDistanceBetween(position, route.positionAt(route.stopDistance(stop)));
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = stop;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Estimates how long a matatu takes to reach a stop.
+     * @param distanceAlong The matatu's distance along the route in metres.
+     * @param stop The stop's index.
+     * @param timeMillis When the matatu was there.
+     * @return The time in seconds from then, 0 if it is at the stop, or NaN if it has passed
+     * the stop.
+     */
+    public synchronized double estimateSeconds(double distanceAlong, int stop, long timeMillis) {
+        double target = route.stopDistance(stop);
+        if (distanceAlong > target + PASSED_METERS) {
+            return Double.NaN;
+        }
+        double position = Math.max(0, distanceAlong);
+        double seconds = 0;
+        int segment = route.segmentAt(position);
+        while (position < target) {
+            double segmentEnd = Math.min(route.stopDistance(segment + 1), target);
+            int hour = hourOf(timeMillis + Math.round(seconds * 1000));
+            seconds += (segmentEnd - position) * paceAt(segment, hour);
+            position = segmentEnd;
+            segment++;
+        }
+        return seconds;
+    }
+
+    /**
+     * @return A summary of what has been learned, for logging.
+     */
+    public synchronized String stats() {
+        int buckets = 0;
+        for (int[] segment : count) {
+            for (int hour = 0; hour < HOURS; hour++) {
+                if (segment[hour] > 0) {
+                    buckets++;
+                }
+            }
+        }
+        return "ETA profile: " + traversalCount + " segment traversals learned, " + buckets + " of "
+                + count.length * HOURS + " segment-hours known, " + trips.size() + " trips followed.";
+    }
+
+    /**
+     * Writes the learned profile.
+     */
+    public synchronized void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(FILE_VERSION);
+        out.writeInt(route.stopCount());
+        out.writeDouble(route.length());
+        for (int segment = 0; segment < pace.length; segment++) {
+            for (int bucket = 0; bucket <= HOURS; bucket++) {
+                out.writeDouble(pace[segment][bucket]);
+                out.writeInt(count[segment][bucket]);
+            }
+        }
+    }
+
+    /**
+     * Replaces the learned profile with one written by writeTo.
+     * @return False, leaving the profile as it was, if it was written for a different route
+     * or version.
+     */
+    public synchronized boolean readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != FILE_VERSION || in.readInt() != route.stopCount()
+                || Math.abs(in.readDouble() - route.length()) > 1) {
+            return false;
+        }
+        double[][] readPace = new double[pace.length][HOURS + 1];
+        int[][] readCount = new int[pace.length][HOURS + 1];
+        for (int segment = 0; segment < pace.length; segment++) {
+            for (int bucket = 0; bucket <= HOURS; bucket++) {
+                readPace[segment][bucket] = in.readDouble();
+                readCount[segment][bucket] = in.readInt();
+            }
+        }
+        for (int segment = 0; segment < pace.length; segment++) {
+            System.arraycopy(readPace[segment], 0, pace[segment], 0, HOURS + 1);
+            System.arraycopy(readCount[segment], 0, count[segment], 0, HOURS + 1);
+        }
+        return true;
+    }
+}
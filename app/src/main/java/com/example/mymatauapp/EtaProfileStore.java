@@ -0,0 +1,127 @@
+package com.example.mymatauapp;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps one EtaEngine per route for the process, restoring each engine's learned profile
+ * from the app's files when it is first asked for and writing it back on save, so what one
+ * session learns about a route's traffic carries over to the next.
+ */
+public final class EtaProfileStore {
+
+    private static final String TAG = "EtaProfileStore";
+    private static final String DIRECTORY_NAME = "eta";
+    // Matatu traffic follows Nairobi's clock.
+    private static final TimeZone ZONE = TimeZone.getTimeZone("Africa/Nairobi");
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "EtaProfileStore");
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+    });
+
+    private static final Map<String, CompletableFuture<EtaEngine>> engines = new HashMap<>();
+
+    private EtaProfileStore() {
+    }
+
+    /**
+     * @param context Any context; the application context is kept.
+     * @return A future for the route's engine. It completes with null if the route is not in
+     * the route network or has a single stop, and never exceptionally.
+     */
+    public static synchronized CompletableFuture<EtaEngine> get(Context context, String routeId) {
+        CompletableFuture<EtaEngine> engine = engines.get(routeId);
+        if (engine == null) {
+            File file = fileFor(context.getApplicationContext(), routeId);
+            engine = RouteGraph.get(context).thenApplyAsync(manager -> {
+                RoutePolyline route = manager.getRoutePolyline(routeId);
+                if (route == null || route.segmentCount() < 1) {
+                    Log.w(TAG, "Route " + routeId + " has no segments; no ETA profile.");
+                    return null;
+                }
+                EtaEngine loaded = new EtaEngine(route, ZONE);
+                load(loaded, file);
+                return loaded;
+            }, EXECUTOR);
+            engines.put(routeId, engine);
+        }
+        return engine;
+    }
+
+    /**
+     * Writes every loaded engine's profile back to disk, in the background.
+     */
+    public static void save(Context context) {
+        Context appContext = context.getApplicationContext();
+        List<Map.Entry<String, CompletableFuture<EtaEngine>>> loaded;
+        synchronized (EtaProfileStore.class) {
+            loaded = new ArrayList<>(engines.entrySet());
+        }
+        for (Map.Entry<String, CompletableFuture<EtaEngine>> entry : loaded) {
+            EtaEngine engine = entry.getValue().getNow(null);
+            if (engine != null) {
+                File file = fileFor(appContext, entry.getKey());
+                EXECUTOR.execute(() -> write(engine, file));
+            }
+        }
+    }
+
+    private static File fileFor(Context context, String routeId) {
+        String name = routeId.toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9]+", "_");
+        return new File(new File(context.getFilesDir(), DIRECTORY_NAME), name + ".bin");
+    }
+
+    private static void load(EtaEngine engine, File file) {
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (engine.readFrom(in)) {
+                Log.d(TAG, "Loaded " + file.getName() + ". " + engine.stats());
+            } else {
+                Log.i(TAG, "Ignoring " + file.getName() + ", written for another version of the route.");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read " + file.getName(), e);
+        }
+    }
+
+    private static void write(EtaEngine engine, File file) {
+        File directory = file.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "Could not create " + directory);
+            return;
+        }
+        // Written to a temporary file and renamed, so a crash never leaves half a profile.
+        File temporary = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+            engine.writeTo(out);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write " + file.getName(), e);
+            return;
+        }
+        if (!temporary.renameTo(file)) {
+            Log.w(TAG, "Could not replace " + file.getName());
+        }
+    }
+}
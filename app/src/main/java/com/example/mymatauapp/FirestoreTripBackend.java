@@ -0,0 +1,109 @@
+package com.example.mymatauapp;
+
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.SetOptions;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replays journaled trip events to the trips collection in Firestore.
+ *
+ * Each batch of events becomes one WriteBatch. Every event is a merge into its trip's
+ * document, so consecutive events for the same trip are folded into a single write, with
+ * later fields overriding earlier ones. Breadcrumbs are the exception: folding two positions
+ * joins their trails, with the earlier position itself becoming a breadcrumb, so a backlog
+ * journaled in a dead zone arrives as one unbroken trail. The document's journalSequence
+ * field records the last event applied to it.
+ */
+public class FirestoreTripBackend implements TripEventJournal.Backend {
+
+    // The most breadcrumbs one folded write carries; past this every other one is dropped,
+    // as LocationUploadBatcher does, to stay well inside Firestore's document size limit.
+    static final int MAX_BREADCRUMBS = 1000;
+
+    private final FirebaseFirestore db;
+
+    public FirestoreTripBackend(FirebaseFirestore db) {
+        this.db = db;
+    }
+
+    @Override
+    public void apply(List<TripEvent> events, TripEventJournal.Callback callback) {
+        WriteBatch batch = db.batch();
+        String tripId = null;
+        Map<String, Object> fields = null;
+        for (TripEvent event : events) {
+            if (!event.getTripId().equals(tripId)) {
+                if (fields != null) {
+                    batch.set(db.collection("trips").document(tripId), fields, SetOptions.merge());
+                }
+                tripId = event.getTripId();
+                fields = new HashMap<>();
+            }
+            fold(fields, event);
+        }
+        if (fields != null) {
+            batch.set(db.collection("trips").document(tripId), fields, SetOptions.merge());
+        }
+        batch.commit()
+                .addOnSuccessListener(aVoid -> callback.onComplete(null))
+                .addOnFailureListener(callback::onComplete);
+    }
+
+    /**
+     * Folds an event into the fields of a write to its trip's document.
+     */
+    static void fold(Map<String, Object> fields, TripEvent event) {
+        Object earlier = fields.get("breadcrumbs");
+        Object earlierLatitude = fields.get("latitude");
+        Object earlierLongitude = fields.get("longitude");
+        Object earlierTime = fields.get("lastUpdated");
+        fields.putAll(event.getFields());
+        fields.put("journalSequence", event.getSequence());
+
+        Object later = event.getFields().get("breadcrumbs");
+        Object laterTime = event.getFields().get("lastUpdated");
+        if (!(earlier instanceof List) || !(later instanceof List)
+                || !(earlierLatitude instanceof Double) || !(earlierLongitude instanceof Double)
+                || !(earlierTime instanceof Long) || !(laterTime instanceof Long)) {
+            return;
+        }
+        // Breadcrumbs are (latitude * 1e5, longitude * 1e5, seconds before lastUpdated) triples,
+        // so the earlier ones are moved back by the time between the two positions.
+        long shift = ((Long) laterTime - (Long) earlierTime) / 1000;
+        List<Long> joined = new ArrayList<>();
+        List<?> earlierCrumbs = (List<?>) earlier;
+        for (int i = 0; i + 2 < earlierCrumbs.size(); i += 3) {
+            joined.add((Long) earlierCrumbs.get(i));
+            joined.add((Long) earlierCrumbs.get(i + 1));
+            joined.add((Long) earlierCrumbs.get(i + 2) + shift);
+        }
+        joined.add(Math.round((Double) earlierLatitude * 1e5));
+        joined.add(Math.round((Double) earlierLongitude * 1e5));
+        joined.add(shift);
+        for (Object value : (List<?>) later) {
+            joined.add((Long) value);
+        }
+        fields.put("breadcrumbs", thin(joined));
+    }
+
+    /**
+     * Keeps the newest breadcrumb and every other one before it until at most MAX_BREADCRUMBS
+     * remain.
+     */
+    private static List<Long> thin(List<Long> breadcrumbs) {
+        while (breadcrumbs.size() / 3 > MAX_BREADCRUMBS) {
+            int count = breadcrumbs.size() / 3;
+            List<Long> thinned = new ArrayList<>(breadcrumbs.size() / 2 + 3);
+            for (int i = (count - 1) % 2; i < count; i += 2) {
+                thinned.addAll(breadcrumbs.subList(3 * i, 3 * i + 3));
+            }
+            breadcrumbs = thinned;
+        }
+        return breadcrumbs;
+    }
+}
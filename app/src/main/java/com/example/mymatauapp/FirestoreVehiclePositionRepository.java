@@ -0,0 +1,97 @@
+package com.example.mymatauapp;
+
+import com.google.firebase.firestore.DocumentChange;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.ListenerRegistration;
+import com.google.firebase.firestore.Query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads live trip positions from the trips collection in Firestore. A cell is listened to
+ * with an equality filter on the trip documents' geohash field, which
+ * FirestoreVehiclePositionTransport.fieldsOf writes with every position, and each snapshot is
+ * passed on as its document changes.
+ */
+public class FirestoreVehiclePositionRepository implements VehiclePositionRepository {
+
+    private final FirebaseFirestore db;
+
+    public FirestoreVehiclePositionRepository(FirebaseFirestore db) {
+        this.db = db;
+    }
+
+    @Override
+    public Registration listen(String routeId, String cell, Listener listener) {
+        Query query = db.collection("trips")
+                .whereEqualTo("status", "available")
+                .whereEqualTo("routeId", routeId);
+        if (cell != null) {
+            query = query.whereEqualTo("geohash", cell);
+        }
+        ListenerRegistration registration = query.addSnapshotListener((querySnapshot, e) -> {
+            if (e != null) {
+                listener.onChanges(null, e);
+                return;
+            }
+            List<Change> changes = new ArrayList<>();
+            if (querySnapshot != null) {
+                for (DocumentChange change : querySnapshot.getDocumentChanges()) {
+                    DocumentSnapshot doc = change.getDocument();
+                    VehiclePosition vehicle = change.getType() == DocumentChange.Type.REMOVED
+                            ? null : toVehiclePosition(doc, routeId);
+                    if (vehicle == null) {
+                        // Gone, or without a position to show.
+                        changes.add(Change.removed(doc.getId()));
+                    } else if (change.getType() == DocumentChange.Type.ADDED) {
+                        changes.add(Change.added(vehicle));
+                    } else {
+                        changes.add(Change.modified(vehicle));
+                    }
+                }
+            }
+            listener.onChanges(changes, null);
+        });
+        return registration::remove;
+    }
+
+    /**
+     * @return The trip's position, or null if the document has no position yet.
+     */
+    private static VehiclePosition toVehiclePosition(DocumentSnapshot doc, String routeId) {
+        Double latitude = doc.getDouble("latitude");
+        Double longitude = doc.getDouble("longitude");
+        String matatuId = doc.getString("matatuId");
+        Long lastUpdated = doc.getLong("lastUpdated");
+        if (latitude == null || longitude == null || matatuId == null || lastUpdated == null) {
+            return null;
+        }
+        Double speed = doc.getDouble("speed");
+        Double distanceAlongRoute = doc.getDouble("distanceAlongRoute");
+        Long nextStopIndex = doc.getLong("nextStopIndex");
+        return new VehiclePosition(doc.getId(), matatuId, routeId, latitude, longitude,
+                speed != null ? speed : 0,
+                distanceAlongRoute != null ? distanceAlongRoute : -1,
+                nextStopIndex != null ? nextStopIndex.intValue() : -1,
+                lastUpdated,
+                breadcrumbsOf(doc));
+    }
+
+    private static List<Long> breadcrumbsOf(DocumentSnapshot doc) {
+        Object value = doc.get("breadcrumbs");
+        if (!(value instanceof List)) {
+            return Collections.emptyList();
+        }
+        List<Long> breadcrumbs = new ArrayList<>();
+        for (Object element : (List<?>) value) {
+            if (!(element instanceof Number)) {
+                return Collections.emptyList();
+            }
+            breadcrumbs.add(((Number) element).longValue());
+        }
+        return breadcrumbs;
+    }
+}
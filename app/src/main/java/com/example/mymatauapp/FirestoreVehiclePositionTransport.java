@@ -0,0 +1,75 @@
+package com.example.mymatauapp;
+
+import com.google.firebase.firestore.FirebaseFirestore;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Publishes positions into the trips' Firestore documents, and reads them back with
+ * FirestoreVehiclePositionRepository.
+ *
+ * Positions are written through the trip event journal, so a position taken in a dead zone
+ * reaches the document once the network returns. Each one is a whole document write that
+ * every listener on the trip's cell reads back, so they are published at most every 15 s.
+ */
+public class FirestoreVehiclePositionTransport implements VehiclePositionTransport {
+
+    private static final long PUBLISH_INTERVAL_MILLIS = 15000;
+
+    private final TripEventJournal journal;
+    private final FirestoreVehiclePositionRepository repository;
+
+    public FirestoreVehiclePositionTransport(TripEventJournal journal, FirebaseFirestore db) {
+        this.journal = journal;
+        this.repository = new FirestoreVehiclePositionRepository(db);
+    }
+
+    @Override
+    public Registration listen(String routeId, String cell, Listener listener) {
+        return repository.listen(routeId, cell, listener);
+    }
+
+    @Override
+    public boolean isOnline() {
+        // The journal takes writes with or without a network.
+        return true;
+    }
+
+    @Override
+    public void publish(VehiclePosition position, Callback callback) {
+        journal.append(TripEvent.position(position.getTripId(), fieldsOf(position)), callback::onComplete);
+    }
+
+    @Override
+    public void end(String tripId) {
+        // ConductorDashboardActivity journals the trip's end, which takes it out of the
+        // available trips listeners match.
+    }
+
+    @Override
+    public long getPublishIntervalMillis() {
+        return PUBLISH_INTERVAL_MILLIS;
+    }
+
+    /**
+     * The fields of the trip document a position updates: the position in latitude,
+     * longitude, lastUpdated and speed, its geohash cell in geohash, its match onto the route
+     * in distanceAlongRoute and nextStopIndex, and the fixes before it in breadcrumbs.
+     */
+    static Map<String, Object> fieldsOf(VehiclePosition position) {
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("latitude", position.getLatitude());
+        fields.put("longitude", position.getLongitude());
+        fields.put("lastUpdated", position.getLastUpdated());
+        // Passengers listen to the cells near them (see VehiclePositionRepository).
+        fields.put("geohash", position.getCell());
+        // Readers extrapolate the position along the route at this speed until the next write.
+        fields.put("speed", position.getSpeed());
+        // The match onto the route, or -1 for both while off it.
+        fields.put("distanceAlongRoute", position.getDistanceAlongRoute() < 0 ? -1.0 : position.getDistanceAlongRoute());
+        fields.put("nextStopIndex", (long) position.getNextStopIndex());
+        fields.put("breadcrumbs", position.getBreadcrumbs());
+        return fields;
+    }
+}
@@ -0,0 +1,541 @@
+package com.example.mymatauapp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An offline index of named places (stages, estates, landmarks) for destination search.
+ *
+ * Names are normalized (accents and punctuation removed, lower case) and every word start is
+ * inserted into a prefix trie, so "city" finds "Garden City Mall". Places are numbered by
+ * importance, and each trie node stores the few best places below it, so a prefix lookup is a
+ * walk down the trie followed by reading one short list. Typos are handled by a bounded edit
+ * distance search over the same trie.
+ *
+ * Like RouteNetworkFile, the compiled index is a little-endian file of int32 tables that is
+ * memory-mapped and used in place.
+ *
+ * Layout (every entry is an int32 unless noted):
+ *   header:  MAGIC, VERSION, placeCount (P), nodeCount (N), topCount (T), nameByteCount, topK
+ *   places:  placeLatE6[P], placeLngE6[P], nameOffsets[P + 1]
+ *   trie:    childOffsets[N + 1], edgeLabels[N - 1], edgeTargets[N - 1], topOffsets[N + 1], topPlaces[T]
+ *   names:   nameBytes (bytes)
+ * Node 0 is the root. The children of node n are edges childOffsets[n] until childOffsets[n + 1],
+ * sorted by label.
+ */
+public class Gazetteer {
+
+    public static final int MAGIC = 0x5A474D4D; // "MMGZ" in little-endian byte order
+    public static final int VERSION = 1;
+
+    /** The asset that ships with the app, and the name of a downloaded replacement. */
+    public static final String ASSET_NAME = "nairobi_places.gaz";
+
+    private static final int HEADER_INTS = 7;
+    // How many places each trie node remembers; also the most results a prefix can return.
+    private static final int DEFAULT_TOP_K = 8;
+
+    private final IntBuffer placeLatE6;
+    private final IntBuffer placeLngE6;
+    private final IntBuffer nameOffsets;
+    private final ByteBuffer nameBytes;
+    private final IntBuffer childOffsets;
+    private final IntBuffer edgeLabels;
+    private final IntBuffer edgeTargets;
+    private final IntBuffer topOffsets;
+    private final IntBuffer topPlaces;
+
+    private Gazetteer(IntBuffer placeLatE6, IntBuffer placeLngE6, IntBuffer nameOffsets, ByteBuffer nameBytes,
+                      IntBuffer childOffsets, IntBuffer edgeLabels, IntBuffer edgeTargets,
+                      IntBuffer topOffsets, IntBuffer topPlaces) {
+        this.placeLatE6 = placeLatE6;
+        this.placeLngE6 = placeLngE6;
+        this.nameOffsets = nameOffsets;
+        this.nameBytes = nameBytes;
+        this.childOffsets = childOffsets;
+        this.edgeLabels = edgeLabels;
+        this.edgeTargets = edgeTargets;
+        this.topOffsets = topOffsets;
+        this.topPlaces = topPlaces;
+    }
+
+    public int placeCount() {
+        return placeLatE6.limit();
+    }
+
+    public String placeName(int place) {
+        int start = nameOffsets.get(place);
+        byte[] utf8 = new byte[nameOffsets.get(place + 1) - start];
+        ByteBuffer view = nameBytes.duplicate();
+        view.position(start);
+        view.get(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    public PlaceResult place(int place) {
+        return new PlaceResult(placeName(place), placeLatE6.get(place) / 1e6, placeLngE6.get(place) / 1e6);
+    }
+
+    /**
+     * Lower-cases, strips accents and apostrophes, and turns any other punctuation into single
+     * spaces, so "Lang'ata" and "langata" are the same key.
+     */
+    public static String normalize(String text) {
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        StringBuilder normalized = new StringBuilder(decomposed.length());
+        boolean pendingSpace = false;
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = Character.toLowerCase(decomposed.charAt(i));
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
+                if (pendingSpace && normalized.length() > 0) {
+                    normalized.append(' ');
+                }
+                pendingSpace = false;
+                normalized.append(c);
+            } else if (c != '\'' && c != '\u2019' && Character.getType(c) != Character.NON_SPACING_MARK) {
+                pendingSpace = true;
+            }
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * Finds the places whose name has a word starting with the query, best first. When there
+     * are none, places within a small edit distance of the query are returned instead.
+     * @param query The text the user typed.
+     * @param limit The maximum number of results.
+     * @return The matching places; empty if nothing matches well enough.
+     */
+    public List<PlaceResult> search(String query, int limit) {
+        String key = normalize(query);
+        List<PlaceResult> results = new ArrayList<>();
+        if (key.isEmpty()) {
+            return results;
+        }
+
+        Map<Integer, Integer> matches = new HashMap<>(); // place -> smallest edit distance
+        int node = walk(key);
+        if (node >= 0) {
+            collect(node, 0, matches);
+        }
+        int maxEdits = maxEdits(key.length());
+        if (matches.isEmpty() && maxEdits > 0) {
+            // One row of the edit distance table per trie level, reused across branches.
+            int[][] rows = new int[key.length() + maxEdits + 1][key.length() + 1];
+            for (int i = 0; i <= key.length(); i++) {
+                rows[0][i] = i;
+            }
+            fuzzy(0, 0, key, rows, maxEdits, matches);
+        }
+
+        List<Map.Entry<Integer, Integer>> ranked = new ArrayList<>(matches.entrySet());
+        ranked.sort((a, b) -> a.getValue().equals(b.getValue())
+                ? Integer.compare(a.getKey(), b.getKey())
+                : Integer.compare(a.getValue(), b.getValue()));
+        for (int i = 0; i < ranked.size() && i < limit; i++) {
+            results.add(place(ranked.get(i).getKey()));
+        }
+        return results;
+    }
+
+    private static int maxEdits(int length) {
+        if (length < 3) {
+            return 0;
+        }
+        return length <= 5 ? 1 : 2;
+    }
+
+    /**
+     * @return The node reached by following the key from the root, or -1 if there is none.
+     */
+    private int walk(String key) {
+        int node = 0;
+        for (int i = 0; i < key.length() && node >= 0; i++) {
+            node = child(node, key.charAt(i));
+        }
+        return node;
+    }
+
+    private int child(int node, char label) {
+        int edge = edgeFor(node, label);
+        return edge < 0 ? -1 : edgeTargets.get(edge);
+    }
+
+    /**
+     * @return The edge from the node with the given label, or -1 if there is none.
+     */
+    private int edgeFor(int node, char label) {
+        int low = childOffsets.get(node);
+        int high = childOffsets.get(node + 1) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midLabel = edgeLabels.get(mid);
+            if (midLabel < label) {
+                low = mid + 1;
+            } else if (midLabel > label) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private void collect(int node, int distance, Map<Integer, Integer> matches) {
+        for (int i = topOffsets.get(node); i < topOffsets.get(node + 1); i++) {
+            matches.merge(topPlaces.get(i), distance, Math::min);
+        }
+    }
+
+    /**
+     * Depth-first search for trie prefixes within maxEdits of the query, keeping one row of the
+     * Levenshtein table per level. Once a node matches the whole query its top list covers
+     * everything below it, so the search stops there.
+     *
+     * People rarely mistype the first letter of a name, so only the branch for it is searched;
+     * that skips almost all of the trie.
+     */
+    private void fuzzy(int node, int depth, String key, int[][] rows, int maxEdits, Map<Integer, Integer> matches) {
+        int m = key.length();
+        int[] row = rows[depth];
+        if (node != 0 && row[m] <= maxEdits) {
+            collect(node, row[m], matches);
+            return;
+        }
+        int firstEdge = childOffsets.get(node);
+        int lastEdge = childOffsets.get(node + 1);
+        if (node == 0) {
+            firstEdge = edgeFor(0, key.charAt(0));
+            lastEdge = firstEdge + 1;
+            if (firstEdge < 0) {
+                return;
+            }
+        }
+        for (int e = firstEdge; e < lastEdge; e++) {
+            char label = (char) edgeLabels.get(e);
+            int[] next = rows[depth + 1];
+            next[0] = row[0] + 1;
+            int smallest = next[0];
+            for (int i = 1; i <= m; i++) {
+                int substitution = row[i - 1] + (key.charAt(i - 1) == label ? 0 : 1);
+                next[i] = Math.min(substitution, Math.min(row[i] + 1, next[i - 1] + 1));
+                smallest = Math.min(smallest, next[i]);
+            }
+            if (smallest <= maxEdits) {
+                fuzzy(edgeTargets.get(e), depth + 1, key, rows, maxEdits, matches);
+            }
+        }
+    }
+
+    /**
+     * Memory-maps a whole gazetteer file.
+     */
+    public static Gazetteer map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return map(raf.getChannel(), 0, raf.length());
+        }
+    }
+
+    /**
+     * Memory-maps a gazetteer stored in part of a file, such as an uncompressed APK asset.
+     * The mapping stays valid after the channel is closed.
+     */
+    public static Gazetteer map(FileChannel channel, long position, long size) throws IOException {
+        return read(channel.map(FileChannel.MapMode.READ_ONLY, position, size));
+    }
+
+    /**
+     * Opens a gazetteer held in a buffer. The buffer is used in place, not copied.
+     *
+     * As with RouteNetworkFile, a downloaded file may be corrupt, so the counts, offset tables
+     * and references are all checked before the gazetteer is handed out. Edges must lead to a
+     * higher-numbered node, as breadth-first numbering guarantees, so a corrupt trie cannot
+     * send a search round a cycle.
+     * @throws IOException If the buffer does not hold a supported, consistent gazetteer file.
+     */
+    public static Gazetteer read(ByteBuffer buffer) throws IOException {
+        ByteBuffer bytes = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (bytes.remaining() < HEADER_INTS * 4) {
+            throw new IOException("Gazetteer file is truncated");
+        }
+        IntBuffer header = slice(bytes, 0, HEADER_INTS);
+        if (header.get(0) != MAGIC) {
+            throw new IOException("Not a gazetteer file");
+        }
+        if (header.get(1) != VERSION) {
+            throw new IOException("Unsupported gazetteer file version " + header.get(1));
+        }
+        int placeCount = header.get(2);
+        int nodeCount = header.get(3);
+        int topCount = header.get(4);
+        int nameByteCount = header.get(5);
+        if (nodeCount < 1) {
+            throw new IOException("Gazetteer file has no trie");
+        }
+        if (placeCount < 0 || topCount < 0 || nameByteCount < 0) {
+            throw new IOException("Gazetteer file has a negative count");
+        }
+
+        long intCount = HEADER_INTS + 3L * placeCount + 1 + 4L * nodeCount + topCount;
+        if (bytes.remaining() < intCount * 4 + nameByteCount) {
+            throw new IOException("Gazetteer file is truncated");
+        }
+
+        int offset = HEADER_INTS;
+        IntBuffer placeLatE6 = slice(bytes, offset, placeCount);
+        offset += placeCount;
+        IntBuffer placeLngE6 = slice(bytes, offset, placeCount);
+        offset += placeCount;
+        IntBuffer nameOffsets = slice(bytes, offset, placeCount + 1);
+        offset += placeCount + 1;
+        IntBuffer childOffsets = slice(bytes, offset, nodeCount + 1);
+        offset += nodeCount + 1;
+        IntBuffer edgeLabels = slice(bytes, offset, nodeCount - 1);
+        offset += nodeCount - 1;
+        IntBuffer edgeTargets = slice(bytes, offset, nodeCount - 1);
+        offset += nodeCount - 1;
+        IntBuffer topOffsets = slice(bytes, offset, nodeCount + 1);
+        offset += nodeCount + 1;
+        IntBuffer topPlaces = slice(bytes, offset, topCount);
+        offset += topCount;
+        ByteBuffer nameBytes = sliceBytes(bytes, offset * 4, nameByteCount);
+
+        checkOffsets(nameOffsets, nameByteCount, "name");
+        checkOffsets(childOffsets, nodeCount - 1, "child");
+        checkOffsets(topOffsets, topCount, "top place");
+        for (int node = 0; node < nodeCount; node++) {
+            for (int e = childOffsets.get(node); e < childOffsets.get(node + 1); e++) {
+                int target = edgeTargets.get(e);
+                if (target <= node || target >= nodeCount) {
+                    throw new IOException("Gazetteer file has an edge target out of range");
+                }
+            }
+        }
+        for (int i = 0; i < topCount; i++) {
+            int place = topPlaces.get(i);
+            if (place < 0 || place >= placeCount) {
+                throw new IOException("Gazetteer file has a top place out of range");
+            }
+        }
+
+        return new Gazetteer(placeLatE6, placeLngE6, nameOffsets, nameBytes,
+                childOffsets, edgeLabels, edgeTargets, topOffsets, topPlaces);
+    }
+
+    /**
+     * Checks that an offset table starts at 0, never decreases and ends at the size of the
+     * data it indexes.
+     */
+    private static void checkOffsets(IntBuffer offsets, int size, String table) throws IOException {
+        int previous = 0;
+        for (int i = 0; i < offsets.limit(); i++) {
+            int offset = offsets.get(i);
+            if ((i == 0 && offset != 0) || offset < previous) {
+                throw new IOException("Gazetteer file has bad " + table + " offsets");
+            }
+            previous = offset;
+        }
+        if (previous != size) {
+            throw new IOException("Gazetteer file has bad " + table + " offsets");
+        }
+    }
+
+    private static IntBuffer slice(ByteBuffer bytes, int intOffset, int intCount) {
+        return sliceBytes(bytes, intOffset * 4, intCount * 4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+
+    private static ByteBuffer sliceBytes(ByteBuffer bytes, int byteOffset, int byteCount) {
+        ByteBuffer view = bytes.duplicate();
+        view.position(bytes.position() + byteOffset);
+        view.limit(bytes.position() + byteOffset + byteCount);
+        return view.slice();
+    }
+
+    /**
+     * Collects places and compiles them into the gazetteer file format.
+     */
+    public static class Builder {
+
+        private final List<String> names = new ArrayList<>();
+        private final List<int[]> coordinates = new ArrayList<>(); // {latE6, lngE6}
+        private final List<Integer> priorities = new ArrayList<>();
+        private final int topK;
+
+        public Builder() {
+            this(DEFAULT_TOP_K);
+        }
+
+        Builder(int topK) {
+            this.topK = topK;
+        }
+
+        /**
+         * Adds a place. Places with a higher priority are listed first; ties go to the
+         * shorter name.
+         */
+        public Builder add(String name, double lat, double lng, int priority) {
+            if (normalize(name).isEmpty()) {
+                throw new IllegalArgumentException("Place name has no letters or digits: " + name);
+            }
+            names.add(name);
+            coordinates.add(new int[]{(int) Math.round(lat * 1e6), (int) Math.round(lng * 1e6)});
+            priorities.add(priority);
+            return this;
+        }
+
+        public int size() {
+            return names.size();
+        }
+
+        /**
+         * Builds the index in memory, for tests and tools.
+         */
+        public Gazetteer build() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                write(out);
+                return read(ByteBuffer.wrap(out.toByteArray()));
+            } catch (IOException e) {
+                // Neither step can fail for an in-memory buffer built right here.
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Writes the index in the gazetteer file format.
+         */
+        public void write(OutputStream out) throws IOException {
+            int placeCount = names.size();
+            // Number places best first, so "the best k places below a node" is simply the
+            // first k distinct ids inserted through it.
+            Integer[] order = new Integer[placeCount];
+            for (int i = 0; i < placeCount; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> {
+                int byPriority = Integer.compare(priorities.get(b), priorities.get(a));
+                if (byPriority != 0) {
+                    return byPriority;
+                }
+                int byLength = Integer.compare(names.get(a).length(), names.get(b).length());
+                return byLength != 0 ? byLength : names.get(a).compareTo(names.get(b));
+            });
+
+            TrieNode root = new TrieNode();
+            for (int id = 0; id < placeCount; id++) {
+                String key = normalize(names.get(order[id]));
+                for (int start = 0; start < key.length(); start++) {
+                    if (start == 0 || key.charAt(start - 1) == ' ') {
+                        insert(root, key, start, id);
+                    }
+                }
+            }
+
+            // Number nodes breadth first so each node's children are contiguous.
+            List<TrieNode> nodes = new ArrayList<>();
+            nodes.add(root);
+            for (int i = 0; i < nodes.size(); i++) {
+                nodes.addAll(nodes.get(i).children.values());
+            }
+            Map<TrieNode, Integer> numbers = new HashMap<>();
+            for (int i = 0; i < nodes.size(); i++) {
+                numbers.put(nodes.get(i), i);
+            }
+            int nodeCount = nodes.size();
+            int topCount = 0;
+            for (TrieNode node : nodes) {
+                topCount += node.top.size();
+            }
+
+            byte[][] nameUtf8 = new byte[placeCount][];
+            int nameByteCount = 0;
+            for (int id = 0; id < placeCount; id++) {
+                nameUtf8[id] = names.get(order[id]).getBytes(StandardCharsets.UTF_8);
+                nameByteCount += nameUtf8[id].length;
+            }
+
+            int intCount = HEADER_INTS + 3 * placeCount + 1 + 4 * nodeCount + topCount;
+            ByteBuffer buffer = ByteBuffer.allocate(intCount * 4 + nameByteCount).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(placeCount).putInt(nodeCount)
+                    .putInt(topCount).putInt(nameByteCount).putInt(topK);
+
+            for (int id = 0; id < placeCount; id++) {
+                buffer.putInt(coordinates.get(order[id])[0]);
+            }
+            for (int id = 0; id < placeCount; id++) {
+                buffer.putInt(coordinates.get(order[id])[1]);
+            }
+            int nameOffset = 0;
+            buffer.putInt(nameOffset);
+            for (byte[] name : nameUtf8) {
+                nameOffset += name.length;
+                buffer.putInt(nameOffset);
+            }
+
+            int edge = 0;
+            for (TrieNode node : nodes) {
+                buffer.putInt(edge);
+                edge += node.children.size();
+            }
+            buffer.putInt(edge);
+            for (TrieNode node : nodes) {
+                for (char label : node.children.keySet()) {
+                    buffer.putInt(label);
+                }
+            }
+            for (TrieNode node : nodes) {
+                for (TrieNode child : node.children.values()) {
+                    buffer.putInt(numbers.get(child));
+                }
+            }
+            int top = 0;
+            for (TrieNode node : nodes) {
+                buffer.putInt(top);
+                top += node.top.size();
+            }
+            buffer.putInt(top);
+            for (TrieNode node : nodes) {
+                for (int id : node.top) {
+                    buffer.putInt(id);
+                }
+            }
+
+            for (byte[] name : nameUtf8) {
+                buffer.put(name);
+            }
+            out.write(buffer.array(), 0, buffer.position());
+        }
+
+        private void insert(TrieNode root, String key, int start, int id) {
+            TrieNode node = root;
+            for (int i = start; i < key.length(); i++) {
+                node = node.children.computeIfAbsent(key.charAt(i), c -> new TrieNode());
+                // Ids arrive in increasing order, so a repeat can only be the last entry.
+                List<Integer> top = node.top;
+                if (top.size() < topK && (top.isEmpty() || top.get(top.size() - 1) != id)) {
+                    top.add(id);
+                }
+            }
+        }
+    }
+
+    private static class TrieNode {
+        final TreeMap<Character, TrieNode> children = new TreeMap<>();
+        final List<Integer> top = new ArrayList<>(2);
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.mymatauapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Reads gazetteer places from a CSV file. This runs at build time to produce the compiled
+ * gazetteer asset; the app itself only maps the compiled file.
+ *
+ * The file has a header row and the columns
+ *   name, lat, lon, priority
+ * where priority is optional (default 0) and places with a higher priority are suggested
+ * first. Columns are found by name, so extra columns and any column order are accepted.
+ */
+public class GazetteerCsv {
+
+    public static final String PLACES_FILE = "places.csv";
+
+    /**
+     * Reads every place in a CSV file.
+     * @return A builder holding the places, ready to be written or built.
+     * @throws IOException If the file is missing or malformed.
+     */
+    public static Gazetteer.Builder read(File file) throws IOException {
+        Gazetteer.Builder builder = new Gazetteer.Builder();
+        for (Map<String, String> row : RouteNetworkCsv.readRows(file)) {
+            String priority = row.get("priority");
+            try {
+                builder.add(RouteNetworkCsv.require(row, "name"),
+                        RouteNetworkCsv.parseDouble(RouteNetworkCsv.require(row, "lat")),
+                        RouteNetworkCsv.parseDouble(RouteNetworkCsv.require(row, "lon")),
+                        priority == null || priority.isEmpty() ? 0 : RouteNetworkCsv.parseInt(priority));
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e.getMessage() + " in " + file.getName(), e);
+            }
+        }
+        return builder;
+    }
+}
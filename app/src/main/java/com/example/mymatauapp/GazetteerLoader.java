@@ -0,0 +1,75 @@
+package com.example.mymatauapp;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.util.Log;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Locates and memory-maps the compiled place gazetteer, once per process.
+ * As with the route network, a gazetteer downloaded into the app's files directory replaces
+ * the one bundled in the APK.
+ */
+public class GazetteerLoader {
+
+    private static final String TAG = "GazetteerLoader";
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(
+            runnable -> new Thread(runnable, "GazetteerLoader"));
+
+    private static CompletableFuture<Gazetteer> gazetteer;
+
+    /**
+     * Starts mapping the gazetteer in the background if that has not been done yet.
+     * @param context Any context; the application context is kept.
+     * @return A future for the shared gazetteer. It never completes exceptionally: if no
+     * gazetteer can be read, it completes with null and search falls back to the network.
+     */
+    public static synchronized CompletableFuture<Gazetteer> get(Context context) {
+        if (gazetteer == null) {
+            Context appContext = context.getApplicationContext();
+            gazetteer = CompletableFuture.supplyAsync(() -> {
+                try {
+                    Gazetteer loaded = load(appContext);
+                    Log.d(TAG, "Gazetteer ready with " + loaded.placeCount() + " places.");
+                    return loaded;
+                } catch (IOException | RuntimeException e) {
+                    Log.e(TAG, "Could not load the gazetteer; place search will be online only.", e);
+                    return null;
+                }
+            }, EXECUTOR);
+        }
+        return gazetteer;
+    }
+
+    /**
+     * Maps the newest available gazetteer on the calling thread.
+     * @param context Any context; only the application's files and assets are used.
+     * @return The mapped gazetteer.
+     * @throws IOException If neither an update nor the bundled asset can be read.
+     */
+    public static Gazetteer load(Context context) throws IOException {
+        File update = new File(context.getFilesDir(), Gazetteer.ASSET_NAME);
+        if (update.exists()) {
+            try {
+                return Gazetteer.map(update);
+            } catch (IOException | RuntimeException e) {
+                // read() rejects corrupt files with an IOException; a runtime failure here is
+                // still no reason to stop using the bundled gazetteer.
+                Log.w(TAG, "Downloaded gazetteer is unreadable, using the bundled one.", e);
+            }
+        }
+
+        // The asset is stored uncompressed (see noCompress in build.gradle), so it can be
+        // mapped directly from inside the APK.
+        try (AssetFileDescriptor descriptor = context.getAssets().openFd(Gazetteer.ASSET_NAME);
+             FileInputStream input = descriptor.createInputStream()) {
+            return Gazetteer.map(input.getChannel(), descriptor.getStartOffset(), descriptor.getLength());
+        }
+    }
+}
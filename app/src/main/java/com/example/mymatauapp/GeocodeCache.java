@@ -0,0 +1,357 @@
+package com.example.mymatauapp;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches place search results so repeated and extended queries do not go back to the network.
+ *
+ * There are two tiers: an in-memory LRU of recent queries, and a directory of small files
+ * (one per query) that survives restarts. Disk entries expire after a TTL and the directory
+ * is kept under a byte limit by removing the oldest files first.
+ *
+ * Queries are normalized (trimmed, lower-cased, whitespace collapsed) before lookup. When a
+ * query is not cached but a shorter prefix of it is, the prefix's results are filtered down
+ * to the places that still match, so typing "westl" after "west" needs no request.
+ *
+ * Hits and misses are counted per tier: a lookup that misses memory and hits disk is a memory
+ * miss and a disk hit, and a lookup is only a miss overall when it misses both.
+ *
+ * All methods are thread-safe. Disk access happens in get and put, so call those off the
+ * main thread; getFromMemory only touches memory.
+ */
+public class GeocodeCache {
+
+    private static final String TAG = "GeocodeCache";
+    private static final String DIRECTORY_NAME = "geocode";
+    private static final int FILE_VERSION = 1;
+
+    private static final int MEMORY_ENTRIES = 64;
+    private static final long MAX_DISK_BYTES = 512 * 1024;
+    private static final long TTL_MILLIS = 7L * 24 * 60 * 60 * 1000; // 7 days
+
+    // Prefixes shorter than this are too broad to answer longer queries from.
+    private static final int MIN_PREFIX_LENGTH = 3;
+
+    private static GeocodeCache instance;
+
+    private final File directory;
+    private final int memoryEntries;
+    private final long maxDiskBytes;
+    private final long ttlMillis;
+    private final Object diskLock = new Object();
+    private final LinkedHashMap<String, List<PlaceResult>> memory;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong prefixHits = new AtomicLong();
+    private final AtomicLong memoryMisses = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong diskMisses = new AtomicLong();
+
+    /**
+     * @param context Any context; the cache lives in the app's cache directory.
+     * @return The process-wide cache.
+     */
+    public static synchronized GeocodeCache get(Context context) {
+        if (instance == null) {
+            instance = new GeocodeCache(new File(context.getCacheDir(), DIRECTORY_NAME),
+                    MEMORY_ENTRIES, MAX_DISK_BYTES, TTL_MILLIS);
+        }
+        return instance;
+    }
+
+    GeocodeCache(File directory, int memoryEntries, long maxDiskBytes, long ttlMillis) {
+        this.directory = directory;
+        this.memoryEntries = memoryEntries;
+        this.maxDiskBytes = maxDiskBytes;
+        this.ttlMillis = ttlMillis;
+        this.memory = new LinkedHashMap<String, List<PlaceResult>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<PlaceResult>> eldest) {
+                return size() > GeocodeCache.this.memoryEntries;
+            }
+        };
+    }
+
+    /**
+     * Trims, lower-cases and collapses whitespace, so equivalent queries share an entry.
+     */
+    public static String normalize(String query) {
+        return query.trim().toLowerCase(Locale.ROOT).replaceAll("\\s+", " ");
+    }
+
+    /**
+     * Looks a query up in memory only, including answering it from a cached prefix.
+     * A miss here is not counted, because the caller is expected to go on to get().
+     * @return The cached results, or null if memory cannot answer the query.
+     */
+    public List<PlaceResult> getFromMemory(String query) {
+        return lookupMemory(normalize(query));
+    }
+
+    /**
+     * Looks a query up in memory, first exactly and then by filtering a cached prefix, then on
+     * disk.
+     * @return The cached results, or null on a miss.
+     */
+    public List<PlaceResult> get(String query) {
+        String key = normalize(query);
+        List<PlaceResult> results = lookupMemory(key);
+        if (results != null) {
+            return results;
+        }
+        memoryMisses.incrementAndGet();
+        results = readDisk(key);
+        if (results != null) {
+            synchronized (memory) {
+                memory.put(key, results);
+            }
+            diskHits.incrementAndGet();
+            return results;
+        }
+        diskMisses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Stores the results of a query in both tiers.
+     */
+    public void put(String query, List<PlaceResult> results) {
+        String key = normalize(query);
+        List<PlaceResult> copy = Collections.unmodifiableList(new ArrayList<>(results));
+        synchronized (memory) {
+            memory.put(key, copy);
+        }
+        writeDisk(key, copy);
+    }
+
+    public long getHitCount() {
+        return memoryHits.get() + prefixHits.get() + diskHits.get();
+    }
+
+    /** Lookups that neither tier could answer. */
+    public long getMissCount() {
+        return diskMisses.get();
+    }
+
+    /** Exact queries answered from memory; prefix answers are counted separately. */
+    public long getMemoryHitCount() {
+        return memoryHits.get();
+    }
+
+    public long getPrefixHitCount() {
+        return prefixHits.get();
+    }
+
+    /** Lookups that memory could not answer, including those the disk then did. */
+    public long getMemoryMissCount() {
+        return memoryMisses.get();
+    }
+
+    public long getDiskHitCount() {
+        return diskHits.get();
+    }
+
+    public long getDiskMissCount() {
+        return diskMisses.get();
+    }
+
+    /**
+     * @return A one-line summary of the counters, for logging.
+     */
+    public String stats() {
+        long hits = getHitCount();
+        long total = hits + getMissCount();
+        return "Geocode cache: " + hits + " hits, " + getMissCount() + " misses"
+                + (total > 0 ? String.format(Locale.ROOT, ", %.0f%% hit rate", 100.0 * hits / total) : "")
+                + "; memory " + (memoryHits.get() + prefixHits.get()) + " hits (" + prefixHits.get()
+                + " by prefix), " + memoryMisses.get() + " misses; disk " + diskHits.get() + " hits, "
+                + diskMisses.get() + " misses";
+    }
+
+    private List<PlaceResult> lookupMemory(String key) {
+        synchronized (memory) {
+            List<PlaceResult> results = memory.get(key);
+            if (results != null) {
+                memoryHits.incrementAndGet();
+                return results;
+            }
+            // Try the longest cached prefix first: its results are the most specific.
+            for (int length = key.length() - 1; length >= MIN_PREFIX_LENGTH; length--) {
+                List<PlaceResult> prefixResults = memory.get(key.substring(0, length));
+                if (prefixResults == null) {
+                    continue;
+                }
+                List<PlaceResult> filtered = filter(prefixResults, key);
+                if (filtered.isEmpty()) {
+                    // The shorter query found other places; only the API can answer this one.
+                    return null;
+                }
+                prefixHits.incrementAndGet();
+                return filtered;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Keeps the places where every word of the query starts some word of the address.
+     */
+    static List<PlaceResult> filter(List<PlaceResult> results, String normalizedQuery) {
+        String[] tokens = normalizedQuery.split(" ");
+        List<PlaceResult> filtered = new ArrayList<>();
+        for (PlaceResult result : results) {
+            List<String> words = Arrays.asList(
+                    result.getFormattedAddress().toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+"));
+            boolean matches = true;
+            for (String token : tokens) {
+                boolean found = false;
+                for (String word : words) {
+                    if (word.startsWith(token)) {
+                        found = true;
+                        break;
+                    }
+                }
+                if (!found) {
+                    matches = false;
+                    break;
+                }
+            }
+            if (matches) {
+                filtered.add(result);
+            }
+        }
+        return filtered;
+    }
+
+    private List<PlaceResult> readDisk(String key) {
+        synchronized (diskLock) {
+            File file = fileFor(key);
+            if (!file.exists()) {
+                return null;
+            }
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != FILE_VERSION) {
+                    file.delete();
+                    return null;
+                }
+                long storedAt = in.readLong();
+                // The file name is a hash, so check the query itself too.
+                if (System.currentTimeMillis() - storedAt > ttlMillis || !key.equals(in.readUTF())) {
+                    file.delete();
+                    return null;
+                }
+                int count = in.readInt();
+                List<PlaceResult> results = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    results.add(new PlaceResult(in.readUTF(), in.readDouble(), in.readDouble()));
+                }
+                return Collections.unmodifiableList(results);
+            } catch (IOException e) {
+                Log.w(TAG, "Discarding unreadable cache entry " + file.getName(), e);
+                file.delete();
+                return null;
+            }
+        }
+    }
+
+    private void writeDisk(String key, List<PlaceResult> results) {
+        synchronized (diskLock) {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                Log.w(TAG, "Could not create cache directory " + directory);
+                return;
+            }
+            File file = fileFor(key);
+            File temp = new File(directory, file.getName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(FILE_VERSION);
+                out.writeLong(System.currentTimeMillis());
+                out.writeUTF(key);
+                out.writeInt(results.size());
+                for (PlaceResult result : results) {
+                    out.writeUTF(result.getFormattedAddress());
+                    out.writeDouble(result.getLatitude());
+                    out.writeDouble(result.getLongitude());
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Could not write cache entry for \"" + key + "\"", e);
+                temp.delete();
+                return;
+            }
+            // Rename so a reader never sees a half-written entry.
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                return;
+            }
+            trimDisk();
+        }
+    }
+
+    /**
+     * Deletes expired entries, then the oldest ones until the directory fits the byte limit.
+     */
+    private void trimDisk() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long total = 0;
+        List<File> live = new ArrayList<>(files.length);
+        for (File file : files) {
+            if (now - file.lastModified() > ttlMillis) {
+                file.delete();
+            } else {
+                live.add(file);
+                total += file.length();
+            }
+        }
+        if (total <= maxDiskBytes) {
+            return;
+        }
+        live.sort((a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File file : live) {
+            if (total <= maxDiskBytes) {
+                break;
+            }
+            total -= file.length();
+            file.delete();
+        }
+    }
+
+    private File fileFor(String key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return new File(directory, name.toString());
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java and Android runtime has SHA-1.
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.example.mymatauapp;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.SphericalUtil;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Geohash cells: the standard base-32 interleaving of latitude and longitude bits, so that a
+ * cell's key is a prefix of the keys of the cells inside it. At precision 6 a cell is about
+ * 1.2 km by 0.6 km; trips are keyed by one so that passengers can listen to the cells around
+ * them instead of a whole route (see VehiclePositionRepository).
+ */
+public final class Geohash {
+
+    private static final String BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+    private static final double METERS_PER_DEGREE_LATITUDE = 111320;
+
+    private Geohash() {
+    }
+
+    /**
+     * @param precision The number of characters, 1 to 12.
+     * @return The key of the cell holding a position.
+     */
+    public static String encode(double latitude, double longitude, int precision) {
+        double minLatitude = -90;
+        double maxLatitude = 90;
+        double minLongitude = -180;
+        double maxLongitude = 180;
+        StringBuilder key = new StringBuilder(precision);
+        boolean longitudeBit = true;
+        int bits = 0;
+        int value = 0;
+        while (key.length() < precision) {
+            if (longitudeBit) {
+                double middle = (minLongitude + maxLongitude) / 2;
+                if (longitude >= middle) {
+                    value = value * 2 + 1;
+                    minLongitude = middle;
+                } else {
+                    value = value * 2;
+                    maxLongitude = middle;
+                }
+            } else {
+                double middle = (minLatitude + maxLatitude) / 2;
+                if (latitude >= middle) {
+                    value = value * 2 + 1;
+                    minLatitude = middle;
+                } else {
+                    value = value * 2;
+                    maxLatitude = middle;
+                }
+            }
+            longitudeBit = !longitudeBit;
+            if (++bits == 5) {
+                key.append(BASE32.charAt(value));
+                bits = 0;
+                value = 0;
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return The centre of a cell.
+     */
+    public static LatLng center(String cell) {
+        double[] bounds = bounds(cell);
+        return new LatLng((bounds[0] + bounds[1]) / 2, (bounds[2] + bounds[3]) / 2);
+    }
+
+    /**
+     * @return The cell's {south, north, west, east} edges in degrees.
+     */
+    static double[] bounds(String cell) {
+        double minLatitude = -90;
+        double maxLatitude = 90;
+        double minLongitude = -180;
+        double maxLongitude = 180;
+        boolean longitudeBit = true;
+        for (int i = 0; i < cell.length(); i++) {
+            int value = BASE32.indexOf(cell.charAt(i));
+            if (value < 0) {
+                throw new IllegalArgumentException("Not a geohash: " + cell);
+            }
+            for (int bit = 4; bit >= 0; bit--) {
+                boolean set = ((value >> bit) & 1) != 0;
+                if (longitudeBit) {
+                    double middle = (minLongitude + maxLongitude) / 2;
+                    if (set) {
+                        minLongitude = middle;
+                    } else {
+                        maxLongitude = middle;
+                    }
+                } else {
+                    double middle = (minLatitude + maxLatitude) / 2;
+                    if (set) {
+                        minLatitude = middle;
+                    } else {
+                        maxLatitude = middle;
+                    }
+                }
+                longitudeBit = !longitudeBit;
+            }
+        }
+        return new double[] {minLatitude, maxLatitude, minLongitude, maxLongitude};
+    }
+
+    /**
+     * @return The keys of every cell of a precision that comes within radiusMeters of a
+     * position, sorted.
+     */
+    public static Set<String> cellsCovering(LatLng center, double radiusMeters, int precision) {
+        Set<String> cells = new TreeSet<>();
+        addCellsCovering(cells, center, radiusMeters, precision);
+        return cells;
+    }
+
+    /**
+     * @return The keys of every cell of a precision that comes within radiusMeters of the
+     * route between two distances along it, sorted: where a vehicle on that stretch can be.
+     */
+    public static Set<String> cellsAlong(RoutePolyline route, double fromMeters, double toMeters,
+                                         double radiusMeters, int precision) {
+        Set<String> cells = new TreeSet<>();
+        double from = Math.max(0, fromMeters);
+        double to = Math.min(route.length(), toMeters);
+        // Every point of the stretch is within half a step of a sample, so growing the radius
+        // by that covers them all. Steps of half the radius (or of a cell, if smaller) keep
+        // the extra cells that growth pulls in few.
+        double[] size = cellSize(precision, route.positionAt(from).latitude);
+        double step = Math.max(10, Math.min(radiusMeters / 2, Math.min(size[0], size[1])));
+        double radius = radiusMeters + step / 2;
+        for (double along = from; along < to + step; along += step) {
+            addCellsCovering(cells, route.positionAt(Math.min(along, to)), radius, precision);
+        }
+        return cells;
+    }
+
+    private static void addCellsCovering(Set<String> cells, LatLng center, double radiusMeters, int precision) {
+        double[] degrees = cellDegrees(precision);
+        double cellLatitude = degrees[0];
+        double cellLongitude = degrees[1];
+        double radiusLatitude = radiusMeters / METERS_PER_DEGREE_LATITUDE;
+        double radiusLongitude = radiusLatitude / Math.max(0.01, Math.cos(Math.toRadians(center.latitude)));
+
+        // Walk the grid over the circle's bounding box, from cell centre to cell centre.
+        double south = Math.max(-90, center.latitude - radiusLatitude);
+        double north = Math.min(90, center.latitude + radiusLatitude);
+        double firstLatitude = (Math.floor((south + 90) / cellLatitude) + 0.5) * cellLatitude - 90;
+        double firstLongitude = (Math.floor((center.longitude - radiusLongitude + 180) / cellLongitude) + 0.5)
+                * cellLongitude - 180;
+        for (double latitude = firstLatitude; latitude < north + cellLatitude / 2; latitude += cellLatitude) {
+            for (double longitude = firstLongitude; longitude < center.longitude + radiusLongitude + cellLongitude / 2;
+                 longitude += cellLongitude) {
+                String cell = encode(latitude, wrapLongitude(longitude), precision);
+                if (!cells.contains(cell) && distanceToCell(center, cell) <= radiusMeters) {
+                    cells.add(cell);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The distance in metres from a position to the nearest point of a cell, 0 inside it.
+     */
+    private static double distanceToCell(LatLng position, String cell) {
+        double[] bounds = bounds(cell);
+        double latitude = Math.max(bounds[0], Math.min(bounds[1], position.latitude));
+        double longitude = Math.max(bounds[2], Math.min(bounds[3], position.longitude));
+        return SphericalUtil.computeDistanceBetween(position, new LatLng(latitude, longitude));
+    }
+
+    /**
+     * @return A cell's {height, width} in degrees. Longitude takes the odd bit.
+     */
+    private static double[] cellDegrees(int precision) {
+        int bits = 5 * precision;
+        return new double[] {180 / Math.pow(2, bits / 2), 360 / Math.pow(2, (bits + 1) / 2)};
+    }
+
+    /**
+     * @return A cell's {height, width} in metres near a latitude.
+     */
+    private static double[] cellSize(int precision, double latitude) {
+        double[] degrees = cellDegrees(precision);
+        return new double[] {degrees[0] * METERS_PER_DEGREE_LATITUDE,
+                degrees[1] * METERS_PER_DEGREE_LATITUDE * Math.max(0.01, Math.cos(Math.toRadians(latitude)))};
+    }
+
+    private static double wrapLongitude(double longitude) {
+        return longitude >= 180 ? longitude - 360 : longitude < -180 ? longitude + 360 : longitude;
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.mymatauapp;
+
+import com.google.android.gms.maps.model.LatLng;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A door-to-door journey produced by the JourneyPlanner: alternating walking and matatu legs.
+ * Times are in seconds after the requested departure time.
+ */
+public class Journey {
+
+    /**
+     * The way a leg is travelled.
+     */
+    public enum Mode {
+        WALK,
+        MATATU
+    }
+
+    /**
+     * A single leg of a journey.
+     */
+    public static class Leg {
+        private final Mode mode;
+        private final String routeName;
+        private final List<LatLng> points;
+        private final int departureTime;
+        private final int arrivalTime;
+
+        public Leg(Mode mode, String routeName, List<LatLng> points, int departureTime, int arrivalTime) {
+            this.mode = mode;
+            this.routeName = routeName;
+            this.points = Collections.unmodifiableList(points);
+            this.departureTime = departureTime;
+            this.arrivalTime = arrivalTime;
+        }
+
+        public Mode getMode() {
+            return mode;
+        }
+
+        /**
+         * @return The name of the matatu route, or null for walking legs.
+         */
+        public String getRouteName() {
+            return routeName;
+        }
+
+        /**
+         * @return The points of the leg, from the boarding point to the alighting point.
+         */
+        public List<LatLng> getPoints() {
+            return points;
+        }
+
+        public LatLng getStart() {
+            return points.get(0);
+        }
+
+        public LatLng getEnd() {
+            return points.get(points.size() - 1);
+        }
+
+        public int getDepartureTime() {
+            return departureTime;
+        }
+
+        public int getArrivalTime() {
+            return arrivalTime;
+        }
+    }
+
+    private final List<Leg> legs;
+    private final int arrivalTime;
+    private final int matatuLegCount;
+
+    public Journey(List<Leg> legs, int arrivalTime) {
+        this.legs = Collections.unmodifiableList(legs);
+        this.arrivalTime = arrivalTime;
+        int rides = 0;
+        for (Leg leg : legs) {
+            if (leg.getMode() == Mode.MATATU) {
+                rides++;
+            }
+        }
+        this.matatuLegCount = rides;
+    }
+
+    public List<Leg> getLegs() {
+        return legs;
+    }
+
+    /**
+     * @return The arrival time at the destination, in seconds after departure.
+     */
+    public int getArrivalTime() {
+        return arrivalTime;
+    }
+
+    public int getMatatuLegCount() {
+        return matatuLegCount;
+    }
+
+    /**
+     * @return The number of changes between matatus.
+     */
+    public int getTransferCount() {
+        return Math.max(0, matatuLegCount - 1);
+    }
+}
@@ -0,0 +1,376 @@
+package com.example.mymatauapp;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.SphericalUtil;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A round-based (RAPTOR-style) journey planner over the matatu network.
+ * Round k finds the earliest arrival at every stop using at most k matatus, with short walks
+ * between nearby stages allowed after each ride. Matatus run without a timetable, so every
+ * boarding costs an expected wait and rides take their distance at an average speed.
+ * The result is the set of journeys that are Pareto-optimal by arrival time and transfers.
+ */
+public class JourneyPlanner {
+
+    public static final double MATATU_SPEED_MPS = 5.55; // 20 km/h in meters per second
+    public static final double WALKING_SPEED_MPS = 1.3;
+    public static final int BOARDING_WAIT_SECONDS = 300; // Expected wait for the next matatu
+    public static final double TRANSFER_RADIUS_METERS = 400.0; // Longest walk between two stages
+    public static final double ACCESS_RADIUS_METERS = 1000.0; // Longest walk to or from a stage
+    public static final int MAX_MATATU_LEGS = 4;
+
+    private static final int INFINITY = Integer.MAX_VALUE / 2;
+    private static final byte PARENT_NONE = 0;
+    private static final byte PARENT_ACCESS = 1;
+    private static final byte PARENT_RIDE = 2;
+    private static final byte PARENT_WALK = 3;
+
+    private final RouteNetwork network;
+    private final StopSpatialIndex stopIndex;
+    private final StopRouteIndex stopRouteIndex;
+    // Stop positions, by stop ID, for distance calculations and drawing legs.
+    private final LatLng[] stops;
+
+    // Seconds from the first stop of a route to each stop, aligned with the network's flat
+    // stop sequence.
+    private final int[] rideSeconds;
+
+    // Walking transfers from stop s occupy [transferOffsets[s], transferOffsets[s + 1]).
+    private final int[] transferOffsets;
+    private final int[] transferTargets;
+    private final int[] transferSeconds;
+
+    /**
+     * Prepares the planner. This precomputes ride times along every route and the walking
+     * transfers between stages, so it should be done once per network.
+     * @param network The stops and routes to plan over.
+     * @param stopIndex A spatial index over the network's stops.
+     * @param stopRouteIndex A stop-to-route index over the network's routes.
+     */
+    public JourneyPlanner(RouteNetwork network, StopSpatialIndex stopIndex, StopRouteIndex stopRouteIndex) {
+        this.network = network;
+        this.stopIndex = stopIndex;
+        this.stopRouteIndex = stopRouteIndex;
+
+        int stopCount = network.stopCount();
+        this.stops = new LatLng[stopCount];
+        for (int s = 0; s < stopCount; s++) {
+            stops[s] = stopIndex.stopAt(s);
+        }
+
+        this.rideSeconds = new int[network.routeStopCount()];
+        for (int r = 0; r < network.routeCount(); r++) {
+            double meters = 0;
+            for (int i = network.routeStart(r); i < network.routeEnd(r); i++) {
+                if (i > network.routeStart(r)) {
+                    meters += SphericalUtil.computeDistanceBetween(
+                            stops[network.routeStopAt(i - 1)], stops[network.routeStopAt(i)]);
+                }
+                rideSeconds[i] = (int) Math.round(meters / MATATU_SPEED_MPS);
+            }
+        }
+
+        this.transferOffsets = new int[stopCount + 1];
+        List<int[]> nearby = new ArrayList<>(stopCount);
+        for (int s = 0; s < stopCount; s++) {
+            int[] within = stopIndex.withinRadiusIndices(stops[s], TRANSFER_RADIUS_METERS);
+            nearby.add(within);
+            // Every stop is within range of itself; that "transfer" is implicit.
+            transferOffsets[s + 1] = transferOffsets[s] + within.length - 1;
+        }
+        this.transferTargets = new int[transferOffsets[stopCount]];
+        this.transferSeconds = new int[transferOffsets[stopCount]];
+        for (int s = 0; s < stopCount; s++) {
+            int slot = transferOffsets[s];
+            for (int target : nearby.get(s)) {
+                if (target != s) {
+                    transferTargets[slot] = target;
+                    transferSeconds[slot] = walkingSeconds(stops[s], stops[target]);
+                    slot++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Plans journeys between two points.
+     * @param origin Where the passenger starts walking from.
+     * @param destination Where the passenger wants to end up.
+     * @return The Pareto-optimal journeys with at least one matatu leg, ordered by increasing
+     * number of transfers (and therefore decreasing arrival time). Empty if no journey exists.
+     */
+    public List<Journey> plan(LatLng origin, LatLng destination) {
+        if (stops.length == 0) {
+            return Collections.emptyList();
+        }
+        return new Query(origin, destination).run();
+    }
+
+    private static int walkingSeconds(LatLng from, LatLng to) {
+        return (int) Math.round(SphericalUtil.computeDistanceBetween(from, to) / WALKING_SPEED_MPS);
+    }
+
+    /**
+     * Stops within the access radius of a point, or the single nearest stop if none are.
+     */
+    private int[] accessStops(LatLng point) {
+        int[] within = stopIndex.withinRadiusIndices(point, ACCESS_RADIUS_METERS);
+        return within.length > 0 ? within : stopIndex.kNearestIndices(point, 1);
+    }
+
+    /**
+     * The working state of one query. Per-round arrays are only allocated for rounds that run.
+     */
+    private class Query {
+        private final LatLng origin;
+        private final LatLng destination;
+        private final int stopCount = stops.length;
+
+        private final int[][] arrival = new int[MAX_MATATU_LEGS + 1][];
+        private final byte[][] parentKind = new byte[MAX_MATATU_LEGS + 1][];
+        // RIDE: route index; WALK: the stop walked from.
+        private final int[][] parentRef = new int[MAX_MATATU_LEGS + 1][];
+        // RIDE only: positions on the route where the matatu was boarded and left.
+        private final int[][] parentBoard = new int[MAX_MATATU_LEGS + 1][];
+        private final int[][] parentAlight = new int[MAX_MATATU_LEGS + 1][];
+        private final int[] bestArrival;
+
+        private final int[] egressStops;
+        private final int[] egressSeconds;
+        private int bestAtDestination = INFINITY;
+
+        private final boolean[] marked;
+        private int[] markedList;
+        private int markedCount;
+        private final int[] routeQueuePosition;
+        private final int[] queuedRoutes;
+
+        Query(LatLng origin, LatLng destination) {
+            this.origin = origin;
+            this.destination = destination;
+            this.bestArrival = new int[stopCount];
+            Arrays.fill(bestArrival, INFINITY);
+            this.marked = new boolean[stopCount];
+            this.markedList = new int[16];
+            int routeCount = network.routeCount();
+            this.routeQueuePosition = new int[routeCount];
+            Arrays.fill(routeQueuePosition, Integer.MAX_VALUE);
+            this.queuedRoutes = new int[routeCount];
+
+            egressStops = accessStops(destination);
+            egressSeconds = new int[egressStops.length];
+            for (int i = 0; i < egressStops.length; i++) {
+                egressSeconds[i] = walkingSeconds(stops[egressStops[i]], destination);
+            }
+        }
+
+        List<Journey> run() {
+            allocateRound(0);
+            Arrays.fill(arrival[0], INFINITY);
+            for (int stop : accessStops(origin)) {
+                int time = walkingSeconds(origin, stops[stop]);
+                arrival[0][stop] = time;
+                bestArrival[stop] = time;
+                parentKind[0][stop] = PARENT_ACCESS;
+                mark(stop);
+            }
+
+            List<Journey> journeys = new ArrayList<>();
+            for (int k = 1; k <= MAX_MATATU_LEGS && markedCount > 0; k++) {
+                allocateRound(k);
+                System.arraycopy(arrival[k - 1], 0, arrival[k], 0, stopCount);
+
+                int routeCount = collectRoutes();
+                clearMarks();
+                for (int i = 0; i < routeCount; i++) {
+                    int route = queuedRoutes[i];
+                    scanRoute(k, route, routeQueuePosition[route]);
+                    routeQueuePosition[route] = Integer.MAX_VALUE;
+                }
+                relaxTransfers(k);
+
+                Journey journey = improvedJourney(k);
+                if (journey != null) {
+                    journeys.add(journey);
+                }
+            }
+            return journeys;
+        }
+
+        private void allocateRound(int k) {
+            arrival[k] = new int[stopCount];
+            parentKind[k] = new byte[stopCount];
+            parentRef[k] = new int[stopCount];
+            parentBoard[k] = new int[stopCount];
+            parentAlight[k] = new int[stopCount];
+        }
+
+        private void mark(int stop) {
+            if (!marked[stop]) {
+                marked[stop] = true;
+                if (markedCount == markedList.length) {
+                    markedList = Arrays.copyOf(markedList, markedCount * 2);
+                }
+                markedList[markedCount++] = stop;
+            }
+        }
+
+        private void clearMarks() {
+            for (int i = 0; i < markedCount; i++) {
+                marked[markedList[i]] = false;
+            }
+            markedCount = 0;
+        }
+
+        /**
+         * Queues every route through a marked stop, remembering the earliest marked position.
+         * @return The number of queued routes.
+         */
+        private int collectRoutes() {
+            int count = 0;
+            for (int i = 0; i < markedCount; i++) {
+                int stop = markedList[i];
+                for (int e = stopRouteIndex.entriesStart(stop); e < stopRouteIndex.entriesEnd(stop); e++) {
+                    int route = stopRouteIndex.entryRoute(e);
+                    int position = stopRouteIndex.entryPosition(e);
+                    if (routeQueuePosition[route] == Integer.MAX_VALUE) {
+                        queuedRoutes[count++] = route;
+                        routeQueuePosition[route] = position;
+                    } else if (position < routeQueuePosition[route]) {
+                        routeQueuePosition[route] = position;
+                    }
+                }
+            }
+            return count;
+        }
+
+        private void scanRoute(int k, int route, int fromPosition) {
+            int base = network.routeStart(route);
+            int length = network.routeLength(route);
+            int[] previous = arrival[k - 1];
+            int boardPosition = -1;
+            int boardTime = INFINITY;
+
+            for (int p = fromPosition; p < length; p++) {
+                int stop = network.routeStopAt(base + p);
+                if (boardPosition >= 0) {
+                    int time = boardTime + rideSeconds[base + p] - rideSeconds[base + boardPosition];
+                    if (time < bestArrival[stop] && time < bestAtDestination) {
+                        arrival[k][stop] = time;
+                        bestArrival[stop] = time;
+                        parentKind[k][stop] = PARENT_RIDE;
+                        parentRef[k][stop] = route;
+                        parentBoard[k][stop] = boardPosition;
+                        parentAlight[k][stop] = p;
+                        mark(stop);
+                    }
+                }
+                // Board here instead if that gets us onto a matatu sooner than staying on.
+                if (previous[stop] < INFINITY) {
+                    int departure = previous[stop] + BOARDING_WAIT_SECONDS;
+                    if (boardPosition < 0
+                            || departure < boardTime + rideSeconds[base + p] - rideSeconds[base + boardPosition]) {
+                        boardPosition = p;
+                        boardTime = departure;
+                    }
+                }
+            }
+        }
+
+        private void relaxTransfers(int k) {
+            // Only stops reached by a ride in this round; walks are not chained.
+            int ridden = markedCount;
+            for (int i = 0; i < ridden; i++) {
+                int from = markedList[i];
+                for (int t = transferOffsets[from]; t < transferOffsets[from + 1]; t++) {
+                    int target = transferTargets[t];
+                    int time = arrival[k][from] + transferSeconds[t];
+                    // A stop already reached by a ride this round keeps that ride as its parent,
+                    // otherwise walks from it would chain through another walk.
+                    if (parentKind[k][target] != PARENT_RIDE
+                            && time < bestArrival[target] && time < bestAtDestination) {
+                        arrival[k][target] = time;
+                        bestArrival[target] = time;
+                        parentKind[k][target] = PARENT_WALK;
+                        parentRef[k][target] = from;
+                        mark(target);
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return The journey using up to k matatus if it beats every journey with fewer, else null.
+         */
+        private Journey improvedJourney(int k) {
+            int bestStop = -1;
+            int bestTime = bestAtDestination;
+            int bestEgress = 0;
+            for (int i = 0; i < egressStops.length; i++) {
+                int stop = egressStops[i];
+                if (arrival[k][stop] < INFINITY && arrival[k][stop] + egressSeconds[i] < bestTime) {
+                    bestTime = arrival[k][stop] + egressSeconds[i];
+                    bestStop = stop;
+                    bestEgress = egressSeconds[i];
+                }
+            }
+            if (bestStop < 0) {
+                return null;
+            }
+            bestAtDestination = bestTime;
+            return reconstruct(k, bestStop, bestEgress);
+        }
+
+        private Journey reconstruct(int k, int lastStop, int egressTime) {
+            List<Journey.Leg> legs = new ArrayList<>();
+            int arrivalAtStop = arrival[k][lastStop];
+            List<LatLng> egress = new ArrayList<>();
+            egress.add(stops[lastStop]);
+            egress.add(destination);
+            legs.add(new Journey.Leg(Journey.Mode.WALK, null, egress, arrivalAtStop, arrivalAtStop + egressTime));
+
+            int round = k;
+            int stop = lastStop;
+            while (true) {
+                while (parentKind[round][stop] == PARENT_NONE) {
+                    round--;
+                }
+                byte kind = parentKind[round][stop];
+                int reached = arrival[round][stop];
+                if (kind == PARENT_ACCESS) {
+                    List<LatLng> access = new ArrayList<>();
+                    access.add(origin);
+                    access.add(stops[stop]);
+                    legs.add(new Journey.Leg(Journey.Mode.WALK, null, access, 0, reached));
+                    break;
+                } else if (kind == PARENT_WALK) {
+                    int from = parentRef[round][stop];
+                    List<LatLng> walk = new ArrayList<>();
+                    walk.add(stops[from]);
+                    walk.add(stops[stop]);
+                    legs.add(new Journey.Leg(Journey.Mode.WALK, null, walk, arrival[round][from], reached));
+                    stop = from;
+                } else {
+                    int route = parentRef[round][stop];
+                    int base = network.routeStart(route);
+                    int board = parentBoard[round][stop];
+                    int alight = parentAlight[round][stop];
+                    List<LatLng> ride = new ArrayList<>(alight - board + 1);
+                    for (int p = board; p <= alight; p++) {
+                        ride.add(stops[network.routeStopAt(base + p)]);
+                    }
+                    int departure = reached - (rideSeconds[base + alight] - rideSeconds[base + board]);
+                    legs.add(new Journey.Leg(Journey.Mode.MATATU, network.routeName(route), ride, departure, reached));
+                    stop = network.routeStopAt(base + board);
+                    round--;
+                }
+            }
+            Collections.reverse(legs);
+            return new Journey(legs, arrival[k][lastStop] + egressTime);
+        }
+    }
+}
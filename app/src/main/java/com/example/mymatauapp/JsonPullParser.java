@@ -0,0 +1,230 @@
+package com.example.mymatauapp;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * A minimal streaming JSON reader. The caller pulls values in document order, and values it
+ * does not need are skipped by scanning past them, without building strings or objects.
+ *
+ * It reads from its own buffer, so the Reader does not need to be buffered. The parser is
+ * lenient about separators (a stray comma is not an error) but reports any other malformed
+ * input as an IOException.
+ */
+final class JsonPullParser {
+
+    private final Reader in;
+    private final char[] buffer = new char[4096];
+    private int position;
+    private int limit;
+    private long consumed; // characters before buffer[0], for error messages
+    // Reused by nextString and nextDouble so each value costs only its final String.
+    private final StringBuilder scratch = new StringBuilder();
+
+    JsonPullParser(Reader in) {
+        this.in = in;
+    }
+
+    void beginObject() throws IOException {
+        expect('{');
+    }
+
+    void endObject() throws IOException {
+        expect('}');
+    }
+
+    void beginArray() throws IOException {
+        expect('[');
+    }
+
+    void endArray() throws IOException {
+        expect(']');
+    }
+
+    /**
+     * @return True if the current object or array has another member. A separating comma
+     * is consumed.
+     */
+    boolean hasNext() throws IOException {
+        int c = peekNonWhitespace();
+        if (c == ',') {
+            position++;
+            c = peekNonWhitespace();
+        }
+        return c != '}' && c != ']' && c != -1;
+    }
+
+    /**
+     * Reads an object member name and the colon after it.
+     */
+    String nextName() throws IOException {
+        String name = nextString();
+        expect(':');
+        return name;
+    }
+
+    String nextString() throws IOException {
+        expect('"');
+        scratch.setLength(0);
+        while (true) {
+            int c = read();
+            if (c == '"') {
+                return scratch.toString();
+            } else if (c == '\\') {
+                scratch.append(readEscape());
+            } else if (c == -1) {
+                throw syntaxError("Unterminated string");
+            } else {
+                scratch.append((char) c);
+            }
+        }
+    }
+
+    double nextDouble() throws IOException {
+        int c = peekNonWhitespace();
+        if (c == '"') {
+            // Some APIs quote numbers; accept that too.
+            return parseDouble(nextString());
+        }
+        scratch.setLength(0);
+        while ((c = peek()) != -1 && isLiteralChar(c)) {
+            scratch.append((char) c);
+            position++;
+        }
+        return parseDouble(scratch.toString());
+    }
+
+    /**
+     * Skips the next value, including any nested objects and arrays, without allocating.
+     */
+    void skipValue() throws IOException {
+        int c = peekNonWhitespace();
+        if (c == '"') {
+            position++;
+            skipStringBody();
+        } else if (c == '{' || c == '[') {
+            int depth = 0;
+            do {
+                c = read();
+                if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                } else if (c == '"') {
+                    skipStringBody();
+                } else if (c == -1) {
+                    throw syntaxError("Unterminated " + (depth > 0 ? "object or array" : "value"));
+                }
+            } while (depth > 0);
+        } else if (c != -1 && isLiteralChar(c)) {
+            while ((c = peek()) != -1 && isLiteralChar(c)) {
+                position++;
+            }
+        } else {
+            throw syntaxError("Expected a value");
+        }
+    }
+
+    private void skipStringBody() throws IOException {
+        while (true) {
+            int c = read();
+            if (c == '"') {
+                return;
+            } else if (c == '\\') {
+                read(); // an escaped quote must not end the string; \\uXXXX digits are harmless
+            } else if (c == -1) {
+                throw syntaxError("Unterminated string");
+            }
+        }
+    }
+
+    private char readEscape() throws IOException {
+        int c = read();
+        switch (c) {
+            case '"':
+            case '\\':
+            case '/':
+                return (char) c;
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(read(), 16);
+                    if (digit < 0) {
+                        throw syntaxError("Invalid \\u escape");
+                    }
+                    value = (value << 4) | digit;
+                }
+                return (char) value;
+            default:
+                throw syntaxError("Invalid escape");
+        }
+    }
+
+    private static boolean isLiteralChar(int c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || c == '-' || c == '+' || c == '.'
+                || c == 'E';
+    }
+
+    private double parseDouble(String literal) throws IOException {
+        try {
+            return Double.parseDouble(literal);
+        } catch (NumberFormatException e) {
+            throw syntaxError("Invalid number " + literal);
+        }
+    }
+
+    private void expect(char expected) throws IOException {
+        if (peekNonWhitespace() != expected) {
+            throw syntaxError("Expected '" + expected + "'");
+        }
+        position++;
+    }
+
+    private int peekNonWhitespace() throws IOException {
+        int c;
+        while ((c = peek()) == ' ' || c == '\n' || c == '\r' || c == '\t') {
+            position++;
+        }
+        return c;
+    }
+
+    private int peek() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position];
+    }
+
+    private int read() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position++];
+    }
+
+    private boolean fill() throws IOException {
+        consumed += limit;
+        position = 0;
+        limit = 0;
+        int count = in.read(buffer, 0, buffer.length);
+        if (count <= 0) {
+            return false;
+        }
+        limit = count;
+        return true;
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException(message + " at character " + (consumed + position));
+    }
+}
@@ -31,36 +31,20 @@ import com.google.android.gms.maps.OnMapReadyCallback;
 import com.google.android.gms.maps.SupportMapFragment;
 import com.google.android.gms.maps.model.BitmapDescriptorFactory;
 import com.google.android.gms.maps.model.LatLng;
-import com.google.android.gms.maps.model.LatLngBounds;
-import com.google.android.gms.maps.model.MarkerOptions;
-import com.google.android.gms.maps.model.PolylineOptions;
 import com.google.android.gms.tasks.OnSuccessListener;
 import com.google.android.material.button.MaterialButton;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import com.google.android.material.textfield.TextInputEditText;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
-import com.google.firebase.firestore.CollectionReference;
-import com.google.firebase.firestore.DocumentSnapshot;
 import com.google.firebase.firestore.FirebaseFirestore;
-import com.google.firebase.firestore.Query;
 import com.google.maps.android.SphericalUtil;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * The main activity for the MyMatauApp.
@@ -72,25 +56,51 @@ public class LandingPage extends AppCompatActivity implements OnMapReadyCallback
 
     private static final String TAG = "LandingPageDebug";
     private static final int LOCATION_PERMISSION_REQUEST_CODE = 101;
-    private static final String OPENCAGE_API_KEY = "209a7174081e413aab7025cb858d2883";
-    private static final double AVERAGE_MATATU_SPEED_MPS = 5.55; // 20 km/h in meters per second
+    // Breadcrumbs further than this from the route are not learned from.
+    private static final double MAX_BREADCRUMB_OFFSET_METERS = 100;
+    // Without the route, matatus are watched this far around the user.
+    private static final double NEARBY_METERS = 3000;
+    // How often the dashboard moves matatus along between publishes, as long as a marker glides.
+    private static final long MATATU_TICK_MILLIS = 1000;
 
     private GoogleMap mMap;
     private FusedLocationProviderClient fusedLocationClient;
     private TextInputEditText whereToInput;
     private RecyclerView placesRecyclerView;
     private PlacesAdapter placesAdapter;
+    private PlaceSearchPipeline placeSearch;
     private TextView distanceTextView;
     private MaterialButton startNavigationButton;
     private FloatingActionButton btnProfile;
     private LatLng destinationLatLng;
     private LatLng startLatLng;
-    private MatatuRouteManager matatuRouteManager;
+    // The shared route graph; it may still be building in the background.
+    private CompletableFuture<MatatuRouteManager> routeGraph;
 
     private TextView dashboardStatusTextView;
     private View loadingIndicator;
     private FirebaseFirestore db;
     private FirebaseAuth mAuth;
+    // Shares the dashboard's listeners and pauses them while the activity is stopped.
+    private VehicleSubscriptionManager vehicleRepository;
+    // The matatus watched for the dashboard, their route's ETA engine, and the user location
+    // the ETAs are for.
+    private VehicleSubscription matatuSubscription;
+    private CompletableFuture<EtaEngine> matatuEta;
+    private LatLng matatuTrackingUser;
+    // The matatus on their way, kept up to date from the subscription's changes, and their
+    // list and map markers.
+    private VehicleBoard matatuBoard;
+    private MatatuEtaAdapter matatuAdapter;
+    private MatatuMarkers matatuMarkers;
+    // Moves the board's matatus to their predicted positions while the activity is started.
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable matatuTick = this::onMatatuTick;
+    // The planned route's lines and pins, redrawn in place for each destination.
+    private MapOverlayLayer routeOverlay;
+    // Plans routes off the main thread; routePlan is the one drawn.
+    private RoutePlanningService routePlanning;
+    private RoutePlan routePlan;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -104,11 +114,16 @@ public class LandingPage extends AppCompatActivity implements OnMapReadyCallback
         distanceTextView = findViewById(R.id.distance_text_view);
         startNavigationButton = findViewById(R.id.start_navigation_button);
         btnProfile = findViewById(R.id.btnProfile); // Initialize the profile button
-        matatuRouteManager = new MatatuRouteManager();
+        routeGraph = RouteGraph.get(this);
 
         // New UI component references
         dashboardStatusTextView = findViewById(R.id.statusTextView);
         loadingIndicator = findViewById(R.id.loadingIndicator);
+        RecyclerView matatuRecyclerView = findViewById(R.id.matatuRecyclerView);
+        matatuRecyclerView.setLayoutManager(new LinearLayoutManager(this));
+        matatuAdapter = new MatatuEtaAdapter();
+        matatuRecyclerView.setAdapter(matatuAdapter);
+        matatuBoard = new VehicleBoard(this::estimateArrival, this::predictMatatuPosition, System::currentTimeMillis);
 
         // Hide the dashboard card view initially
         findViewById(R.id.dashboardCard).setVisibility(View.GONE);
@@ -116,7 +131,10 @@ public class LandingPage extends AppCompatActivity implements OnMapReadyCallback
         // Initialize Firebase
         mAuth = FirebaseAuth.getInstance();
         db = FirebaseFirestore.getInstance();
+        vehicleRepository = new VehicleSubscriptionManager(VehiclePositionTransports.get(this));
+        getLifecycle().addObserver(vehicleRepository);
 
+        routePlanning = new RoutePlanningService(routeGraph, ContextCompat.getMainExecutor(this));
         startNavigationButton.setOnClickListener(v -> startGoogleMapsNavigation());
 
         // Set the click listener for the profile button
@@ -136,6 +154,8 @@ public class LandingPage extends AppCompatActivity implements OnMapReadyCallback
         placesRecyclerView.setLayoutManager(new LinearLayoutManager(this));
         placesAdapter = new PlacesAdapter(new ArrayList<>(), this);
         placesRecyclerView.setAdapter(placesAdapter);
+        placeSearch = new PlaceSearchPipeline(GazetteerLoader.get(this), new OpenCageClient(),
+                GeocodeCache.get(this), this::showPlacePredictions);
 
         // Add a listener to the text input for real-time place predictions
         whereToInput.addTextChangedListener(new TextWatcher() {
@@ -145,15 +165,19 @@ public class LandingPage extends AppCompatActivity implements OnMapReadyCallback
             @Override
             public void onTextChanged(CharSequence charSequence, int i, int i1, int i2) {
                 if (charSequence.length() > 2) {
-                    fetchOpenCagePredictions(charSequence.toString());
+                    placeSearch.onQueryChanged(charSequence.toString());
                 } else {
+                    placeSearch.cancel();
                     placesRecyclerView.setVisibility(View.GONE);
                     distanceTextView.setText("");
                     startNavigationButton.setVisibility(View.GONE);
                     // Hide the dashboard if the user clears the search
                     findViewById(R.id.dashboardCard).setVisibility(View.GONE);
-                    if (mMap != null) {
-                        mMap.clear(); // Clear the map when a new search starts
+                    // Drop the route when a new search starts, once rather than on every keystroke.
+                    routePlanning.cancel();
+                    routePlan = null;
+                    if (routeOverlay != null && !routeOverlay.isEmpty()) {
+                        routeOverlay.clear();
                         getDeviceLocation(); // Reset camera to user's location
                     }
                 }
@@ -164,6 +188,43 @@ public class LandingPage extends AppCompatActivity implements OnMapReadyCallback
         });
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        if (matatuSubscription != null) {
+            startMatatuTick();
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        mainHandler.removeCallbacks(matatuTick);
+        // Keep what the ETA engine learned from the trips watched, for the next session.
+        EtaProfileStore.save(this);
+        Log.d(TAG, vehicleRepository.stats());
+        super.onStop();
+    }
+
+    @Override
+    protected void onDestroy() {
+        // Drop any pending search so its results are not delivered to a destroyed activity.
+        placeSearch.cancel();
+        routePlanning.cancel();
+        Log.i(TAG, routePlanning.stats());
+        Log.i(TAG, GeocodeCache.get(this).stats());
+        if (matatuSubscription != null) {
+            Log.i(TAG, matatuSubscription.stats());
+            matatuSubscription.close();
+        }
+        Log.i(TAG, vehicleRepository.stats());
+        if (routeOverlay != null) {
+            Log.i(TAG, routeOverlay.stats());
+            Log.i(TAG, matatuMarkers.stats());
+        }
+        mainHandler.removeCallbacks(matatuTick);
+        super.onDestroy();
+    }
+
     /**
      * Called when the Google Map is ready to be used.
      * @param googleMap The GoogleMap object.
@@ -171,6 +232,16 @@ public class LandingPage extends AppCompatActivity implements OnMapReadyCallback
     @Override
     public void onMapReady(@NonNull GoogleMap googleMap) {
         mMap = googleMap;
+        matatuMarkers = new MatatuMarkers(mMap);
+        routeOverlay = new MapOverlayLayer(mMap);
+        // Route lines are drawn at the detail the zoom needs and only around what is on screen,
+        // and matatus that would overlap at the zoom share a marker.
+        mMap.setOnCameraIdleListener(() -> {
+            float zoom = mMap.getCameraPosition().zoom;
+            routeOverlay.setCamera(zoom, mMap.getProjection().getVisibleRegion().latLngBounds);
+            matatuMarkers.setZoom(zoom);
+        });
+        matatuMarkers.update(matatuBoard.getRows());
         Log.d(TAG, "Map is ready.");
         requestLocationPermissions();
     }
@@ -233,65 +304,17 @@ public class LandingPage extends AppCompatActivity implements OnMapReadyCallback
     }
 
     /**
-     * This method fetches place predictions from the OpenCage Geocoding API.
-     * It performs the network request on a background thread.
+     * Shows the place predictions for the latest query. Called on the main thread by the
+     * search pipeline, which has already dropped results for older queries.
      */
-    private void fetchOpenCagePredictions(String query) {
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        Handler handler = new Handler(Looper.getMainLooper());
-
-        executor.execute(() -> {
-            List<PlaceResult> results = new ArrayList<>();
-            try {
-                String encodedQuery = URLEncoder.encode(query, "UTF-8");
-                String urlString = "https://api.opencagedata.com/geocode/v1/json?q=" + encodedQuery + "&key=" + OPENCAGE_API_KEY;
-                URL url = new URL(urlString);
-                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-                connection.setRequestMethod("GET");
-                connection.connect();
-
-                int responseCode = connection.getResponseCode();
-                if (responseCode == HttpURLConnection.HTTP_OK) {
-                    InputStream inputStream = connection.getInputStream();
-                    BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-                    StringBuilder response = new StringBuilder();
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        response.append(line);
-                    }
-                    reader.close();
-
-                    JSONObject jsonResponse = new JSONObject(response.toString());
-                    JSONArray resultsArray = jsonResponse.getJSONArray("results");
-                    for (int i = 0; i < resultsArray.length(); i++) {
-                        JSONObject resultObject = resultsArray.getJSONObject(i);
-                        String formattedAddress = resultObject.getString("formatted");
-                        JSONObject geometry = resultObject.getJSONObject("geometry");
-                        double lat = geometry.getDouble("lat");
-                        double lng = geometry.getDouble("lng");
-                        results.add(new PlaceResult(formattedAddress, lat, lng));
-                    }
-                } else {
-                    Log.e(TAG, "API call failed with response code: " + responseCode);
-                }
-
-                connection.disconnect();
-            } catch (IOException e) {
-                Log.e(TAG, "Network error fetching OpenCage data", e);
-            } catch (JSONException e) {
-                Log.e(TAG, "JSON parsing error on OpenCage data", e);
-            }
-
-            handler.post(() -> {
-                if (!results.isEmpty()) {
-                    placesAdapter.setResults(results);
-                    placesRecyclerView.setVisibility(View.VISIBLE);
-                } else {
-                    placesAdapter.setResults(new ArrayList<>());
-                    placesRecyclerView.setVisibility(View.GONE);
-                }
-            });
-        });
+    private void showPlacePredictions(String query, List<PlaceResult> results) {
+        if (!results.isEmpty()) {
+            placesAdapter.setResults(results);
+            placesRecyclerView.setVisibility(View.VISIBLE);
+        } else {
+            placesAdapter.setResults(new ArrayList<>());
+            placesRecyclerView.setVisibility(View.GONE);
+        }
     }
 
     /**
@@ -307,6 +330,8 @@ public class LandingPage extends AppCompatActivity implements OnMapReadyCallback
 
             whereToInput.setText(result.getFormattedAddress());
             whereToInput.setSelection(whereToInput.getText().length());
+            // Setting the text schedules a search for the chosen address; it is not needed.
+            placeSearch.cancel();
             placesRecyclerView.setVisibility(View.GONE);
 
             destinationLatLng = new LatLng(result.getLatitude(), result.getLongitude());
@@ -320,7 +345,7 @@ public class LandingPage extends AppCompatActivity implements OnMapReadyCallback
                 if (startLocation != null) {
                     // Start tracking ONLY after a destination is selected
                     startMatatuTracking(startLocation);
-                    drawMultiModalRoute(startLocation, destinationLatLng);
+                    planRoute(startLocation, destinationLatLng);
                 } else {
                     Toast.makeText(this, "Could not find your current location. Cannot start tracking.", Toast.LENGTH_SHORT).show();
                     Log.w(TAG, "Current location is null, cannot start tracking.");
@@ -333,113 +358,90 @@ public class LandingPage extends AppCompatActivity implements OnMapReadyCallback
     }
 
     /**
-     * Draws a multi-modal route on the map with distinct polylines for each segment.
+     * Plans the route from the passenger to the destination on the planning service's workers,
+     * replacing any plan still in progress, and draws it once it is ready.
      * @param startLocation The user's starting location.
      * @param destinationLatLng The final destination's LatLng coordinates.
      */
-    private void drawMultiModalRoute(Location startLocation, LatLng destinationLatLng) {
-        mMap.clear();
+    private void planRoute(Location startLocation, LatLng destinationLatLng) {
+        RouteGraph.recordFirstQuery();
         startLatLng = new LatLng(startLocation.getLatitude(), startLocation.getLongitude());
+        routePlanning.plan(startLatLng, destinationLatLng).whenComplete((plan, error) -> {
+            if (error instanceof CancellationException || isDestroyed()) {
+                // A newer destination was picked, or the activity is gone.
+                return;
+            }
+            if (error != null) {
+                Log.e(TAG, "Could not plan a route.", error);
+                Toast.makeText(this, "Could not plan a route. Please try again.", Toast.LENGTH_SHORT).show();
+                return;
+            }
+            showRoutePlan(plan);
+        });
+    }
 
-        LatLng nearestStartStage = matatuRouteManager.findNearestStop(startLatLng);
-        LatLng nearestEndStage = matatuRouteManager.findNearestStop(destinationLatLng);
-
-        if (nearestStartStage == null || nearestEndStage == null) {
-            Toast.makeText(this, "Could not find a valid matatu route.", Toast.LENGTH_SHORT).show();
-            // Fallback to a simple route if matatu route can't be found
-            mMap.addMarker(new MarkerOptions().position(startLatLng).title("Your Location"));
-            mMap.addMarker(new MarkerOptions().position(destinationLatLng).title("Destination"));
-            LatLngBounds.Builder builder = new LatLngBounds.Builder();
-            builder.include(startLatLng);
-            builder.include(destinationLatLng);
-            mMap.animateCamera(CameraUpdateFactory.newLatLngBounds(builder.build(), 100));
-            startNavigationButton.setVisibility(View.GONE);
-            return;
+    /**
+     * Draws a planned route on the map with distinct polylines for each leg: walking in blue,
+     * matatus in green, and a straight grey line when no matatu goes there. The route layer's
+     * lines and pins are moved in place, so picking another destination does not rebuild them.
+     * @param plan The plan to draw.
+     */
+    private void showRoutePlan(RoutePlan plan) {
+        routePlan = plan;
+        routeOverlay.begin();
+        String destinationTitle = whereToInput.getText().toString();
+        switch (plan.getKind()) {
+            case NO_STAGES:
+                Toast.makeText(this, "Could not find a valid matatu route.", Toast.LENGTH_SHORT).show();
+                // Fallback to a simple route if matatu route can't be found
+                routeOverlay.marker("start", plan.getOrigin(), "Your Location", BitmapDescriptorFactory.HUE_RED);
+                routeOverlay.marker("destination", plan.getDestination(), "Destination", BitmapDescriptorFactory.HUE_RED);
+                break;
+            case DIRECT:
+                Log.w(TAG, "No matatu route connects the nearest stages. Falling back to simple route.");
+                Toast.makeText(this, "No matatu route waypoints found. Displaying direct path.", Toast.LENGTH_SHORT).show();
+                routeOverlay.polyline("direct", plan.getLegs().get(0).getPoints(), Color.GRAY);
+                routeOverlay.marker("start", plan.getOrigin(), "Your Location", BitmapDescriptorFactory.HUE_RED);
+                routeOverlay.marker("destination", plan.getDestination(), destinationTitle, BitmapDescriptorFactory.HUE_RED);
+                break;
+            default:
+                List<Journey.Leg> legs = plan.getLegs();
+                for (int i = 0; i < legs.size(); i++) {
+                    Journey.Leg leg = legs.get(i);
+                    if (leg.getMode() == Journey.Mode.WALK) {
+                        routeOverlay.polyline("leg" + i, leg.getPoints(), Color.BLUE);
+                        continue;
+                    }
+                    routeOverlay.polyline("leg" + i, plan.getLine(i), Color.GREEN);
+                    // A single route has no name to show, only its stages.
+                    String routeName = leg.getRouteName();
+                    routeOverlay.marker("board" + i, leg.getStart(),
+                            routeName != null ? "Board: " + routeName : "Matatu Pickup", BitmapDescriptorFactory.HUE_YELLOW);
+                    routeOverlay.marker("alight" + i, leg.getEnd(),
+                            routeName != null ? "Alight: " + routeName : "Matatu Drop-off", BitmapDescriptorFactory.HUE_YELLOW);
+                }
+                routeOverlay.marker("start", plan.getOrigin(), "Your Location", BitmapDescriptorFactory.HUE_RED);
+                routeOverlay.marker("destination", plan.getDestination(), destinationTitle,
+                        BitmapDescriptorFactory.HUE_AZURE);
+                break;
         }
+        routeOverlay.end();
 
-        // Get waypoints from the MatatuRouteManager
-        List<LatLng> waypoints = matatuRouteManager.getWaypointsBetween(nearestStartStage, nearestEndStage);
-
-        // Check if waypoints are returned correctly
-        if (waypoints == null || waypoints.isEmpty()) {
-            Log.w(TAG, "MatatuRouteManager returned an empty or null list of waypoints. Falling back to simple route.");
-            Toast.makeText(this, "No matatu route waypoints found. Displaying direct path.", Toast.LENGTH_SHORT).show();
-
-            // Draw a direct path if no matatu route is found
-            mMap.addPolyline(new PolylineOptions()
-                    .add(startLatLng, destinationLatLng)
-                    .width(10f)
-                    .color(Color.GRAY)
-                    .geodesic(true));
-
-            // Add markers for start and destination
-            mMap.addMarker(new MarkerOptions().position(startLatLng).title("Your Location"));
-            mMap.addMarker(new MarkerOptions().position(destinationLatLng).title(whereToInput.getText().toString()));
-
-            // Zoom to fit the two points
-            LatLngBounds.Builder builder = new LatLngBounds.Builder();
-            builder.include(startLatLng);
-            builder.include(destinationLatLng);
-            mMap.animateCamera(CameraUpdateFactory.newLatLngBounds(builder.build(), 100));
+        // Zoom the camera to fit the entire route
+        mMap.animateCamera(CameraUpdateFactory.newLatLngBounds(plan.getBounds(), 100));
+
+        if (plan.getMatatuLegCount() == 0) {
             startNavigationButton.setVisibility(View.GONE);
             return;
         }
-
-        // 1. Draw walking line to the matatu stage (Blue)
-        mMap.addPolyline(new PolylineOptions()
-                .add(startLatLng, nearestStartStage)
-                .width(10f)
-                .color(Color.BLUE)
-                .geodesic(true));
-
-        // 2. Draw the matatu route line (Green)
-        List<LatLng> matatuRoutePoints = new ArrayList<>();
-        matatuRoutePoints.add(nearestStartStage);
-        matatuRoutePoints.addAll(waypoints);
-        matatuRoutePoints.add(nearestEndStage);
-
-        mMap.addPolyline(new PolylineOptions()
-                .addAll(matatuRoutePoints)
-                .width(10f)
-                .color(Color.GREEN)
-                .geodesic(true));
-
-        // 3. Draw walking line from the last stage to the destination (Blue)
-        mMap.addPolyline(new PolylineOptions()
-                .add(nearestEndStage, destinationLatLng)
-                .width(10f)
-                .color(Color.BLUE)
-                .geodesic(true));
-
-        // Add markers for key points
-        mMap.addMarker(new MarkerOptions()
-                .position(startLatLng)
-                .title("Your Location")
-                .icon(BitmapDescriptorFactory.defaultMarker(BitmapDescriptorFactory.HUE_RED)));
-        mMap.addMarker(new MarkerOptions()
-                .position(nearestStartStage)
-                .title("Matatu Pickup")
-                .icon(BitmapDescriptorFactory.defaultMarker(BitmapDescriptorFactory.HUE_YELLOW)));
-        mMap.addMarker(new MarkerOptions()
-                .position(nearestEndStage)
-                .title("Matatu Drop-off")
-                .icon(BitmapDescriptorFactory.defaultMarker(BitmapDescriptorFactory.HUE_YELLOW)));
-        mMap.addMarker(new MarkerOptions()
-                .position(destinationLatLng)
-                .title(whereToInput.getText().toString())
-                .icon(BitmapDescriptorFactory.defaultMarker(BitmapDescriptorFactory.HUE_AZURE)));
-
-        // Zoom the camera to fit the entire route
-        LatLngBounds.Builder builder = new LatLngBounds.Builder();
-        builder.include(startLatLng);
-        builder.include(destinationLatLng);
-        for (LatLng waypoint : matatuRoutePoints) {
-            builder.include(waypoint);
-        }
-        mMap.animateCamera(CameraUpdateFactory.newLatLngBounds(builder.build(), 100));
-
         startNavigationButton.setVisibility(View.VISIBLE);
-        distanceTextView.setText("Route calculated: Walking (blue) to matatu (green) and final walk (blue).");
+        if (plan.getKind() == RoutePlan.Kind.SINGLE_ROUTE) {
+            distanceTextView.setText("Route calculated: Walking (blue) to matatu (green) and final walk (blue).");
+        } else {
+            int minutes = (int) Math.ceil(plan.getEtaSeconds() / 60.0);
+            distanceTextView.setText("Route calculated: " + plan.getMatatuLegCount() + " matatus, "
+                    + plan.getTransferCount() + " transfers, about " + minutes + " mins.");
+        }
     }
 
     /**
@@ -447,15 +449,24 @@ public class LandingPage extends AppCompatActivity implements OnMapReadyCallback
      * including a multi-modal journey with only the relevant matatu stops.
      */
     private void startGoogleMapsNavigation() {
-        if (startLatLng == null || destinationLatLng == null) {
+        if (startLatLng == null || destinationLatLng == null || routePlan == null) {
             Toast.makeText(this, "Please select a starting point and destination first.", Toast.LENGTH_SHORT).show();
             return;
         }
 
-        LatLng nearestStartStage = matatuRouteManager.findNearestStop(startLatLng);
-        LatLng nearestEndStage = matatuRouteManager.findNearestStop(destinationLatLng);
+        // The stage of the first boarding and of the last alighting.
+        LatLng nearestStartStage = null;
+        LatLng nearestEndStage = null;
+        for (Journey.Leg leg : routePlan.getLegs()) {
+            if (leg.getMode() == Journey.Mode.MATATU) {
+                if (nearestStartStage == null) {
+                    nearestStartStage = leg.getStart();
+                }
+                nearestEndStage = leg.getEnd();
+            }
+        }
 
-        if (nearestStartStage == null || nearestEndStage == null) {
+        if (nearestStartStage == null) {
             Toast.makeText(this, "Could not find a valid matatu route.", Toast.LENGTH_SHORT).show();
             return;
         }
@@ -481,8 +492,80 @@ public class LandingPage extends AppCompatActivity implements OnMapReadyCallback
     }
 
     /**
-     * Sets up a real-time Firestore listener to find available matatus.
-     * This method queries for trips with a status of 'available' on a specific route.
+     * Trips publish their position only when it strays from where it was predicted to be (see
+     * PositionPublishFilter), so the published position is moved along the route by the speed
+     * published with it.
+     * @return The trip's predicted position at a time, or the published one if it has no speed
+     * or the route graph is not ready.
+     */
+    private LatLng predictMatatuPosition(VehiclePosition vehicle, long nowMillis) {
+        LatLng published = new LatLng(vehicle.getLatitude(), vehicle.getLongitude());
+        MatatuRouteManager manager = routeGraph.getNow(null);
+        if (manager == null) {
+            return published;
+        }
+        return PositionPublishFilter.predict(manager.getRoutePolyline(vehicle.getRouteId()), published,
+                vehicle.getSpeed(), nowMillis - vehicle.getLastUpdated());
+    }
+
+    /**
+     * Feeds a trip's breadcrumbs and latest match to the ETA engine, so it learns how long the
+     * route's segments take at this time of day.
+     */
+    private void learnFromTrip(EtaEngine engine, VehiclePosition vehicle) {
+        RoutePolyline route = engine.getRoute();
+        // Triples of (latitude * 1e5, longitude * 1e5, seconds before lastUpdated), oldest first.
+        List<Long> breadcrumbs = vehicle.getBreadcrumbs();
+        for (int i = 0; i + 2 < breadcrumbs.size(); i += 3) {
+            LatLng position = new LatLng(breadcrumbs.get(i) / 1e5, breadcrumbs.get(i + 1) / 1e5);
+            RoutePolyline.Projection projection = route.project(position);
+            if (projection.getOffset() <= MAX_BREADCRUMB_OFFSET_METERS) {
+                engine.observe(vehicle.getTripId(), vehicle.getLastUpdated() - breadcrumbs.get(i + 2) * 1000,
+                        projection.getDistanceAlong());
+            }
+        }
+        if (vehicle.getDistanceAlongRoute() >= 0) {
+            engine.observe(vehicle.getTripId(), vehicle.getLastUpdated(), vehicle.getDistanceAlongRoute());
+        }
+    }
+
+    /**
+     * Trips publish how far along the route they are (see RouteMatcher), so the ETA walks the
+     * route to the user's stop at the speeds learned for each segment at this time of day.
+     * Trips off the route, or before the engine is ready, are taken to come straight at the
+     * user at EtaEngine.DEFAULT_SPEED_MPS.
+     * @return When the trip reaches the user, in epoch milliseconds, or NaN if it has passed
+     * their stop.
+     */
+    private double estimateArrival(VehiclePosition vehicle) {
+        EtaEngine engine = matatuEta != null ? matatuEta.getNow(null) : null;
+        if (engine != null && vehicle.getDistanceAlongRoute() >= 0) {
+            double seconds = engine.estimateSeconds(vehicle.getDistanceAlongRoute(),
+                    engine.pickupStop(matatuTrackingUser), vehicle.getLastUpdated());
+            return vehicle.getLastUpdated() + seconds * 1000;
+        }
+        long now = System.currentTimeMillis();
+        LatLng predicted = predictMatatuPosition(vehicle, now);
+        return now
+                + SphericalUtil.computeDistanceBetween(matatuTrackingUser, predicted) / EtaEngine.DEFAULT_SPEED_MPS * 1000;
+    }
+
+    /**
+     * @return The geohash cells a matatu coming to pick the user up can be in, or without the
+     * route, the cells around the user.
+     */
+    private static Set<String> cellsToWatch(EtaEngine engine, LatLng user) {
+        if (engine == null) {
+            return Geohash.cellsCovering(user, NEARBY_METERS, VehiclePositionRepository.CELL_PRECISION);
+        }
+        return VehicleSubscription.cellsApproaching(engine.getRoute(), engine.pickupStop(user));
+    }
+
+    /**
+     * Starts listening to the available matatus on the user's route that are on their way to
+     * the user. Only the geohash cells along the route before the user's pickup stage are
+     * listened to (see VehicleSubscription.cellsApproaching), not every matatu on the route;
+     * calling this again moves the listeners to the new area, keeping the cells still in it.
      *
      * @param userLocation The user's current location, required for ETA calculation. Can be null if not available.
      */
@@ -490,60 +573,101 @@ public class LandingPage extends AppCompatActivity implements OnMapReadyCallback
         // The destination route the user is interested in. This would be chosen by the user in a real app.
         String destinationRoute = "Roysambu to Nairobi Town";
 
-        loadingIndicator.setVisibility(View.VISIBLE);
-        dashboardStatusTextView.setText("Searching for Matatus...");
+        if (userLocation == null) {
+            dashboardStatusTextView.setText("Your location is needed to find matatus near you.");
+            return;
+        }
+        matatuTrackingUser = new LatLng(userLocation.getLatitude(), userLocation.getLongitude());
+        if (matatuSubscription == null || !matatuSubscription.getRouteId().equals(destinationRoute)) {
+            if (matatuSubscription != null) {
+                matatuSubscription.close();
+            }
+            matatuSubscription = new VehicleSubscription(vehicleRepository, destinationRoute, this::onMatatuChanges);
+            matatuEta = EtaProfileStore.get(this, destinationRoute);
+            matatuBoard.clear();
+            // Until the first cell loads.
+            loadingIndicator.setVisibility(View.VISIBLE);
+            dashboardStatusTextView.setText("Searching for Matatus...");
+        }
+        // The ETAs shown are for where the user was; redo them for where they are.
+        matatuBoard.reestimate();
+        showMatatus();
+        startMatatuTick();
+        VehicleSubscription subscription = matatuSubscription;
+        LatLng user = matatuTrackingUser;
+        matatuEta.thenAcceptAsync(engine -> {
+            // Skip if tracking moved on to another route, or the activity is gone.
+            if (!isDestroyed() && subscription == matatuSubscription) {
+                subscription.setCells(cellsToWatch(engine, user));
+                Log.d(TAG, subscription.stats() + " " + vehicleRepository.stats());
+                // Along the route now that the engine is ready.
+                matatuBoard.reestimate();
+                showMatatus();
+            }
+        }, ContextCompat.getMainExecutor(this));
+    }
 
-        CollectionReference tripsCollection = db.collection("trips");
-        Query query = tripsCollection
-                .whereEqualTo("status", "available")
-                .whereEqualTo("routeId", destinationRoute);
+    private void startMatatuTick() {
+        mainHandler.removeCallbacks(matatuTick);
+        mainHandler.postDelayed(matatuTick, MATATU_TICK_MILLIS);
+    }
 
-        query.addSnapshotListener((querySnapshot, e) -> {
-            if (e != null) {
-                Log.e(TAG, "Matatu tracking listener failed.", e);
-                dashboardStatusTextView.setText("Error fetching matatus. Please try again later.");
-                loadingIndicator.setVisibility(View.GONE);
-                return;
-            }
+    /**
+     * Matatus publish only when they stray from their predicted position, and at least once a
+     * minute, so between snapshots the dashboard moves them along itself and counts their ETAs
+     * down. Only the rows that changed are redrawn.
+     */
+    private void onMatatuTick() {
+        if (matatuBoard.advance()) {
+            showMatatus();
+        }
+        mainHandler.postDelayed(matatuTick, MATATU_TICK_MILLIS);
+    }
 
+    /**
+     * Takes in changes to the matatus the subscription sees. Only the matatus that changed
+     * are learned from and estimated again.
+     * @param changes The changes, or null if listening failed.
+     */
+    private void onMatatuChanges(List<VehiclePositionRepository.Change> changes, Exception e) {
+        if (e != null) {
+            Log.e(TAG, "Matatu tracking listener failed.", e);
+            dashboardStatusTextView.setText("Error fetching matatus. Please try again later.");
             loadingIndicator.setVisibility(View.GONE);
-            StringBuilder matatuInfo = new StringBuilder();
-
-            if (querySnapshot != null && !querySnapshot.isEmpty()) {
-                // We found at least one available matatu.
-                for (DocumentSnapshot doc : querySnapshot.getDocuments()) {
-                    // Check for valid location data and user location
-                    if (doc.contains("latitude") && doc.contains("longitude") && userLocation != null) {
-                        Double matatuLat = doc.getDouble("latitude");
-                        Double matatuLon = doc.getDouble("longitude");
-                        String matatuId = doc.getString("matatuId");
-
-                        if (matatuLat != null && matatuLon != null && matatuId != null) {
-                            LatLng matatuLatLng = new LatLng(matatuLat, matatuLon);
-                            LatLng userLatLng = new LatLng(userLocation.getLatitude(), userLocation.getLongitude());
-
-                            // Calculate distance in meters
-                            double distanceInMeters = SphericalUtil.computeDistanceBetween(userLatLng, matatuLatLng);
-
-                            // Calculate ETA in minutes (Distance / Speed)
-                            int etaInMinutes = (int) Math.ceil((distanceInMeters / AVERAGE_MATATU_SPEED_MPS) / 60);
-
-                            matatuInfo.append("Matatu: ").append(matatuId).append("\n");
-                            matatuInfo.append("ETA: ").append(etaInMinutes).append(" mins\n\n");
-                        }
-                    }
-                }
-                if (matatuInfo.length() > 0) {
-                    dashboardStatusTextView.setText(matatuInfo.toString());
-                } else {
-                    // This case handles if a matatu is found, but its location data is missing.
-                    dashboardStatusTextView.setText("No location data for available matatus.");
-                }
+            return;
+        }
 
-            } else {
-                // No documents matched the query. No available matatus.
-                dashboardStatusTextView.setText("NO AVAILABLE MATATU TO YOUR DESTINATION AT THE MOMENT");
+        loadingIndicator.setVisibility(View.GONE);
+        EtaEngine engine = matatuEta.getNow(null);
+        if (engine != null) {
+            for (VehiclePositionRepository.Change change : changes) {
+                if (change.getVehicle() != null) {
+                    learnFromTrip(engine, change.getVehicle());
+                }
             }
-        });
+        }
+        matatuBoard.apply(changes);
+        showMatatus();
+    }
+
+    /**
+     * Shows the board's matatus in the dashboard list and on the map.
+     */
+    private void showMatatus() {
+        List<VehicleBoard.Row> rows = matatuBoard.getRows();
+        // The same list as last time if nothing changed, which ListAdapter skips.
+        matatuAdapter.submitList(rows);
+        if (matatuMarkers != null) {
+            matatuMarkers.update(rows);
+        }
+        if (loadingIndicator.getVisibility() == View.VISIBLE) {
+            return;
+        }
+        if (rows.isEmpty()) {
+            // No matatus on their way to the user.
+            dashboardStatusTextView.setText("NO AVAILABLE MATATU TO YOUR DESTINATION AT THE MOMENT");
+        } else {
+            dashboardStatusTextView.setText("Matatus on their way to you");
+        }
     }
 }
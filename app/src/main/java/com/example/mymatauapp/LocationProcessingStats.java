@@ -0,0 +1,129 @@
+package com.example.mymatauapp;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters for the LocationTrackingService's processing thread: how many location results
+ * are queued for it, and how long each fix takes from being delivered to being processed.
+ *
+ * Location results reach the thread through the executor from wrap, which counts them in and
+ * out of the queue and notes when each was delivered. The service calls onFixProcessed once
+ * per fix, from within the task, and the fix's latency runs from that delivery.
+ *
+ * The getters may be called from any thread.
+ */
+public class LocationProcessingStats {
+
+    // Percentiles are over this many of the latest fixes.
+    private static final int LATENCY_WINDOW = 256;
+
+    private final LongSupplier nanoClock;
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+    // When the running task was delivered; only touched on the processing thread.
+    private long taskQueuedAtNanos;
+
+    // Guarded by this.
+    private final long[] latencies = new long[LATENCY_WINDOW];
+    private long processedCount;
+    private long totalLatencyNanos;
+    private long maxLatencyNanos;
+
+    public LocationProcessingStats() {
+        this(System::nanoTime);
+    }
+
+    LocationProcessingStats(LongSupplier nanoClock) {
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * @param executor A single-threaded executor that throws RejectedExecutionException when
+     * it no longer takes tasks.
+     * @return An executor that runs tasks on it and counts them.
+     */
+    public Executor wrap(Executor executor) {
+        return command -> {
+            long queuedAt = nanoClock.getAsLong();
+            maxQueueDepth.accumulateAndGet(queueDepth.incrementAndGet(), Math::max);
+            try {
+                executor.execute(() -> {
+                    queueDepth.decrementAndGet();
+                    taskQueuedAtNanos = queuedAt;
+                    command.run();
+                });
+            } catch (RejectedExecutionException e) {
+                queueDepth.decrementAndGet();
+                throw e;
+            }
+        };
+    }
+
+    /**
+     * Records that a fix has been processed. Call on the processing thread, from within a
+     * task run by the executor from wrap.
+     */
+    public void onFixProcessed() {
+        long latency = nanoClock.getAsLong() - taskQueuedAtNanos;
+        synchronized (this) {
+            latencies[(int) (processedCount % LATENCY_WINDOW)] = latency;
+            processedCount++;
+            totalLatencyNanos += latency;
+            maxLatencyNanos = Math.max(maxLatencyNanos, latency);
+        }
+    }
+
+    /** The number of location results waiting for the processing thread. */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /** The most location results that have waited at once. */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    public synchronized long getProcessedCount() {
+        return processedCount;
+    }
+
+    public synchronized double getMeanLatencyMillis() {
+        return processedCount == 0 ? 0 : totalLatencyNanos / 1e6 / processedCount;
+    }
+
+    public synchronized double getMaxLatencyMillis() {
+        return maxLatencyNanos / 1e6;
+    }
+
+    /**
+     * @param percentile Between 0 and 100.
+     * @return The latency below which that share of the latest fixes were processed, or 0 if
+     * none have been.
+     */
+    public synchronized double getLatencyPercentileMillis(double percentile) {
+        int count = (int) Math.min(processedCount, LATENCY_WINDOW);
+        if (count == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))] / 1e6;
+    }
+
+    /**
+     * @return A one-line summary of the counters, for logging.
+     */
+    public String stats() {
+        return String.format(Locale.ROOT,
+                "Processed %d fixes; latency mean %.2f ms, p95 %.2f ms, max %.2f ms; queue depth %d, max %d",
+                getProcessedCount(), getMeanLatencyMillis(), getLatencyPercentileMillis(95),
+                getMaxLatencyMillis(), getQueueDepth(), getMaxQueueDepth());
+    }
+}
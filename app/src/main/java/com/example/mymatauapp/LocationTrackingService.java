@@ -4,9 +4,17 @@ import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 import androidx.annotation.Nullable;
 import com.google.android.gms.location.FusedLocationProviderClient;
@@ -15,35 +23,175 @@ import com.google.android.gms.location.LocationRequest;
 import com.google.android.gms.location.LocationResult;
 import com.google.android.gms.location.LocationServices;
 import com.google.firebase.auth.FirebaseAuth;
-import com.google.firebase.firestore.FirebaseFirestore;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 // This service runs in the background to track the user's location,
 // specifically for a matatu trip started by a conductor.
+// Fixes are filtered, journaled and uploaded on the service's own thread, so the map on the
+// main thread only ever sees a throttled Snapshot.
 public class LocationTrackingService extends Service {
 
     private static final String TAG = "LocationTrackingService";
     private static final String CHANNEL_ID = "LocationServiceChannel";
+    // The most intermediate fixes one upload carries as breadcrumbs.
+    private static final int MAX_BREADCRUMBS = 60;
+    // Snapshots reach the UI at most this often.
+    private static final long SNAPSHOT_INTERVAL_MILLIS = 1000;
+
+    /**
+     * The tracked position and sampling state, as last handed to the UI.
+     */
+    public static final class Snapshot {
+        private final double latitude;
+        private final double longitude;
+        private final double speed;
+        private final long timeMillis;
+        private final AdaptiveSamplingController.Mode samplingMode;
+
+        Snapshot(double latitude, double longitude, double speed, long timeMillis,
+                 AdaptiveSamplingController.Mode samplingMode) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.speed = speed;
+            this.timeMillis = timeMillis;
+            this.samplingMode = samplingMode;
+        }
+
+        public double getLatitude() {
+            return latitude;
+        }
+
+        public double getLongitude() {
+            return longitude;
+        }
+
+        /** The smoothed speed along the route in m/s; see PositionPublishFilter. */
+        public double getSpeed() {
+            return speed;
+        }
+
+        /** The time of the fix, in milliseconds since the epoch. */
+        public long getTimeMillis() {
+            return timeMillis;
+        }
+
+        public AdaptiveSamplingController.Mode getSamplingMode() {
+            return samplingMode;
+        }
+    }
+
+    public interface SnapshotListener {
+        /** Called on the main thread. */
+        void onSnapshot(Snapshot snapshot);
+    }
+
+    // Both only touched on the main thread.
+    private static SnapshotListener snapshotListener;
+    private static Snapshot latestSnapshot;
+    // The running service's counters.
+    private static volatile LocationProcessingStats runningStats;
+
+    /**
+     * @return The counters of the running service's tracking thread, or null if it is not
+     * running. They may be read from any thread.
+     */
+    @Nullable
+    public static LocationProcessingStats getProcessingStats() {
+        return runningStats;
+    }
+
+    /**
+     * Sets the listener for snapshots of the running trip, or clears it if null. A new
+     * listener is given the latest snapshot straight away. Call on the main thread, and clear
+     * the listener when the UI stops.
+     */
+    public static void setSnapshotListener(SnapshotListener listener) {
+        snapshotListener = listener;
+        if (listener != null && latestSnapshot != null) {
+            listener.onSnapshot(latestSnapshot);
+        }
+    }
 
     private FusedLocationProviderClient fusedLocationClient;
     private LocationCallback locationCallback;
-    private FirebaseFirestore db;
+    // Where positions are published; see VehiclePositionTransports.
+    private VehiclePositionTransport transport;
+    private Handler mainHandler;
+    private HandlerThread trackingThread;
+    private Handler trackingHandler;
+    // Runs location callbacks on the tracking thread and counts them.
+    private Executor trackingExecutor;
+    private final LocationProcessingStats processingStats = new LocationProcessingStats();
+
+    // From here to the trip fields, only touched on the tracking thread.
+    private LocationUploadBatcher uploadBatcher;
+    private AdaptiveSamplingController samplingController;
+    private PositionPublishFilter publishFilter;
+    private RouteMatcher routeMatcher;
+    // The policy of the current location request, or null before updates are requested.
+    private AdaptiveSamplingController.Policy activePolicy;
+    // The newest snapshot not yet on the main thread, and when the last one got there.
+    private Snapshot pendingSnapshot;
+    private long lastSnapshotPostedAt;
+    private boolean snapshotPostScheduled;
 
     // We'll use these to identify the specific trip document to update.
-    private String tripId;
+    // The trip ID is read on the tracking thread.
+    private volatile String tripId;
     private String conductorId;
+    private volatile String routeId;
+    private volatile String matatuId;
+
+    private final BroadcastReceiver batteryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
+            int status = intent.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+            boolean charging = status == BatteryManager.BATTERY_STATUS_CHARGING
+                    || status == BatteryManager.BATTERY_STATUS_FULL;
+            int percent = level < 0 || scale <= 0 ? -1 : level * 100 / scale;
+            applyPolicy(samplingController.onBatteryChanged(percent, charging));
+        }
+    };
 
     @Override
     public void onCreate() {
         super.onCreate();
 
-        // Initialize Firebase Firestore.
-        db = FirebaseFirestore.getInstance();
+        // Positions go through the trip event journal to Firestore, or over the realtime stream.
+        transport = VehiclePositionTransports.get(this);
 
         // Initialize the FusedLocationProviderClient.
         fusedLocationClient = LocationServices.getFusedLocationProviderClient(this);
 
+        // Location callbacks, filtering, journaling and uploads all run on the tracking
+        // thread; the main looper only gets snapshots for the UI.
+        mainHandler = new Handler(Looper.getMainLooper());
+        trackingThread = new HandlerThread("LocationTracking", Process.THREAD_PRIORITY_BACKGROUND);
+        trackingThread.start();
+        trackingHandler = new Handler(trackingThread.getLooper());
+        runningStats = processingStats;
+        trackingExecutor = processingStats.wrap(command -> {
+            if (!trackingHandler.post(command)) {
+                throw new RejectedExecutionException("The tracking thread has quit");
+            }
+        });
+        // Fixes are coalesced and uploaded as often as the transport takes them.
+        uploadBatcher = new LocationUploadBatcher(new TripLocationSink(),
+                trackingHandler, transport.getPublishIntervalMillis(), MAX_BREADCRUMBS);
+
+        // The sampling rate follows speed, stop proximity and battery. The route, and with
+        // it the distance to the next stop, is set once the trip's route ID is known.
+        samplingController = new AdaptiveSamplingController(null);
+        // Only fixes that readers could not have predicted are published.
+        publishFilter = new PositionPublishFilter(null);
+        // Fixes are snapped to the route once here, so readers get the distance along it.
+        routeMatcher = new RouteMatcher(null);
+        // ACTION_BATTERY_CHANGED is sticky, so the receiver also gets the current state now.
+        registerReceiver(batteryReceiver, new IntentFilter(Intent.ACTION_BATTERY_CHANGED), null, trackingHandler);
+
         // This is the callback that gets called every time a new location is available.
         locationCallback = new LocationCallback() {
             @Override
@@ -53,28 +201,80 @@ public class LocationTrackingService extends Service {
                     return;
                 }
 
-                // Loop through all new location data.
+                // A result can hold several batched fixes; they all go into one upload.
+                android.location.Location accepted = null;
                 for (android.location.Location location : locationResult.getLocations()) {
                     if (location != null) {
-                        double latitude = location.getLatitude();
-                        double longitude = location.getLongitude();
-
-                        Log.d(TAG, "New location received - Lat: " + latitude + ", Lng: " + longitude);
-
-                        // Call the method to update the trip's location in Firestore.
-                        updateTripLocation(latitude, longitude);
+                        if (processLocation(location)) {
+                            accepted = location;
+                        }
+                        processingStats.onFixProcessed();
                     }
                 }
+                if (accepted != null) {
+                    applyPolicy(samplingController.getPolicy());
+                    postSnapshot(new Snapshot(accepted.getLatitude(), accepted.getLongitude(),
+                            publishFilter.getSpeed(), accepted.getTime(), samplingController.getPolicy().getMode()));
+                }
             }
         };
     }
 
+    /**
+     * Filters a fix, matches it onto the route, hands it to the uploader if readers could not
+     * have predicted it, and feeds it to the sampling controller.
+     * @return False if the fix was rejected as implausible.
+     */
+    private boolean processLocation(android.location.Location location) {
+        double accuracy = location.hasAccuracy() ? location.getAccuracy() : 0;
+        PositionPublishFilter.Decision decision = publishFilter.offer(location.getLatitude(),
+                location.getLongitude(), accuracy, location.getTime());
+        if (decision == PositionPublishFilter.Decision.REJECT) {
+            Log.d(TAG, "Rejected location - Lat: " + location.getLatitude() + ", Lng: " + location.getLongitude());
+            return false;
+        }
+        routeMatcher.offer(location.getLatitude(), location.getLongitude(), accuracy, location.getTime());
+        if (decision == PositionPublishFilter.Decision.PUBLISH) {
+            uploadBatcher.offer(location.getLatitude(), location.getLongitude(), publishFilter.getSpeed(),
+                    routeMatcher.getDistanceAlong(), routeMatcher.getNextStopIndex(), location.getTime());
+        }
+        samplingController.onLocation(location.getLatitude(), location.getLongitude(),
+                location.hasSpeed() ? location.getSpeed() : Double.NaN, accuracy, location.getTime());
+        return true;
+    }
+
+    /**
+     * Hands a snapshot to the main thread, coalescing so that the UI gets at most one per
+     * SNAPSHOT_INTERVAL_MILLIS, and always the newest.
+     */
+    private void postSnapshot(Snapshot snapshot) {
+        pendingSnapshot = snapshot;
+        if (snapshotPostScheduled) {
+            return;
+        }
+        snapshotPostScheduled = true;
+        long delay = Math.max(0, lastSnapshotPostedAt + SNAPSHOT_INTERVAL_MILLIS - SystemClock.elapsedRealtime());
+        trackingHandler.postDelayed(() -> {
+            Snapshot latest = pendingSnapshot;
+            snapshotPostScheduled = false;
+            lastSnapshotPostedAt = SystemClock.elapsedRealtime();
+            mainHandler.post(() -> {
+                latestSnapshot = latest;
+                if (snapshotListener != null) {
+                    snapshotListener.onSnapshot(latest);
+                }
+            });
+        }, delay);
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         // Retrieve the trip and conductor IDs from the Intent.
         if (intent != null) {
             tripId = intent.getStringExtra("tripId");
             conductorId = intent.getStringExtra("conductorId");
+            routeId = intent.getStringExtra("routeId");
+            matatuId = intent.getStringExtra("matatuId");
         }
 
         if (tripId == null || conductorId == null) {
@@ -94,45 +294,107 @@ public class LocationTrackingService extends Service {
                 .build();
         startForeground(1, notification);
 
+        loadRoute();
+
         // Start requesting location updates.
         startLocationUpdates();
 
         return START_STICKY;
     }
 
+    /**
+     * Gives the sampling controller, publish filter and route matcher the trip's route from
+     * the shared route graph, so they can sample densely near stops, predict motion along the
+     * route and snap fixes onto it.
+     */
+    private void loadRoute() {
+        if (routeId == null) {
+            Log.w(TAG, "No route ID; sampling without stop proximity.");
+            return;
+        }
+        String requestedRouteId = routeId;
+        RouteGraph.get(this).thenAccept(manager -> {
+            RoutePolyline polyline = manager.getRoutePolyline(requestedRouteId);
+            if (polyline == null) {
+                Log.w(TAG, "Route " + requestedRouteId + " is not in the route network.");
+                return;
+            }
+            trackingHandler.post(() -> {
+                samplingController.setRoute(polyline);
+                publishFilter.setRoute(polyline);
+                routeMatcher.setRoute(polyline);
+            });
+        });
+    }
+
     private void startLocationUpdates() {
-        LocationRequest locationRequest = new LocationRequest.Builder(10000) // Update every 10 seconds
-                .setMinUpdateIntervalMillis(5000) // Don't get updates faster than 5 seconds
-                .setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY)
+        trackingHandler.post(() -> requestLocationUpdates(samplingController.getPolicy()));
+    }
+
+    /**
+     * Re-requests location updates if the sampling policy has changed since the last request.
+     * Does nothing before tracking has started.
+     */
+    private void applyPolicy(AdaptiveSamplingController.Policy policy) {
+        if (activePolicy != null && !activePolicy.equals(policy)) {
+            requestLocationUpdates(policy);
+        }
+    }
+
+    private void requestLocationUpdates(AdaptiveSamplingController.Policy policy) {
+        LocationRequest locationRequest = new LocationRequest.Builder(policy.getIntervalMillis())
+                .setMinUpdateIntervalMillis(policy.getMinIntervalMillis())
+                .setPriority(policy.isHighAccuracy()
+                        ? LocationRequest.PRIORITY_HIGH_ACCURACY
+                        : LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY)
+                .setMinUpdateDistanceMeters((float) policy.getMinDistanceMeters())
                 .build();
 
         try {
-            // Request location updates from the FusedLocationProviderClient.
+            // Request location updates from the FusedLocationProviderClient, delivered on the
+            // tracking thread. Requesting again with the same callback replaces the previous
+            // request.
             fusedLocationClient.requestLocationUpdates(locationRequest,
-                    locationCallback,
-                    Looper.getMainLooper());
-            Log.d(TAG, "Location updates requested.");
+                    trackingExecutor,
+                    locationCallback);
+            activePolicy = policy;
+            Log.d(TAG, "Location updates requested: " + policy + ".");
         } catch (SecurityException e) {
             // This catch block handles the case where location permission was denied.
             Log.e(TAG, "Location permission not granted.", e);
         }
     }
 
-    private void updateTripLocation(double latitude, double longitude) {
-        if (tripId != null && conductorId != null) {
-            // Create a map to hold the new location data and a timestamp.
-            Map<String, Object> locationData = new HashMap<>();
-            locationData.put("latitude", latitude);
-            locationData.put("longitude", longitude);
-            locationData.put("lastUpdated", System.currentTimeMillis());
+    /**
+     * Publishes coalesced fixes through the transport as the trip's position: the latest fix,
+     * its match onto the route, and the fixes since the previous publish as breadcrumbs.
+     */
+    private class TripLocationSink implements LocationUploadBatcher.Sink {
 
-            // Update the specific trip's document in Firestore.
-            db.collection("trips").document(tripId)
-                    .update(locationData)
-                    .addOnSuccessListener(aVoid -> Log.d(TAG, "Trip location successfully updated!"))
-                    .addOnFailureListener(e -> Log.e(TAG, "Error updating trip location", e));
-        } else {
-            Log.e(TAG, "Trip ID is missing, cannot update location.");
+        @Override
+        public boolean isOnline() {
+            return transport.isOnline();
+        }
+
+        @Override
+        public void upload(LocationUploadBatcher.Upload upload, LocationUploadBatcher.Callback callback) {
+            if (tripId == null) {
+                callback.onComplete(new IllegalStateException("Trip ID is missing, cannot update location."));
+                return;
+            }
+            // The match onto the route, or -1 for both while off it.
+            double distanceAlongRoute = upload.getDistanceAlongRoute();
+            VehiclePosition position = new VehiclePosition(tripId, matatuId, routeId,
+                    upload.getLatitude(), upload.getLongitude(), upload.getSpeed(),
+                    Double.isNaN(distanceAlongRoute) ? -1 : distanceAlongRoute, upload.getNextStopIndex(),
+                    upload.getTimeMillis(), upload.getBreadcrumbArray());
+
+            transport.publish(position, error -> trackingHandler.post(() -> {
+                if (error == null) {
+                    Log.d(TAG, "Trip location published with " + upload.getBreadcrumbCount() + " breadcrumbs.");
+                }
+                callback.onComplete(error);
+            }));
         }
     }
 
@@ -158,6 +420,22 @@ public class LocationTrackingService extends Service {
             fusedLocationClient.removeLocationUpdates(locationCallback);
             Log.d(TAG, "Location updates removed.");
         }
+        unregisterReceiver(batteryReceiver);
+        // Send the last position before the trip ends, then drop anything still waiting, and
+        // let the tracking thread finish what is already queued.
+        trackingHandler.post(() -> {
+            Log.d(TAG, publishFilter.stats());
+            Log.d(TAG, routeMatcher.stats());
+            Log.d(TAG, processingStats.stats());
+            uploadBatcher.flush();
+            uploadBatcher.stop();
+            if (tripId != null) {
+                transport.end(tripId);
+            }
+        });
+        trackingThread.quitSafely();
+        latestSnapshot = null;
+        runningStats = null;
     }
 
     @Nullable
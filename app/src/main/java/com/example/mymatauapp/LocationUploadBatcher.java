@@ -0,0 +1,304 @@
+package com.example.mymatauapp;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Coalesces location fixes into as few uploads as possible.
+ *
+ * Fixes are held in memory and uploaded at most once per cadence. Each upload carries the
+ * latest position and, as a compact breadcrumb array, the fixes received since the previous
+ * upload. Only one upload is in flight at a time; fixes that arrive meanwhile wait for the
+ * next one. When the network is down or an upload fails, the unsent fixes are kept and
+ * retried with exponential backoff, so an outage costs one retry per backoff step rather
+ * than one write per fix.
+ *
+ * Not thread-safe: call it, and complete the sink's callbacks, on the handler's thread.
+ */
+public class LocationUploadBatcher {
+
+    private static final String TAG = "LocationUploadBatcher";
+    private static final long MAX_BACKOFF_MILLIS = 5 * 60 * 1000;
+
+    /**
+     * Where uploads go, such as the trip document in Firestore.
+     */
+    public interface Sink {
+        /**
+         * @return False if an upload cannot succeed right now (e.g. there is no network).
+         */
+        boolean isOnline();
+
+        /**
+         * Starts an upload. The callback must be completed exactly once.
+         */
+        void upload(Upload upload, Callback callback);
+    }
+
+    public interface Callback {
+        /**
+         * @param error Null if the upload succeeded.
+         */
+        void onComplete(Exception error);
+    }
+
+    /**
+     * One upload: the latest position, plus the earlier fixes it replaces.
+     */
+    public static class Upload {
+        private final Fix latest;
+        private final List<Fix> breadcrumbs;
+
+        Upload(Fix latest, List<Fix> breadcrumbs) {
+            this.latest = latest;
+            this.breadcrumbs = breadcrumbs;
+        }
+
+        public double getLatitude() {
+            return latest.latitude;
+        }
+
+        public double getLongitude() {
+            return latest.longitude;
+        }
+
+        /** The speed along the route at the latest fix in m/s; see PositionPublishFilter. */
+        public double getSpeed() {
+            return latest.speed;
+        }
+
+        /** The latest fix's distance along the route in metres, or NaN if off the route; see RouteMatcher. */
+        public double getDistanceAlongRoute() {
+            return latest.distanceAlongRoute;
+        }
+
+        /** The index of the stop ahead of the latest fix, or -1; see RouteMatcher. */
+        public int getNextStopIndex() {
+            return latest.nextStopIndex;
+        }
+
+        /** The time of the latest fix, in milliseconds since the epoch. */
+        public long getTimeMillis() {
+            return latest.timeMillis;
+        }
+
+        public int getBreadcrumbCount() {
+            return breadcrumbs.size();
+        }
+
+        /**
+         * The earlier fixes, oldest first, flattened into triples of
+         * (latitude * 1e5, longitude * 1e5, seconds before the latest fix).
+         * Integers at 1e5 resolution (about 1 m) keep the array small.
+         */
+        public List<Long> getBreadcrumbArray() {
+            List<Long> array = new ArrayList<>(breadcrumbs.size() * 3);
+            for (Fix fix : breadcrumbs) {
+                array.add(Math.round(fix.latitude * 1e5));
+                array.add(Math.round(fix.longitude * 1e5));
+                array.add((latest.timeMillis - fix.timeMillis) / 1000);
+            }
+            return array;
+        }
+    }
+
+    /**
+     * The handler's thread and clock, separate so tests can run the batcher in virtual time.
+     */
+    interface Scheduler {
+        void postDelayed(Runnable task, long delayMillis);
+
+        void removeCallbacks(Runnable task);
+
+        /** Milliseconds on a monotonic clock, like SystemClock.elapsedRealtime. */
+        long now();
+    }
+
+    static class Fix {
+        final double latitude;
+        final double longitude;
+        final double speed;
+        final double distanceAlongRoute;
+        final int nextStopIndex;
+        final long timeMillis;
+
+        Fix(double latitude, double longitude, double speed, double distanceAlongRoute, int nextStopIndex,
+            long timeMillis) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.speed = speed;
+            this.distanceAlongRoute = distanceAlongRoute;
+            this.nextStopIndex = nextStopIndex;
+            this.timeMillis = timeMillis;
+        }
+    }
+
+    private final Sink sink;
+    private final Scheduler scheduler;
+    private final long cadenceMillis;
+    private final int maxBreadcrumbs;
+    private final Runnable flushTask = this::onFlushDue;
+
+    private Fix latest;
+    private List<Fix> breadcrumbs = new ArrayList<>();
+    private Upload inFlight;
+    private boolean flushScheduled;
+    private long nextUploadAt; // Scheduler.now
+    private int consecutiveFailures;
+
+    private long fixCount;
+    private long uploadCount;
+
+    /**
+     * @param cadenceMillis The minimum time between uploads.
+     * @param maxBreadcrumbs The most earlier fixes one upload carries. When more pile up
+     * (during an outage, say) every other one is dropped, so the trail keeps its full length
+     * at a lower resolution.
+     */
+    public LocationUploadBatcher(Sink sink, Handler handler, long cadenceMillis, int maxBreadcrumbs) {
+        this(sink, new Scheduler() {
+            @Override
+            public void postDelayed(Runnable task, long delayMillis) {
+                handler.postDelayed(task, delayMillis);
+            }
+
+            @Override
+            public void removeCallbacks(Runnable task) {
+                handler.removeCallbacks(task);
+            }
+
+            @Override
+            public long now() {
+                return SystemClock.elapsedRealtime();
+            }
+        }, cadenceMillis, maxBreadcrumbs);
+    }
+
+    LocationUploadBatcher(Sink sink, Scheduler scheduler, long cadenceMillis, int maxBreadcrumbs) {
+        this.sink = sink;
+        this.scheduler = scheduler;
+        this.cadenceMillis = cadenceMillis;
+        this.maxBreadcrumbs = maxBreadcrumbs;
+    }
+
+    /**
+     * Adds a fix. It is uploaded with the next batch; the first fix is uploaded straight away.
+     * @param speed The speed along the route in m/s, uploaded with the latest fix so readers
+     * can extrapolate it.
+     * @param distanceAlongRoute The fix's matched distance along the route, or NaN.
+     * @param nextStopIndex The index of the stop ahead, or -1.
+     */
+    public void offer(double latitude, double longitude, double speed, double distanceAlongRoute,
+                      int nextStopIndex, long timeMillis) {
+        fixCount++;
+        if (latest != null) {
+            addBreadcrumb(latest);
+        }
+        latest = new Fix(latitude, longitude, speed, distanceAlongRoute, nextStopIndex, timeMillis);
+        scheduleFlush();
+    }
+
+    /**
+     * Uploads any pending fixes now, ignoring the cadence but not an upload already in flight.
+     * Used when tracking stops.
+     */
+    public void flush() {
+        scheduler.removeCallbacks(flushTask);
+        flushScheduled = false;
+        upload();
+    }
+
+    /**
+     * Drops pending fixes and scheduled uploads. An upload already in flight still completes.
+     */
+    public void stop() {
+        scheduler.removeCallbacks(flushTask);
+        flushScheduled = false;
+        latest = null;
+        breadcrumbs = new ArrayList<>();
+        Log.d(TAG, "Coalesced " + fixCount + " fixes into " + uploadCount + " uploads.");
+    }
+
+    private void addBreadcrumb(Fix fix) {
+        breadcrumbs.add(fix);
+        if (breadcrumbs.size() > maxBreadcrumbs) {
+            List<Fix> thinned = new ArrayList<>(maxBreadcrumbs);
+            // Keep the newest point and every other one before it.
+            for (int i = breadcrumbs.size() - 1; i >= 0; i -= 2) {
+                thinned.add(0, breadcrumbs.get(i));
+            }
+            breadcrumbs = thinned;
+        }
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled || inFlight != null || latest == null) {
+            return;
+        }
+        flushScheduled = true;
+        scheduler.postDelayed(flushTask, Math.max(0, nextUploadAt - scheduler.now()));
+    }
+
+    private void onFlushDue() {
+        flushScheduled = false;
+        upload();
+    }
+
+    private void upload() {
+        if (latest == null || inFlight != null) {
+            return;
+        }
+        if (!sink.isOnline()) {
+            onUploadFailed(null);
+            return;
+        }
+        Upload upload = new Upload(latest, breadcrumbs);
+        latest = null;
+        breadcrumbs = new ArrayList<>();
+        inFlight = upload;
+        uploadCount++;
+        sink.upload(upload, error -> {
+            inFlight = null;
+            if (error == null) {
+                consecutiveFailures = 0;
+                nextUploadAt = scheduler.now() + cadenceMillis;
+            } else {
+                restore(upload);
+                onUploadFailed(error);
+            }
+            scheduleFlush();
+        });
+    }
+
+    /**
+     * Puts the fixes of a failed upload back in front of the ones that arrived since.
+     */
+    private void restore(Upload failed) {
+        List<Fix> newer = breadcrumbs;
+        breadcrumbs = new ArrayList<>(failed.breadcrumbs);
+        if (latest == null) {
+            latest = failed.latest;
+        } else {
+            addBreadcrumb(failed.latest);
+        }
+        for (Fix fix : newer) {
+            addBreadcrumb(fix);
+        }
+    }
+
+    private void onUploadFailed(Exception error) {
+        consecutiveFailures++;
+        long backoff = Math.min(MAX_BACKOFF_MILLIS, cadenceMillis << Math.min(consecutiveFailures, 10));
+        nextUploadAt = scheduler.now() + backoff;
+        if (error == null) {
+            Log.d(TAG, "Offline; retrying upload in " + backoff / 1000 + " s.");
+        } else {
+            Log.w(TAG, "Upload failed; retrying in " + backoff / 1000 + " s.", error);
+        }
+        scheduleFlush();
+    }
+}
@@ -0,0 +1,285 @@
+package com.example.mymatauapp;
+
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.BitmapDescriptor;
+import com.google.android.gms.maps.model.BitmapDescriptorFactory;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+import com.google.android.gms.maps.model.Marker;
+import com.google.android.gms.maps.model.MarkerOptions;
+import com.google.android.gms.maps.model.Polyline;
+import com.google.android.gms.maps.model.PolylineOptions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Owns a set of map markers and polylines, such as the passenger's planned route, and keeps
+ * their handles between draws. Each draw names its objects by key between {@link #begin()} and
+ * {@link #end()}: an object drawn under the same key as last time is updated in place, and only
+ * when something about it changed; objects are only added for new keys and removed for keys
+ * that were not drawn again. The map is never cleared, so other layers such as the matatu
+ * markers are left alone.
+ *
+ * A line drawn from {@link PolylineLevels} is shown at the level of detail for the camera and
+ * only near the visible region; {@link #setCamera} redraws such lines, in place, as the camera
+ * moves.
+ *
+ * Used on the main thread.
+ */
+public class MapOverlayLayer {
+
+    private static final float LINE_WIDTH = 10f;
+
+    /**
+     * A line's polylines, one per run of it on screen, with what they were last drawn with.
+     */
+    private static class Line {
+        final List<Polyline> parts = new ArrayList<>();
+        final List<List<LatLng>> runs = new ArrayList<>();
+        // Where the runs come from, or null for a line of fixed points.
+        PolylineLevels levels;
+        int color;
+    }
+
+    /** A marker's handle with what it was last drawn with. */
+    private static class Pin {
+        final Marker marker;
+        LatLng position;
+        String title;
+        float hue;
+
+        Pin(Marker marker, LatLng position, String title, float hue) {
+            this.marker = marker;
+            this.position = position;
+            this.title = title;
+            this.hue = hue;
+        }
+    }
+
+    private final GoogleMap map;
+    private final Map<String, Line> lines = new HashMap<>();
+    private final Map<String, Pin> pins = new HashMap<>();
+    // The keys drawn since begin().
+    private final Set<String> drawn = new HashSet<>();
+    // Marker icons by hue; each defaultMarker call otherwise makes a new bitmap.
+    private final Map<Float, BitmapDescriptor> icons = new HashMap<>();
+    // The camera that lines with levels of detail are drawn for; NaN and null until known.
+    private double zoom = Double.NaN;
+    private LatLngBounds visible;
+    private int added;
+    private int updated;
+    private int removed;
+
+    public MapOverlayLayer(GoogleMap map) {
+        this.map = map;
+    }
+
+    /**
+     * Starts a draw. Objects not drawn again before {@link #end()} are removed then.
+     */
+    public void begin() {
+        drawn.clear();
+    }
+
+    /**
+     * Draws a polyline of the layer's width under the given key.
+     * @param points The line's points; the list is copied.
+     */
+    public void polyline(String key, List<LatLng> points, int color) {
+        Line line = line(key);
+        line.levels = null;
+        draw(line, Collections.singletonList(points), color);
+    }
+
+    /**
+     * Draws a line at the level of detail for the camera under the given key.
+     */
+    public void polyline(String key, PolylineLevels levels, int color) {
+        Line line = line(key);
+        line.levels = levels;
+        draw(line, levels.visibleRuns(zoom, visible), color);
+    }
+
+    /**
+     * Redraws the lines drawn with levels of detail for a new camera position.
+     * @param zoom The camera zoom.
+     * @param visible The region on screen.
+     */
+    public void setCamera(double zoom, LatLngBounds visible) {
+        this.zoom = zoom;
+        this.visible = visible;
+        for (Line line : lines.values()) {
+            if (line.levels != null) {
+                draw(line, line.levels.visibleRuns(zoom, visible), line.color);
+            }
+        }
+    }
+
+    private Line line(String key) {
+        drawn.add(key);
+        Line line = lines.get(key);
+        if (line == null) {
+            line = new Line();
+            lines.put(key, line);
+        }
+        return line;
+    }
+
+    /**
+     * Brings a line's polylines in line with its runs, reusing the ones it has.
+     */
+    private void draw(Line line, List<List<LatLng>> runs, int color) {
+        int reused = Math.min(runs.size(), line.parts.size());
+        for (int i = 0; i < reused; i++) {
+            Polyline polyline = line.parts.get(i);
+            boolean changed = false;
+            // Comparing our own copy is cheaper than Polyline.getPoints, which crosses into the map.
+            if (!line.runs.get(i).equals(runs.get(i))) {
+                List<LatLng> points = new ArrayList<>(runs.get(i));
+                line.runs.set(i, points);
+                polyline.setPoints(points);
+                changed = true;
+            }
+            if (line.color != color) {
+                polyline.setColor(color);
+                changed = true;
+            }
+            if (changed) {
+                updated++;
+            }
+        }
+        line.color = color;
+        for (int i = reused; i < runs.size(); i++) {
+            Polyline polyline = map.addPolyline(new PolylineOptions()
+                    .addAll(runs.get(i))
+                    .width(LINE_WIDTH)
+                    .color(color)
+                    .geodesic(true));
+            if (polyline == null) {
+                break;
+            }
+            line.parts.add(polyline);
+            line.runs.add(new ArrayList<>(runs.get(i)));
+            added++;
+        }
+        while (line.parts.size() > runs.size()) {
+            remove(line, line.parts.size() - 1);
+        }
+    }
+
+    private void remove(Line line, int part) {
+        line.parts.remove(part).remove();
+        line.runs.remove(part);
+        removed++;
+    }
+
+    /**
+     * Draws a default map pin of the given hue under the given key.
+     * @param hue One of the {@link BitmapDescriptorFactory} hues.
+     */
+    public void marker(String key, LatLng position, String title, float hue) {
+        drawn.add(key);
+        Pin pin = pins.get(key);
+        if (pin == null) {
+            Marker marker = map.addMarker(new MarkerOptions()
+                    .position(position)
+                    .title(title)
+                    .icon(icon(hue)));
+            if (marker != null) {
+                pins.put(key, new Pin(marker, position, title, hue));
+                added++;
+            }
+            return;
+        }
+        boolean changed = false;
+        if (!pin.position.equals(position)) {
+            pin.position = position;
+            pin.marker.setPosition(position);
+            changed = true;
+        }
+        if (!Objects.equals(pin.title, title)) {
+            pin.title = title;
+            pin.marker.setTitle(title);
+            changed = true;
+        }
+        if (pin.hue != hue) {
+            pin.hue = hue;
+            pin.marker.setIcon(icon(hue));
+            changed = true;
+        }
+        if (changed) {
+            updated++;
+        }
+    }
+
+    /**
+     * Ends a draw, removing the objects it did not draw.
+     */
+    public void end() {
+        Iterator<Map.Entry<String, Line>> lineIterator = lines.entrySet().iterator();
+        while (lineIterator.hasNext()) {
+            Map.Entry<String, Line> entry = lineIterator.next();
+            if (!drawn.contains(entry.getKey())) {
+                Line line = entry.getValue();
+                while (!line.parts.isEmpty()) {
+                    remove(line, line.parts.size() - 1);
+                }
+                lineIterator.remove();
+            }
+        }
+        Iterator<Map.Entry<String, Pin>> pinIterator = pins.entrySet().iterator();
+        while (pinIterator.hasNext()) {
+            Map.Entry<String, Pin> entry = pinIterator.next();
+            if (!drawn.contains(entry.getKey())) {
+                entry.getValue().marker.remove();
+                pinIterator.remove();
+                removed++;
+            }
+        }
+        drawn.clear();
+    }
+
+    /**
+     * Removes every object, as an empty draw would.
+     */
+    public void clear() {
+        begin();
+        end();
+    }
+
+    /**
+     * Returns whether the layer shows nothing.
+     */
+    public boolean isEmpty() {
+        return lines.isEmpty() && pins.isEmpty();
+    }
+
+    private BitmapDescriptor icon(float hue) {
+        BitmapDescriptor icon = icons.get(hue);
+        if (icon == null) {
+            icon = BitmapDescriptorFactory.defaultMarker(hue);
+            icons.put(hue, icon);
+        }
+        return icon;
+    }
+
+    /**
+     * Returns how many objects the layer has added, updated in place and removed, for the logs.
+     */
+    public String stats() {
+        int objects = pins.size();
+        for (Line line : lines.values()) {
+            objects += line.parts.size();
+        }
+        return "Map overlay: " + objects + " objects; " + added + " added, "
+                + updated + " updated in place, " + removed + " removed";
+    }
+}
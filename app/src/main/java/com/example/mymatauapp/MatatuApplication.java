@@ -0,0 +1,19 @@
+package com.example.mymatauapp;
+
+import android.app.Application;
+
+/**
+ * The application class. It starts process-wide work that every screen depends on, such as
+ * building the route graph and mapping the place gazetteer, as early as possible.
+ */
+public class MatatuApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        // Build the route graph and map the gazetteer in the background while the first
+        // activity starts.
+        RouteGraph.warmUp(this);
+        GazetteerLoader.get(this);
+    }
+}
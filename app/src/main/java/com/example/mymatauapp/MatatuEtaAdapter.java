@@ -0,0 +1,85 @@
+package com.example.mymatauapp;
+
+import android.content.Context;
+import android.graphics.Color;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListAdapter;
+import androidx.recyclerview.widget.RecyclerView;
+
+/**
+ * Shows the passenger dashboard's matatus, one VehicleBoard row each.
+ * Rows are diffed off the main thread by ListAdapter, so an update only rebinds the matatus
+ * whose rows changed and moves the ones whose order changed. A row's minutes to arrival are
+ * part of it, so as the board advances, only the rows whose minutes tick over are rebound.
+ */
+public class MatatuEtaAdapter extends ListAdapter<VehicleBoard.Row, MatatuEtaAdapter.MatatuViewHolder> {
+
+    private static final DiffUtil.ItemCallback<VehicleBoard.Row> DIFF = new DiffUtil.ItemCallback<VehicleBoard.Row>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull VehicleBoard.Row oldRow, @NonNull VehicleBoard.Row newRow) {
+            return oldRow.getTripId().equals(newRow.getTripId());
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull VehicleBoard.Row oldRow, @NonNull VehicleBoard.Row newRow) {
+            return oldRow.equals(newRow);
+        }
+    };
+
+    public MatatuEtaAdapter() {
+        super(DIFF);
+    }
+
+    @NonNull
+    @Override
+    public MatatuViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        Context context = parent.getContext();
+
+        // A LinearLayout holding the matatu's text and a separator line, as in PlacesAdapter.
+        LinearLayout container = new LinearLayout(context);
+        container.setOrientation(LinearLayout.VERTICAL);
+        container.setLayoutParams(new RecyclerView.LayoutParams(
+                ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT));
+
+        TextView textView = new TextView(context);
+        textView.setPadding(16, 12, 16, 12);
+        textView.setTextSize(16);
+        textView.setTextColor(Color.BLACK);
+
+        View separator = new View(context);
+        separator.setLayoutParams(new LinearLayout.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, 2));
+        separator.setBackgroundColor(Color.parseColor("#E0E0E0"));
+
+        container.addView(textView);
+        container.addView(separator);
+        return new MatatuViewHolder(container);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull MatatuViewHolder holder, int position) {
+        holder.bind(getItem(position));
+    }
+
+    static class MatatuViewHolder extends RecyclerView.ViewHolder {
+        private final TextView textView;
+
+        MatatuViewHolder(@NonNull View itemView) {
+            super(itemView);
+            this.textView = (TextView) ((ViewGroup) itemView).getChildAt(0);
+        }
+
+        void bind(VehicleBoard.Row row) {
+            if (row.hasPassed()) {
+                textView.setText("Matatu: " + row.getMatatuId() + "\nAlready passed you");
+            } else {
+                textView.setText("Matatu: " + row.getMatatuId() + "\nETA: " + row.getEtaMinutes() + " mins");
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.example.mymatauapp;
+
+import android.animation.ValueAnimator;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.view.animation.LinearInterpolator;
+
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.BitmapDescriptor;
+import com.google.android.gms.maps.model.BitmapDescriptorFactory;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.Marker;
+import com.google.android.gms.maps.model.MarkerOptions;
+import com.google.maps.android.SphericalUtil;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the map markers for the matatus on the passenger dashboard. Matatus that would overlap
+ * at the camera's zoom, such as a queue at a stage, share one marker with their count (see
+ * VehicleClusterer); a matatu on its own has a pin with its registration. A lone matatu that moves has its pin glide to the new position. Markers are
+ * only added, changed or removed for the clusters a snapshot touched, never cleared and
+ * re-added wholesale.
+ *
+ * Used on the main thread.
+ */
+public class MatatuMarkers implements VehicleClusterer.Listener {
+
+    private static final long MOVE_MILLIS = 1000;
+    private static final float CLUSTER_DIAMETER_DP = 36;
+
+    private final GoogleMap map;
+    private final VehicleClusterer clusterer;
+    // The markers and what they show, by cluster key.
+    private final Map<Long, Marker> markers = new HashMap<>();
+    private final Map<Long, VehicleClusterer.Cluster> shown = new HashMap<>();
+    private final Map<Long, ValueAnimator> moves = new HashMap<>();
+    private final Map<String, String> matatuIds = new HashMap<>();
+    // Cluster badges by count and whether all are full.
+    private final Map<String, BitmapDescriptor> badges = new HashMap<>();
+    private BitmapDescriptor icon;
+
+    public MatatuMarkers(GoogleMap map) {
+        this.map = map;
+        this.clusterer = new VehicleClusterer((int) map.getCameraPosition().zoom);
+    }
+
+    /**
+     * Brings the markers in line with the dashboard's rows, at their predicted positions. Called
+     * on every dashboard tick, so a moving matatu's pin glides along between publishes.
+     */
+    public void update(List<VehicleBoard.Row> rows) {
+        Set<String> gone = clusterer.getIds();
+        for (VehicleBoard.Row row : rows) {
+            gone.remove(row.getTripId());
+            matatuIds.put(row.getTripId(), row.getMatatuId());
+            // Where the matatu is predicted to be now, not where it last published.
+            LatLng position = row.getPosition();
+            // The trips listened to are the available ones; full ones are not sent to passengers,
+            // so a cluster's snippet is only ever "N available".
+            clusterer.update(row.getTripId(), position.latitude, position.longitude, false);
+        }
+        for (String tripId : gone) {
+            clusterer.remove(tripId);
+            matatuIds.remove(tripId);
+        }
+        clusterer.flush(this);
+    }
+
+    /**
+     * Regroups the matatus for the camera's zoom; markers change only when the zoom level does.
+     */
+    public void setZoom(float zoom) {
+        clusterer.setZoom((int) zoom);
+        clusterer.flush(this);
+    }
+
+    @Override
+    public void onClusterChanged(VehicleClusterer.Cluster cluster) {
+        LatLng position = new LatLng(cluster.getLatitude(), cluster.getLongitude());
+        String title = cluster.getOnlyId() != null ? matatuIds.get(cluster.getOnlyId())
+                : cluster.getSize() + " matatus";
+        String snippet = cluster.getOnlyId() != null ? null : cluster.getLabel();
+        Marker marker = markers.get(cluster.getKey());
+        if (marker == null) {
+            marker = map.addMarker(new MarkerOptions().position(position).icon(iconFor(cluster))
+                    .title(title).snippet(snippet));
+            if (marker != null) {
+                markers.put(cluster.getKey(), marker);
+                shown.put(cluster.getKey(), cluster);
+            }
+            return;
+        }
+        VehicleClusterer.Cluster previous = shown.put(cluster.getKey(), cluster);
+        boolean sameMatatu = cluster.getOnlyId() != null && cluster.getOnlyId().equals(previous.getOnlyId());
+        if (!sameMatatu || cluster.getFull() != previous.getFull()) {
+            marker.setIcon(iconFor(cluster));
+            marker.setTitle(title);
+            marker.setSnippet(snippet);
+        }
+        if (previous.getLatitude() != cluster.getLatitude() || previous.getLongitude() != cluster.getLongitude()) {
+            if (sameMatatu) {
+                move(cluster.getKey(), marker, position);
+            } else {
+                // A cluster gained or lost matatus; its centre jumps rather than glides.
+                cancelMove(cluster.getKey());
+                marker.setPosition(position);
+            }
+        }
+    }
+
+    @Override
+    public void onClusterRemoved(long key) {
+        cancelMove(key);
+        shown.remove(key);
+        Marker marker = markers.remove(key);
+        if (marker != null) {
+            marker.remove();
+        }
+    }
+
+    private BitmapDescriptor iconFor(VehicleClusterer.Cluster cluster) {
+        if (cluster.getOnlyId() != null) {
+            if (icon == null) {
+                icon = BitmapDescriptorFactory.defaultMarker(BitmapDescriptorFactory.HUE_ORANGE);
+            }
+            return icon;
+        }
+        boolean allFull = cluster.getAvailable() == 0;
+        String key = cluster.getSize() + (allFull ? " full" : "");
+        BitmapDescriptor badge = badges.get(key);
+        if (badge == null) {
+            badge = BitmapDescriptorFactory.fromBitmap(drawBadge(String.valueOf(cluster.getSize()),
+                    allFull ? Color.rgb(198, 40, 40) : Color.rgb(239, 108, 0)));
+            badges.put(key, badge);
+        }
+        return badge;
+    }
+
+    /**
+     * Draws a cluster's badge: its count on a filled circle.
+     */
+    private static Bitmap drawBadge(String text, int color) {
+        int size = Math.round(CLUSTER_DIAMETER_DP * Resources.getSystem().getDisplayMetrics().density);
+        Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setColor(Color.WHITE);
+        canvas.drawCircle(size / 2f, size / 2f, size / 2f, paint);
+        paint.setColor(color);
+        canvas.drawCircle(size / 2f, size / 2f, size / 2f - size / 12f, paint);
+        paint.setColor(Color.WHITE);
+        paint.setTextAlign(Paint.Align.CENTER);
+        paint.setFakeBoldText(true);
+        paint.setTextSize(size * (text.length() > 2 ? 0.33f : 0.42f));
+        float baseline = size / 2f - (paint.descent() + paint.ascent()) / 2;
+        canvas.drawText(text, size / 2f, baseline, paint);
+        return bitmap;
+    }
+
+    private void move(long key, Marker marker, LatLng to) {
+        // A move still running starts the next one from wherever the marker has got to.
+        cancelMove(key);
+        LatLng from = marker.getPosition();
+        ValueAnimator animator = ValueAnimator.ofFloat(0, 1);
+        animator.setDuration(MOVE_MILLIS);
+        animator.setInterpolator(new LinearInterpolator());
+        animator.addUpdateListener(animation ->
+                marker.setPosition(SphericalUtil.interpolate(from, to, animation.getAnimatedFraction())));
+        moves.put(key, animator);
+        animator.start();
+    }
+
+    private void cancelMove(long key) {
+        ValueAnimator animator = moves.remove(key);
+        if (animator != null) {
+            animator.cancel();
+        }
+    }
+
+    /**
+     * Removes every marker.
+     */
+    public void clear() {
+        for (String tripId : clusterer.getIds()) {
+            clusterer.remove(tripId);
+        }
+        matatuIds.clear();
+        clusterer.flush(this);
+    }
+
+    /**
+     * @return How the matatus are grouped, for the logs.
+     */
+    public String stats() {
+        return clusterer.stats() + "; " + markers.size() + " markers";
+    }
+}
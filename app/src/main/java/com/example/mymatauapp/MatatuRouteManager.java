@@ -1,7 +1,6 @@
 package com.example.mymatauapp;
 
 import com.google.android.gms.maps.model.LatLng;
-import com.google.maps.android.SphericalUtil;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -9,63 +8,38 @@ import java.util.Map;
 
 /**
  * Manages all the matatu route data for the application.
- * This file contains real-world coordinates for the Roysambu to Nairobi route.
+ * The routes come from the compiled network file generated at build time from the CSV
+ * sources in src/main/routes (see RouteNetworkFile and RouteNetworkLoader).
  */
 public class MatatuRouteManager {
 
-    private final Map<String, List<LatLng>> allRoutes;
-    private final List<LatLng> allStops;
+    private final RouteNetwork network;
+    private final StopSpatialIndex stopIndex;
+    private final StopRouteIndex stopRouteIndex;
+    private JourneyPlanner journeyPlanner;
+    private final Map<Integer, RoutePolyline> polylines = new HashMap<>();
     private static final double ROUTE_TOLERANCE = 100.0; // 100 meters tolerance for matching stops
 
-    public MatatuRouteManager() {
-        this.allRoutes = new HashMap<>();
-        this.allStops = new ArrayList<>();
-        initializeRoutes();
-        initializeStops();
-    }
-
     /**
-     * Initializes a hard-coded list of popular matatu routes with their coordinates.
-     * The Roysambu to Nairobi Town route has been updated with the provided real coordinates.
+     * Creates a manager over a loaded network file, using its precomputed indexes if present.
+     * @param file The mapped network file.
      */
-    private void initializeRoutes() {
-        // Detailed Royambu to Nairobi Town (Odeon) route with real coordinates
-        List<LatLng> royambuToNairobi = new ArrayList<>();
-        royambuToNairobi.add(new LatLng(-1.22039, 23.89101)); // Roysambu
-        royambuToNairobi.add(new LatLng(-1.22593, 36.88504)); // Safari Park Hotel
-        royambuToNairobi.add(new LatLng(-1.23038, 36.87896)); // Garden City Mall
-        royambuToNairobi.add(new LatLng(-1.23456, 36.87397)); // Mountain Mall
-        royambuToNairobi.add(new LatLng(-1.24411, 36.86805)); // AllSops
-        royambuToNairobi.add(new LatLng(-1.24872, 36.86352)); // Drive In
-        royambuToNairobi.add(new LatLng(-1.25338, 36.85902)); // KCA University
-        royambuToNairobi.add(new LatLng(-1.26038, 36.84358)); // Muthaiga
-        royambuToNairobi.add(new LatLng(-1.26399, 36.83721)); // Pangani
-        royambuToNairobi.add(new LatLng(-1.27465, 36.82437)); // Ngara
-        royambuToNairobi.add(new LatLng(-1.28329, 36.82475)); // Odeon (Nairobi Town)
-        allRoutes.put("Roysambu to Nairobi Town", royambuToNairobi);
-
-        // CBD to Rongai route
-        // This route still uses placeholder data.
-        List<LatLng> cbdToRongai = new ArrayList<>();
-        cbdToRongai.add(new LatLng(-1.2889, 36.8208)); // CBD
-        cbdToRongai.add(new LatLng(-1.3000, 36.8150)); // Lang'ata
-        cbdToRongai.add(new LatLng(-1.3200, 36.7900)); // Galleria
-        cbdToRongai.add(new LatLng(-1.3500, 36.7700)); // Kiserian Road
-        cbdToRongai.add(new LatLng(-1.3800, 36.7600)); // Rongai
-        allRoutes.put("CBD to Rongai", cbdToRongai);
+    public MatatuRouteManager(RouteNetworkFile file) {
+        this(file.getNetwork(), file.getStopRouteIndex());
     }
 
     /**
-     * Initializes a hard-coded list of all matatu stops by collecting them from all routes.
+     * Creates a manager over a network that was built in memory.
+     * @param network The network to query.
      */
-    private void initializeStops() {
-        for (List<LatLng> route : allRoutes.values()) {
-            for (LatLng stop : route) {
-                if (!allStops.contains(stop)) {
-                    allStops.add(stop);
-                }
-            }
-        }
+    public MatatuRouteManager(RouteNetwork network) {
+        this(network, null);
+    }
+
+    private MatatuRouteManager(RouteNetwork network, StopRouteIndex stopRouteIndex) {
+        this.network = network;
+        this.stopIndex = new StopSpatialIndex(network);
+        this.stopRouteIndex = stopRouteIndex != null ? stopRouteIndex : new StopRouteIndex(network);
     }
 
     /**
@@ -74,17 +48,17 @@ public class MatatuRouteManager {
      * @return The LatLng of the nearest stop, or null if no stops are available.
      */
     public LatLng findNearestStop(LatLng location) {
-        LatLng nearestStop = null;
-        double minDistance = Double.MAX_VALUE;
-
-        for (LatLng stop : allStops) {
-            double distance = SphericalUtil.computeDistanceBetween(location, stop);
-            if (distance < minDistance) {
-                minDistance = distance;
-                nearestStop = stop;
-            }
-        }
-        return nearestStop;
+        return stopIndex.nearest(location);
+    }
+
+    /**
+     * Finds the k matatu stops closest to a given location.
+     * @param location The current location.
+     * @param k The maximum number of stops to return.
+     * @return Up to k stops, nearest first.
+     */
+    public List<LatLng> findNearestStops(LatLng location, int k) {
+        return stopIndex.kNearest(location, k);
     }
 
     /**
@@ -94,24 +68,8 @@ public class MatatuRouteManager {
      * @return A List of LatLng points representing the route, or null if no common route is found.
      */
     public List<LatLng> findRouteBetween(LatLng start, LatLng end) {
-        for (List<LatLng> route : allRoutes.values()) {
-            boolean hasStart = false;
-            boolean hasEnd = false;
-
-            for (LatLng stop : route) {
-                if (SphericalUtil.computeDistanceBetween(start, stop) < ROUTE_TOLERANCE) {
-                    hasStart = true;
-                }
-                if (SphericalUtil.computeDistanceBetween(end, stop) < ROUTE_TOLERANCE) {
-                    hasEnd = true;
-                }
-            }
-
-            if (hasStart && hasEnd) {
-                return route;
-            }
-        }
-        return null;
+        RouteMatch match = matchRoute(start, end);
+        return match == null ? null : routePoints(match.route, 0, network.routeLength(match.route));
     }
 
     /**
@@ -122,26 +80,131 @@ public class MatatuRouteManager {
      * or an empty list if no route or waypoints are found.
      */
     public List<LatLng> getWaypointsBetween(LatLng start, LatLng end) {
-        List<LatLng> waypoints = new ArrayList<>();
-        List<LatLng> route = findRouteBetween(start, end);
+        RouteMatch match = matchRoute(start, end);
+        if (match == null || match.startPosition >= match.endPosition) {
+            return new ArrayList<>();
+        }
+        return routePoints(match.route, match.startPosition + 1, match.endPosition);
+    }
 
-        if (route != null && route.size() > 1) {
-            int startIndex = -1;
-            int endIndex = -1;
+    /**
+     * @return The stops of a route between two positions, as a new list.
+     */
+    private List<LatLng> routePoints(int route, int fromPosition, int toPosition) {
+        List<LatLng> points = new ArrayList<>(toPosition - fromPosition);
+        for (int p = fromPosition; p < toPosition; p++) {
+            points.add(stopIndex.stopAt(network.routeStop(route, p)));
+        }
+        return points;
+    }
 
-            for (int i = 0; i < route.size(); i++) {
-                if (SphericalUtil.computeDistanceBetween(start, route.get(i)) < ROUTE_TOLERANCE) {
-                    startIndex = i;
-                }
-                if (SphericalUtil.computeDistanceBetween(end, route.get(i)) < ROUTE_TOLERANCE) {
-                    endIndex = i;
+    /**
+     * Returns a route's stops as a polyline, for measuring progress along it. Polylines are
+     * built on first use and kept.
+     * @param routeName The route's name, as in the network.
+     * @return The route's polyline, or null if the network has no stops for a route of that name.
+     */
+    public synchronized RoutePolyline getRoutePolyline(String routeName) {
+        int route = network.findRoute(routeName);
+        if (route < 0 || network.routeLength(route) == 0) {
+            return null;
+        }
+        RoutePolyline polyline = polylines.get(route);
+        if (polyline == null) {
+            polyline = new RoutePolyline(routePoints(route, 0, network.routeLength(route)));
+            polylines.put(route, polyline);
+        }
+        return polyline;
+    }
+
+    /**
+     * @return The packed route store behind this manager.
+     */
+    public RouteNetwork getNetwork() {
+        return network;
+    }
+
+    /**
+     * Plans journeys between two points that may change matatus and walk between stages.
+     * The planner is built on first use.
+     * @param origin The starting point of the journey.
+     * @param destination The final destination.
+     * @return The Pareto-optimal journeys by arrival time and transfers, fewest transfers first.
+     */
+    public List<Journey> planJourney(LatLng origin, LatLng destination) {
+        return getJourneyPlanner().plan(origin, destination);
+    }
+
+    /**
+     * Builds the parts of the manager that are otherwise created on first use, such as the
+     * journey planner. Call this off the main thread.
+     */
+    public void warmUp() {
+        getJourneyPlanner();
+    }
+
+    private synchronized JourneyPlanner getJourneyPlanner() {
+        if (journeyPlanner == null) {
+            journeyPlanner = new JourneyPlanner(network, stopIndex, stopRouteIndex);
+        }
+        return journeyPlanner;
+    }
+
+    /**
+     * Finds a route serving stops within ROUTE_TOLERANCE of both points, using the stop-to-route
+     * index: the routes near the start are intersected with the routes near the end.
+     * A route that runs from start to end is preferred over one that only passes both.
+     * @return The matched route and the positions of the start and end on it, or null.
+     */
+    private RouteMatch matchRoute(LatLng start, LatLng end) {
+        // Route index -> last position on that route of any stop near the start.
+        Map<Integer, Integer> startPositions = new HashMap<>();
+        for (int stop : stopIndex.withinRadiusIndices(start, ROUTE_TOLERANCE)) {
+            for (int e = stopRouteIndex.entriesStart(stop); e < stopRouteIndex.entriesEnd(stop); e++) {
+                startPositions.merge(stopRouteIndex.entryRoute(e), stopRouteIndex.entryPosition(e), Math::max);
+            }
+        }
+        if (startPositions.isEmpty()) {
+            return null;
+        }
+
+        // Route index -> last position on that route of any stop near the end.
+        Map<Integer, Integer> endPositions = new HashMap<>();
+        for (int stop : stopIndex.withinRadiusIndices(end, ROUTE_TOLERANCE)) {
+            for (int e = stopRouteIndex.entriesStart(stop); e < stopRouteIndex.entriesEnd(stop); e++) {
+                int route = stopRouteIndex.entryRoute(e);
+                if (startPositions.containsKey(route)) {
+                    endPositions.merge(route, stopRouteIndex.entryPosition(e), Math::max);
                 }
             }
+        }
 
-            if (startIndex != -1 && endIndex != -1 && startIndex < endIndex) {
-                waypoints = route.subList(startIndex + 1, endIndex);
+        RouteMatch fallback = null;
+        for (Map.Entry<Integer, Integer> entry : endPositions.entrySet()) {
+            int route = entry.getKey();
+            RouteMatch match = new RouteMatch(route, startPositions.get(route), entry.getValue());
+            if (match.startPosition < match.endPosition) {
+                return match;
+            }
+            if (fallback == null) {
+                fallback = match;
             }
         }
-        return waypoints;
+        return fallback;
+    }
+
+    /**
+     * A route together with the positions of a matched start and end stop on it.
+     */
+    private static class RouteMatch {
+        final int route;
+        final int startPosition;
+        final int endPosition;
+
+        RouteMatch(int route, int startPosition, int endPosition) {
+            this.route = route;
+            this.startPosition = startPosition;
+            this.endPosition = endPosition;
+        }
     }
 }
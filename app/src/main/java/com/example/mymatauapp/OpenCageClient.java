@@ -0,0 +1,63 @@
+package com.example.mymatauapp;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * A small client for the OpenCage Geocoding API.
+ * All requests share one OkHttpClient, so connections (and their TLS sessions) are pooled
+ * and reused between keystrokes instead of being opened for every search.
+ */
+public class OpenCageClient {
+
+    private static final String OPENCAGE_API_KEY = "209a7174081e413aab7025cb858d2883";
+    private static final String GEOCODE_URL = "https://api.opencagedata.com/geocode/v1/json";
+    // The most suggestions the search list shows.
+    private static final int RESULT_LIMIT = 8;
+
+    private static final OkHttpClient HTTP_CLIENT = new OkHttpClient.Builder()
+            .connectTimeout(10, TimeUnit.SECONDS)
+            .readTimeout(10, TimeUnit.SECONDS)
+            .build();
+
+    /**
+     * Creates a search request. The returned call can be cancelled from any thread.
+     * @param query The text the user typed.
+     * @return A call that has not been started yet.
+     */
+    public Call newSearchCall(String query) {
+        HttpUrl url = HttpUrl.get(GEOCODE_URL).newBuilder()
+                .addQueryParameter("q", query)
+                .addQueryParameter("key", OPENCAGE_API_KEY)
+                .addQueryParameter("limit", String.valueOf(RESULT_LIMIT))
+                // Annotations (timezone, currency, sun times...) are most of each result and unused.
+                .addQueryParameter("no_annotations", "1")
+                .build();
+        return HTTP_CLIENT.newCall(new Request.Builder().url(url).get().build());
+    }
+
+    /**
+     * Runs a search call on the current thread and parses the results.
+     * @param call A call from newSearchCall.
+     * @return The places found.
+     * @throws IOException On network or API errors, including the call being cancelled.
+     */
+    public List<PlaceResult> execute(Call call) throws IOException {
+        try (Response response = call.execute()) {
+            ResponseBody body = response.body();
+            if (!response.isSuccessful() || body == null) {
+                throw new IOException("API call failed with response code: " + response.code());
+            }
+            // Parse as the bytes arrive instead of buffering the whole body first.
+            return OpenCageResponseParser.parse(body.charStream());
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.example.mymatauapp;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads place results straight out of an OpenCage geocoding response stream.
+ * Only results[].formatted and results[].geometry are read; everything else (annotations,
+ * components, bounds, licences, rate limits) is skipped as it streams past.
+ */
+public class OpenCageResponseParser {
+
+    /**
+     * @param in The response body. It is read to the end of the top-level object but not closed.
+     * @return The places in the response, in the order OpenCage ranked them. Results without
+     * a name or coordinates are left out.
+     * @throws IOException If the stream cannot be read or is not a valid response.
+     */
+    public static List<PlaceResult> parse(Reader in) throws IOException {
+        JsonPullParser parser = new JsonPullParser(in);
+        List<PlaceResult> results = new ArrayList<>();
+        parser.beginObject();
+        while (parser.hasNext()) {
+            if (parser.nextName().equals("results")) {
+                parser.beginArray();
+                while (parser.hasNext()) {
+                    PlaceResult result = parseResult(parser);
+                    if (result != null) {
+                        results.add(result);
+                    }
+                }
+                parser.endArray();
+            } else {
+                parser.skipValue();
+            }
+        }
+        parser.endObject();
+        return results;
+    }
+
+    private static PlaceResult parseResult(JsonPullParser parser) throws IOException {
+        String formatted = null;
+        double lat = Double.NaN;
+        double lng = Double.NaN;
+        parser.beginObject();
+        while (parser.hasNext()) {
+            String name = parser.nextName();
+            if (name.equals("formatted")) {
+                formatted = parser.nextString();
+            } else if (name.equals("geometry")) {
+                parser.beginObject();
+                while (parser.hasNext()) {
+                    String coordinate = parser.nextName();
+                    if (coordinate.equals("lat")) {
+                        lat = parser.nextDouble();
+                    } else if (coordinate.equals("lng")) {
+                        lng = parser.nextDouble();
+                    } else {
+                        parser.skipValue();
+                    }
+                }
+                parser.endObject();
+            } else {
+                parser.skipValue();
+            }
+        }
+        parser.endObject();
+        if (formatted == null || Double.isNaN(lat) || Double.isNaN(lng)) {
+            return null;
+        }
+        return new PlaceResult(formatted, lat, lng);
+    }
+}
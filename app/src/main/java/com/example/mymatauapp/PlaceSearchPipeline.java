@@ -0,0 +1,160 @@
+package com.example.mymatauapp;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+
+/**
+ * Turns keystrokes in the destination box into place searches.
+ * - The on-device gazetteer is searched first, on every keystroke. The network is only used
+ *   when it has no match.
+ * - Keystrokes are debounced, so a search only starts once the user pauses typing.
+ * - A new query cancels the pending and in-flight search for the previous one.
+ * - Every query gets a sequence number, and results for anything but the latest are dropped,
+ *   so a slow old response can never overwrite a newer one.
+ * - Searches run on one small shared executor instead of a new thread per keystroke.
+ * - Results are cached. Queries that memory can answer are delivered at once, without the
+ *   debounce; disk hits skip the network.
+ * All public methods must be called on the main thread; results are delivered there too.
+ */
+public class PlaceSearchPipeline {
+
+    private static final String TAG = "PlaceSearchPipeline";
+    private static final long DEBOUNCE_MILLIS = 300;
+    private static final int LOCAL_RESULT_LIMIT = 8;
+
+    // Shared by every pipeline. One thread is enough because only the latest query matters;
+    // the queue holds at most one waiting search and older waiting searches are discarded.
+    private static final ExecutorService SEARCH_EXECUTOR = createExecutor();
+
+    /**
+     * Receives the results of the latest query.
+     */
+    public interface Listener {
+        void onResults(String query, List<PlaceResult> results);
+    }
+
+    private final CompletableFuture<Gazetteer> gazetteer;
+    private final OpenCageClient client;
+    private final GeocodeCache cache;
+    private final Listener listener;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private long latestSequence;
+    private Runnable pendingSearch;
+    private Future<?> runningSearch;
+    private Call runningCall;
+
+    /**
+     * @param gazetteer The offline gazetteer. Until it is loaded, or if it completes with null,
+     * every query goes to the cache and the network.
+     */
+    public PlaceSearchPipeline(CompletableFuture<Gazetteer> gazetteer, OpenCageClient client,
+                               GeocodeCache cache, Listener listener) {
+        this.gazetteer = gazetteer;
+        this.client = client;
+        this.cache = cache;
+        this.listener = listener;
+    }
+
+    private static ExecutorService createExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(1),
+                runnable -> new Thread(runnable, "PlaceSearch"),
+                new ThreadPoolExecutor.DiscardOldestPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Schedules a search for the given query, replacing any earlier one.
+     * @param query The current text of the search box.
+     */
+    public void onQueryChanged(String query) {
+        cancel();
+        Gazetteer local = gazetteer.getNow(null);
+        if (local != null) {
+            List<PlaceResult> places = local.search(query, LOCAL_RESULT_LIMIT);
+            if (!places.isEmpty()) {
+                listener.onResults(query, places);
+                return;
+            }
+        }
+        List<PlaceResult> cached = cache.getFromMemory(query);
+        if (cached != null) {
+            listener.onResults(query, cached);
+            return;
+        }
+        long sequence = latestSequence;
+        pendingSearch = () -> {
+            pendingSearch = null;
+            start(query, sequence);
+        };
+        mainHandler.postDelayed(pendingSearch, DEBOUNCE_MILLIS);
+    }
+
+    /**
+     * Cancels the pending and in-flight searches; their results will not be delivered.
+     */
+    public void cancel() {
+        latestSequence++;
+        if (pendingSearch != null) {
+            mainHandler.removeCallbacks(pendingSearch);
+            pendingSearch = null;
+        }
+        if (runningCall != null) {
+            runningCall.cancel();
+            runningCall = null;
+        }
+        if (runningSearch != null) {
+            runningSearch.cancel(false);
+            runningSearch = null;
+        }
+    }
+
+    private void start(String query, long sequence) {
+        Call call = client.newSearchCall(query);
+        runningCall = call;
+        runningSearch = SEARCH_EXECUTOR.submit(() -> {
+            List<PlaceResult> cached = cache.get(query);
+            if (cached != null) {
+                mainHandler.post(() -> deliver(query, sequence, cached));
+                return;
+            }
+            List<PlaceResult> results;
+            try {
+                results = client.execute(call);
+            } catch (IOException e) {
+                if (call.isCanceled()) {
+                    Log.d(TAG, "Search for \"" + query + "\" was cancelled.");
+                } else {
+                    Log.e(TAG, "Network error fetching OpenCage data", e);
+                }
+                return;
+            }
+            cache.put(query, results);
+            mainHandler.post(() -> deliver(query, sequence, results));
+        });
+    }
+
+    private void deliver(String query, long sequence, List<PlaceResult> results) {
+        if (sequence != latestSequence) {
+            Log.d(TAG, "Dropping stale results for \"" + query + "\".");
+            return;
+        }
+        runningCall = null;
+        runningSearch = null;
+        listener.onResults(query, results);
+    }
+}
@@ -0,0 +1,223 @@
+package com.example.mymatauapp;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A line's points at several levels of detail, so that drawing it costs about what shows on
+ * screen rather than how many points the line has. Each level is the Douglas-Peucker
+ * simplification of the line at one tolerance, from the raw points up to a kilometre; the level
+ * drawn is the coarsest whose tolerance is under a pixel at the camera's zoom, and only the
+ * parts of it near the visible region are drawn.
+ *
+ * The simplification is computed once, when the line is built: every point gets the largest
+ * tolerance at which Douglas-Peucker would keep it, and each level keeps the points above its
+ * tolerance. Distances use a local equirectangular approximation, as in RoutePolyline.
+ *
+ * Immutable, so it may be built off the main thread.
+ */
+public class PolylineLevels {
+
+    private static final double EARTH_RADIUS_METERS = 6371009;
+    // The ground resolution of a Web Mercator map at the equator at zoom 0.
+    private static final double METERS_PER_PIXEL_AT_ZOOM_0 = 156543.03392;
+    // The tolerance of each level in metres; level 0 keeps every point.
+    private static final double[] TOLERANCES = {0, 1, 4, 16, 64, 256, 1024};
+    // How far past the visible region, in screen sizes, segments are still drawn, so a short pan
+    // does not show the line's cut ends before the next camera update.
+    private static final double VIEWPORT_MARGIN = 0.5;
+
+    private final List<LatLng> points;
+    private final double latitude;
+    private final List<List<LatLng>> levels = new ArrayList<>(TOLERANCES.length);
+
+    /**
+     * @param points The line's points, in order; the list is copied.
+     */
+    public PolylineLevels(List<LatLng> points) {
+        this.points = Collections.unmodifiableList(new ArrayList<>(points));
+        this.latitude = points.isEmpty() ? 0 : points.get(0).latitude;
+        // The largest tolerance at which each point is kept; infinite for the ends.
+        double[] importance = importance(this.points, latitude);
+        levels.add(this.points);
+        for (int l = 1; l < TOLERANCES.length; l++) {
+            List<LatLng> level = new ArrayList<>();
+            for (int i = 0; i < importance.length; i++) {
+                if (importance[i] > TOLERANCES[l]) {
+                    level.add(this.points.get(i));
+                }
+            }
+            levels.add(Collections.unmodifiableList(level));
+        }
+    }
+
+    /**
+     * Computes each point's Douglas-Peucker tolerance: a point is kept at a tolerance when it
+     * is further than that from the chord of the range it splits, and its range was split too.
+     */
+    private static double[] importance(List<LatLng> points, double latitude) {
+        int n = points.size();
+        double metersPerDegreeLat = Math.toRadians(EARTH_RADIUS_METERS);
+        double metersPerDegreeLng = metersPerDegreeLat * Math.cos(Math.toRadians(latitude));
+        double[] x = new double[n];
+        double[] y = new double[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = points.get(i).longitude * metersPerDegreeLng;
+            y[i] = points.get(i).latitude * metersPerDegreeLat;
+        }
+
+        double[] importance = new double[n];
+        if (n == 0) {
+            return importance;
+        }
+        importance[0] = Double.POSITIVE_INFINITY;
+        importance[n - 1] = Double.POSITIVE_INFINITY;
+        // Ranges still to split, as first, last and the tolerance of the split that made them.
+        // An explicit stack, since a long trace would recurse thousands deep.
+        int[] firsts = new int[n];
+        int[] lasts = new int[n];
+        double[] bounds = new double[n];
+        int top = 0;
+        firsts[0] = 0;
+        lasts[0] = n - 1;
+        bounds[0] = Double.POSITIVE_INFINITY;
+        top++;
+        while (top > 0) {
+            top--;
+            int first = firsts[top];
+            int last = lasts[top];
+            double bound = bounds[top];
+            if (last - first < 2) {
+                continue;
+            }
+            int farthest = -1;
+            double farthestDistance = -1;
+            for (int i = first + 1; i < last; i++) {
+                double distance = segmentDistance(x[i], y[i], x[first], y[first], x[last], y[last]);
+                if (distance > farthestDistance) {
+                    farthest = i;
+                    farthestDistance = distance;
+                }
+            }
+            // A point can not outlast the point whose split exposed it.
+            double split = Math.min(farthestDistance, bound);
+            importance[farthest] = split;
+            firsts[top] = first;
+            lasts[top] = farthest;
+            bounds[top] = split;
+            top++;
+            firsts[top] = farthest;
+            lasts[top] = last;
+            bounds[top] = split;
+            top++;
+        }
+        return importance;
+    }
+
+    private static double segmentDistance(double px, double py, double ax, double ay, double bx, double by) {
+        double dx = bx - ax;
+        double dy = by - ay;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared == 0 ? 0 : ((px - ax) * dx + (py - ay) * dy) / lengthSquared;
+        t = Math.max(0, Math.min(1, t));
+        return Math.hypot(px - (ax + t * dx), py - (ay + t * dy));
+    }
+
+    /**
+     * @return How many points the line has before simplification.
+     */
+    public int pointCount() {
+        return points.size();
+    }
+
+    /**
+     * @return The number of levels; level 0 is the raw line.
+     */
+    public int levelCount() {
+        return levels.size();
+    }
+
+    /**
+     * @return The points of a level, which the caller must not change.
+     */
+    public List<LatLng> getLevel(int level) {
+        return levels.get(level);
+    }
+
+    /**
+     * Returns the level to draw at a camera zoom: the coarsest whose tolerance is under a pixel.
+     * @param zoom The Google Maps camera zoom, or NaN for the raw line.
+     */
+    public int levelForZoom(double zoom) {
+        if (Double.isNaN(zoom)) {
+            return 0;
+        }
+        double metersPerPixel = METERS_PER_PIXEL_AT_ZOOM_0 * Math.cos(Math.toRadians(latitude)) / Math.pow(2, zoom);
+        int level = 0;
+        while (level + 1 < TOLERANCES.length && TOLERANCES[level + 1] <= metersPerPixel) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Returns the runs of the line to draw at a camera: the level for its zoom, cut down to the
+     * segments near the visible region. A line that leaves the region and comes back is drawn as
+     * one run per visit, so nothing joins the ends across the screen.
+     * @param zoom The camera zoom, or NaN for the raw line.
+     * @param visible The visible region, or null to draw the whole line.
+     * @return The runs, each of two or more points; empty if none of the line is near the region.
+     */
+    public List<List<LatLng>> visibleRuns(double zoom, LatLngBounds visible) {
+        List<LatLng> level = levels.get(levelForZoom(zoom));
+        if (level.size() < 2) {
+            return level.isEmpty() ? Collections.emptyList() : Collections.singletonList(level);
+        }
+        if (visible == null) {
+            return Collections.singletonList(level);
+        }
+        double latMargin = (visible.northeast.latitude - visible.southwest.latitude) * VIEWPORT_MARGIN;
+        double lngMargin = (visible.northeast.longitude - visible.southwest.longitude) * VIEWPORT_MARGIN;
+        double south = visible.southwest.latitude - latMargin;
+        double north = visible.northeast.latitude + latMargin;
+        double west = visible.southwest.longitude - lngMargin;
+        double east = visible.northeast.longitude + lngMargin;
+
+        List<List<LatLng>> runs = new ArrayList<>();
+        int runStart = -1;
+        for (int i = 0; i + 1 < level.size(); i++) {
+            LatLng a = level.get(i);
+            LatLng b = level.get(i + 1);
+            // A segment whose bounding box misses the region can not cross it.
+            boolean near = Math.max(a.latitude, b.latitude) >= south && Math.min(a.latitude, b.latitude) <= north
+                    && Math.max(a.longitude, b.longitude) >= west && Math.min(a.longitude, b.longitude) <= east;
+            if (near && runStart < 0) {
+                runStart = i;
+            } else if (!near && runStart >= 0) {
+                runs.add(level.subList(runStart, i + 1));
+                runStart = -1;
+            }
+        }
+        if (runStart == 0) {
+            return Collections.singletonList(level);
+        }
+        if (runStart > 0) {
+            runs.add(level.subList(runStart, level.size()));
+        }
+        return runs;
+    }
+
+    @Override
+    public String toString() {
+        int[] sizes = new int[levels.size()];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = levels.get(i).size();
+        }
+        return "PolylineLevels" + Arrays.toString(sizes);
+    }
+}
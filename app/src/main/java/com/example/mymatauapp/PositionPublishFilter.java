@@ -0,0 +1,202 @@
+package com.example.mymatauapp;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.SphericalUtil;
+
+/**
+ * Decides which fixes are worth publishing, by dead reckoning along the route.
+ *
+ * A published position comes with the vehicle's speed along the route. Anyone reading it can
+ * extrapolate where the vehicle is now with predict, so a fix that is close to that prediction
+ * adds nothing and is not published. A fix is published when it deviates from the prediction
+ * by more than DEVIATION_METERS, or when HEARTBEAT_MILLIS have passed since the last one so
+ * readers know the trip is alive.
+ *
+ * Fixes that cannot be right are rejected before that: ones with a poor accuracy, ones older
+ * than the last fix, and jumps faster than MAX_SPEED_MPS allows (such as multipath spikes
+ * between tall buildings). If several fixes in a row are rejected as jumps, the vehicle
+ * really has moved (or the earlier fix was the bad one), and the next fix is accepted.
+ *
+ * An instance keeps the state of one trip's fixes and is used on LocationTrackingService's
+ * tracking thread only; it is not thread-safe. The static predict keeps no state, so readers
+ * such as the passenger screen call it from any thread.
+ */
+public class PositionPublishFilter {
+
+    private static final double DEVIATION_METERS = 30;
+    private static final long HEARTBEAT_MILLIS = 60000;
+    // Readers stop extrapolating after this long; a live trip publishes well before.
+    private static final long MAX_EXTRAPOLATION_MILLIS = 2 * HEARTBEAT_MILLIS;
+
+    private static final double MAX_ACCURACY_METERS = 100;
+    // About 125 km/h; RouteMatcher takes faster moves along the route as impossible too.
+    static final double MAX_SPEED_MPS = 35;
+    private static final int MAX_CONSECUTIVE_JUMPS = 3;
+    // How far each fix moves the speed along the route towards what it measured. Low, as the
+    // speed is published and extrapolated for a minute or more.
+    private static final double SPEED_SMOOTHING = 0.3;
+    // Slower than this along the route counts as standing.
+    private static final double MIN_SPEED_MPS = 0.5;
+
+    public enum Decision {
+        /** Publish the fix, with getSpeed. */
+        PUBLISH,
+        /** The fix is close to what readers predict; leave it out. */
+        SUPPRESS,
+        /** The fix is implausible; leave it out and forget it. */
+        REJECT
+    }
+
+    private RoutePolyline route;
+
+    // The last accepted fix.
+    private LatLng lastPosition;
+    private double lastAccuracy;
+    private long lastTimeMillis;
+    private double lastDistanceAlong = Double.NaN;
+    private double speed; // along the route, negative towards the first stop
+    private int consecutiveJumps;
+
+    // The last published fix.
+    private LatLng publishedPosition;
+    private double publishedSpeed;
+    private long publishedTimeMillis;
+
+    private long acceptedCount;
+    private long publishedCount;
+    private long rejectedCount;
+
+    /**
+     * @param route The trip's route, or null if it is not known (yet); see setRoute. Without
+     * a route, positions are predicted to stay where they were published.
+     */
+    public PositionPublishFilter(RoutePolyline route) {
+        this.route = route;
+    }
+
+    public void setRoute(RoutePolyline route) {
+        this.route = route;
+        lastDistanceAlong = Double.NaN;
+        speed = 0;
+    }
+
+    /**
+     * Predicts where a vehicle is, from a published position and speed.
+     * @param route The vehicle's route, or null.
+     * @param published The published position.
+     * @param speed The published speed along the route in m/s, negative towards the first stop.
+     * @param elapsedMillis The time since the position was recorded.
+     * @return The position moved along the route by the distance travelled at that speed,
+     * keeping its offset from the route. It stays at the end of the route, and does not move
+     * when off the route or after MAX_EXTRAPOLATION_MILLIS.
+     */
+    public static LatLng predict(RoutePolyline route, LatLng published, double speed, long elapsedMillis) {
+        if (route == null || speed == 0 || elapsedMillis <= 0) {
+            return published;
+        }
+        RoutePolyline.Projection projection = route.project(published);
+        if (!projection.isOnRoute()) {
+            return published;
+        }
+        double from = projection.getDistanceAlong();
+        double to = from + speed * Math.min(elapsedMillis, MAX_EXTRAPOLATION_MILLIS) / 1000;
+        to = Math.max(0, Math.min(route.length(), to));
+        // The route runs stop to stop in straight lines, so the vehicle is moved parallel to
+        // it rather than snapped onto it.
+        LatLng start = route.positionAt(from);
+        LatLng end = route.positionAt(to);
+        return new LatLng(published.latitude + end.latitude - start.latitude,
+                published.longitude + end.longitude - start.longitude);
+    }
+
+    /**
+     * @return The smoothed speed along the route in m/s, to publish with the fix.
+     */
+    public double getSpeed() {
+        return speed;
+    }
+
+    /**
+     * Takes in a fix.
+     * @param accuracy The fix's horizontal accuracy in metres, or 0 if unknown.
+     * @return Whether to publish it.
+     */
+    public Decision offer(double latitude, double longitude, double accuracy, long timeMillis) {
+        LatLng position = new LatLng(latitude, longitude);
+        if (!isPlausible(position, accuracy, timeMillis)) {
+            rejectedCount++;
+            return Decision.REJECT;
+        }
+        acceptedCount++;
+        updateSpeed(position, timeMillis);
+        lastPosition = position;
+        lastAccuracy = accuracy;
+        lastTimeMillis = timeMillis;
+
+        if (publishedPosition != null && timeMillis - publishedTimeMillis < HEARTBEAT_MILLIS) {
+            LatLng predicted = predict(route, publishedPosition, publishedSpeed, timeMillis - publishedTimeMillis);
+            if (SphericalUtil.computeDistanceBetween(predicted, position) <= DEVIATION_METERS) {
+                return Decision.SUPPRESS;
+            }
+        }
+        publishedPosition = position;
+        publishedSpeed = speed;
+        publishedTimeMillis = timeMillis;
+        publishedCount++;
+        return Decision.PUBLISH;
+    }
+
+    private boolean isPlausible(LatLng position, double accuracy, long timeMillis) {
+        if (accuracy > MAX_ACCURACY_METERS) {
+            return false;
+        }
+        if (lastPosition == null) {
+            return true;
+        }
+        if (timeMillis <= lastTimeMillis) {
+            return false;
+        }
+        double distance = SphericalUtil.computeDistanceBetween(lastPosition, position);
+        double reachable = MAX_SPEED_MPS * (timeMillis - lastTimeMillis) / 1000 + accuracy + lastAccuracy;
+        if (distance <= reachable) {
+            consecutiveJumps = 0;
+            return true;
+        }
+        if (++consecutiveJumps > MAX_CONSECUTIVE_JUMPS) {
+            consecutiveJumps = 0;
+            // Start again from this fix rather than carry a speed across the jump.
+            lastDistanceAlong = Double.NaN;
+            speed = 0;
+            return true;
+        }
+        return false;
+    }
+
+    private void updateSpeed(LatLng position, long timeMillis) {
+        if (route == null) {
+            return;
+        }
+        RoutePolyline.Projection projection = route.project(position);
+        if (!projection.isOnRoute()) {
+            lastDistanceAlong = Double.NaN;
+            speed = 0;
+            return;
+        }
+        double along = projection.getDistanceAlong();
+        if (!Double.isNaN(lastDistanceAlong) && timeMillis > lastTimeMillis) {
+            double measured = (along - lastDistanceAlong) * 1000 / (timeMillis - lastTimeMillis);
+            speed += SPEED_SMOOTHING * (measured - speed);
+            if (Math.abs(speed) < MIN_SPEED_MPS) {
+                speed = 0;
+            }
+        }
+        lastDistanceAlong = along;
+    }
+
+    /**
+     * @return A summary of how many fixes were published, for logging.
+     */
+    public String stats() {
+        return "Published " + publishedCount + " of " + acceptedCount + " fixes; rejected " + rejectedCount + ".";
+    }
+}
@@ -0,0 +1,108 @@
+package com.example.mymatauapp;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The process-wide route graph. The MatatuRouteManager is built once, on a background
+ * thread started when the process starts, and then shared by every activity, so rotations
+ * and back-navigation never rebuild it.
+ *
+ * The build, and the time from the graph first being asked for (normally by
+ * MatatuApplication.onCreate) to the first route query, are recorded as trace sections
+ * ("RouteGraph.build" and "RouteGraph.requestToFirstQuery"). The log also gives the time to
+ * the first query from process start, which includes what ran before onCreate.
+ */
+public final class RouteGraph {
+
+    private static final String TAG = "RouteGraph";
+    private static final String FIRST_QUERY_SECTION = "RouteGraph.requestToFirstQuery";
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "RouteGraphWarmUp");
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+    });
+
+    private static CompletableFuture<MatatuRouteManager> graph;
+    private static volatile long requestedAtMillis; // elapsed realtime of the first get
+    private static final AtomicBoolean firstQueryRecorded = new AtomicBoolean();
+
+    private RouteGraph() {
+    }
+
+    /**
+     * Starts building the route graph in the background if it is not already built or building.
+     * Called from MatatuApplication.onCreate so the work overlaps with activity start-up.
+     * @param context Any context; the application context is kept.
+     */
+    public static void warmUp(Context context) {
+        get(context);
+    }
+
+    /**
+     * @param context Any context; the application context is kept.
+     * @return A future for the shared route graph. It never completes exceptionally: if the
+     * network cannot be loaded, the graph is empty.
+     */
+    public static synchronized CompletableFuture<MatatuRouteManager> get(Context context) {
+        if (graph == null) {
+            Context appContext = context.getApplicationContext();
+            requestedAtMillis = SystemClock.elapsedRealtime();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                Trace.beginAsyncSection(FIRST_QUERY_SECTION, 0);
+            }
+            graph = CompletableFuture.supplyAsync(() -> build(appContext), EXECUTOR);
+        }
+        return graph;
+    }
+
+    /**
+     * Records that the first route query of the process is being made. Only the first call
+     * has any effect.
+     */
+    public static void recordFirstQuery() {
+        if (!firstQueryRecorded.compareAndSet(false, true)) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.endAsyncSection(FIRST_QUERY_SECTION, 0);
+        }
+        long now = SystemClock.elapsedRealtime();
+        Log.i(TAG, "Time to first route query: " + (now - Process.getStartElapsedRealtime())
+                + " ms after process start, " + (now - requestedAtMillis) + " ms after the graph was requested.");
+    }
+
+    private static MatatuRouteManager build(Context context) {
+        long start = SystemClock.elapsedRealtime();
+        Trace.beginSection("RouteGraph.build");
+        try {
+            MatatuRouteManager manager;
+            try {
+                manager = new MatatuRouteManager(RouteNetworkLoader.load(context));
+                // Prepare the journey planner too, so the first search does not pay for it.
+                manager.warmUp();
+            } catch (IOException | RuntimeException e) {
+                // Whatever went wrong, the future must still complete normally; see get().
+                manager = new MatatuRouteManager(new RouteNetwork.Builder().build());
+                manager.warmUp();
+                Log.e(TAG, "Could not load the route network.", e);
+            }
+            Log.i(TAG, "Route graph built in " + (SystemClock.elapsedRealtime() - start) + " ms ("
+                    + manager.getNetwork().routeCount() + " routes, "
+                    + manager.getNetwork().stopCount() + " stops).");
+            return manager;
+        } finally {
+            Trace.endSection();
+        }
+    }
+}
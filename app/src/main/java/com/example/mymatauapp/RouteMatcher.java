@@ -0,0 +1,315 @@
+package com.example.mymatauapp;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.SphericalUtil;
+
+import java.util.Arrays;
+
+/**
+ * Snaps a trip's fixes onto its route, keeping a running distance along the route and the
+ * index of the next stop.
+ *
+ * Matching is an incremental hidden Markov model in the style of Newson and Krumm. The
+ * hidden states for a fix are its projections onto the route's segments within
+ * MAX_CANDIDATE_METERS. A candidate is as likely as the fix's distance from it under a
+ * Gaussian GPS error, and moving between candidates of consecutive fixes is as likely as the
+ * distance along the route matches the straight-line distance between the fixes. Moves
+ * faster than PositionPublishFilter.MAX_SPEED_MPS are impossible. Each fix takes one Viterbi
+ * step over at most MAX_CANDIDATES states, and only the latest scores are kept, so a fix
+ * costs microseconds and the matcher's memory does not grow.
+ *
+ * Only the segments within reach of the previous fix's candidates along the route are
+ * searched, so the cost of a fix does not grow with the length of the route. When none of
+ * those connect, such as for the first fix or after a gap, the route is re-acquired through
+ * RoutePolyline.segmentsNear, which looks only at the segments passing near the fix.
+ *
+ * Unlike projecting each fix onto the nearest segment, this does not flip between legs of a
+ * route that runs close to itself, such as both sides of a roundabout or a road that doubles
+ * back, because reaching the other leg would take a long detour along the route.
+ *
+ * The candidate arrays are reused from fix to fix, so a matcher must only be offered fixes
+ * from one thread, such as LocationTrackingService's tracking thread, and its getters read
+ * there too.
+ */
+public class RouteMatcher {
+
+    // A fix's GPS error is taken to be at least this, in metres (one standard deviation).
+    private static final double MIN_SIGMA_METERS = 5;
+    // Scale of the exponential penalty on route distance differing from straight-line distance.
+    private static final double BETA_METERS = 20;
+    private static final double MAX_CANDIDATE_METERS = 200;
+    private static final int MAX_CANDIDATES = 8;
+    // Candidates closer than this along the route (such as a stop shared by two segments)
+    // are one state.
+    private static final double SAME_CANDIDATE_METERS = 1;
+    // The direction of travel only changes after this much progress the other way, well
+    // beyond the jitter of a vehicle standing at a stop.
+    private static final double DIRECTION_HYSTERESIS_METERS = 50;
+
+    private RoutePolyline route;
+
+    // The previous fix's candidates and their log scores, and the current fix's. Swapped
+    // after each fix.
+    private double[] previousAlong = new double[MAX_CANDIDATES];
+    private double[] previousScore = new double[MAX_CANDIDATES];
+    private int previousCount;
+    private double[] candidateAlong = new double[MAX_CANDIDATES];
+    private double[] candidateOffset = new double[MAX_CANDIDATES];
+    private double[] candidateScore = new double[MAX_CANDIDATES];
+    private int candidateCount;
+    // The previous candidates' distances along the route, sorted, to search around.
+    private final double[] window = new double[MAX_CANDIDATES];
+
+    private double previousLatitude;
+    private double previousLongitude;
+    private long previousTimeMillis;
+
+    private double distanceAlong = Double.NaN;
+    private double offset = Double.NaN;
+    private boolean forward = true;
+    private double directionAnchor = Double.NaN;
+    private int nextStopIndex = -1;
+
+    private long matchedCount;
+    private long unmatchedCount;
+    private long breakCount;
+
+    /**
+     * @param route The trip's route, or null if it is not known (yet); see setRoute. Without
+     * a route, or with fewer than two stops, no fix is matched.
+     */
+    public RouteMatcher(RoutePolyline route) {
+        this.route = route;
+    }
+
+    public void setRoute(RoutePolyline route) {
+        this.route = route;
+        previousCount = 0;
+        distanceAlong = Double.NaN;
+        offset = Double.NaN;
+        forward = true;
+        directionAnchor = Double.NaN;
+        nextStopIndex = -1;
+    }
+
+    /**
+     * Matches a fix onto the route.
+     * @param accuracy The fix's horizontal accuracy in metres, or 0 if unknown.
+     * @return Whether the fix was matched; if not, it is too far from the route.
+     */
+    public boolean offer(double latitude, double longitude, double accuracy, long timeMillis) {
+        if (route == null || route.segmentCount() < 1) {
+            return unmatched();
+        }
+        LatLng position = new LatLng(latitude, longitude);
+        double sigma = Math.max(MIN_SIGMA_METERS, accuracy);
+        boolean connected = false;
+        if (previousCount > 0 && timeMillis > previousTimeMillis) {
+            double straight = SphericalUtil.computeDistanceBetween(
+                    new LatLng(previousLatitude, previousLongitude), position);
+            double reachable = PositionPublishFilter.MAX_SPEED_MPS * (timeMillis - previousTimeMillis) / 1000 + 2 * sigma;
+            findReachableCandidates(position, reachable);
+            for (int i = 0; i < candidateCount; i++) {
+                double best = Double.NEGATIVE_INFINITY;
+                for (int j = 0; j < previousCount; j++) {
+                    double travelled = Math.abs(candidateAlong[i] - previousAlong[j]);
+                    if (travelled <= reachable) {
+                        best = Math.max(best, previousScore[j] - Math.abs(travelled - straight) / BETA_METERS);
+                    }
+                }
+                candidateScore[i] = best + emission(candidateOffset[i], sigma);
+                connected |= best > Double.NEGATIVE_INFINITY;
+            }
+        }
+        if (!connected) {
+            // The first fix, or none of the candidates can be reached from the previous
+            // ones: start again from this fix alone.
+            findNearbyCandidates(position);
+            if (candidateCount == 0) {
+                return unmatched();
+            }
+            if (previousCount > 0) {
+                breakCount++;
+            }
+            for (int i = 0; i < candidateCount; i++) {
+                candidateScore[i] = emission(candidateOffset[i], sigma);
+            }
+        }
+
+        int best = 0;
+        for (int i = 1; i < candidateCount; i++) {
+            if (candidateScore[i] > candidateScore[best]) {
+                best = i;
+            }
+        }
+        // Keep the scores near zero so they do not drift out of range over a long trip.
+        double top = candidateScore[best];
+        for (int i = 0; i < candidateCount; i++) {
+            candidateScore[i] -= top;
+        }
+        distanceAlong = candidateAlong[best];
+        offset = candidateOffset[best];
+        updateDirection();
+        nextStopIndex = route.nextStop(distanceAlong, forward);
+
+        swapCandidates();
+        previousLatitude = latitude;
+        previousLongitude = longitude;
+        previousTimeMillis = timeMillis;
+        matchedCount++;
+        return true;
+    }
+
+    /**
+     * Collects the candidates for a position on the segments within reach, along the route, of
+     * the previous fix's candidates, visiting each segment once.
+     */
+    private void findReachableCandidates(LatLng position, double reachable) {
+        candidateCount = 0;
+        for (int j = 0; j < previousCount; j++) {
+            window[j] = previousAlong[j];
+        }
+        Arrays.sort(window, 0, previousCount);
+        int searched = -1;
+        for (int j = 0; j < previousCount; j++) {
+            int first = Math.max(searched + 1, route.segmentAt(window[j] - reachable));
+            int last = route.segmentAt(window[j] + reachable);
+            for (int segment = first; segment <= last; segment++) {
+                consider(position, segment);
+            }
+            searched = Math.max(searched, last);
+        }
+    }
+
+    /** Collects the candidates for a position on any segment of the route. */
+    private void findNearbyCandidates(LatLng position) {
+        candidateCount = 0;
+        route.segmentsNear(position, MAX_CANDIDATE_METERS, segment -> consider(position, segment));
+    }
+
+    /**
+     * Adds the projection of a position onto a segment to the candidates if it is within
+     * MAX_CANDIDATE_METERS, keeping the MAX_CANDIDATES closest, sorted by offset.
+     */
+    private void consider(LatLng position, int segment) {
+        RoutePolyline.Projection projection = route.project(position, segment);
+        double candidateOffsetMeters = projection.getOffset();
+        if (candidateOffsetMeters > MAX_CANDIDATE_METERS) {
+            return;
+        }
+        double along = projection.getDistanceAlong();
+        int duplicate = -1;
+        for (int i = 0; i < candidateCount; i++) {
+            if (Math.abs(candidateAlong[i] - along) < SAME_CANDIDATE_METERS) {
+                duplicate = i;
+                break;
+            }
+        }
+        if (duplicate >= 0) {
+            if (candidateOffset[duplicate] <= candidateOffsetMeters) {
+                return;
+            }
+            removeCandidate(duplicate);
+        }
+        if (candidateCount == MAX_CANDIDATES) {
+            if (candidateOffset[MAX_CANDIDATES - 1] <= candidateOffsetMeters) {
+                return;
+            }
+            candidateCount--;
+        }
+        // Insertion into the list sorted by offset.
+        int i = candidateCount++;
+        while (i > 0 && candidateOffset[i - 1] > candidateOffsetMeters) {
+            candidateOffset[i] = candidateOffset[i - 1];
+            candidateAlong[i] = candidateAlong[i - 1];
+            i--;
+        }
+        candidateOffset[i] = candidateOffsetMeters;
+        candidateAlong[i] = along;
+    }
+
+    private void removeCandidate(int index) {
+        for (int i = index + 1; i < candidateCount; i++) {
+            candidateOffset[i - 1] = candidateOffset[i];
+            candidateAlong[i - 1] = candidateAlong[i];
+        }
+        candidateCount--;
+    }
+
+    /**
+     * @return The log likelihood, up to a constant, of a fix this far from a candidate.
+     */
+    private static double emission(double offset, double sigma) {
+        double z = offset / sigma;
+        return -0.5 * z * z;
+    }
+
+    private void swapCandidates() {
+        double[] along = previousAlong;
+        previousAlong = candidateAlong;
+        candidateAlong = along;
+        double[] score = previousScore;
+        previousScore = candidateScore;
+        candidateScore = score;
+        previousCount = candidateCount;
+    }
+
+    private void updateDirection() {
+        if (Double.isNaN(directionAnchor)) {
+            directionAnchor = distanceAlong;
+            return;
+        }
+        double progress = distanceAlong - directionAnchor;
+        if (forward ? progress > 0 : progress < 0) {
+            directionAnchor = distanceAlong;
+        } else if (Math.abs(progress) > DIRECTION_HYSTERESIS_METERS) {
+            forward = !forward;
+            directionAnchor = distanceAlong;
+        }
+    }
+
+    private boolean unmatched() {
+        unmatchedCount++;
+        previousCount = 0;
+        distanceAlong = Double.NaN;
+        offset = Double.NaN;
+        nextStopIndex = -1;
+        return false;
+    }
+
+    /** Whether the last fix was matched onto the route. */
+    public boolean isMatched() {
+        return !Double.isNaN(distanceAlong);
+    }
+
+    /** The distance in metres from the first stop to the last fix's match, or NaN if unmatched. */
+    public double getDistanceAlong() {
+        return distanceAlong;
+    }
+
+    /** The distance in metres from the last fix to its match, or NaN if unmatched. */
+    public double getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return The index of the next stop in the direction of travel, or -1 if the last fix was
+     * unmatched or the vehicle is past the last stop.
+     */
+    public int getNextStopIndex() {
+        return nextStopIndex;
+    }
+
+    /** Whether the vehicle travels from the first stop towards the last. */
+    public boolean isForward() {
+        return forward;
+    }
+
+    /**
+     * @return A summary of how many fixes were matched, for logging.
+     */
+    public String stats() {
+        return "Matched " + matchedCount + " fixes; " + unmatchedCount + " off the route, "
+                + breakCount + " matching breaks.";
+    }
+}
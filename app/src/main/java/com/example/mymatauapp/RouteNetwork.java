@@ -0,0 +1,266 @@
+package com.example.mymatauapp;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A compact, immutable store for the matatu network.
+ * Stops live in one shared table of fixed-point coordinates (microdegrees), and every route
+ * is a slice of one flat array of stop IDs: route r covers [routeStart(r), routeEnd(r)).
+ * A stop ID is simply the stop's row in the stop table.
+ * The tables are held in buffers so a network can be read in place from a memory-mapped
+ * file (see RouteNetworkFile) as well as built in memory.
+ */
+public class RouteNetwork {
+
+    public static final double MICRODEGREES = 1e6;
+
+    private final IntBuffer stopLatE6;
+    private final IntBuffer stopLngE6;
+    private final IntBuffer routeOffsets;
+    private final IntBuffer routeStops;
+    // Names are UTF-8 strings packed back to back; name i is [offsets[i], offsets[i + 1]).
+    private final IntBuffer stopNameOffsets;
+    private final ByteBuffer stopNameBytes;
+    private final IntBuffer routeNameOffsets;
+    private final ByteBuffer routeNameBytes;
+
+    RouteNetwork(IntBuffer stopLatE6, IntBuffer stopLngE6, IntBuffer routeOffsets, IntBuffer routeStops,
+                 IntBuffer stopNameOffsets, ByteBuffer stopNameBytes,
+                 IntBuffer routeNameOffsets, ByteBuffer routeNameBytes) {
+        this.stopLatE6 = stopLatE6;
+        this.stopLngE6 = stopLngE6;
+        this.routeOffsets = routeOffsets;
+        this.routeStops = routeStops;
+        this.stopNameOffsets = stopNameOffsets;
+        this.stopNameBytes = stopNameBytes;
+        this.routeNameOffsets = routeNameOffsets;
+        this.routeNameBytes = routeNameBytes;
+    }
+
+    public int stopCount() {
+        return stopLatE6.limit();
+    }
+
+    public int stopLatE6(int stop) {
+        return stopLatE6.get(stop);
+    }
+
+    public int stopLngE6(int stop) {
+        return stopLngE6.get(stop);
+    }
+
+    public double stopLatitude(int stop) {
+        return stopLatE6.get(stop) / MICRODEGREES;
+    }
+
+    public double stopLongitude(int stop) {
+        return stopLngE6.get(stop) / MICRODEGREES;
+    }
+
+    /**
+     * @return The stop's name, or an empty string if it has none.
+     */
+    public String stopName(int stop) {
+        return decode(stopNameBytes, stopNameOffsets, stop);
+    }
+
+    public int routeCount() {
+        return routeOffsets.limit() - 1;
+    }
+
+    public String routeName(int route) {
+        return decode(routeNameBytes, routeNameOffsets, route);
+    }
+
+    /**
+     * @return The route index with the given name, or -1 if there is none.
+     */
+    public int findRoute(String name) {
+        for (int r = 0; r < routeCount(); r++) {
+            if (routeName(r).equals(name)) {
+                return r;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The index in the flat stop sequence where the given route begins.
+     */
+    public int routeStart(int route) {
+        return routeOffsets.get(route);
+    }
+
+    /**
+     * @return One past the index in the flat stop sequence where the given route ends.
+     */
+    public int routeEnd(int route) {
+        return routeOffsets.get(route + 1);
+    }
+
+    public int routeLength(int route) {
+        return routeOffsets.get(route + 1) - routeOffsets.get(route);
+    }
+
+    /**
+     * @return The total number of entries in the flat stop sequence of all routes.
+     */
+    public int routeStopCount() {
+        return routeStops.limit();
+    }
+
+    /**
+     * @param index An index into the flat stop sequence, as returned by routeStart.
+     * @return The stop ID at that index.
+     */
+    public int routeStopAt(int index) {
+        return routeStops.get(index);
+    }
+
+    /**
+     * @return The stop ID at a position along a route.
+     */
+    public int routeStop(int route, int position) {
+        return routeStops.get(routeOffsets.get(route) + position);
+    }
+
+    public static int toMicrodegrees(double degrees) {
+        return (int) Math.round(degrees * MICRODEGREES);
+    }
+
+    private static String decode(ByteBuffer bytes, IntBuffer offsets, int index) {
+        int start = offsets.get(index);
+        int end = offsets.get(index + 1);
+        byte[] utf8 = new byte[end - start];
+        // Absolute reads through a duplicate keep the shared buffer's position untouched.
+        ByteBuffer view = bytes.duplicate();
+        view.position(start);
+        view.get(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Builds a RouteNetwork route by route. Stops are de-duplicated as they are added, so
+     * building the whole network is a single linear pass over the route points.
+     */
+    public static class Builder {
+        private int[] latE6 = new int[64];
+        private int[] lngE6 = new int[64];
+        private String[] stopNames = new String[64];
+        private int stopCount;
+        private final Map<Long, Integer> stopIds = new HashMap<>();
+
+        private String[] names = new String[8];
+        private int[] offsets = new int[9];
+        private int routeCount;
+
+        private int[] sequence = new int[256];
+        private int sequenceLength;
+        private boolean routeOpen;
+
+        /**
+         * Starts a new route. Stops added after this belong to it, in travel order.
+         */
+        public Builder beginRoute(String name) {
+            if (routeOpen) {
+                endRoute();
+            }
+            if (routeCount == names.length) {
+                names = Arrays.copyOf(names, routeCount * 2);
+                offsets = Arrays.copyOf(offsets, routeCount * 2 + 1);
+            }
+            names[routeCount] = name;
+            routeOpen = true;
+            return this;
+        }
+
+        public Builder addStop(double latitude, double longitude) {
+            return addStopE6(toMicrodegrees(latitude), toMicrodegrees(longitude), null);
+        }
+
+        public Builder addStop(double latitude, double longitude, String name) {
+            return addStopE6(toMicrodegrees(latitude), toMicrodegrees(longitude), name);
+        }
+
+        /**
+         * Appends a stop to the current route.
+         * @param name The stop's name; only the first name given for a location is kept.
+         */
+        public Builder addStopE6(int latitudeE6, int longitudeE6, String name) {
+            if (!routeOpen) {
+                throw new IllegalStateException("addStop called before beginRoute");
+            }
+            if (sequenceLength == sequence.length) {
+                sequence = Arrays.copyOf(sequence, sequenceLength * 2);
+            }
+            sequence[sequenceLength++] = stopId(latitudeE6, longitudeE6, name);
+            return this;
+        }
+
+        private void endRoute() {
+            routeCount++;
+            offsets[routeCount] = sequenceLength;
+            routeOpen = false;
+        }
+
+        /**
+         * @return The ID of the stop at these coordinates, adding it to the table if it is new.
+         */
+        private int stopId(int latitudeE6, int longitudeE6, String name) {
+            Long key = ((long) latitudeE6 << 32) | (longitudeE6 & 0xFFFFFFFFL);
+            Integer id = stopIds.get(key);
+            if (id == null) {
+                if (stopCount == latE6.length) {
+                    latE6 = Arrays.copyOf(latE6, stopCount * 2);
+                    lngE6 = Arrays.copyOf(lngE6, stopCount * 2);
+                    stopNames = Arrays.copyOf(stopNames, stopCount * 2);
+                }
+                id = stopCount;
+                latE6[stopCount] = latitudeE6;
+                lngE6[stopCount] = longitudeE6;
+                stopCount++;
+                stopIds.put(key, id);
+            }
+            if (stopNames[id] == null) {
+                stopNames[id] = name;
+            }
+            return id;
+        }
+
+        public RouteNetwork build() {
+            if (routeOpen) {
+                endRoute();
+            }
+            int[] stopNameOffsets = new int[stopCount + 1];
+            ByteBuffer stopNameBytes = encode(stopNames, stopCount, stopNameOffsets);
+            int[] routeNameOffsets = new int[routeCount + 1];
+            ByteBuffer routeNameBytes = encode(names, routeCount, routeNameOffsets);
+            return new RouteNetwork(
+                    IntBuffer.wrap(Arrays.copyOf(latE6, stopCount)),
+                    IntBuffer.wrap(Arrays.copyOf(lngE6, stopCount)),
+                    IntBuffer.wrap(Arrays.copyOf(offsets, routeCount + 1)),
+                    IntBuffer.wrap(Arrays.copyOf(sequence, sequenceLength)),
+                    IntBuffer.wrap(stopNameOffsets), stopNameBytes,
+                    IntBuffer.wrap(routeNameOffsets), routeNameBytes);
+        }
+
+        private static ByteBuffer encode(String[] strings, int count, int[] offsets) {
+            byte[][] encoded = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                encoded[i] = strings[i] == null ? new byte[0] : strings[i].getBytes(StandardCharsets.UTF_8);
+                offsets[i + 1] = offsets[i] + encoded[i].length;
+            }
+            ByteBuffer bytes = ByteBuffer.allocate(offsets[count]);
+            for (byte[] utf8 : encoded) {
+                bytes.put(utf8);
+            }
+            bytes.clear();
+            return bytes;
+        }
+    }
+}
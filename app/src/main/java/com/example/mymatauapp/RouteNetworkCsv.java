@@ -0,0 +1,167 @@
+package com.example.mymatauapp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads a route network from GTFS-like CSV files. This runs at build time to produce the
+ * compiled network asset; the app itself only maps the compiled file.
+ *
+ * The source directory holds three files, each with a header row:
+ *   stops.txt        stop_id, stop_name, stop_lat, stop_lon
+ *   routes.txt       route_id, route_long_name
+ *   route_stops.txt  route_id, stop_id, stop_sequence
+ * Columns are found by name, so extra columns and any column order are accepted.
+ */
+public class RouteNetworkCsv {
+
+    public static final String STOPS_FILE = "stops.txt";
+    public static final String ROUTES_FILE = "routes.txt";
+    public static final String ROUTE_STOPS_FILE = "route_stops.txt";
+
+    /**
+     * Reads the network in a source directory.
+     * @throws IOException If a file is missing or malformed.
+     */
+    public static RouteNetwork read(File directory) throws IOException {
+        Map<String, String[]> stops = new HashMap<>(); // stop_id -> {name, lat, lon}
+        for (Map<String, String> row : readRows(new File(directory, STOPS_FILE))) {
+            stops.put(require(row, "stop_id"), new String[]{
+                    row.get("stop_name"), require(row, "stop_lat"), require(row, "stop_lon")});
+        }
+
+        Map<String, String> routeNames = new LinkedHashMap<>(); // route_id -> name, in file order
+        for (Map<String, String> row : readRows(new File(directory, ROUTES_FILE))) {
+            String name = row.get("route_long_name");
+            String id = require(row, "route_id");
+            routeNames.put(id, name == null || name.isEmpty() ? id : name);
+        }
+
+        Map<String, List<int[]>> sequences = new HashMap<>(); // route_id -> {sequence, row}
+        List<String> stopIdsByRow = new ArrayList<>();
+        for (Map<String, String> row : readRows(new File(directory, ROUTE_STOPS_FILE))) {
+            String routeId = require(row, "route_id");
+            if (!routeNames.containsKey(routeId)) {
+                throw new IOException("Unknown route_id " + routeId + " in " + ROUTE_STOPS_FILE);
+            }
+            String stopId = require(row, "stop_id");
+            if (!stops.containsKey(stopId)) {
+                throw new IOException("Unknown stop_id " + stopId + " in " + ROUTE_STOPS_FILE);
+            }
+            int sequence = parseInt(require(row, "stop_sequence"));
+            sequences.computeIfAbsent(routeId, k -> new ArrayList<>())
+                    .add(new int[]{sequence, stopIdsByRow.size()});
+            stopIdsByRow.add(stopId);
+        }
+
+        RouteNetwork.Builder builder = new RouteNetwork.Builder();
+        for (Map.Entry<String, String> route : routeNames.entrySet()) {
+            List<int[]> entries = sequences.get(route.getKey());
+            if (entries == null) {
+                continue;
+            }
+            entries.sort((a, b) -> Integer.compare(a[0], b[0]));
+            builder.beginRoute(route.getValue());
+            for (int[] entry : entries) {
+                String[] stop = stops.get(stopIdsByRow.get(entry[1]));
+                builder.addStop(parseDouble(stop[1]), parseDouble(stop[2]), stop[0]);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Reads a CSV file with a header row into one column-name-to-value map per row.
+     */
+    static List<Map<String, String>> readRows(File file) throws IOException {
+        List<Map<String, String>> rows = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line = reader.readLine();
+            if (line == null) {
+                throw new IOException(file.getName() + " is empty");
+            }
+            // Tolerate a UTF-8 byte order mark, which spreadsheet exports often add.
+            if (line.startsWith("\uFEFF")) {
+                line = line.substring(1);
+            }
+            List<String> header = splitLine(line);
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                List<String> fields = splitLine(line);
+                Map<String, String> row = new HashMap<>();
+                for (int i = 0; i < header.size() && i < fields.size(); i++) {
+                    row.put(header.get(i).trim(), fields.get(i).trim());
+                }
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Splits one CSV line, honouring double-quoted fields with "" escapes.
+     */
+    static List<String> splitLine(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    static String require(Map<String, String> row, String column) throws IOException {
+        String value = row.get(column);
+        if (value == null || value.isEmpty()) {
+            throw new IOException("Missing " + column + " in row " + row);
+        }
+        return value;
+    }
+
+    static int parseInt(String value) throws IOException {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid number: " + value, e);
+        }
+    }
+
+    static double parseDouble(String value) throws IOException {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid coordinate: " + value, e);
+        }
+    }
+}
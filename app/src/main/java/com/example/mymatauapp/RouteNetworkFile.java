@@ -0,0 +1,281 @@
+package com.example.mymatauapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The compiled route network file format, and the code to write and map it.
+ *
+ * The file is a fixed header followed by int32 tables and then the UTF-8 name data, all
+ * little-endian and laid out exactly like the buffers inside RouteNetwork and StopRouteIndex.
+ * Opening a file therefore only slices views over the mapped bytes: nothing is parsed and the
+ * number of objects created does not depend on the size of the network.
+ *
+ * Layout (every entry is an int32 unless noted):
+ *   header:  MAGIC, VERSION, flags, stopCount (S), routeCount (R), routeStopCount (N),
+ *            stopNameByteCount, routeNameByteCount
+ *   stops:   stopLatE6[S], stopLngE6[S], stopNameOffsets[S + 1]
+ *   routes:  routeOffsets[R + 1], routeStops[N], routeNameOffsets[R + 1]
+ *   index:   (only with FLAG_STOP_ROUTE_INDEX) stopRouteOffsets[S + 1], entryRoutes[N], entryPositions[N]
+ *   names:   stopNameBytes (bytes), routeNameBytes (bytes)
+ */
+public class RouteNetworkFile {
+
+    public static final int MAGIC = 0x4E524D4D; // "MMRN" in little-endian byte order
+    public static final int VERSION = 1;
+    public static final int FLAG_STOP_ROUTE_INDEX = 1;
+
+    /** The asset that ships with the app, and the name of a downloaded replacement. */
+    public static final String ASSET_NAME = "matatu_network.rnet";
+
+    private static final int HEADER_INTS = 8;
+
+    private final RouteNetwork network;
+    private final StopRouteIndex stopRouteIndex;
+
+    private RouteNetworkFile(RouteNetwork network, StopRouteIndex stopRouteIndex) {
+        this.network = network;
+        this.stopRouteIndex = stopRouteIndex;
+    }
+
+    public RouteNetwork getNetwork() {
+        return network;
+    }
+
+    /**
+     * @return The precomputed stop-to-route index, or null if the file does not contain one.
+     */
+    public StopRouteIndex getStopRouteIndex() {
+        return stopRouteIndex;
+    }
+
+    /**
+     * Memory-maps a whole network file.
+     */
+    public static RouteNetworkFile map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return map(raf.getChannel(), 0, raf.length());
+        }
+    }
+
+    /**
+     * Memory-maps a network stored in part of a file, such as an uncompressed APK asset.
+     * The mapping stays valid after the channel is closed.
+     */
+    public static RouteNetworkFile map(FileChannel channel, long position, long size) throws IOException {
+        return read(channel.map(FileChannel.MapMode.READ_ONLY, position, size));
+    }
+
+    /**
+     * Opens a network held in a buffer. The buffer is used in place, not copied.
+     *
+     * A downloaded file may be truncated or corrupt, so every count is checked against the
+     * buffer and every offset and stop or route reference against the table it points into,
+     * before any view is handed out. That is one pass over the int tables, with no objects
+     * created.
+     * @throws IOException If the buffer does not hold a supported, consistent network file.
+     */
+    public static RouteNetworkFile read(ByteBuffer buffer) throws IOException {
+        ByteBuffer bytes = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (bytes.remaining() < HEADER_INTS * 4) {
+            throw new IOException("Route network file is truncated");
+        }
+        IntBuffer header = slice(bytes, 0, HEADER_INTS);
+        if (header.get(0) != MAGIC) {
+            throw new IOException("Not a route network file");
+        }
+        if (header.get(1) != VERSION) {
+            throw new IOException("Unsupported route network file version " + header.get(1));
+        }
+        int flags = header.get(2);
+        int stopCount = header.get(3);
+        int routeCount = header.get(4);
+        int routeStopCount = header.get(5);
+        int stopNameByteCount = header.get(6);
+        int routeNameByteCount = header.get(7);
+
+        if (stopCount < 0 || routeCount < 0 || routeStopCount < 0
+                || stopNameByteCount < 0 || routeNameByteCount < 0) {
+            throw new IOException("Route network file has a negative count");
+        }
+        boolean hasIndex = (flags & FLAG_STOP_ROUTE_INDEX) != 0;
+        long intCount = HEADER_INTS + 3L * stopCount + 1 + 2L * routeCount + 2 + routeStopCount
+                + (hasIndex ? stopCount + 1L + 2L * routeStopCount : 0);
+        long expected = intCount * 4 + stopNameByteCount + routeNameByteCount;
+        if (bytes.remaining() < expected) {
+            throw new IOException("Route network file is truncated");
+        }
+
+        int offset = HEADER_INTS;
+        IntBuffer stopLatE6 = slice(bytes, offset, stopCount);
+        offset += stopCount;
+        IntBuffer stopLngE6 = slice(bytes, offset, stopCount);
+        offset += stopCount;
+        IntBuffer stopNameOffsets = slice(bytes, offset, stopCount + 1);
+        offset += stopCount + 1;
+        IntBuffer routeOffsets = slice(bytes, offset, routeCount + 1);
+        offset += routeCount + 1;
+        IntBuffer routeStops = slice(bytes, offset, routeStopCount);
+        offset += routeStopCount;
+        IntBuffer routeNameOffsets = slice(bytes, offset, routeCount + 1);
+        offset += routeCount + 1;
+
+        checkOffsets(stopNameOffsets, stopNameByteCount, "stop name");
+        checkOffsets(routeOffsets, routeStopCount, "route");
+        checkOffsets(routeNameOffsets, routeNameByteCount, "route name");
+        checkRange(routeStops, stopCount, "route stop");
+
+        StopRouteIndex index = null;
+        if (hasIndex) {
+            IntBuffer indexOffsets = slice(bytes, offset, stopCount + 1);
+            offset += stopCount + 1;
+            IntBuffer entryRoutes = slice(bytes, offset, routeStopCount);
+            offset += routeStopCount;
+            IntBuffer entryPositions = slice(bytes, offset, routeStopCount);
+            offset += routeStopCount;
+            checkOffsets(indexOffsets, routeStopCount, "stop index");
+            checkRange(entryRoutes, routeCount, "stop index route");
+            for (int e = 0; e < routeStopCount; e++) {
+                int route = entryRoutes.get(e);
+                int position = entryPositions.get(e);
+                if (position < 0 || position >= routeOffsets.get(route + 1) - routeOffsets.get(route)) {
+                    throw new IOException("Route network file has a stop index position out of range");
+                }
+            }
+            index = new StopRouteIndex(indexOffsets, entryRoutes, entryPositions);
+        }
+
+        int byteOffset = offset * 4;
+        ByteBuffer stopNameBytes = sliceBytes(bytes, byteOffset, stopNameByteCount);
+        ByteBuffer routeNameBytes = sliceBytes(bytes, byteOffset + stopNameByteCount, routeNameByteCount);
+
+        RouteNetwork network = new RouteNetwork(stopLatE6, stopLngE6, routeOffsets, routeStops,
+                stopNameOffsets, stopNameBytes, routeNameOffsets, routeNameBytes);
+        return new RouteNetworkFile(network, index);
+    }
+
+    /**
+     * Writes a network, together with its precomputed stop-to-route index, in the file format.
+     */
+    public static void write(RouteNetwork network, OutputStream out) throws IOException {
+        StopRouteIndex index = new StopRouteIndex(network);
+        int stopCount = network.stopCount();
+        int routeCount = network.routeCount();
+        int routeStopCount = network.routeStopCount();
+
+        byte[][] stopNames = new byte[stopCount][];
+        int stopNameByteCount = 0;
+        for (int s = 0; s < stopCount; s++) {
+            stopNames[s] = network.stopName(s).getBytes(StandardCharsets.UTF_8);
+            stopNameByteCount += stopNames[s].length;
+        }
+        byte[][] routeNames = new byte[routeCount][];
+        int routeNameByteCount = 0;
+        for (int r = 0; r < routeCount; r++) {
+            routeNames[r] = network.routeName(r).getBytes(StandardCharsets.UTF_8);
+            routeNameByteCount += routeNames[r].length;
+        }
+
+        int intCount = HEADER_INTS + 3 * stopCount + 1 + 2 * routeCount + 2 + routeStopCount
+                + stopCount + 1 + 2 * routeStopCount;
+        ByteBuffer buffer = ByteBuffer.allocate(intCount * 4 + stopNameByteCount + routeNameByteCount)
+                .order(ByteOrder.LITTLE_ENDIAN);
+
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(FLAG_STOP_ROUTE_INDEX)
+                .putInt(stopCount).putInt(routeCount).putInt(routeStopCount)
+                .putInt(stopNameByteCount).putInt(routeNameByteCount);
+
+        for (int s = 0; s < stopCount; s++) {
+            buffer.putInt(network.stopLatE6(s));
+        }
+        for (int s = 0; s < stopCount; s++) {
+            buffer.putInt(network.stopLngE6(s));
+        }
+        putOffsets(buffer, stopNames);
+
+        for (int r = 0; r < routeCount; r++) {
+            buffer.putInt(network.routeStart(r));
+        }
+        buffer.putInt(routeStopCount);
+        for (int i = 0; i < routeStopCount; i++) {
+            buffer.putInt(network.routeStopAt(i));
+        }
+        putOffsets(buffer, routeNames);
+
+        for (int s = 0; s < stopCount; s++) {
+            buffer.putInt(index.entriesStart(s));
+        }
+        buffer.putInt(index.entryCount());
+        for (int e = 0; e < index.entryCount(); e++) {
+            buffer.putInt(index.entryRoute(e));
+        }
+        for (int e = 0; e < index.entryCount(); e++) {
+            buffer.putInt(index.entryPosition(e));
+        }
+
+        for (byte[] name : stopNames) {
+            buffer.put(name);
+        }
+        for (byte[] name : routeNames) {
+            buffer.put(name);
+        }
+        out.write(buffer.array(), 0, buffer.position());
+    }
+
+    private static void putOffsets(ByteBuffer buffer, byte[][] strings) {
+        int offset = 0;
+        buffer.putInt(offset);
+        for (byte[] string : strings) {
+            offset += string.length;
+            buffer.putInt(offset);
+        }
+    }
+
+    /**
+     * Checks that an offset table starts at 0, never decreases and ends at the size of the
+     * data it indexes.
+     */
+    private static void checkOffsets(IntBuffer offsets, int size, String table) throws IOException {
+        int previous = 0;
+        for (int i = 0; i < offsets.limit(); i++) {
+            int offset = offsets.get(i);
+            if ((i == 0 && offset != 0) || offset < previous) {
+                throw new IOException("Route network file has bad " + table + " offsets");
+            }
+            previous = offset;
+        }
+        if (previous != size) {
+            throw new IOException("Route network file has bad " + table + " offsets");
+        }
+    }
+
+    /**
+     * Checks that every entry is a valid index into a table of the given size.
+     */
+    private static void checkRange(IntBuffer values, int size, String table) throws IOException {
+        for (int i = 0; i < values.limit(); i++) {
+            int value = values.get(i);
+            if (value < 0 || value >= size) {
+                throw new IOException("Route network file has a " + table + " out of range");
+            }
+        }
+    }
+
+    private static IntBuffer slice(ByteBuffer bytes, int intOffset, int intCount) {
+        return sliceBytes(bytes, intOffset * 4, intCount * 4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+
+    private static ByteBuffer sliceBytes(ByteBuffer bytes, int byteOffset, int byteCount) {
+        ByteBuffer view = bytes.duplicate();
+        view.position(bytes.position() + byteOffset);
+        view.limit(bytes.position() + byteOffset + byteCount);
+        return view.slice();
+    }
+}
@@ -0,0 +1,46 @@
+package com.example.mymatauapp;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.util.Log;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Locates and memory-maps the compiled route network.
+ * A network file downloaded into the app's files directory replaces the one bundled in the
+ * APK, so routes can be updated by swapping a single file.
+ */
+public class RouteNetworkLoader {
+
+    private static final String TAG = "RouteNetworkLoader";
+
+    /**
+     * Maps the newest available route network.
+     * @param context Any context; only the application's files and assets are used.
+     * @return The mapped network file.
+     * @throws IOException If neither an update nor the bundled asset can be read.
+     */
+    public static RouteNetworkFile load(Context context) throws IOException {
+        File update = new File(context.getFilesDir(), RouteNetworkFile.ASSET_NAME);
+        if (update.exists()) {
+            try {
+                RouteNetworkFile file = RouteNetworkFile.map(update);
+                Log.d(TAG, "Using downloaded route network with " + file.getNetwork().routeCount() + " routes.");
+                return file;
+            } catch (IOException | RuntimeException e) {
+                // read() rejects corrupt files with an IOException; a runtime failure here is
+                // still no reason to stop using the bundled network.
+                Log.w(TAG, "Downloaded route network is unreadable, using the bundled one.", e);
+            }
+        }
+
+        // The asset is stored uncompressed (see noCompress in build.gradle), so it can be
+        // mapped directly from inside the APK.
+        try (AssetFileDescriptor descriptor = context.getAssets().openFd(RouteNetworkFile.ASSET_NAME);
+             FileInputStream input = descriptor.createInputStream()) {
+            return RouteNetworkFile.map(input.getChannel(), descriptor.getStartOffset(), descriptor.getLength());
+        }
+    }
+}
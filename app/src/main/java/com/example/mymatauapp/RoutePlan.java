@@ -0,0 +1,124 @@
+package com.example.mymatauapp;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A route from the passenger to a destination, planned by RoutePlanningService and ready to
+ * draw: its walking and matatu legs, the level-of-detail lines of the matatu legs, the bounds
+ * to fit the camera to, and the time to get there.
+ *
+ * Immutable, so it can be built on a worker thread and handed to the main thread.
+ */
+public final class RoutePlan {
+
+    /**
+     * What the planner found.
+     */
+    public enum Kind {
+        /** There are no stages to plan with; only the two points are shown. */
+        NO_STAGES,
+        /** No matatu connects the nearest stages; the legs are one straight walk. */
+        DIRECT,
+        /** One matatu from the stage nearest the passenger to the stage nearest the destination. */
+        SINGLE_ROUTE,
+        /** A journey from the JourneyPlanner, which may change matatus. */
+        JOURNEY
+    }
+
+    private final Kind kind;
+    private final LatLng origin;
+    private final LatLng destination;
+    private final List<Journey.Leg> legs;
+    private final List<PolylineLevels> lines;
+    private final LatLngBounds bounds;
+    private final int etaSeconds;
+    private final int matatuLegCount;
+
+    /**
+     * @param lines For each leg, its line at several levels of detail, or null to draw the
+     * leg's points as they are.
+     */
+    RoutePlan(Kind kind, LatLng origin, LatLng destination, List<Journey.Leg> legs,
+              List<PolylineLevels> lines, LatLngBounds bounds, int etaSeconds) {
+        if (lines.size() != legs.size()) {
+            throw new IllegalArgumentException("One line per leg; got " + lines.size() + " for " + legs.size());
+        }
+        this.kind = kind;
+        this.origin = origin;
+        this.destination = destination;
+        this.legs = Collections.unmodifiableList(new ArrayList<>(legs));
+        this.lines = Collections.unmodifiableList(new ArrayList<>(lines));
+        this.bounds = bounds;
+        this.etaSeconds = etaSeconds;
+        int rides = 0;
+        for (Journey.Leg leg : legs) {
+            if (leg.getMode() == Journey.Mode.MATATU) {
+                rides++;
+            }
+        }
+        this.matatuLegCount = rides;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public LatLng getOrigin() {
+        return origin;
+    }
+
+    public LatLng getDestination() {
+        return destination;
+    }
+
+    /**
+     * @return The legs in travel order; empty for NO_STAGES.
+     */
+    public List<Journey.Leg> getLegs() {
+        return legs;
+    }
+
+    /**
+     * @return The leg's line at several levels of detail, or null to draw its points as they are.
+     */
+    public PolylineLevels getLine(int leg) {
+        return lines.get(leg);
+    }
+
+    /**
+     * @return The bounds of the origin, the destination and every leg.
+     */
+    public LatLngBounds getBounds() {
+        return bounds;
+    }
+
+    /**
+     * @return The time from the origin to the destination in seconds, walking and riding at
+     * the planner's speeds.
+     */
+    public int getEtaSeconds() {
+        return etaSeconds;
+    }
+
+    public int getMatatuLegCount() {
+        return matatuLegCount;
+    }
+
+    /**
+     * @return The number of changes between matatus.
+     */
+    public int getTransferCount() {
+        return Math.max(0, matatuLegCount - 1);
+    }
+
+    @Override
+    public String toString() {
+        return "RoutePlan{" + kind + ", " + legs.size() + " legs, " + matatuLegCount + " matatus, "
+                + etaSeconds + " s}";
+    }
+}
@@ -0,0 +1,203 @@
+package com.example.mymatauapp;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+import com.google.maps.android.SphericalUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Plans the passenger's route to a destination off the main thread: the nearest stages, the
+ * matatu route or journey between them, the level-of-detail lines and the camera bounds are
+ * all worked out on a worker pool, and the caller only draws the finished RoutePlan.
+ *
+ * Only the latest plan matters. Asking for a new one cancels the one before: if it has not
+ * started it never runs, if it is running it stops at its next step, and if it has finished
+ * its result is not delivered. Plans complete on the callback executor, so a caller that plans
+ * and cancels on that executor's thread never sees a superseded plan.
+ *
+ * Call plan and cancel on the callback executor's thread, normally the main thread.
+ */
+public class RoutePlanningService {
+
+    // Shared by every service. Two threads let a new plan start while a superseded one is
+    // still winding down.
+    private static final ExecutorService WORKERS = createWorkers();
+
+    private final CompletableFuture<MatatuRouteManager> graph;
+    private final Executor callbackExecutor;
+    private CompletableFuture<RoutePlan> current;
+
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong planningNanos = new AtomicLong();
+    private long started;
+
+    /**
+     * @param graph The route graph to plan with; plans wait for it to be built.
+     * @param callbackExecutor Where plans complete, normally the main thread.
+     */
+    public RoutePlanningService(CompletableFuture<MatatuRouteManager> graph, Executor callbackExecutor) {
+        this.graph = graph;
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    private static ExecutorService createWorkers() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "RoutePlanning");
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Starts planning a route, cancelling the plan before it.
+     * @return A future that completes with the plan on the callback executor, or is cancelled
+     * when a newer plan is asked for or {@link #cancel()} is called. If the route graph or the
+     * planning fails, it completes exceptionally, also on the callback executor.
+     */
+    public CompletableFuture<RoutePlan> plan(LatLng origin, LatLng destination) {
+        cancel();
+        CompletableFuture<RoutePlan> result = new CompletableFuture<>();
+        current = result;
+        started++;
+        graph.whenCompleteAsync((manager, failure) -> {
+            if (failure != null) {
+                callbackExecutor.execute(() -> result.completeExceptionally(failure));
+                return;
+            }
+            // Cancelled while queued.
+            if (result.isDone()) {
+                cancelled.incrementAndGet();
+                return;
+            }
+            long start = System.nanoTime();
+            RoutePlan plan;
+            try {
+                plan = compute(manager, origin, destination, result::isDone);
+            } catch (CancellationException e) {
+                cancelled.incrementAndGet();
+                return;
+            } catch (RuntimeException e) {
+                callbackExecutor.execute(() -> result.completeExceptionally(e));
+                return;
+            }
+            planningNanos.addAndGet(System.nanoTime() - start);
+            completed.incrementAndGet();
+            // Completing a future that was cancelled in the meantime does nothing.
+            callbackExecutor.execute(() -> result.complete(plan));
+        }, WORKERS);
+        return result;
+    }
+
+    /**
+     * Cancels the latest plan, if it has not completed.
+     */
+    public void cancel() {
+        if (current != null) {
+            current.cancel(false);
+            current = null;
+        }
+    }
+
+    /**
+     * Plans a route on the calling thread.
+     * @param cancelled Checked between steps; once it returns true, planning stops with a
+     * CancellationException.
+     */
+    static RoutePlan compute(MatatuRouteManager manager, LatLng origin, LatLng destination,
+                             BooleanSupplier cancelled) {
+        LatLng pickup = manager.findNearestStop(origin);
+        LatLng dropOff = manager.findNearestStop(destination);
+        LatLngBounds.Builder bounds = new LatLngBounds.Builder().include(origin).include(destination);
+        if (pickup == null || dropOff == null) {
+            return new RoutePlan(RoutePlan.Kind.NO_STAGES, origin, destination, Collections.emptyList(),
+                    Collections.emptyList(), bounds.build(), walkingSeconds(origin, destination));
+        }
+        checkCancelled(cancelled);
+
+        List<LatLng> waypoints = manager.getWaypointsBetween(pickup, dropOff);
+        checkCancelled(cancelled);
+        if (waypoints == null || waypoints.isEmpty()) {
+            // No single route connects the two stages, so look for a journey with transfers.
+            List<Journey> journeys = manager.planJourney(origin, destination);
+            checkCancelled(cancelled);
+            if (journeys.isEmpty()) {
+                Journey.Leg walk = new Journey.Leg(Journey.Mode.WALK, null, Arrays.asList(origin, destination),
+                        0, walkingSeconds(origin, destination));
+                return new RoutePlan(RoutePlan.Kind.DIRECT, origin, destination, Collections.singletonList(walk),
+                        Collections.singletonList(null), bounds.build(), walk.getArrivalTime());
+            }
+            // The first journey has the fewest transfers.
+            Journey journey = journeys.get(0);
+            return new RoutePlan(RoutePlan.Kind.JOURNEY, origin, destination, journey.getLegs(),
+                    linesOf(journey.getLegs(), bounds, cancelled), bounds.build(), journey.getArrivalTime());
+        }
+
+        // Walk to the pickup stage, ride to the drop-off stage, and walk on to the destination.
+        List<LatLng> ride = new ArrayList<>(waypoints.size() + 2);
+        ride.add(pickup);
+        ride.addAll(waypoints);
+        ride.add(dropOff);
+        int boarding = walkingSeconds(origin, pickup);
+        int alighting = boarding + (int) Math.round(SphericalUtil.computeLength(ride) / JourneyPlanner.MATATU_SPEED_MPS);
+        int arrival = alighting + walkingSeconds(dropOff, destination);
+        List<Journey.Leg> legs = Arrays.asList(
+                new Journey.Leg(Journey.Mode.WALK, null, Arrays.asList(origin, pickup), 0, boarding),
+                new Journey.Leg(Journey.Mode.MATATU, null, ride, boarding, alighting),
+                new Journey.Leg(Journey.Mode.WALK, null, Arrays.asList(dropOff, destination), alighting, arrival));
+        return new RoutePlan(RoutePlan.Kind.SINGLE_ROUTE, origin, destination, legs,
+                linesOf(legs, bounds, cancelled), bounds.build(), arrival);
+    }
+
+    /**
+     * Builds the level-of-detail lines of the matatu legs, adding every leg to the bounds.
+     */
+    private static List<PolylineLevels> linesOf(List<Journey.Leg> legs, LatLngBounds.Builder bounds,
+                                                BooleanSupplier cancelled) {
+        List<PolylineLevels> lines = new ArrayList<>(legs.size());
+        for (Journey.Leg leg : legs) {
+            checkCancelled(cancelled);
+            for (LatLng point : leg.getPoints()) {
+                bounds.include(point);
+            }
+            lines.add(leg.getMode() == Journey.Mode.MATATU ? new PolylineLevels(leg.getPoints()) : null);
+        }
+        return lines;
+    }
+
+    private static int walkingSeconds(LatLng from, LatLng to) {
+        return (int) Math.round(SphericalUtil.computeDistanceBetween(from, to) / JourneyPlanner.WALKING_SPEED_MPS);
+    }
+
+    private static void checkCancelled(BooleanSupplier cancelled) {
+        if (cancelled.getAsBoolean()) {
+            throw new CancellationException("A newer route plan was asked for");
+        }
+    }
+
+    /**
+     * Returns how many plans were asked for, finished and cancelled, for the logs.
+     */
+    public String stats() {
+        long done = completed.get();
+        return "Route planning: " + started + " plans asked for, " + done + " planned"
+                + (done > 0 ? String.format(" in %.1f ms on average", planningNanos.get() / 1e6 / done) : "")
+                + ", " + cancelled.get() + " cancelled before finishing";
+    }
+}
@@ -0,0 +1,332 @@
+package com.example.mymatauapp;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * One route's stops as a polyline with distances along it, for relating a vehicle position
+ * to the route: how far along it is, how far off it is, and how far to the next stop.
+ *
+ * Positions are projected with a local equirectangular approximation centred on the route,
+ * which is accurate to well under a metre over a city-sized area.
+ */
+public class RoutePolyline {
+
+    private static final double EARTH_RADIUS_METERS = 6371009;
+    // Further than this from the route, a position is taken to be off it: a detour, or a fix
+    // from before the trip joined the route.
+    private static final double MAX_ROUTE_OFFSET_METERS = 200;
+    // The segment grid's cells are at least this wide, and there are at most MAX_GRID_CELLS.
+    private static final double GRID_CELL_METERS = 100;
+    private static final int MAX_GRID_CELLS = 1 << 16;
+
+    private final double originLat;
+    private final double originLng;
+    private final double metersPerDegreeLat;
+    private final double metersPerDegreeLng;
+    private final double[] x; // metres east of the origin
+    private final double[] y; // metres north of the origin
+    private final double[] along; // distance from the first stop to each stop
+    private volatile SegmentGrid grid; // built by the first segmentsNear
+
+    /**
+     * Where a position lies relative to the route.
+     */
+    public static class Projection {
+        private final double distanceAlong;
+        private final double offset;
+        private final int segment;
+
+        Projection(double distanceAlong, double offset, int segment) {
+            this.distanceAlong = distanceAlong;
+            this.offset = offset;
+            this.segment = segment;
+        }
+
+        /** The distance in metres from the first stop to the closest point on the route. */
+        public double getDistanceAlong() {
+            return distanceAlong;
+        }
+
+        /** The distance in metres from the position to the route. */
+        public double getOffset() {
+            return offset;
+        }
+
+        /**
+         * Whether the position is close enough to the route to be on it, so its distance along
+         * the route and next stop mean something.
+         */
+        public boolean isOnRoute() {
+            return offset <= MAX_ROUTE_OFFSET_METERS;
+        }
+
+        /** The segment of the closest point: it lies between stop segment and stop segment + 1. */
+        public int getSegment() {
+            return segment;
+        }
+    }
+
+    /**
+     * @param stops The route's stops in travel order; at least one.
+     */
+    public RoutePolyline(List<LatLng> stops) {
+        if (stops.isEmpty()) {
+            throw new IllegalArgumentException("A route needs at least one stop");
+        }
+        int n = stops.size();
+        originLat = stops.get(0).latitude;
+        originLng = stops.get(0).longitude;
+        metersPerDegreeLat = Math.toRadians(EARTH_RADIUS_METERS);
+        metersPerDegreeLng = metersPerDegreeLat * Math.cos(Math.toRadians(originLat));
+        x = new double[n];
+        y = new double[n];
+        along = new double[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = (stops.get(i).longitude - originLng) * metersPerDegreeLng;
+            y[i] = (stops.get(i).latitude - originLat) * metersPerDegreeLat;
+            if (i > 0) {
+                along[i] = along[i - 1] + Math.hypot(x[i] - x[i - 1], y[i] - y[i - 1]);
+            }
+        }
+    }
+
+    public int stopCount() {
+        return along.length;
+    }
+
+    /**
+     * @return The number of segments between consecutive stops.
+     */
+    public int segmentCount() {
+        return along.length - 1;
+    }
+
+    /**
+     * @return The distance in metres from the first stop to the given stop.
+     */
+    public double stopDistance(int stop) {
+        return along[stop];
+    }
+
+    /**
+     * @return The length of the route in metres.
+     */
+    public double length() {
+        return along[along.length - 1];
+    }
+
+    /**
+     * Finds the closest point on the route to a position.
+     */
+    public Projection project(LatLng position) {
+        double px = (position.longitude - originLng) * metersPerDegreeLng;
+        double py = (position.latitude - originLat) * metersPerDegreeLat;
+        if (along.length == 1) {
+            return new Projection(0, Math.hypot(px - x[0], py - y[0]), 0);
+        }
+        double bestOffsetSquared = Double.MAX_VALUE;
+        double bestAlong = 0;
+        int bestSegment = 0;
+        for (int i = 0; i + 1 < along.length; i++) {
+            double t = segmentFraction(i, px, py);
+            double ox = px - (x[i] + t * (x[i + 1] - x[i]));
+            double oy = py - (y[i] + t * (y[i + 1] - y[i]));
+            double offsetSquared = ox * ox + oy * oy;
+            if (offsetSquared < bestOffsetSquared) {
+                bestOffsetSquared = offsetSquared;
+                bestAlong = along[i] + t * (along[i + 1] - along[i]);
+                bestSegment = i;
+            }
+        }
+        return new Projection(bestAlong, Math.sqrt(bestOffsetSquared), bestSegment);
+    }
+
+    /**
+     * Finds the closest point to a position on one segment of the route.
+     * @param segment Between 0 and segmentCount() - 1.
+     */
+    public Projection project(LatLng position, int segment) {
+        double px = (position.longitude - originLng) * metersPerDegreeLng;
+        double py = (position.latitude - originLat) * metersPerDegreeLat;
+        double t = segmentFraction(segment, px, py);
+        double ox = px - (x[segment] + t * (x[segment + 1] - x[segment]));
+        double oy = py - (y[segment] + t * (y[segment + 1] - y[segment]));
+        return new Projection(along[segment] + t * (along[segment + 1] - along[segment]), Math.hypot(ox, oy), segment);
+    }
+
+    /**
+     * Passes every segment that comes within a radius of a position to the consumer, along with
+     * some a little further away, and possibly more than once. Only the grid cells around the
+     * position are looked at, so the cost depends on how many segments pass nearby rather than
+     * on the length of the route.
+     */
+    public void segmentsNear(LatLng position, double radiusMeters, IntConsumer consumer) {
+        SegmentGrid grid = this.grid;
+        if (grid == null) {
+            // Racing threads may each build one; they are identical.
+            grid = new SegmentGrid();
+            this.grid = grid;
+        }
+        double px = (position.longitude - originLng) * metersPerDegreeLng;
+        double py = (position.latitude - originLat) * metersPerDegreeLat;
+        grid.query(px, py, radiusMeters, consumer);
+    }
+
+    /**
+     * The segments by the cells of a uniform grid over the route that their bounding boxes
+     * overlap, in compressed rows: cell c holds segments[cellStart[c]] until cellStart[c + 1].
+     */
+    private class SegmentGrid {
+        private final double minX;
+        private final double minY;
+        private final double cellSize;
+        private final int columns;
+        private final int rows;
+        private final int[] cellStart;
+        private final int[] segments;
+
+        SegmentGrid() {
+            double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+            double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+            for (int i = 0; i < along.length; i++) {
+                minX = Math.min(minX, x[i]);
+                minY = Math.min(minY, y[i]);
+                maxX = Math.max(maxX, x[i]);
+                maxY = Math.max(maxY, y[i]);
+            }
+            this.minX = minX;
+            this.minY = minY;
+            double width = maxX - minX;
+            double height = maxY - minY;
+            cellSize = Math.max(GRID_CELL_METERS, Math.sqrt(width * height / MAX_GRID_CELLS));
+            columns = Math.min(MAX_GRID_CELLS, (int) (width / cellSize) + 1);
+            rows = Math.max(1, Math.min(MAX_GRID_CELLS / columns, (int) (height / cellSize) + 1));
+
+            // Count, then fill, each segment into the cells its bounding box covers.
+            cellStart = new int[columns * rows + 1];
+            for (int segment = 0; segment + 1 < along.length; segment++) {
+                forEachCell(segment, cell -> cellStart[cell + 1]++);
+            }
+            for (int cell = 0; cell < columns * rows; cell++) {
+                cellStart[cell + 1] += cellStart[cell];
+            }
+            segments = new int[cellStart[columns * rows]];
+            int[] next = cellStart.clone();
+            for (int segment = 0; segment + 1 < along.length; segment++) {
+                int s = segment;
+                forEachCell(segment, cell -> segments[next[cell]++] = s);
+            }
+        }
+
+        private void forEachCell(int segment, IntConsumer consumer) {
+            int c0 = column(Math.min(x[segment], x[segment + 1]));
+            int c1 = column(Math.max(x[segment], x[segment + 1]));
+            int r0 = row(Math.min(y[segment], y[segment + 1]));
+            int r1 = row(Math.max(y[segment], y[segment + 1]));
+            for (int r = r0; r <= r1; r++) {
+                for (int c = c0; c <= c1; c++) {
+                    consumer.accept(r * columns + c);
+                }
+            }
+        }
+
+        void query(double px, double py, double radius, IntConsumer consumer) {
+            if (px + radius < minX || py + radius < minY
+                    || px - radius > minX + columns * cellSize || py - radius > minY + rows * cellSize) {
+                return;
+            }
+            int c1 = column(px + radius);
+            int r1 = row(py + radius);
+            for (int r = row(py - radius); r <= r1; r++) {
+                for (int c = column(px - radius); c <= c1; c++) {
+                    int cell = r * columns + c;
+                    for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+                        consumer.accept(segments[i]);
+                    }
+                }
+            }
+        }
+
+        private int column(double px) {
+            return Math.max(0, Math.min(columns - 1, (int) ((px - minX) / cellSize)));
+        }
+
+        private int row(double py) {
+            return Math.max(0, Math.min(rows - 1, (int) ((py - minY) / cellSize)));
+        }
+    }
+
+    /**
+     * @return How far along a segment, from 0 at its start to 1 at its end, the closest point
+     * to the local position px, py lies.
+     */
+    private double segmentFraction(int segment, double px, double py) {
+        double dx = x[segment + 1] - x[segment];
+        double dy = y[segment + 1] - y[segment];
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared == 0 ? 0 : ((px - x[segment]) * dx + (py - y[segment]) * dy) / lengthSquared;
+        return Math.max(0, Math.min(1, t));
+    }
+
+    /**
+     * @return The point on the route at a distance from the first stop, clamped to the route.
+     */
+    public LatLng positionAt(double distanceAlong) {
+        if (along.length == 1 || distanceAlong <= 0) {
+            return toLatLng(x[0], y[0]);
+        }
+        if (distanceAlong >= length()) {
+            return toLatLng(x[along.length - 1], y[along.length - 1]);
+        }
+        int i = segmentAt(distanceAlong);
+        double segmentLength = along[i + 1] - along[i];
+        double t = segmentLength == 0 ? 0 : (distanceAlong - along[i]) / segmentLength;
+        return toLatLng(x[i] + t * (x[i + 1] - x[i]), y[i] + t * (y[i + 1] - y[i]));
+    }
+
+    /**
+     * @return The first stop strictly beyond a distance along the route in the direction of
+     * travel, or -1 if there is none.
+     */
+    public int nextStop(double distanceAlong, boolean forward) {
+        if (forward) {
+            for (int i = 0; i < along.length; i++) {
+                if (along[i] > distanceAlong) {
+                    return i;
+                }
+            }
+        } else {
+            for (int i = along.length - 1; i >= 0; i--) {
+                if (along[i] < distanceAlong) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The segment containing a distance along the route (binary search), clamped to
+     * the first and last segments.
+     */
+    public int segmentAt(double distanceAlong) {
+        int low = 0;
+        int high = along.length - 2;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (along[mid] <= distanceAlong) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private LatLng toLatLng(double px, double py) {
+        return new LatLng(originLat + py / metersPerDegreeLat, originLng + px / metersPerDegreeLng);
+    }
+}
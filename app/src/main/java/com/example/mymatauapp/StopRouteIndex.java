@@ -0,0 +1,101 @@
+package com.example.mymatauapp;
+
+import java.nio.IntBuffer;
+
+/**
+ * An inverted index from each canonical stop ID to the routes that serve it and the
+ * position of the stop within each of those routes.
+ * The entries are kept in flat arrays (compressed rows): the entries for stop s are
+ * found at [offsets[s], offsets[s + 1]). The arrays can also be read in place from a
+ * memory-mapped network file, where they are stored precomputed.
+ */
+public class StopRouteIndex {
+
+    private final IntBuffer offsets;
+    private final IntBuffer entryRoutes;
+    private final IntBuffer entryPositions;
+
+    /**
+     * Builds the index from the stop sequence of every route in a network.
+     * @param network The network to index.
+     */
+    public StopRouteIndex(RouteNetwork network) {
+        int stopCount = network.stopCount();
+        int[] offsets = new int[stopCount + 1];
+
+        // First pass: count how often every stop appears.
+        int total = network.routeStopCount();
+        for (int i = 0; i < total; i++) {
+            offsets[network.routeStopAt(i) + 1]++;
+        }
+        for (int s = 0; s < stopCount; s++) {
+            offsets[s + 1] += offsets[s];
+        }
+
+        // Second pass: fill in (route, position) pairs. Routes are visited in order, so the
+        // entries for every stop end up sorted by route and then by position.
+        int[] entryRoutes = new int[total];
+        int[] entryPositions = new int[total];
+        int[] cursor = new int[stopCount];
+        for (int route = 0; route < network.routeCount(); route++) {
+            int start = network.routeStart(route);
+            for (int i = start; i < network.routeEnd(route); i++) {
+                int stop = network.routeStopAt(i);
+                int slot = offsets[stop] + cursor[stop]++;
+                entryRoutes[slot] = route;
+                entryPositions[slot] = i - start;
+            }
+        }
+        this.offsets = IntBuffer.wrap(offsets);
+        this.entryRoutes = IntBuffer.wrap(entryRoutes);
+        this.entryPositions = IntBuffer.wrap(entryPositions);
+    }
+
+    /**
+     * Wraps index tables that were computed ahead of time.
+     * @param offsets Per-stop entry offsets; one more than the number of stops.
+     * @param entryRoutes The route index of every entry.
+     * @param entryPositions The position within its route of every entry.
+     */
+    StopRouteIndex(IntBuffer offsets, IntBuffer entryRoutes, IntBuffer entryPositions) {
+        this.offsets = offsets;
+        this.entryRoutes = entryRoutes;
+        this.entryPositions = entryPositions;
+    }
+
+    public int stopCount() {
+        return offsets.limit() - 1;
+    }
+
+    public int entryCount() {
+        return entryRoutes.limit();
+    }
+
+    /**
+     * @return The index of the first entry for the given stop.
+     */
+    public int entriesStart(int stop) {
+        return offsets.get(stop);
+    }
+
+    /**
+     * @return One past the index of the last entry for the given stop.
+     */
+    public int entriesEnd(int stop) {
+        return offsets.get(stop + 1);
+    }
+
+    /**
+     * @return The route index of an entry.
+     */
+    public int entryRoute(int entry) {
+        return entryRoutes.get(entry);
+    }
+
+    /**
+     * @return The position of the stop within the route of an entry.
+     */
+    public int entryPosition(int entry) {
+        return entryPositions.get(entry);
+    }
+}
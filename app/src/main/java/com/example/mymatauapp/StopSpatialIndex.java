@@ -0,0 +1,322 @@
+package com.example.mymatauapp;
+
+import com.google.android.gms.maps.model.LatLng;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A static k-d tree over matatu stops for fast nearest-stop lookups.
+ * Each stop is projected onto the unit sphere as an (x, y, z) point. The straight-line
+ * (chord) distance between two such points grows with the great-circle distance, so the
+ * tree returns exactly the same stops as a haversine scan, without any trig per node.
+ */
+public class StopSpatialIndex {
+
+    private static final double EARTH_RADIUS = 6371009.0; // Same radius SphericalUtil uses
+
+    private final double[] latitudes;
+    private final double[] longitudes;
+    // Node i of the tree holds stop nodes[i]. The tree is implicit: the subtree for the range
+    // [lo, hi) has its root at the middle and is split on the axis given by its depth.
+    private final int[] nodes;
+    private final double[] xs;
+    private final double[] ys;
+    private final double[] zs;
+
+    /**
+     * Builds the index over a list of stops; a stop's index is its position in the list.
+     * @param stops The stops to index.
+     */
+    public StopSpatialIndex(List<LatLng> stops) {
+        this(latitudesOf(stops), longitudesOf(stops));
+    }
+
+    /**
+     * Builds the index over the stop table of a route network; a stop's index is its stop ID.
+     * @param network The network whose stops to index.
+     */
+    public StopSpatialIndex(RouteNetwork network) {
+        this(latitudesOf(network), longitudesOf(network));
+    }
+
+    private StopSpatialIndex(double[] latitudes, double[] longitudes) {
+        this.latitudes = latitudes;
+        this.longitudes = longitudes;
+        int count = latitudes.length;
+        this.nodes = new int[count];
+        this.xs = new double[count];
+        this.ys = new double[count];
+        this.zs = new double[count];
+
+        for (int i = 0; i < count; i++) {
+            double lat = Math.toRadians(latitudes[i]);
+            double lng = Math.toRadians(longitudes[i]);
+            xs[i] = Math.cos(lat) * Math.cos(lng);
+            ys[i] = Math.cos(lat) * Math.sin(lng);
+            zs[i] = Math.sin(lat);
+            nodes[i] = i;
+        }
+        build(0, count, 0);
+    }
+
+    private static double[] latitudesOf(List<LatLng> stops) {
+        double[] result = new double[stops.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = stops.get(i).latitude;
+        }
+        return result;
+    }
+
+    private static double[] longitudesOf(List<LatLng> stops) {
+        double[] result = new double[stops.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = stops.get(i).longitude;
+        }
+        return result;
+    }
+
+    private static double[] latitudesOf(RouteNetwork network) {
+        double[] result = new double[network.stopCount()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = network.stopLatitude(i);
+        }
+        return result;
+    }
+
+    private static double[] longitudesOf(RouteNetwork network) {
+        double[] result = new double[network.stopCount()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = network.stopLongitude(i);
+        }
+        return result;
+    }
+
+    public int size() {
+        return nodes.length;
+    }
+
+    /**
+     * Finds the stop closest to a location.
+     * @param location The location to search from.
+     * @return The index of the nearest stop in the original list, or -1 if the index is empty.
+     */
+    public int nearestIndex(LatLng location) {
+        if (nodes.length == 0) {
+            return -1;
+        }
+        Search search = new Search(location, 1);
+        search.visit(0, nodes.length, 0);
+        return search.results[0];
+    }
+
+    /**
+     * Finds the stop closest to a location.
+     * @param location The location to search from.
+     * @return The nearest stop, or null if the index is empty.
+     */
+    public LatLng nearest(LatLng location) {
+        int index = nearestIndex(location);
+        return index == -1 ? null : stopAt(index);
+    }
+
+    /**
+     * Finds the k stops closest to a location, nearest first.
+     * @param location The location to search from.
+     * @param k The maximum number of stops to return.
+     * @return Up to k stop indices, ordered by increasing distance.
+     */
+    public int[] kNearestIndices(LatLng location, int k) {
+        int limit = Math.min(k, nodes.length);
+        if (limit <= 0) {
+            return new int[0];
+        }
+        Search search = new Search(location, limit);
+        search.visit(0, nodes.length, 0);
+        return Arrays.copyOf(search.results, search.found);
+    }
+
+    /**
+     * Finds the k stops closest to a location, nearest first.
+     * @param location The location to search from.
+     * @param k The maximum number of stops to return.
+     * @return Up to k stops, ordered by increasing distance.
+     */
+    public List<LatLng> kNearest(LatLng location, int k) {
+        int[] indices = kNearestIndices(location, k);
+        List<LatLng> result = new ArrayList<>(indices.length);
+        for (int index : indices) {
+            result.add(stopAt(index));
+        }
+        return result;
+    }
+
+    /**
+     * Finds every stop within a given great-circle distance of a location.
+     * @param location The location to search from.
+     * @param radiusMeters The search radius in meters.
+     * @return The indices of the matching stops, in no particular order.
+     */
+    public int[] withinRadiusIndices(LatLng location, double radiusMeters) {
+        if (nodes.length == 0) {
+            return new int[0];
+        }
+        double angle = Math.min(radiusMeters / EARTH_RADIUS, Math.PI);
+        double chord = 2 * Math.sin(angle / 2);
+        Search search = new Search(location, 0);
+        search.collectWithin(0, nodes.length, 0, chord * chord);
+        return Arrays.copyOf(search.results, search.found);
+    }
+
+    /**
+     * @return The position of the stop with the given index.
+     */
+    public LatLng stopAt(int index) {
+        return new LatLng(latitudes[index], longitudes[index]);
+    }
+
+    /**
+     * Recursively orders nodes[lo, hi) so that the middle element is the median on the split axis.
+     */
+    private void build(int lo, int hi, int depth) {
+        if (hi - lo <= 1) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        select(lo, hi - 1, mid, depth % 3);
+        build(lo, mid, depth + 1);
+        build(mid + 1, hi, depth + 1);
+    }
+
+    /**
+     * Quickselect: partitions nodes[left, right] around the element that belongs at position k.
+     */
+    private void select(int left, int right, int k, int axis) {
+        while (left < right) {
+            double pivot = coordinate(nodes[(left + right) >>> 1], axis);
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (coordinate(nodes[i], axis) < pivot) i++;
+                while (coordinate(nodes[j], axis) > pivot) j--;
+                if (i <= j) {
+                    int tmp = nodes[i];
+                    nodes[i] = nodes[j];
+                    nodes[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private double coordinate(int stop, int axis) {
+        return axis == 0 ? xs[stop] : axis == 1 ? ys[stop] : zs[stop];
+    }
+
+    /**
+     * Holds the state of a single query so the index itself stays immutable and thread-safe.
+     */
+    private class Search {
+        private final double qx;
+        private final double qy;
+        private final double qz;
+        private final int capacity;
+        // For k-nearest searches this is a list sorted by distance; for radius searches it grows.
+        private int[] results;
+        private double[] distances;
+        private int found;
+
+        Search(LatLng location, int capacity) {
+            double lat = Math.toRadians(location.latitude);
+            double lng = Math.toRadians(location.longitude);
+            this.qx = Math.cos(lat) * Math.cos(lng);
+            this.qy = Math.cos(lat) * Math.sin(lng);
+            this.qz = Math.sin(lat);
+            this.capacity = capacity;
+            this.results = new int[Math.max(capacity, 8)];
+            this.distances = new double[Math.max(capacity, 8)];
+        }
+
+        private double squaredDistance(int stop) {
+            double dx = xs[stop] - qx;
+            double dy = ys[stop] - qy;
+            double dz = zs[stop] - qz;
+            return dx * dx + dy * dy + dz * dz;
+        }
+
+        private double axisDelta(int stop, int axis) {
+            return axis == 0 ? qx - xs[stop] : axis == 1 ? qy - ys[stop] : qz - zs[stop];
+        }
+
+        void visit(int lo, int hi, int depth) {
+            if (lo >= hi) {
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            int stop = nodes[mid];
+            offer(stop, squaredDistance(stop));
+
+            double delta = axisDelta(stop, depth % 3);
+            // Descend into the side containing the query first, then check whether the
+            // splitting plane is close enough for the other side to hold a better stop.
+            if (delta < 0) {
+                visit(lo, mid, depth + 1);
+                if (found < capacity || delta * delta < distances[found - 1]) {
+                    visit(mid + 1, hi, depth + 1);
+                }
+            } else {
+                visit(mid + 1, hi, depth + 1);
+                if (found < capacity || delta * delta < distances[found - 1]) {
+                    visit(lo, mid, depth + 1);
+                }
+            }
+        }
+
+        private void offer(int stop, double distance) {
+            if (found == capacity && distance >= distances[found - 1]) {
+                return;
+            }
+            // Insertion into the small sorted result list; ties keep the lower stop index
+            // so results match a first-wins linear scan.
+            int pos = found < capacity ? found++ : found - 1;
+            while (pos > 0 && (distances[pos - 1] > distance
+                    || (distances[pos - 1] == distance && results[pos - 1] > stop))) {
+                results[pos] = results[pos - 1];
+                distances[pos] = distances[pos - 1];
+                pos--;
+            }
+            results[pos] = stop;
+            distances[pos] = distance;
+        }
+
+        void collectWithin(int lo, int hi, int depth, double maxSquared) {
+            if (lo >= hi) {
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            int stop = nodes[mid];
+            if (squaredDistance(stop) <= maxSquared) {
+                if (found == results.length) {
+                    results = Arrays.copyOf(results, found * 2);
+                }
+                results[found++] = stop;
+            }
+
+            double delta = axisDelta(stop, depth % 3);
+            if (delta < 0 || delta * delta <= maxSquared) {
+                collectWithin(lo, mid, depth + 1, maxSquared);
+            }
+            if (delta >= 0 || delta * delta <= maxSquared) {
+                collectWithin(mid + 1, hi, depth + 1, maxSquared);
+            }
+        }
+    }
+}
@@ -0,0 +1,466 @@
+package com.example.mymatauapp;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okio.ByteString;
+
+/**
+ * Publishes and listens to positions over one WebSocket to a relay, in VehiclePositionCodec
+ * frames: a moving matatu costs about a dozen bytes per position instead of a document write,
+ * so positions can go out every couple of seconds and reach passengers as soon as they are
+ * taken.
+ *
+ * A listen sends the relay a subscription for its route and cell. The relay replies with the
+ * trips it matches and a sync mark, and from then on forwards every position of a trip on the
+ * route that is in, or has just left, the cell; which of those the listener is told about as
+ * added, modified or removed is worked out here. Positions carry their publisher's sequence
+ * number, so one the listener has already seen is not passed on twice.
+ *
+ * The connection is opened on first use and reopened with backoff when it drops; on
+ * reconnecting, subscriptions are made again and their listeners told only what changed
+ * meanwhile. Publishing while disconnected fails, so LocationUploadBatcher keeps the fixes
+ * and retries. Listeners are called on the callback executor; the rest is thread-safe.
+ */
+public class StreamVehiclePositionTransport implements VehiclePositionTransport {
+
+    private static final String TAG = "StreamVehicleTransport";
+    private static final long PUBLISH_INTERVAL_MILLIS = 2000;
+    private static final long MIN_RECONNECT_MILLIS = 1000;
+    private static final long MAX_RECONNECT_MILLIS = 30000;
+    // TCP loses nothing, so key frames are only needed where a trip first appears; the odd
+    // one beyond that bounds the damage of a bug.
+    private static final int KEY_FRAME_INTERVAL = 64;
+
+    private class Subscription implements Registration {
+        final int id;
+        final String routeId;
+        final String cell;
+        final Listener listener;
+        // The trips the listener has been told are in its cell, and the sequence numbers of
+        // their positions.
+        final Map<String, Long> members = new HashMap<>();
+        // Until the relay's sync mark: the changes held back, and the trips it has sent.
+        List<Change> pending = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        boolean synced;
+        boolean everSynced;
+        volatile boolean removed;
+
+        Subscription(int id, String routeId, String cell, Listener listener) {
+            this.id = id;
+            this.routeId = routeId;
+            this.cell = cell;
+            this.listener = listener;
+        }
+
+        boolean matches(VehiclePosition position) {
+            return routeId.equals(position.getRouteId()) && (cell == null || cell.equals(position.getCell()));
+        }
+
+        @Override
+        public void remove() {
+            unsubscribe(this);
+        }
+    }
+
+    /**
+     * Times the reconnects, separate so tests can run them without waiting.
+     */
+    interface Reconnector {
+        void schedule(Runnable task, long delayMillis);
+
+        /** Drops any reconnect still to run. */
+        void shutdown();
+    }
+
+    private final WebSocket.Factory sockets;
+    private final String url;
+    private final Executor callbackExecutor;
+    private final Reconnector reconnector;
+
+    // Everything below is guarded by the lock.
+    private final Object lock = new Object();
+    private WebSocket socket;
+    private boolean open;
+    private boolean closed;
+    private boolean reconnectScheduled;
+    private long reconnectMillis = MIN_RECONNECT_MILLIS;
+    private VehiclePositionCodec.Encoder encoder;
+    private VehiclePositionCodec.Decoder decoder;
+    private final Map<Integer, Subscription> subscriptions = new LinkedHashMap<>();
+    private int nextSubscription = 1;
+    private final Map<String, Long> publishedSeq = new HashMap<>();
+
+    private long connects;
+    private long messagesSent;
+    private long bytesSent;
+    private long messagesReceived;
+    private long bytesReceived;
+    private long gaps;
+
+    /**
+     * @param sockets Opens the connection, such as an OkHttpClient.
+     * @param url The relay's WebSocket URL, e.g. ws://10.0.2.2:8080/positions.
+     * @param callbackExecutor Where listeners are called, such as the main thread.
+     */
+    public StreamVehiclePositionTransport(WebSocket.Factory sockets, String url, Executor callbackExecutor) {
+        this(sockets, url, callbackExecutor, reconnectThread());
+    }
+
+    StreamVehiclePositionTransport(WebSocket.Factory sockets, String url, Executor callbackExecutor,
+                                   Reconnector reconnector) {
+        this.sockets = sockets;
+        this.url = url;
+        this.callbackExecutor = callbackExecutor;
+        this.reconnector = reconnector;
+    }
+
+    private static Reconnector reconnectThread() {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "VehicleStreamReconnect");
+            thread.setDaemon(true);
+            return thread;
+        });
+        return new Reconnector() {
+            @Override
+            public void schedule(Runnable task, long delayMillis) {
+                executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+            }
+
+            @Override
+            public void shutdown() {
+                executor.shutdownNow();
+            }
+        };
+    }
+
+    @Override
+    public Registration listen(String routeId, String cell, Listener listener) {
+        synchronized (lock) {
+            Subscription subscription = new Subscription(nextSubscription++, routeId, cell, listener);
+            subscriptions.put(subscription.id, subscription);
+            if (open) {
+                encoder.subscribe(subscription.id, routeId, cell);
+                send();
+            } else {
+                connect();
+            }
+            return subscription;
+        }
+    }
+
+    private void unsubscribe(Subscription subscription) {
+        synchronized (lock) {
+            subscription.removed = true;
+            if (subscriptions.remove(subscription.id) != null && open) {
+                encoder.unsubscribe(subscription.id);
+                send();
+            }
+        }
+    }
+
+    @Override
+    public boolean isOnline() {
+        synchronized (lock) {
+            connect();
+            return open;
+        }
+    }
+
+    @Override
+    public void publish(VehiclePosition position, Callback callback) {
+        boolean sent;
+        synchronized (lock) {
+            connect();
+            if (open) {
+                // Sequence numbers start from the clock, so they keep growing across restarts.
+                Long last = publishedSeq.get(position.getTripId());
+                long seq = last != null ? last + 1 : System.currentTimeMillis();
+                publishedSeq.put(position.getTripId(), seq);
+                encoder.position(position, seq);
+                sent = send();
+            } else {
+                sent = false;
+            }
+        }
+        callback.onComplete(sent ? null : new IOException("Not connected to " + url));
+    }
+
+    @Override
+    public void end(String tripId) {
+        synchronized (lock) {
+            publishedSeq.remove(tripId);
+            if (open) {
+                encoder.removed(tripId);
+                send();
+            }
+        }
+    }
+
+    @Override
+    public long getPublishIntervalMillis() {
+        return PUBLISH_INTERVAL_MILLIS;
+    }
+
+    /**
+     * Closes the connection for good. Listeners are not called again.
+     */
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            for (Subscription subscription : subscriptions.values()) {
+                subscription.removed = true;
+            }
+            subscriptions.clear();
+            if (socket != null) {
+                socket.close(1000, null);
+                socket = null;
+            }
+            open = false;
+        }
+        reconnector.shutdown();
+    }
+
+    // Called with the lock held.
+    private void connect() {
+        if (socket != null || closed || reconnectScheduled) {
+            return;
+        }
+        connects++;
+        socket = sockets.newWebSocket(new Request.Builder().url(url).build(), new StreamListener());
+    }
+
+    // Called with the lock held.
+    private boolean send() {
+        if (encoder.isEmpty()) {
+            return true;
+        }
+        byte[] message = encoder.flush();
+        if (!socket.send(ByteString.of(message))) {
+            // The socket is closing; onFailure or onClosed follows and reconnects.
+            return false;
+        }
+        messagesSent++;
+        bytesSent += message.length;
+        return true;
+    }
+
+    // Called with the lock held.
+    private void disconnected(WebSocket webSocket, Throwable error) {
+        if (webSocket != socket) {
+            return;
+        }
+        if (decoder != null) {
+            gaps += decoder.getGapCount();
+        }
+        socket = null;
+        open = false;
+        encoder = null;
+        decoder = null;
+        if (closed) {
+            return;
+        }
+        long delay = reconnectMillis;
+        reconnectScheduled = true;
+        reconnector.schedule(() -> {
+            synchronized (lock) {
+                reconnectScheduled = false;
+                connect();
+            }
+        }, delay);
+        reconnectMillis = Math.min(reconnectMillis * 2, MAX_RECONNECT_MILLIS);
+        Log.w(TAG, "Disconnected from " + url + "; reconnecting in " + delay + " ms.", error);
+    }
+
+    private class StreamListener extends WebSocketListener {
+
+        @Override
+        public void onOpen(WebSocket webSocket, Response response) {
+            synchronized (lock) {
+                if (webSocket != socket) {
+                    return;
+                }
+                open = true;
+                reconnectMillis = MIN_RECONNECT_MILLIS;
+                encoder = new VehiclePositionCodec.Encoder(KEY_FRAME_INTERVAL);
+                decoder = new VehiclePositionCodec.Decoder();
+                // Anything published on the old connection is sent again as a key frame.
+                for (Subscription subscription : subscriptions.values()) {
+                    subscription.synced = false;
+                    subscription.pending = new ArrayList<>();
+                    subscription.seen = new HashSet<>();
+                    encoder.subscribe(subscription.id, subscription.routeId, subscription.cell);
+                }
+                send();
+            }
+        }
+
+        @Override
+        public void onMessage(WebSocket webSocket, ByteString bytes) {
+            Map<Subscription, List<Change>> deliveries = new LinkedHashMap<>();
+            synchronized (lock) {
+                if (webSocket != socket || !open) {
+                    return;
+                }
+                byte[] message = bytes.toByteArray();
+                messagesReceived++;
+                bytesReceived += message.length;
+                try {
+                    decoder.decode(message, new Dispatcher(deliveries));
+                } catch (IOException e) {
+                    webSocket.cancel();
+                    disconnected(webSocket, e);
+                    Log.e(TAG, "Malformed message from " + url, e);
+                    return;
+                }
+            }
+            for (Map.Entry<Subscription, List<Change>> delivery : deliveries.entrySet()) {
+                Subscription subscription = delivery.getKey();
+                List<Change> changes = delivery.getValue();
+                callbackExecutor.execute(() -> {
+                    if (!subscription.removed) {
+                        subscription.listener.onChanges(changes, null);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void onClosing(WebSocket webSocket, int code, String reason) {
+            webSocket.close(1000, null);
+        }
+
+        @Override
+        public void onClosed(WebSocket webSocket, int code, String reason) {
+            synchronized (lock) {
+                disconnected(webSocket, null);
+            }
+        }
+
+        @Override
+        public void onFailure(WebSocket webSocket, Throwable t, Response response) {
+            synchronized (lock) {
+                disconnected(webSocket, t);
+            }
+        }
+    }
+
+    /**
+     * Turns the frames of one message into changes for the subscriptions. Runs with the lock
+     * held.
+     */
+    private class Dispatcher implements VehiclePositionCodec.Handler {
+
+        private final Map<Subscription, List<Change>> deliveries;
+
+        Dispatcher(Map<Subscription, List<Change>> deliveries) {
+            this.deliveries = deliveries;
+        }
+
+        @Override
+        public void onPosition(VehiclePosition position, long seq) {
+            String tripId = position.getTripId();
+            for (Subscription subscription : subscriptions.values()) {
+                if (!subscription.routeId.equals(position.getRouteId())) {
+                    continue;
+                }
+                Long known = subscription.members.get(tripId);
+                if (subscription.matches(position)) {
+                    if (!subscription.synced) {
+                        subscription.seen.add(tripId);
+                    }
+                    if (known == null) {
+                        subscription.members.put(tripId, seq);
+                        changes(subscription).add(Change.added(position));
+                    } else if (seq > known) {
+                        subscription.members.put(tripId, seq);
+                        changes(subscription).add(Change.modified(position));
+                    }
+                } else if (known != null && seq > known) {
+                    subscription.members.remove(tripId);
+                    changes(subscription).add(Change.removed(tripId));
+                }
+            }
+        }
+
+        @Override
+        public void onRemoved(String tripId) {
+            for (Subscription subscription : subscriptions.values()) {
+                if (subscription.members.remove(tripId) != null) {
+                    changes(subscription).add(Change.removed(tripId));
+                }
+            }
+        }
+
+        @Override
+        public void onSynced(int id) {
+            Subscription subscription = subscriptions.get(id);
+            if (subscription == null || subscription.synced) {
+                return;
+            }
+            // Trips the listener had before a reconnect that the relay no longer matches.
+            Iterator<String> members = subscription.members.keySet().iterator();
+            while (members.hasNext()) {
+                String tripId = members.next();
+                if (!subscription.seen.contains(tripId)) {
+                    members.remove();
+                    subscription.pending.add(Change.removed(tripId));
+                }
+            }
+            subscription.synced = true;
+            // The first call adds everything, even nothing; after a reconnect, only changes.
+            if (!subscription.everSynced || !subscription.pending.isEmpty()) {
+                deliveries.computeIfAbsent(subscription, s -> new ArrayList<>()).addAll(subscription.pending);
+            }
+            subscription.everSynced = true;
+            subscription.pending = new ArrayList<>();
+            subscription.seen = new HashSet<>();
+        }
+
+        @Override
+        public void onSubscribe(int subscription, String routeId, String cell) {
+            // Only the relay takes subscriptions.
+        }
+
+        @Override
+        public void onUnsubscribe(int subscription) {
+        }
+
+        private List<Change> changes(Subscription subscription) {
+            if (!subscription.synced) {
+                return subscription.pending;
+            }
+            return deliveries.computeIfAbsent(subscription, s -> new ArrayList<>());
+        }
+    }
+
+    /**
+     * @return A summary of the connection's traffic, for logging.
+     */
+    public String stats() {
+        synchronized (lock) {
+            long gapCount = gaps + (decoder != null ? decoder.getGapCount() : 0);
+            return "Vehicle stream: " + connects + " connects, " + messagesSent + " messages (" + bytesSent
+                    + " bytes) sent, " + messagesReceived + " (" + bytesReceived + " bytes) received, "
+                    + gapCount + " gaps.";
+        }
+    }
+}
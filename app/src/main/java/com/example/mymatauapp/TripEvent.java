@@ -0,0 +1,221 @@
+package com.example.mymatauapp;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One change to a trip document, as recorded in the TripEventJournal.
+ *
+ * An event carries the fields it sets on the trip's document. Applying an event means
+ * merging those fields into the document, so applying it twice, or applying a run of events
+ * again from the start, leaves the document as it was.
+ */
+public final class TripEvent {
+
+    public enum Type {
+        START,
+        POSITION,
+        STATUS,
+        END
+    }
+
+    // Value tags in the serialized form.
+    private static final int STRING = 1;
+    private static final int LONG = 2;
+    private static final int DOUBLE = 3;
+    private static final int BOOLEAN = 4;
+    private static final int LONG_LIST = 5;
+
+    private final long sequence;
+    private final Type type;
+    private final String tripId;
+    private final long timeMillis;
+    private final Map<String, Object> fields;
+
+    private TripEvent(long sequence, Type type, String tripId, long timeMillis, Map<String, Object> fields) {
+        this.sequence = sequence;
+        this.type = type;
+        this.tripId = tripId;
+        this.timeMillis = timeMillis;
+        this.fields = Collections.unmodifiableMap(fields);
+    }
+
+    /**
+     * @param tripData The trip document's initial fields.
+     */
+    public static TripEvent start(String tripId, Map<String, Object> tripData) {
+        return create(Type.START, tripId, tripData);
+    }
+
+    /**
+     * @param location The position fields, as FirestoreVehiclePositionTransport.fieldsOf
+     * writes them.
+     */
+    public static TripEvent position(String tripId, Map<String, Object> location) {
+        return create(Type.POSITION, tripId, location);
+    }
+
+    public static TripEvent status(String tripId, String status) {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("status", status);
+        return create(Type.STATUS, tripId, fields);
+    }
+
+    public static TripEvent end(String tripId, long endTime) {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("status", "complete");
+        fields.put("endTime", endTime);
+        return create(Type.END, tripId, fields);
+    }
+
+    private static TripEvent create(Type type, String tripId, Map<String, Object> fields) {
+        Map<String, Object> copy = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> field : fields.entrySet()) {
+            copy.put(field.getKey(), checkValue(field.getKey(), field.getValue()));
+        }
+        return new TripEvent(0, type, tripId, System.currentTimeMillis(), copy);
+    }
+
+    /**
+     * @return The value in the form it is stored in: ints become longs and floats doubles.
+     */
+    private static Object checkValue(String name, Object value) {
+        if (value instanceof String || value instanceof Long || value instanceof Double
+                || value instanceof Boolean) {
+            return value;
+        }
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof Float) {
+            return ((Float) value).doubleValue();
+        }
+        if (value instanceof List) {
+            List<Long> longs = new ArrayList<>(((List<?>) value).size());
+            for (Object element : (List<?>) value) {
+                if (!(element instanceof Long)) {
+                    throw new IllegalArgumentException("Field " + name + " must be a list of longs");
+                }
+                longs.add((Long) element);
+            }
+            return Collections.unmodifiableList(longs);
+        }
+        throw new IllegalArgumentException("Field " + name + " has unsupported type "
+                + (value == null ? "null" : value.getClass().getName()));
+    }
+
+    /**
+     * @return A copy of this event with its journal sequence number.
+     */
+    TripEvent withSequence(long sequence) {
+        return new TripEvent(sequence, type, tripId, timeMillis, fields);
+    }
+
+    /** The event's position in the journal, starting at 1; 0 before it is appended. */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getTripId() {
+        return tripId;
+    }
+
+    /** When the event happened, in milliseconds since the epoch. */
+    public long getTimeMillis() {
+        return timeMillis;
+    }
+
+    /** The fields to merge into the trip document. */
+    public Map<String, Object> getFields() {
+        return fields;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeLong(sequence);
+        out.writeByte(type.ordinal());
+        out.writeUTF(tripId);
+        out.writeLong(timeMillis);
+        out.writeShort(fields.size());
+        for (Map.Entry<String, Object> field : fields.entrySet()) {
+            out.writeUTF(field.getKey());
+            Object value = field.getValue();
+            if (value instanceof String) {
+                out.writeByte(STRING);
+                out.writeUTF((String) value);
+            } else if (value instanceof Long) {
+                out.writeByte(LONG);
+                out.writeLong((Long) value);
+            } else if (value instanceof Double) {
+                out.writeByte(DOUBLE);
+                out.writeDouble((Double) value);
+            } else if (value instanceof Boolean) {
+                out.writeByte(BOOLEAN);
+                out.writeBoolean((Boolean) value);
+            } else {
+                List<?> list = (List<?>) value;
+                out.writeByte(LONG_LIST);
+                out.writeInt(list.size());
+                for (Object element : list) {
+                    out.writeLong((Long) element);
+                }
+            }
+        }
+    }
+
+    static TripEvent readFrom(DataInputStream in) throws IOException {
+        long sequence = in.readLong();
+        int typeIndex = in.readUnsignedByte();
+        if (typeIndex >= Type.values().length) {
+            throw new IOException("Unknown event type " + typeIndex);
+        }
+        Type type = Type.values()[typeIndex];
+        String tripId = in.readUTF();
+        long timeMillis = in.readLong();
+        int count = in.readUnsignedShort();
+        Map<String, Object> fields = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case STRING:
+                    fields.put(name, in.readUTF());
+                    break;
+                case LONG:
+                    fields.put(name, in.readLong());
+                    break;
+                case DOUBLE:
+                    fields.put(name, in.readDouble());
+                    break;
+                case BOOLEAN:
+                    fields.put(name, in.readBoolean());
+                    break;
+                case LONG_LIST:
+                    int size = in.readInt();
+                    List<Long> list = new ArrayList<>(size);
+                    for (int j = 0; j < size; j++) {
+                        list.add(in.readLong());
+                    }
+                    fields.put(name, Collections.unmodifiableList(list));
+                    break;
+                default:
+                    throw new IOException("Unknown value tag " + tag + " for field " + name);
+            }
+        }
+        return new TripEvent(sequence, type, tripId, timeMillis, fields);
+    }
+
+    @Override
+    public String toString() {
+        return "#" + sequence + " " + type + " " + tripId + " " + fields;
+    }
+}
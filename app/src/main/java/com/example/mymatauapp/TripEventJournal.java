@@ -0,0 +1,642 @@
+package com.example.mymatauapp;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.util.Log;
+
+import com.google.firebase.firestore.FirebaseFirestore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only on-device journal of trip events, replayed to the backend in order.
+ *
+ * Every trip write (start, position, status change, end) is appended here first and only
+ * then sent, so a write made in a dead zone, or one whose app is killed before it gets
+ * through, is sent once the network returns rather than lost.
+ *
+ * <ul>
+ *     <li>Records are [length][CRC32][event] in segment files of about segmentBytes, named by
+ *     their first sequence number. A torn record at the end of the last segment (from a
+ *     crash mid-write) is found by its CRC and cut off when the journal opens.</li>
+ *     <li>Appends are synced to disk in groups: an append completes once an fsync covers it,
+ *     and fsyncs run at most every syncDelayMillis, except that trip starts and ends, and
+ *     segments being closed, are synced straight away.</li>
+ *     <li>Synced events are sent in order, in batches, with one batch in flight. After each
+ *     acknowledged batch the checkpoint file records the last sequence number sent and
+ *     segments wholly before it are deleted. Events merge fields into the trip document, so
+ *     sending a batch again after a crash before its checkpoint is harmless.</li>
+ *     <li>Failed batches are retried with exponential backoff, and straight away when a
+ *     network becomes available. If the backlog outgrows maxBytes, the oldest segment is
+ *     dropped.</li>
+ * </ul>
+ *
+ * All methods are thread-safe and return immediately; the work happens on the journal's own
+ * thread, which is also where callbacks run.
+ */
+public class TripEventJournal {
+
+    private static final String TAG = "TripEventJournal";
+    private static final String DIRECTORY_NAME = "trip_journal";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CHECKPOINT_NAME = "checkpoint";
+
+    private static final long SEGMENT_BYTES = 256 * 1024;
+    private static final long MAX_BYTES = 16 * 1024 * 1024;
+    private static final long SYNC_DELAY_MILLIS = 500;
+    private static final int REPLAY_BATCH = 200;
+    private static final long MIN_RETRY_MILLIS = 1000;
+    private static final long MAX_RETRY_MILLIS = 5 * 60 * 1000;
+    private static final int RECORD_HEADER_BYTES = 8;
+
+    /**
+     * Where events are replayed to, such as Firestore.
+     */
+    public interface Backend {
+        /**
+         * Applies a batch of events, in order. The callback must be completed exactly once.
+         */
+        void apply(List<TripEvent> events, Callback callback);
+    }
+
+    public interface Callback {
+        /**
+         * @param error Null on success.
+         */
+        void onComplete(Exception error);
+    }
+
+    private static TripEventJournal instance;
+
+    private final File directory;
+    private final Backend backend;
+    private final long segmentBytes;
+    private final long maxBytes;
+    private final long syncDelayMillis;
+    private final ScheduledExecutorService executor;
+
+    // Everything below is only touched on the executor thread.
+    private boolean opened;
+    private boolean closed;
+    private final TreeMap<Long, File> segments = new TreeMap<>(); // first sequence -> file
+    private FileOutputStream activeOut;
+    private long activeSize;
+    private long nextSequence = 1;
+    private long syncedSequence; // every event up to this one is on disk
+    private long checkpoint; // every event up to this one has been applied
+    private final List<Callback> unsynced = new ArrayList<>();
+    private boolean syncScheduled;
+    private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream(256);
+    private final CRC32 crc = new CRC32();
+
+    private boolean replayInFlight;
+    private boolean retryScheduled;
+    private long retryMillis;
+    private Long cursorSegment; // null: start again from the checkpoint
+    private long cursorOffset;
+    private RandomAccessFile cursorFile;
+
+    private long appendCount;
+    private long syncCount;
+    private long replayedCount;
+    private long batchCount;
+
+    /**
+     * @param context Any context; the journal lives in the app's files directory.
+     * @return The process-wide journal, replaying to Firestore.
+     */
+    public static synchronized TripEventJournal get(Context context) {
+        if (instance == null) {
+            Context appContext = context.getApplicationContext();
+            instance = new TripEventJournal(new File(appContext.getFilesDir(), DIRECTORY_NAME),
+                    new FirestoreTripBackend(FirebaseFirestore.getInstance()),
+                    SEGMENT_BYTES, MAX_BYTES, SYNC_DELAY_MILLIS);
+            TripEventJournal journal = instance;
+            ConnectivityManager connectivity = appContext.getSystemService(ConnectivityManager.class);
+            if (connectivity != null) {
+                connectivity.registerDefaultNetworkCallback(new ConnectivityManager.NetworkCallback() {
+                    @Override
+                    public void onAvailable(Network network) {
+                        journal.replayNow();
+                    }
+                });
+            }
+            // Send whatever an earlier process left behind.
+            journal.replay();
+        }
+        return instance;
+    }
+
+    TripEventJournal(File directory, Backend backend, long segmentBytes, long maxBytes, long syncDelayMillis) {
+        this.directory = directory;
+        this.backend = backend;
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = maxBytes;
+        this.syncDelayMillis = syncDelayMillis;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "TripEventJournal");
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        });
+    }
+
+    /**
+     * Appends an event. It is sent to the backend once it is on disk and the events before it
+     * have been sent.
+     * @param durable Called once the event is on disk, or with the error if it could not be
+     * written; may be null.
+     */
+    public void append(TripEvent event, Callback durable) {
+        executor.execute(() -> {
+            try {
+                open();
+                writeRecord(event.withSequence(nextSequence));
+                nextSequence++;
+                appendCount++;
+            } catch (IOException e) {
+                if (durable != null) {
+                    durable.onComplete(e);
+                }
+                Log.e(TAG, "Could not journal " + event.getType() + " for trip " + event.getTripId(), e);
+                return;
+            }
+            if (durable != null) {
+                unsynced.add(durable);
+            }
+            TripEvent.Type type = event.getType();
+            if (type == TripEvent.Type.START || type == TripEvent.Type.END) {
+                sync();
+            } else if (!syncScheduled) {
+                syncScheduled = true;
+                executor.schedule(this::sync, syncDelayMillis, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    /**
+     * Sends any events not yet applied, unless a batch is in flight or a retry is waiting.
+     */
+    public void replay() {
+        executor.execute(this::startReplay);
+    }
+
+    /**
+     * Like replay, but also cuts short a retry that is waiting, such as when the network
+     * returns.
+     */
+    public void replayNow() {
+        executor.execute(() -> {
+            retryScheduled = false;
+            retryMillis = 0;
+            startReplay();
+        });
+    }
+
+    /**
+     * @return A one-line summary of the counters, for logging.
+     */
+    public String stats() {
+        return call(() -> String.format(Locale.ROOT,
+                "Trip journal: %d events appended in %d fsyncs, %d replayed in %d batches, %d pending",
+                appendCount, syncCount, replayedCount, batchCount, nextSequence - 1 - checkpoint));
+    }
+
+    long getCheckpoint() {
+        return call(() -> checkpoint);
+    }
+
+    /**
+     * Syncs and closes the files and stops the journal's thread. For tests, which reopen the
+     * directory to simulate a restart.
+     */
+    void close() {
+        call(() -> {
+            sync();
+            closed = true;
+            closeQuietly(activeOut);
+            closeQuietly(cursorFile);
+            return null;
+        });
+        executor.shutdownNow();
+    }
+
+    private interface Task<T> {
+        T run() throws Exception;
+    }
+
+    /**
+     * Runs a task on the executor and waits for its result.
+     */
+    private <T> T call(Task<T> task) {
+        try {
+            return executor.submit(() -> {
+                open();
+                return task.run();
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    // ---- Writing ----
+
+    /**
+     * Reads the checkpoint and segment list, cuts any torn record off the last segment, and
+     * opens it for appending. Runs once, before the first task that needs the files.
+     */
+    private void open() throws IOException {
+        if (opened) {
+            return;
+        }
+        opened = true;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create journal directory " + directory);
+        }
+        checkpoint = readCheckpoint();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        segments.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file);
+                    } catch (NumberFormatException e) {
+                        Log.w(TAG, "Ignoring stray file " + name);
+                    }
+                }
+            }
+        }
+        long lastSequence = 0;
+        if (!segments.isEmpty()) {
+            File last = segments.lastEntry().getValue();
+            lastSequence = recoverSegment(last);
+            if (lastSequence == 0) {
+                lastSequence = segments.lastKey() - 1;
+            }
+        }
+        nextSequence = Math.max(lastSequence, checkpoint) + 1;
+        syncedSequence = nextSequence - 1;
+        if (segments.isEmpty()) {
+            segments.put(nextSequence, new File(directory, segmentName(nextSequence)));
+        }
+        File active = segments.lastEntry().getValue();
+        activeOut = new FileOutputStream(active, true);
+        activeSize = active.length();
+        deleteAppliedSegments();
+    }
+
+    /**
+     * Scans a segment, truncating it after its last intact record.
+     * @return The sequence number of that record, or 0 if there is none.
+     */
+    private long recoverSegment(File file) throws IOException {
+        long lastSequence = 0;
+        try (RandomAccessFile in = new RandomAccessFile(file, "rw")) {
+            long offset = 0;
+            TripEvent event;
+            while ((event = readRecord(in, offset)) != null) {
+                lastSequence = event.getSequence();
+                offset = in.getFilePointer();
+            }
+            long torn = in.length() - offset;
+            if (torn > 0) {
+                in.setLength(offset);
+                in.getFD().sync();
+                Log.w(TAG, "Cut " + torn + " torn bytes off " + file.getName());
+            }
+        }
+        return lastSequence;
+    }
+
+    private void writeRecord(TripEvent event) throws IOException {
+        recordBuffer.reset();
+        DataOutputStream data = new DataOutputStream(recordBuffer);
+        data.writeLong(0); // room for the header
+        event.writeTo(data);
+        data.flush();
+        byte[] record = recordBuffer.toByteArray();
+        int length = record.length - RECORD_HEADER_BYTES;
+        crc.reset();
+        crc.update(record, RECORD_HEADER_BYTES, length);
+        putInt(record, 0, length);
+        putInt(record, 4, (int) crc.getValue());
+
+        if (activeSize > 0 && activeSize + record.length > segmentBytes) {
+            rollSegment(event.getSequence());
+        }
+        activeOut.write(record);
+        activeSize += record.length;
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Syncs the active segment and starts a new one at the given sequence number.
+     */
+    private void rollSegment(long firstSequence) throws IOException {
+        sync();
+        activeOut.close();
+        File file = new File(directory, segmentName(firstSequence));
+        segments.put(firstSequence, file);
+        activeOut = new FileOutputStream(file, true);
+        activeSize = 0;
+        enforceMaxBytes();
+    }
+
+    /**
+     * Makes every appended event durable, completes their callbacks and starts replaying them.
+     */
+    private void sync() {
+        syncScheduled = false;
+        if (closed || syncedSequence == nextSequence - 1) {
+            return;
+        }
+        IOException error = null;
+        try {
+            activeOut.getFD().sync();
+            syncedSequence = nextSequence - 1;
+            syncCount++;
+        } catch (IOException e) {
+            error = e;
+        }
+        List<Callback> callbacks = new ArrayList<>(unsynced);
+        unsynced.clear();
+        for (Callback callback : callbacks) {
+            callback.onComplete(error);
+        }
+        if (error != null) {
+            Log.e(TAG, "Could not sync the journal", error);
+        }
+        startReplay();
+    }
+
+    /**
+     * Drops the oldest segments, applied or not, while the journal is over its byte limit.
+     */
+    private void enforceMaxBytes() throws IOException {
+        long total = 0;
+        for (File file : segments.values()) {
+            total += file.length();
+        }
+        while (total > maxBytes && segments.size() > 1) {
+            Map.Entry<Long, File> oldest = segments.pollFirstEntry();
+            long lastSequence = segments.firstKey() - 1;
+            total -= oldest.getValue().length();
+            if (lastSequence > checkpoint) {
+                long firstDropped = Math.max(oldest.getKey(), checkpoint + 1);
+                checkpoint = lastSequence;
+                writeCheckpoint();
+                Log.w(TAG, "Journal over " + maxBytes + " bytes; dropped unsent events "
+                        + firstDropped + " to " + lastSequence);
+            }
+            if (oldest.getKey().equals(cursorSegment)) {
+                resetCursor();
+            }
+            oldest.getValue().delete();
+        }
+    }
+
+    // ---- Replay ----
+
+    private void startReplay() {
+        if (closed || replayInFlight || retryScheduled) {
+            return;
+        }
+        List<TripEvent> batch;
+        try {
+            open();
+            batch = readBatch();
+        } catch (IOException e) {
+            resetCursor();
+            scheduleRetry();
+            Log.e(TAG, "Could not read the journal", e);
+            return;
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        replayInFlight = true;
+        backend.apply(batch, error -> {
+            try {
+                executor.execute(() -> onBatchApplied(batch, error));
+            } catch (RejectedExecutionException e) {
+                // Closed meanwhile; the batch is sent again when the journal is next opened.
+            }
+        });
+    }
+
+    private void onBatchApplied(List<TripEvent> batch, Exception error) {
+        replayInFlight = false;
+        if (closed) {
+            return;
+        }
+        if (error != null) {
+            // Read the batch again from the checkpoint next time.
+            resetCursor();
+            scheduleRetry();
+            Log.w(TAG, "Replay of " + batch.size() + " events failed; retrying in "
+                    + retryMillis / 1000 + " s.", error);
+            return;
+        }
+        retryMillis = 0;
+        // Events dropped by enforceMaxBytes meanwhile may have moved the checkpoint further.
+        checkpoint = Math.max(checkpoint, batch.get(batch.size() - 1).getSequence());
+        replayedCount += batch.size();
+        batchCount++;
+        IOException checkpointError = null;
+        try {
+            writeCheckpoint();
+        } catch (IOException e) {
+            // Harmless: the batch is sent again after a restart.
+            checkpointError = e;
+        }
+        deleteAppliedSegments();
+        startReplay();
+        if (checkpointError != null) {
+            Log.w(TAG, "Could not write the checkpoint", checkpointError);
+        }
+    }
+
+    private void scheduleRetry() {
+        retryMillis = Math.min(MAX_RETRY_MILLIS, Math.max(MIN_RETRY_MILLIS, retryMillis * 2));
+        retryScheduled = true;
+        executor.schedule(() -> {
+            if (retryScheduled) {
+                retryScheduled = false;
+                startReplay();
+            }
+        }, retryMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reads up to REPLAY_BATCH synced events after the checkpoint, moving the cursor past them.
+     */
+    private List<TripEvent> readBatch() throws IOException {
+        List<TripEvent> batch = new ArrayList<>();
+        if (cursorSegment == null) {
+            Long start = segments.floorKey(checkpoint + 1);
+            cursorSegment = start != null ? start : segments.firstKey();
+            cursorOffset = 0;
+        }
+        while (batch.size() < REPLAY_BATCH) {
+            if (cursorFile == null) {
+                File file = segments.get(cursorSegment);
+                if (file == null || !file.exists()) {
+                    break;
+                }
+                cursorFile = new RandomAccessFile(file, "r");
+            }
+            TripEvent event = readRecord(cursorFile, cursorOffset);
+            if (event == null) {
+                // The end of this segment, or of what has been written to it so far.
+                Long next = segments.higherKey(cursorSegment);
+                if (next == null) {
+                    break;
+                }
+                boolean damaged = cursorOffset < cursorFile.length();
+                closeQuietly(cursorFile);
+                cursorFile = null;
+                if (damaged) {
+                    Log.w(TAG, "Skipped a damaged record in " + segmentName(cursorSegment));
+                }
+                cursorSegment = next;
+                cursorOffset = 0;
+                continue;
+            }
+            if (event.getSequence() > syncedSequence) {
+                break;
+            }
+            cursorOffset = cursorFile.getFilePointer();
+            if (event.getSequence() > checkpoint) {
+                batch.add(event);
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Reads the record at an offset.
+     * @return The event, or null at the end of the file or if the record is incomplete or
+     * fails its CRC.
+     */
+    private TripEvent readRecord(RandomAccessFile in, long offset) throws IOException {
+        long fileLength = in.length();
+        if (offset + RECORD_HEADER_BYTES > fileLength) {
+            return null;
+        }
+        in.seek(offset);
+        int length = in.readInt();
+        int expectedCrc = in.readInt();
+        if (length <= 0 || offset + RECORD_HEADER_BYTES + length > fileLength) {
+            return null;
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        crc.reset();
+        crc.update(payload, 0, length);
+        if ((int) crc.getValue() != expectedCrc) {
+            return null;
+        }
+        try {
+            return TripEvent.readFrom(new DataInputStream(new ByteArrayInputStream(payload)));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void resetCursor() {
+        closeQuietly(cursorFile);
+        cursorFile = null;
+        cursorSegment = null;
+    }
+
+    /**
+     * Deletes the segments, other than the active one, whose events have all been applied.
+     */
+    private void deleteAppliedSegments() {
+        while (segments.size() > 1) {
+            long lastSequence = segments.higherKey(segments.firstKey()) - 1;
+            if (lastSequence > checkpoint) {
+                return;
+            }
+            Map.Entry<Long, File> oldest = segments.pollFirstEntry();
+            if (oldest.getKey().equals(cursorSegment)) {
+                resetCursor();
+            }
+            oldest.getValue().delete();
+        }
+    }
+
+    // ---- Checkpoint ----
+
+    private long readCheckpoint() {
+        File file = new File(directory, CHECKPOINT_NAME);
+        if (!file.exists()) {
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readLong();
+        } catch (IOException e) {
+            // Replaying from the start is safe, just slower.
+            Log.w(TAG, "Unreadable checkpoint; replaying the whole journal", e);
+            return 0;
+        }
+    }
+
+    private void writeCheckpoint() throws IOException {
+        File file = new File(directory, CHECKPOINT_NAME);
+        File temp = new File(directory, CHECKPOINT_NAME + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temp))) {
+            out.writeLong(checkpoint);
+        }
+        // Rename so a crash never leaves a half-written checkpoint.
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    private static String segmentName(long firstSequence) {
+        return String.format(Locale.ROOT, "%020d%s", firstSequence, SEGMENT_SUFFIX);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing to do.
+        }
+    }
+}
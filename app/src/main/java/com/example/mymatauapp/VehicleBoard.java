@@ -0,0 +1,236 @@
+package com.example.mymatauapp;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.LongSupplier;
+
+/**
+ * The passenger dashboard's model of the matatus on their way: one row per trip, keyed by
+ * trip ID and kept up to date from VehiclePositionRepository changes.
+ *
+ * Only the trips a change touches are estimated again, so the cost of an update does not
+ * grow with the number of matatus shown. Rows are immutable, so a RecyclerView's DiffUtil
+ * can tell which ones changed by comparing them.
+ *
+ * Trips publish only when they stray from where they are predicted to be (see
+ * PositionPublishFilter), so between publishes a row's position is the predicted one. The
+ * screen calls advance about once a second to move the rows along and count their ETAs down;
+ * a row is only replaced when its position or its minutes to arrival change.
+ *
+ * Not thread-safe; used on the main thread.
+ */
+public class VehicleBoard {
+
+    public interface Estimator {
+        /**
+         * @return When the matatu reaches the passenger, in epoch milliseconds, or NaN if it
+         * has passed them.
+         */
+        double arrivalMillis(VehiclePosition vehicle);
+    }
+
+    public interface Predictor {
+        /**
+         * @return Where the matatu is predicted to be at a time, from its published position.
+         */
+        LatLng positionAt(VehiclePosition vehicle, long nowMillis);
+    }
+
+    /**
+     * One matatu as the dashboard shows it.
+     */
+    public static final class Row {
+
+        private final VehiclePosition vehicle;
+        private final double arrivalMillis;
+        private final LatLng position;
+        private final int etaMinutes;
+
+        Row(VehiclePosition vehicle, double arrivalMillis, LatLng position, long nowMillis) {
+            this.vehicle = vehicle;
+            this.arrivalMillis = arrivalMillis;
+            this.position = position;
+            this.etaMinutes = getEtaMinutes(nowMillis);
+        }
+
+        public String getTripId() {
+            return vehicle.getTripId();
+        }
+
+        public String getMatatuId() {
+            return vehicle.getMatatuId();
+        }
+
+        public VehiclePosition getVehicle() {
+            return vehicle;
+        }
+
+        /** When the matatu reaches the passenger, in epoch milliseconds, or NaN if it has passed them. */
+        public double getArrivalMillis() {
+            return arrivalMillis;
+        }
+
+        /** Where the matatu was predicted to be when the row was estimated. */
+        public LatLng getPosition() {
+            return position;
+        }
+
+        /** The minutes until the matatu arrives as of when the row was estimated; see getEtaMinutes(long). */
+        public int getEtaMinutes() {
+            return etaMinutes;
+        }
+
+        public boolean hasPassed() {
+            return Double.isNaN(arrivalMillis);
+        }
+
+        /**
+         * @return The whole minutes until the matatu arrives, rounded up, or -1 if it has
+         * passed the passenger.
+         */
+        public int getEtaMinutes(long nowMillis) {
+            if (hasPassed()) {
+                return -1;
+            }
+            return (int) Math.ceil(Math.max(0, arrivalMillis - nowMillis) / 60000);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Row)) {
+                return false;
+            }
+            Row row = (Row) o;
+            // Positions are immutable and replaced on every change.
+            return vehicle == row.vehicle && Double.compare(arrivalMillis, row.arrivalMillis) == 0
+                    && position.equals(row.position) && etaMinutes == row.etaMinutes;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(vehicle.getTripId(), arrivalMillis);
+        }
+    }
+
+    // Soonest first, then those that have passed; ties by matatu for a stable order.
+    private static final Comparator<Row> ORDER = Comparator
+            .comparingDouble((Row row) -> row.hasPassed() ? Double.MAX_VALUE : row.arrivalMillis)
+            .thenComparing(Row::getMatatuId)
+            .thenComparing(Row::getTripId);
+
+    private final Estimator estimator;
+    private final Predictor predictor;
+    private final LongSupplier clock;
+    private final Map<String, Row> rows = new HashMap<>();
+    private List<Row> sorted = Collections.emptyList();
+    private boolean dirty;
+    private long estimateCount;
+
+    /**
+     * A board that shows each matatu where it last published.
+     */
+    public VehicleBoard(Estimator estimator) {
+        this(estimator, (vehicle, nowMillis) -> new LatLng(vehicle.getLatitude(), vehicle.getLongitude()),
+                System::currentTimeMillis);
+    }
+
+    /**
+     * @param clock Epoch milliseconds, such as System::currentTimeMillis.
+     */
+    public VehicleBoard(Estimator estimator, Predictor predictor, LongSupplier clock) {
+        this.estimator = estimator;
+        this.predictor = predictor;
+        this.clock = clock;
+    }
+
+    /**
+     * Applies changes from a VehiclePositionRepository listener.
+     * @return Whether any row changed.
+     */
+    public boolean apply(List<VehiclePositionRepository.Change> changes) {
+        boolean changed = false;
+        for (VehiclePositionRepository.Change change : changes) {
+            if (change.getType() == VehiclePositionRepository.Change.Type.REMOVED) {
+                changed |= rows.remove(change.getTripId()) != null;
+            } else {
+                Row row = estimate(change.getVehicle());
+                changed |= !row.equals(rows.put(row.getTripId(), row));
+            }
+        }
+        dirty |= changed;
+        return changed;
+    }
+
+    /**
+     * Estimates every row again, as when the passenger has moved or the estimator has learned
+     * the route.
+     */
+    public void reestimate() {
+        for (Map.Entry<String, Row> entry : rows.entrySet()) {
+            entry.setValue(estimate(entry.getValue().getVehicle()));
+        }
+        dirty = true;
+    }
+
+    /**
+     * Moves every row on to now: its predicted position and its minutes to arrival. Rows that
+     * come out the same are kept, so only the matatus that visibly changed are redrawn.
+     * @return Whether any row changed.
+     */
+    public boolean advance() {
+        boolean changed = false;
+        for (Map.Entry<String, Row> entry : rows.entrySet()) {
+            Row row = estimate(entry.getValue().getVehicle());
+            if (!row.equals(entry.getValue())) {
+                entry.setValue(row);
+                changed = true;
+            }
+        }
+        dirty |= changed;
+        return changed;
+    }
+
+    public void clear() {
+        rows.clear();
+        dirty = true;
+    }
+
+    private Row estimate(VehiclePosition vehicle) {
+        estimateCount++;
+        long now = clock.getAsLong();
+        return new Row(vehicle, estimator.arrivalMillis(vehicle), predictor.positionAt(vehicle, now), now);
+    }
+
+    /**
+     * @return The rows, soonest arrival first and matatus that have passed last. The list is
+     * a new one whenever a row has changed since the last call, and the same one otherwise.
+     */
+    public List<Row> getRows() {
+        if (dirty) {
+            List<Row> list = new ArrayList<>(rows.values());
+            list.sort(ORDER);
+            sorted = Collections.unmodifiableList(list);
+            dirty = false;
+        }
+        return sorted;
+    }
+
+    public int size() {
+        return rows.size();
+    }
+
+    /** How many times a matatu's arrival has been estimated, for tests and logging. */
+    public long getEstimateCount() {
+        return estimateCount;
+    }
+}
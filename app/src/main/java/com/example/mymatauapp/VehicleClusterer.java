@@ -0,0 +1,338 @@
+package com.example.mymatauapp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Groups live vehicles that would overlap on the map into clusters, so a stage with dozens of
+ * matatus shows one marker with a count rather than a pile of pins.
+ *
+ * Vehicles are bucketed into a grid of square cells a marker or so wide on screen, in Web
+ * Mercator pixels at the camera's whole zoom level; each non-empty cell is one cluster, placed
+ * at its vehicles' mean position. The grid is kept between snapshots: a vehicle that moves
+ * touches at most the cell it left and the cell it entered, and {@link #flush} reports only the
+ * clusters of cells touched since the last flush, so the cost of a snapshot follows how many
+ * vehicles changed rather than how many there are. Only a change of zoom level rebuilds the
+ * grid.
+ *
+ * Not thread-safe; used on the main thread.
+ */
+public class VehicleClusterer {
+
+    // How wide a cell is on screen; about a marker and a half, so pins in different cells
+    // barely overlap.
+    private static final double CELL_PIXELS = 64;
+    private static final double TILE_PIXELS = 256;
+
+    /**
+     * Receives the clusters that changed in a flush.
+     */
+    public interface Listener {
+        /** A cluster was added, or changed its position, size or breakdown. */
+        void onClusterChanged(Cluster cluster);
+
+        /** The cluster with the given key is gone. */
+        void onClusterRemoved(long key);
+    }
+
+    /**
+     * The vehicles in one cell, as a marker shows them.
+     */
+    public static final class Cluster {
+
+        private final long key;
+        private final double latitude;
+        private final double longitude;
+        private final int available;
+        private final int full;
+        private final String onlyId;
+
+        Cluster(long key, double latitude, double longitude, int available, int full, String onlyId) {
+            this.key = key;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.available = available;
+            this.full = full;
+            this.onlyId = onlyId;
+        }
+
+        /** The cell's key, which stays the same while the zoom level does. */
+        public long getKey() {
+            return key;
+        }
+
+        /** The mean latitude of the cluster's vehicles. */
+        public double getLatitude() {
+            return latitude;
+        }
+
+        /** The mean longitude of the cluster's vehicles. */
+        public double getLongitude() {
+            return longitude;
+        }
+
+        public int getSize() {
+            return available + full;
+        }
+
+        public int getAvailable() {
+            return available;
+        }
+
+        public int getFull() {
+            return full;
+        }
+
+        /** The ID of the cluster's vehicle if it has just one, or null. */
+        public String getOnlyId() {
+            return onlyId;
+        }
+
+        /**
+         * The breakdown for the marker, such as "5 available / 3 full", or just "5 available"
+         * when none are full, as for a feed that only carries the vehicles with seats free.
+         */
+        public String getLabel() {
+            return full == 0 ? available + " available" : available + " available / " + full + " full";
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Cluster)) {
+                return false;
+            }
+            Cluster other = (Cluster) o;
+            return key == other.key && latitude == other.latitude && longitude == other.longitude
+                    && available == other.available && full == other.full && Objects.equals(onlyId, other.onlyId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(key, latitude, longitude, available, full, onlyId);
+        }
+
+        @Override
+        public String toString() {
+            return "Cluster{" + getSize() + " at " + latitude + "," + longitude + ": " + getLabel() + "}";
+        }
+    }
+
+    private static final class Member {
+        double latitude;
+        double longitude;
+        boolean full;
+        long key;
+    }
+
+    private static final class Cell {
+        final Set<String> ids = new HashSet<>();
+        double latitudeSum;
+        double longitudeSum;
+        int full;
+        // What the last flush reported for the cell, or null if nothing yet.
+        Cluster reported;
+    }
+
+    private final Map<String, Member> members = new HashMap<>();
+    private final Map<Long, Cell> cells = new HashMap<>();
+    // The cells touched since the last flush.
+    private final Set<Long> dirty = new HashSet<>();
+    private int zoom;
+    private long flushes;
+    private long cellsReclustered;
+
+    /**
+     * @param zoom The initial zoom level.
+     */
+    public VehicleClusterer(int zoom) {
+        this.zoom = zoom;
+    }
+
+    /**
+     * Adds a vehicle or moves it.
+     * @param full Whether the vehicle has no seats free.
+     */
+    public void update(String id, double latitude, double longitude, boolean full) {
+        Member member = members.get(id);
+        if (member == null) {
+            member = new Member();
+            members.put(id, member);
+        } else if (member.latitude == latitude && member.longitude == longitude && member.full == full) {
+            return;
+        } else {
+            leave(id, member);
+        }
+        member.latitude = latitude;
+        member.longitude = longitude;
+        member.full = full;
+        member.key = keyOf(latitude, longitude, zoom);
+        enter(id, member);
+    }
+
+    /**
+     * Removes a vehicle, if it is there.
+     */
+    public void remove(String id) {
+        Member member = members.remove(id);
+        if (member != null) {
+            leave(id, member);
+        }
+    }
+
+    /**
+     * Returns whether the given vehicle is being clustered.
+     */
+    public boolean contains(String id) {
+        return members.containsKey(id);
+    }
+
+    /**
+     * @return The IDs of the vehicles being clustered, as a new set.
+     */
+    public Set<String> getIds() {
+        return new HashSet<>(members.keySet());
+    }
+
+    /**
+     * Regroups every vehicle for a new zoom level. The next flush removes every old cluster
+     * and reports every new one.
+     * @param zoom The camera's zoom level; fractional zooms are taken down to the level.
+     */
+    public void setZoom(int zoom) {
+        if (zoom == this.zoom) {
+            return;
+        }
+        this.zoom = zoom;
+        // The old cells are flushed as removed, and every member is filed again.
+        for (Map.Entry<Long, Cell> entry : cells.entrySet()) {
+            Cell cell = entry.getValue();
+            cell.ids.clear();
+            cell.latitudeSum = 0;
+            cell.longitudeSum = 0;
+            cell.full = 0;
+            dirty.add(entry.getKey());
+        }
+        for (Map.Entry<String, Member> entry : members.entrySet()) {
+            Member member = entry.getValue();
+            member.key = keyOf(member.latitude, member.longitude, zoom);
+            enter(entry.getKey(), member);
+        }
+    }
+
+    public int getZoom() {
+        return zoom;
+    }
+
+    private void enter(String id, Member member) {
+        Cell cell = cells.get(member.key);
+        if (cell == null) {
+            cell = new Cell();
+            cells.put(member.key, cell);
+        }
+        cell.ids.add(id);
+        cell.latitudeSum += member.latitude;
+        cell.longitudeSum += member.longitude;
+        if (member.full) {
+            cell.full++;
+        }
+        dirty.add(member.key);
+    }
+
+    private void leave(String id, Member member) {
+        Cell cell = cells.get(member.key);
+        cell.ids.remove(id);
+        cell.latitudeSum -= member.latitude;
+        cell.longitudeSum -= member.longitude;
+        if (member.full) {
+            cell.full--;
+        }
+        dirty.add(member.key);
+    }
+
+    /**
+     * Reports the clusters of the cells touched since the last flush: removals first, then the
+     * clusters that are new or look different. A cell whose cluster looks the same as last time
+     * is not reported.
+     */
+    public void flush(Listener listener) {
+        flushes++;
+        List<Cluster> changed = new ArrayList<>();
+        for (long key : dirty) {
+            Cell cell = cells.get(key);
+            cellsReclustered++;
+            if (cell.ids.isEmpty()) {
+                if (cell.reported != null) {
+                    listener.onClusterRemoved(key);
+                }
+                cells.remove(key);
+                continue;
+            }
+            int size = cell.ids.size();
+            Cluster cluster;
+            if (size == 1) {
+                // Exactly the vehicle's position, rather than sums that have drifted.
+                String id = cell.ids.iterator().next();
+                Member member = members.get(id);
+                cluster = new Cluster(key, member.latitude, member.longitude,
+                        member.full ? 0 : 1, member.full ? 1 : 0, id);
+            } else {
+                cluster = new Cluster(key, cell.latitudeSum / size, cell.longitudeSum / size,
+                        size - cell.full, cell.full, null);
+            }
+            if (!cluster.equals(cell.reported)) {
+                cell.reported = cluster;
+                changed.add(cluster);
+            }
+        }
+        dirty.clear();
+        for (Cluster cluster : changed) {
+            listener.onClusterChanged(cluster);
+        }
+    }
+
+    /**
+     * @return The clusters as they stand, including changes not flushed yet.
+     */
+    public List<Cluster> getClusters() {
+        List<Cluster> clusters = new ArrayList<>();
+        for (Map.Entry<Long, Cell> entry : cells.entrySet()) {
+            Cell cell = entry.getValue();
+            int size = cell.ids.size();
+            if (size > 0) {
+                clusters.add(new Cluster(entry.getKey(), cell.latitudeSum / size, cell.longitudeSum / size,
+                        size - cell.full, cell.full, size == 1 ? cell.ids.iterator().next() : null));
+            }
+        }
+        return clusters;
+    }
+
+    /**
+     * Returns the key of the grid cell holding a position at a zoom level: its column and row
+     * in Web Mercator pixels, packed into a long.
+     */
+    static long keyOf(double latitude, double longitude, int zoom) {
+        double worldPixels = TILE_PIXELS * Math.pow(2, zoom);
+        double x = (longitude + 180) / 360 * worldPixels;
+        double sin = Math.sin(Math.toRadians(Math.max(-85, Math.min(85, latitude))));
+        double y = (0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI)) * worldPixels;
+        long column = (long) Math.floor(x / CELL_PIXELS);
+        long row = (long) Math.floor(y / CELL_PIXELS);
+        return (column << 32) | (row & 0xffffffffL);
+    }
+
+    /**
+     * Returns how much regrouping the flushes have done, for the logs.
+     */
+    public String stats() {
+        return "Clusters: " + members.size() + " vehicles in " + cells.size() + " cells at zoom " + zoom + "; "
+                + flushes + " flushes reclustered " + cellsReclustered + " cells";
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.mymatauapp;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A trip's last published position, as passengers see it (see
+ * FirestoreVehiclePositionTransport.fieldsOf for the fields it is read from).
+ */
+public final class VehiclePosition {
+
+    private final String tripId;
+    private final String matatuId;
+    private final String routeId;
+    private final double latitude;
+    private final double longitude;
+    private final double speed;
+    private final double distanceAlongRoute;
+    private final int nextStopIndex;
+    private final long lastUpdated;
+    private final List<Long> breadcrumbs;
+    private final String cell;
+
+    /**
+     * @param distanceAlongRoute The trip's match onto its route, or a negative value if it is
+     * off the route.
+     * @param breadcrumbs The fixes since the previous write as (latitude * 1e5, longitude * 1e5,
+     * seconds before lastUpdated) triples, oldest first.
+     */
+    public VehiclePosition(String tripId, String matatuId, String routeId, double latitude, double longitude,
+                           double speed, double distanceAlongRoute, int nextStopIndex, long lastUpdated,
+                           List<Long> breadcrumbs) {
+        this.tripId = tripId;
+        this.matatuId = matatuId;
+        this.routeId = routeId;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.speed = speed;
+        this.distanceAlongRoute = distanceAlongRoute;
+        this.nextStopIndex = nextStopIndex;
+        this.lastUpdated = lastUpdated;
+        this.breadcrumbs = Collections.unmodifiableList(breadcrumbs);
+        this.cell = Geohash.encode(latitude, longitude, VehiclePositionRepository.CELL_PRECISION);
+    }
+
+    public String getTripId() {
+        return tripId;
+    }
+
+    public String getMatatuId() {
+        return matatuId;
+    }
+
+    public String getRouteId() {
+        return routeId;
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    public double getSpeed() {
+        return speed;
+    }
+
+    public double getDistanceAlongRoute() {
+        return distanceAlongRoute;
+    }
+
+    public int getNextStopIndex() {
+        return nextStopIndex;
+    }
+
+    public long getLastUpdated() {
+        return lastUpdated;
+    }
+
+    public List<Long> getBreadcrumbs() {
+        return breadcrumbs;
+    }
+
+    /** The geohash cell of the position, at VehiclePositionRepository.CELL_PRECISION. */
+    public String getCell() {
+        return cell;
+    }
+}
@@ -0,0 +1,488 @@
+package com.example.mymatauapp;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The binary wire format of the realtime vehicle position stream (see
+ * StreamVehiclePositionTransport and its relay).
+ *
+ * A message is a run of frames, each starting with its type byte. Positions are fixed-point:
+ * coordinates in microdegrees (about 0.1 m), speed in cm/s and distance along the route in
+ * decimetres. The first position of a trip on a stream is a key frame, carrying the trip's
+ * IDs and absolute values and giving it a slot number; after that, a delta frame carries
+ * only the slot and zigzag varint differences from the trip's previous frame, about a dozen
+ * bytes where the trip's Firestore document write is several hundred.
+ *
+ * Every position carries its publisher's sequence number for the trip, which grows by one
+ * per publish. A delta frame also carries the low byte of the sequence number it is relative
+ * to, so a decoder that missed a frame, on a lossy channel, notices: it drops the trip's
+ * deltas until the next key frame, which encoders send every keyFrameInterval frames of a
+ * trip.
+ *
+ * An Encoder and a Decoder each hold the state of one direction of one stream, and are not
+ * thread-safe.
+ */
+public final class VehiclePositionCodec {
+
+    static final int KEY_FRAME = 1;
+    static final int DELTA_FRAME = 2;
+    static final int REMOVED = 3;
+    static final int SUBSCRIBE = 4;
+    static final int UNSUBSCRIBE = 5;
+    static final int SYNCED = 6;
+
+    private static final double COORDINATE_SCALE = 1e6;
+    private static final double SPEED_SCALE = 100;
+    private static final double DISTANCE_SCALE = 10;
+    // The most bytes a varint of a long takes.
+    private static final int MAX_VARINT_BYTES = 10;
+
+    /**
+     * What a decoder finds in a message, frame by frame.
+     */
+    public interface Handler {
+        /** A trip's position, as published with the given sequence number. */
+        void onPosition(VehiclePosition position, long seq);
+
+        /** A trip has ended, or the relay no longer has it. */
+        void onRemoved(String tripId);
+
+        /**
+         * A client asks for the trips on a route in a cell.
+         * @param cell The geohash cell, or null for the whole route.
+         */
+        void onSubscribe(int subscription, String routeId, String cell);
+
+        void onUnsubscribe(int subscription);
+
+        /** The relay has sent every trip a subscription matched when it was made. */
+        void onSynced(int subscription);
+    }
+
+    /** A trip's last frame on a stream, in fixed point. */
+    private static final class Base {
+        final int slot;
+        final String tripId;
+        final String matatuId;
+        final String routeId;
+        long seq;
+        long latitude;
+        long longitude;
+        long time;
+        long distance; // decimetres plus one, or 0 while off the route
+        long nextStop; // the index plus one
+        int framesSinceKey;
+        // Decoder only: a frame was missed, so deltas cannot be applied until a key frame.
+        boolean broken;
+
+        Base(int slot, String tripId, String matatuId, String routeId) {
+            this.slot = slot;
+            this.tripId = tripId;
+            this.matatuId = matatuId;
+            this.routeId = routeId;
+        }
+    }
+
+    private VehiclePositionCodec() {
+    }
+
+    /**
+     * Writes frames into a message.
+     */
+    public static final class Encoder {
+
+        private final int keyFrameInterval;
+        private final Map<String, Base> trips = new HashMap<>();
+        private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+        private int nextSlot;
+        private byte[] buffer = new byte[256];
+        private int size;
+        private long keyFrames;
+        private long deltaFrames;
+
+        /**
+         * @param keyFrameInterval How many frames of a trip at most between key frames, or 0
+         * to send them only when needed, on a channel that loses nothing.
+         */
+        public Encoder(int keyFrameInterval) {
+            this.keyFrameInterval = keyFrameInterval;
+        }
+
+        /**
+         * Writes a trip's position, as a delta from its previous one where it can.
+         * @param seq The publisher's sequence number of the position.
+         */
+        public void position(VehiclePosition position, long seq) {
+            String tripId = position.getTripId();
+            String matatuId = orEmpty(position.getMatatuId());
+            String routeId = orEmpty(position.getRouteId());
+            long latitude = Math.round(position.getLatitude() * COORDINATE_SCALE);
+            long longitude = Math.round(position.getLongitude() * COORDINATE_SCALE);
+            long time = position.getLastUpdated();
+            long distance = fixedDistance(position.getDistanceAlongRoute());
+            long nextStop = Math.max(0, position.getNextStopIndex() + 1);
+
+            Base base = trips.get(tripId);
+            boolean key = base == null
+                    || seq <= base.seq
+                    || !base.matatuId.equals(matatuId)
+                    || !base.routeId.equals(routeId)
+                    || (keyFrameInterval > 0 && base.framesSinceKey + 1 >= keyFrameInterval);
+            if (key) {
+                int slot = base != null ? base.slot : newSlot();
+                Base next = new Base(slot, tripId, matatuId, routeId);
+                writeByte(KEY_FRAME);
+                writeVarint(slot);
+                writeString(tripId);
+                writeString(matatuId);
+                writeString(routeId);
+                writeVarint(seq);
+                writeVarint(zigzag(latitude));
+                writeVarint(zigzag(longitude));
+                writeVarint(zigzag(time));
+                writeVarint(fixedSpeed(position.getSpeed()));
+                writeVarint(distance);
+                writeVarint(nextStop);
+                base = next;
+                trips.put(tripId, base);
+                keyFrames++;
+            } else {
+                writeByte(DELTA_FRAME);
+                writeVarint(base.slot);
+                writeVarint(seq - base.seq);
+                writeByte((int) base.seq);
+                writeVarint(zigzag(latitude - base.latitude));
+                writeVarint(zigzag(longitude - base.longitude));
+                writeVarint(zigzag(time - base.time));
+                writeVarint(fixedSpeed(position.getSpeed()));
+                writeVarint(zigzag(distance - base.distance));
+                writeVarint(zigzag(nextStop - base.nextStop));
+                base.framesSinceKey++;
+                deltaFrames++;
+            }
+            base.seq = seq;
+            base.latitude = latitude;
+            base.longitude = longitude;
+            base.time = time;
+            base.distance = distance;
+            base.nextStop = nextStop;
+            writeBreadcrumbs(position.getBreadcrumbs(), latitude, longitude);
+        }
+
+        /**
+         * Writes that a trip has ended. Its next position, if any, is a key frame.
+         */
+        public void removed(String tripId) {
+            Base base = trips.remove(tripId);
+            if (base != null) {
+                freeSlots.add(base.slot);
+            }
+            writeByte(REMOVED);
+            writeString(tripId);
+        }
+
+        public void subscribe(int subscription, String routeId, String cell) {
+            writeByte(SUBSCRIBE);
+            writeVarint(subscription);
+            writeString(orEmpty(routeId));
+            writeString(orEmpty(cell));
+        }
+
+        public void unsubscribe(int subscription) {
+            writeByte(UNSUBSCRIBE);
+            writeVarint(subscription);
+        }
+
+        public void synced(int subscription) {
+            writeByte(SYNCED);
+            writeVarint(subscription);
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        /**
+         * @return The message written since the last flush, and starts a new one.
+         */
+        public byte[] flush() {
+            byte[] message = Arrays.copyOf(buffer, size);
+            size = 0;
+            return message;
+        }
+
+        /** Key frames written so far. */
+        public long getKeyFrames() {
+            return keyFrames;
+        }
+
+        /** Delta frames written so far. */
+        public long getDeltaFrames() {
+            return deltaFrames;
+        }
+
+        private int newSlot() {
+            Integer slot = freeSlots.poll();
+            return slot != null ? slot : nextSlot++;
+        }
+
+        // Breadcrumbs are (latitude * 1e5, longitude * 1e5, seconds before) triples, each
+        // written as differences from the one after it, the newest from the position itself.
+        private void writeBreadcrumbs(List<Long> breadcrumbs, long latitude, long longitude) {
+            int count = breadcrumbs.size() / 3;
+            writeVarint(count);
+            long previousLatitude = Math.floorDiv(latitude, 10);
+            long previousLongitude = Math.floorDiv(longitude, 10);
+            for (int i = count - 1; i >= 0; i--) {
+                long crumbLatitude = breadcrumbs.get(i * 3);
+                long crumbLongitude = breadcrumbs.get(i * 3 + 1);
+                writeVarint(zigzag(crumbLatitude - previousLatitude));
+                writeVarint(zigzag(crumbLongitude - previousLongitude));
+                writeVarint(zigzag(breadcrumbs.get(i * 3 + 2)));
+                previousLatitude = crumbLatitude;
+                previousLongitude = crumbLongitude;
+            }
+        }
+
+        private void writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, size, bytes.length);
+            size += bytes.length;
+        }
+
+        private void writeVarint(long value) {
+            ensure(MAX_VARINT_BYTES);
+            while ((value & ~0x7FL) != 0) {
+                buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[size++] = (byte) value;
+        }
+
+        private void writeByte(int value) {
+            ensure(1);
+            buffer[size++] = (byte) value;
+        }
+
+        private void ensure(int bytes) {
+            if (size + bytes > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + bytes));
+            }
+        }
+    }
+
+    /**
+     * Reads the frames of messages written by an Encoder, in order.
+     */
+    public static final class Decoder {
+
+        private final Map<Integer, Base> slots = new HashMap<>();
+        private final Map<String, Base> trips = new HashMap<>();
+        private long gaps;
+
+        /**
+         * Hands each frame of a message to the handler. Delta frames of a trip after a gap are
+         * skipped until its next key frame.
+         * @throws IOException If the message is malformed. The stream cannot be decoded after
+         * that.
+         */
+        public void decode(byte[] message, Handler handler) throws IOException {
+            Reader in = new Reader(message);
+            while (in.hasMore()) {
+                int type = in.readByte();
+                switch (type) {
+                    case KEY_FRAME:
+                        readKeyFrame(in, handler);
+                        break;
+                    case DELTA_FRAME:
+                        readDeltaFrame(in, handler);
+                        break;
+                    case REMOVED: {
+                        String tripId = in.readString();
+                        Base base = trips.remove(tripId);
+                        if (base != null) {
+                            slots.remove(base.slot);
+                        }
+                        handler.onRemoved(tripId);
+                        break;
+                    }
+                    case SUBSCRIBE: {
+                        int subscription = (int) in.readVarint();
+                        String routeId = in.readString();
+                        String cell = in.readString();
+                        handler.onSubscribe(subscription, routeId, cell.isEmpty() ? null : cell);
+                        break;
+                    }
+                    case UNSUBSCRIBE:
+                        handler.onUnsubscribe((int) in.readVarint());
+                        break;
+                    case SYNCED:
+                        handler.onSynced((int) in.readVarint());
+                        break;
+                    default:
+                        throw new IOException("Unknown frame type " + type);
+                }
+            }
+        }
+
+        private void readKeyFrame(Reader in, Handler handler) throws IOException {
+            int slot = (int) in.readVarint();
+            Base base = new Base(slot, in.readString(), in.readString(), in.readString());
+            base.seq = in.readVarint();
+            base.latitude = unzigzag(in.readVarint());
+            base.longitude = unzigzag(in.readVarint());
+            base.time = unzigzag(in.readVarint());
+            long speed = in.readVarint();
+            base.distance = in.readVarint();
+            base.nextStop = in.readVarint();
+            List<Long> breadcrumbs = readBreadcrumbs(in, base.latitude, base.longitude);
+            Base previous = slots.put(slot, base);
+            if (previous != null && !previous.tripId.equals(base.tripId)) {
+                trips.remove(previous.tripId);
+            }
+            Base replaced = trips.put(base.tripId, base);
+            if (replaced != null && replaced.slot != slot) {
+                slots.remove(replaced.slot);
+            }
+            handler.onPosition(toPosition(base, speed, breadcrumbs), base.seq);
+        }
+
+        private void readDeltaFrame(Reader in, Handler handler) throws IOException {
+            Base base = slots.get((int) in.readVarint());
+            long seqDelta = in.readVarint();
+            int baseCheck = in.readByte();
+            long latitude = unzigzag(in.readVarint());
+            long longitude = unzigzag(in.readVarint());
+            long time = unzigzag(in.readVarint());
+            long speed = in.readVarint();
+            long distance = unzigzag(in.readVarint());
+            long nextStop = unzigzag(in.readVarint());
+            if (base == null || base.broken || (base.seq & 0xFF) != baseCheck) {
+                // A frame before this one was lost; skip the trip until its next key frame.
+                if (base != null) {
+                    base.broken = true;
+                }
+                gaps++;
+                readBreadcrumbs(in, 0, 0);
+                return;
+            }
+            base.seq += seqDelta;
+            base.latitude += latitude;
+            base.longitude += longitude;
+            base.time += time;
+            base.distance += distance;
+            base.nextStop += nextStop;
+            List<Long> breadcrumbs = readBreadcrumbs(in, base.latitude, base.longitude);
+            handler.onPosition(toPosition(base, speed, breadcrumbs), base.seq);
+        }
+
+        private static List<Long> readBreadcrumbs(Reader in, long latitude, long longitude) throws IOException {
+            int count = (int) in.readVarint();
+            if (count > in.remaining()) {
+                throw new IOException("Truncated breadcrumbs");
+            }
+            Long[] triples = new Long[count * 3];
+            long previousLatitude = Math.floorDiv(latitude, 10);
+            long previousLongitude = Math.floorDiv(longitude, 10);
+            for (int i = count - 1; i >= 0; i--) {
+                previousLatitude += unzigzag(in.readVarint());
+                previousLongitude += unzigzag(in.readVarint());
+                triples[i * 3] = previousLatitude;
+                triples[i * 3 + 1] = previousLongitude;
+                triples[i * 3 + 2] = unzigzag(in.readVarint());
+            }
+            return count == 0 ? new ArrayList<>() : Arrays.asList(triples);
+        }
+
+        private static VehiclePosition toPosition(Base base, long speed, List<Long> breadcrumbs) {
+            return new VehiclePosition(base.tripId, base.matatuId, base.routeId,
+                    base.latitude / COORDINATE_SCALE, base.longitude / COORDINATE_SCALE,
+                    speed / SPEED_SCALE,
+                    base.distance == 0 ? -1 : (base.distance - 1) / DISTANCE_SCALE,
+                    (int) base.nextStop - 1,
+                    base.time,
+                    breadcrumbs);
+        }
+
+        /** Delta frames skipped because a frame before them was lost. */
+        public long getGapCount() {
+            return gaps;
+        }
+    }
+
+    private static final class Reader {
+        private final byte[] bytes;
+        private int position;
+
+        Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        boolean hasMore() {
+            return position < bytes.length;
+        }
+
+        int remaining() {
+            return bytes.length - position;
+        }
+
+        int readByte() throws IOException {
+            if (position >= bytes.length) {
+                throw new IOException("Truncated frame");
+            }
+            return bytes[position++] & 0xFF;
+        }
+
+        long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        String readString() throws IOException {
+            long length = readVarint();
+            if (length > remaining()) {
+                throw new IOException("Truncated string");
+            }
+            String value = new String(bytes, position, (int) length, StandardCharsets.UTF_8);
+            position += (int) length;
+            return value;
+        }
+    }
+
+    private static long fixedSpeed(double speed) {
+        return Double.isNaN(speed) || speed <= 0 ? 0 : Math.round(speed * SPEED_SCALE);
+    }
+
+    private static long fixedDistance(double distanceAlongRoute) {
+        return Double.isNaN(distanceAlongRoute) || distanceAlongRoute < 0
+                ? 0 : Math.round(distanceAlongRoute * DISTANCE_SCALE) + 1;
+    }
+
+    private static String orEmpty(String value) {
+        return value != null ? value : "";
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
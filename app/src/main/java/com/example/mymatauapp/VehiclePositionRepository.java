@@ -0,0 +1,88 @@
+package com.example.mymatauapp;
+
+import java.util.List;
+
+/**
+ * Where passengers read live trip positions from.
+ *
+ * Each trip document carries the geohash cell of its position (at CELL_PRECISION), so a
+ * listener can ask for the trips in one cell of a route rather than all of them. A passenger
+ * then only receives updates from vehicles near them, instead of every update of every
+ * vehicle on the route; see VehicleSubscription, which keeps a set of cells listened to.
+ *
+ * Listeners receive changes rather than whole results, as Firestore's document changes, so
+ * a reader only redoes the work for the trips that moved.
+ */
+public interface VehiclePositionRepository {
+
+    /** The geohash precision of the cells trips are keyed by: about 1.2 km by 0.6 km. */
+    int CELL_PRECISION = 6;
+
+    /**
+     * A trip entering, moving within, or leaving what a listener matches.
+     */
+    final class Change {
+
+        public enum Type {
+            ADDED,
+            MODIFIED,
+            REMOVED
+        }
+
+        private final Type type;
+        private final String tripId;
+        private final VehiclePosition vehicle;
+
+        private Change(Type type, String tripId, VehiclePosition vehicle) {
+            this.type = type;
+            this.tripId = tripId;
+            this.vehicle = vehicle;
+        }
+
+        public static Change added(VehiclePosition vehicle) {
+            return new Change(Type.ADDED, vehicle.getTripId(), vehicle);
+        }
+
+        public static Change modified(VehiclePosition vehicle) {
+            return new Change(Type.MODIFIED, vehicle.getTripId(), vehicle);
+        }
+
+        public static Change removed(String tripId) {
+            return new Change(Type.REMOVED, tripId, null);
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public String getTripId() {
+            return tripId;
+        }
+
+        /** The trip's new position, or null if it was removed. */
+        public VehiclePosition getVehicle() {
+            return vehicle;
+        }
+    }
+
+    interface Listener {
+        /**
+         * Called each time what the listener matches changes. The first call adds everything
+         * it matches, possibly nothing.
+         * @param changes The trips that changed, or null if error is set.
+         * @param error Why listening failed, or null.
+         */
+        void onChanges(List<Change> changes, Exception error);
+    }
+
+    interface Registration {
+        /** Stops the listener. It is not called again. */
+        void remove();
+    }
+
+    /**
+     * Listens to the available trips on a route in one cell.
+     * @param cell The geohash cell, at CELL_PRECISION, or null for the whole route.
+     */
+    Registration listen(String routeId, String cell, Listener listener);
+}
@@ -0,0 +1,40 @@
+package com.example.mymatauapp;
+
+/**
+ * How live trip positions get from a conductor's phone to passengers. LocationTrackingService
+ * publishes through it, and passengers listen through it as a VehiclePositionRepository.
+ *
+ * FirestoreVehiclePositionTransport writes each position into the trip's document;
+ * StreamVehiclePositionTransport sends it as a few bytes over a WebSocket relay. See
+ * VehiclePositionTransports for the one the app uses.
+ */
+public interface VehiclePositionTransport extends VehiclePositionRepository {
+
+    interface Callback {
+        /**
+         * @param error Null if the position was handed on.
+         */
+        void onComplete(Exception error);
+    }
+
+    /**
+     * @return False if a publish cannot succeed right now (e.g. there is no connection).
+     */
+    boolean isOnline();
+
+    /**
+     * Publishes a trip's latest position. The callback is completed exactly once, on any
+     * thread.
+     */
+    void publish(VehiclePosition position, Callback callback);
+
+    /**
+     * Tells listeners the trip has ended, after its last position.
+     */
+    void end(String tripId);
+
+    /**
+     * @return How often positions should be published, at most.
+     */
+    long getPublishIntervalMillis();
+}
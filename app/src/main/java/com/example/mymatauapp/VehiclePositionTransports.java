@@ -0,0 +1,52 @@
+package com.example.mymatauapp;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.core.content.ContextCompat;
+
+import com.google.firebase.firestore.FirebaseFirestore;
+
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+
+/**
+ * Chooses the process-wide VehiclePositionTransport. If the vehicle_stream_url resource names
+ * a relay, positions go over the realtime stream; otherwise, as by default, through Firestore.
+ */
+public final class VehiclePositionTransports {
+
+    private static final String TAG = "VehiclePositionTransports";
+    // Pings find a dead connection (e.g. after a network switch) well before TCP would.
+    private static final long PING_INTERVAL_SECONDS = 20;
+
+    private static VehiclePositionTransport instance;
+
+    private VehiclePositionTransports() {
+    }
+
+    /**
+     * @param context Any context; the application context is kept.
+     * @return The transport shared by the tracking service and the passenger dashboard.
+     * Listeners are called on the main thread.
+     */
+    public static synchronized VehiclePositionTransport get(Context context) {
+        if (instance == null) {
+            Context appContext = context.getApplicationContext();
+            String streamUrl = appContext.getString(R.string.vehicle_stream_url);
+            if (streamUrl.isEmpty()) {
+                instance = new FirestoreVehiclePositionTransport(TripEventJournal.get(appContext),
+                        FirebaseFirestore.getInstance());
+            } else {
+                Log.i(TAG, "Streaming vehicle positions through " + streamUrl);
+                OkHttpClient client = new OkHttpClient.Builder()
+                        .pingInterval(PING_INTERVAL_SECONDS, TimeUnit.SECONDS)
+                        .build();
+                instance = new StreamVehiclePositionTransport(client, streamUrl,
+                        ContextCompat.getMainExecutor(appContext));
+            }
+        }
+        return instance;
+    }
+}
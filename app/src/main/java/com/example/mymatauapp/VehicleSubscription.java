@@ -0,0 +1,178 @@
+package com.example.mymatauapp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Listens to the vehicles on a route in a set of geohash cells, and passes the changes to
+ * the vehicles in all of them on to its listener.
+ *
+ * When the area of interest changes, setCells only stops listening to the cells that left it
+ * and starts listening to the ones that joined, so the cells kept do not refetch. A vehicle
+ * crossing from one cell into another can briefly be in both cells' results; it is one
+ * vehicle, at its latest position, and only leaves when no cell has it.
+ *
+ * Not thread-safe: call it, and let the repository call back, on one thread (the main
+ * thread, with Firestore).
+ */
+public class VehicleSubscription {
+
+    // A passenger watches matatus this far back along the route from their pickup stage
+    // (about 12 minutes at 20 km/h) and this far past it, within this distance either side.
+    private static final double APPROACH_METERS = 4000;
+    private static final double PASSED_WATCH_METERS = 300;
+    private static final double ROUTE_MARGIN_METERS = 150;
+
+    private final VehiclePositionRepository repository;
+    private final String routeId;
+    private final VehiclePositionRepository.Listener listener;
+
+    // The registration and the vehicles of each cell listened to.
+    private final Map<String, VehiclePositionRepository.Registration> registrations = new HashMap<>();
+    private final Map<String, Map<String, VehiclePosition>> cellVehicles = new HashMap<>();
+    // What the listener has been told: the latest position of each vehicle in any cell.
+    private final Map<String, VehiclePosition> vehicles = new HashMap<>();
+
+    private long cellsListened;
+    private long cellsDropped;
+    private boolean closed;
+
+    public VehicleSubscription(VehiclePositionRepository repository, String routeId,
+                               VehiclePositionRepository.Listener listener) {
+        this.repository = repository;
+        this.routeId = routeId;
+        this.listener = listener;
+    }
+
+    public String getRouteId() {
+        return routeId;
+    }
+
+    /**
+     * Makes the subscription listen to exactly these cells.
+     */
+    public void setCells(Set<String> cells) {
+        if (closed) {
+            throw new IllegalStateException("The subscription is closed");
+        }
+        Set<String> affected = new HashSet<>();
+        for (String cell : new ArrayList<>(registrations.keySet())) {
+            if (!cells.contains(cell)) {
+                registrations.remove(cell).remove();
+                Map<String, VehiclePosition> dropped = cellVehicles.remove(cell);
+                if (dropped != null) {
+                    affected.addAll(dropped.keySet());
+                }
+                cellsDropped++;
+            }
+        }
+        for (String cell : cells) {
+            if (!registrations.containsKey(cell)) {
+                VehiclePositionRepository.Registration[] registration = new VehiclePositionRepository.Registration[1];
+                registration[0] = repository.listen(routeId, cell, (changes, error) -> {
+                    // Ignore anything a cell delivers after it was dropped. A repository may
+                    // deliver the first changes before listen returns, when both are null.
+                    if (registrations.get(cell) == registration[0]) {
+                        onCellChanged(cell, changes, error);
+                    }
+                });
+                registrations.putIfAbsent(cell, registration[0]);
+                cellsListened++;
+            }
+        }
+        deliver(affected, false);
+    }
+
+    /** The cells listened to, sorted. */
+    public Set<String> getCells() {
+        return new TreeSet<>(registrations.keySet());
+    }
+
+    /**
+     * Stops listening to every cell. The listener is not called again.
+     */
+    public void close() {
+        for (VehiclePositionRepository.Registration registration : registrations.values()) {
+            registration.remove();
+        }
+        cellsDropped += registrations.size();
+        registrations.clear();
+        cellVehicles.clear();
+        vehicles.clear();
+        closed = true;
+    }
+
+    private void onCellChanged(String cell, List<VehiclePositionRepository.Change> changes, Exception error) {
+        if (error != null) {
+            listener.onChanges(null, error);
+            return;
+        }
+        Map<String, VehiclePosition> inCell = cellVehicles.computeIfAbsent(cell, key -> new HashMap<>());
+        Set<String> affected = new HashSet<>();
+        for (VehiclePositionRepository.Change change : changes) {
+            if (change.getType() == VehiclePositionRepository.Change.Type.REMOVED) {
+                inCell.remove(change.getTripId());
+            } else {
+                inCell.put(change.getTripId(), change.getVehicle());
+            }
+            affected.add(change.getTripId());
+        }
+        // Always called, so the listener hears that a cell has loaded even when it is empty.
+        deliver(affected, true);
+    }
+
+    /**
+     * Works out where each affected vehicle now is across the cells, and tells the listener
+     * about those that changed.
+     * @param always Whether to call the listener even if none changed.
+     */
+    private void deliver(Set<String> affected, boolean always) {
+        List<VehiclePositionRepository.Change> changes = new ArrayList<>();
+        for (String tripId : affected) {
+            VehiclePosition latest = null;
+            for (Map<String, VehiclePosition> inCell : cellVehicles.values()) {
+                VehiclePosition vehicle = inCell.get(tripId);
+                if (vehicle != null && (latest == null || latest.getLastUpdated() < vehicle.getLastUpdated())) {
+                    latest = vehicle;
+                }
+            }
+            VehiclePosition known = latest != null ? vehicles.put(tripId, latest) : vehicles.remove(tripId);
+            if (latest == null) {
+                if (known != null) {
+                    changes.add(VehiclePositionRepository.Change.removed(tripId));
+                }
+            } else if (known == null) {
+                changes.add(VehiclePositionRepository.Change.added(latest));
+            } else if (known != latest) {
+                changes.add(VehiclePositionRepository.Change.modified(latest));
+            }
+        }
+        if (always || !changes.isEmpty()) {
+            listener.onChanges(changes, null);
+        }
+    }
+
+    /**
+     * @return The geohash cells a matatu coming to a stop can be in: along the route up to
+     * APPROACH_METERS before the stop, and just past it, so that one which has passed still
+     * shows as such.
+     */
+    public static Set<String> cellsApproaching(RoutePolyline route, int stop) {
+        double along = route.stopDistance(stop);
+        return Geohash.cellsAlong(route, along - APPROACH_METERS, along + PASSED_WATCH_METERS,
+                ROUTE_MARGIN_METERS, VehiclePositionRepository.CELL_PRECISION);
+    }
+
+    /**
+     * @return A summary of the cells listened to, for logging.
+     */
+    public String stats() {
+        return "Listening to " + registrations.size() + " cells on " + routeId + "; " + cellsListened
+                + " cell listens, " + cellsDropped + " dropped.";
+    }
+}
@@ -0,0 +1,286 @@
+package com.example.mymatauapp;
+
+import androidx.annotation.NonNull;
+import androidx.lifecycle.DefaultLifecycleObserver;
+import androidx.lifecycle.LifecycleOwner;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shares the listeners of a VehiclePositionRepository between everything on a screen that
+ * listens to it, and ties them to the screen's lifecycle.
+ *
+ * Each distinct query (route and cell) has one listener on the underlying repository, however
+ * many consumers listen to it; it is counted by its consumers and removed when the last one
+ * goes. A consumer joining a query that has loaded is handed what the query holds at once.
+ *
+ * Added as an observer of an activity's lifecycle, it removes the underlying listeners in
+ * onStop and listens again in onStart, so a screen in the background costs no reads. On
+ * coming back, each consumer is only told what changed meanwhile. In onDestroy every listener
+ * is removed for good.
+ *
+ * A listener that fails upstream is dead: the repository sends it nothing more. Its consumers
+ * are told the error and it is removed, and the query listens again when the screen next
+ * starts or another consumer joins it.
+ *
+ * Not thread-safe: use it, and let the underlying repository call back, on the main thread.
+ */
+public class VehicleSubscriptionManager implements VehiclePositionRepository, DefaultLifecycleObserver {
+
+    /** One distinct query, and the consumers sharing it. */
+    private class Query {
+        final String key;
+        final String routeId;
+        final String cell;
+        final List<Listener> consumers = new ArrayList<>();
+        // What the query holds, as its consumers have been told.
+        final Map<String, VehiclePosition> vehicles = new LinkedHashMap<>();
+        Registration upstream;
+        // Bumped on every listen, so callbacks from an earlier one are ignored.
+        int generation;
+        // Whether the next callback is the first of a listen, holding everything.
+        boolean awaitingFirst;
+        boolean loaded;
+        // Whether the last listen failed, leaving the query without a listener.
+        boolean failed;
+
+        Query(String key, String routeId, String cell) {
+            this.key = key;
+            this.routeId = routeId;
+            this.cell = cell;
+        }
+
+        void start() {
+            int listen = ++generation;
+            awaitingFirst = true;
+            failed = false;
+            Registration registration = repository.listen(routeId, cell, (changes, error) -> {
+                if (listen == generation) {
+                    onChanges(this, changes, error);
+                }
+            });
+            // The first result may have come, and the query even gone, before listen returned.
+            if (listen == generation && queries.get(key) == this) {
+                upstream = registration;
+            } else {
+                registration.remove();
+            }
+        }
+
+        void stop() {
+            generation++;
+            if (upstream != null) {
+                upstream.remove();
+                upstream = null;
+            }
+        }
+    }
+
+    private final VehiclePositionRepository repository;
+    private final Map<String, Query> queries = new HashMap<>();
+    private boolean paused;
+    private boolean destroyed;
+
+    private long upstreamListens;
+    private long sharedListens;
+    private long upstreamErrors;
+
+    public VehicleSubscriptionManager(VehiclePositionRepository repository) {
+        this.repository = repository;
+    }
+
+    @Override
+    public Registration listen(String routeId, String cell, Listener listener) {
+        if (destroyed) {
+            throw new IllegalStateException("The subscription manager is destroyed");
+        }
+        String key = routeId + "\n" + (cell != null ? cell : "");
+        Query query = queries.get(key);
+        if (query == null) {
+            query = new Query(key, routeId, cell);
+            queries.put(key, query);
+            query.consumers.add(listener);
+            if (!paused) {
+                upstreamListens++;
+                query.start();
+            }
+        } else {
+            sharedListens++;
+            query.consumers.add(listener);
+            if (query.loaded) {
+                List<Change> changes = new ArrayList<>();
+                for (VehiclePosition vehicle : query.vehicles.values()) {
+                    changes.add(Change.added(vehicle));
+                }
+                listener.onChanges(changes, null);
+            }
+            if (query.failed && !paused && queries.get(key) == query) {
+                // Every consumer, this one included, is then told what changed since.
+                upstreamListens++;
+                query.start();
+            }
+        }
+        Query registered = query;
+        return () -> release(registered, listener);
+    }
+
+    private void release(Query query, Listener listener) {
+        if (!query.consumers.remove(listener) || !query.consumers.isEmpty()) {
+            return;
+        }
+        query.stop();
+        if (queries.get(query.key) == query) {
+            queries.remove(query.key);
+        }
+    }
+
+    private void onChanges(Query query, List<Change> changes, Exception error) {
+        List<Change> delivered;
+        if (error != null) {
+            upstreamErrors++;
+            query.stop();
+            query.failed = true;
+            delivered = null;
+        } else if (query.awaitingFirst) {
+            query.awaitingFirst = false;
+            delivered = reconcile(query, changes);
+            if (delivered.isEmpty() && query.loaded) {
+                // Back from a pause with nothing changed.
+                return;
+            }
+            query.loaded = true;
+        } else {
+            for (Change change : changes) {
+                if (change.getType() == Change.Type.REMOVED) {
+                    query.vehicles.remove(change.getTripId());
+                } else {
+                    query.vehicles.put(change.getTripId(), change.getVehicle());
+                }
+            }
+            delivered = changes;
+        }
+        for (Listener consumer : new ArrayList<>(query.consumers)) {
+            // A consumer released by an earlier one in this loop is not called.
+            if (query.consumers.contains(consumer)) {
+                consumer.onChanges(delivered, error);
+            }
+        }
+    }
+
+    /**
+     * Replaces what a query holds with the first result of a listen, which holds everything.
+     * @return The changes from what its consumers were told before.
+     */
+    private static List<Change> reconcile(Query query, List<Change> first) {
+        Map<String, VehiclePosition> now = new LinkedHashMap<>();
+        for (Change change : first) {
+            if (change.getType() != Change.Type.REMOVED) {
+                now.put(change.getTripId(), change.getVehicle());
+            }
+        }
+        List<Change> changes = new ArrayList<>();
+        for (String tripId : query.vehicles.keySet()) {
+            if (!now.containsKey(tripId)) {
+                changes.add(Change.removed(tripId));
+            }
+        }
+        for (VehiclePosition vehicle : now.values()) {
+            VehiclePosition before = query.vehicles.get(vehicle.getTripId());
+            if (before == null) {
+                changes.add(Change.added(vehicle));
+            } else if (before.getLastUpdated() != vehicle.getLastUpdated()) {
+                changes.add(Change.modified(vehicle));
+            }
+        }
+        query.vehicles.clear();
+        query.vehicles.putAll(now);
+        return changes;
+    }
+
+    /**
+     * Removes every underlying listener, keeping the consumers and what they were told.
+     */
+    public void pause() {
+        if (paused || destroyed) {
+            return;
+        }
+        paused = true;
+        for (Query query : queries.values()) {
+            query.stop();
+        }
+    }
+
+    /**
+     * Listens again to every query with consumers.
+     */
+    public void resume() {
+        if (!paused || destroyed) {
+            return;
+        }
+        paused = false;
+        for (Query query : new ArrayList<>(queries.values())) {
+            upstreamListens++;
+            query.start();
+        }
+    }
+
+    /**
+     * Removes every listener for good. Consumers are not called again.
+     */
+    public void destroy() {
+        for (Query query : queries.values()) {
+            query.stop();
+            query.consumers.clear();
+        }
+        queries.clear();
+        destroyed = true;
+    }
+
+    @Override
+    public void onStart(@NonNull LifecycleOwner owner) {
+        resume();
+    }
+
+    @Override
+    public void onStop(@NonNull LifecycleOwner owner) {
+        pause();
+    }
+
+    @Override
+    public void onDestroy(@NonNull LifecycleOwner owner) {
+        destroy();
+    }
+
+    /** The listeners on the underlying repository right now. */
+    public int getActiveListenerCount() {
+        int count = 0;
+        for (Query query : queries.values()) {
+            if (query.upstream != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** The consumers listening through the manager right now. */
+    public int getConsumerCount() {
+        int count = 0;
+        for (Query query : queries.values()) {
+            count += query.consumers.size();
+        }
+        return count;
+    }
+
+    /**
+     * @return A summary of the listeners, for logging.
+     */
+    public String stats() {
+        return getActiveListenerCount() + " active listeners for " + getConsumerCount() + " consumers"
+                + (paused ? " (paused)" : "") + "; " + upstreamListens + " listens, " + sharedListens + " shared, "
+                + upstreamErrors + " failed.";
+    }
+}
@@ -0,0 +1,190 @@
+package com.example.mymatauapp;
+
+import com.example.mymatauapp.TraceFixtures.Fix;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.SphericalUtil;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for AdaptiveSamplingController, plus a harness that replays 1 Hz traces through it
+ * and compares it with the fixed 10 s request it replaced.
+ *
+ * A replay takes a fix from the trace whenever the current interval has elapsed and the
+ * vehicle has moved the policy's minimum distance since the last fix, as the fused location
+ * provider delivers them, and measures the error at every second as the distance from the
+ * trace position to the last fix taken: the position riders would see. The traces are those
+ * in TraceFixtures.
+ */
+public class AdaptiveSamplingSimulationTest {
+
+    private static final List<String> TRACES = Arrays.asList("roysambu_town");
+    private static final AdaptiveSamplingController.Policy FIXED =
+            new AdaptiveSamplingController.Policy(AdaptiveSamplingController.Mode.MOVING, 10000, true, 0);
+
+    private static class Replay {
+        int fixes;
+        int standingFixes; // taken while the vehicle stood still
+        double meanError;
+        double p95Error;
+        double maxError;
+    }
+
+    /** Returns the policy for the next fix, given the fix just taken. */
+    private interface Sampler {
+        AdaptiveSamplingController.Policy onFix(Fix fix);
+    }
+
+    private static Replay replay(List<Fix> trace, Sampler sampler) {
+        Replay replay = new Replay();
+        double[] errors = new double[trace.size()];
+        Fix last = null;
+        AdaptiveSamplingController.Policy policy = null;
+        long nextFixAt = Long.MIN_VALUE;
+        for (int i = 0; i < trace.size(); i++) {
+            Fix fix = trace.get(i);
+            if (fix.timeMillis >= nextFixAt) {
+                // A fix too close to the last one is computed but not delivered.
+                if (last != null && distance(last, fix) < policy.getMinDistanceMeters()) {
+                    nextFixAt = fix.timeMillis + policy.getIntervalMillis();
+                } else {
+                    last = fix;
+                    replay.fixes++;
+                    if (fix.speed < 1) {
+                        replay.standingFixes++;
+                    }
+                    policy = sampler.onFix(fix);
+                    nextFixAt = fix.timeMillis + policy.getIntervalMillis();
+                }
+            }
+            errors[i] = distance(last, fix);
+            replay.meanError += errors[i] / trace.size();
+        }
+        Arrays.sort(errors);
+        replay.p95Error = errors[(int) (errors.length * 0.95)];
+        replay.maxError = errors[errors.length - 1];
+        return replay;
+    }
+
+    private static double distance(Fix from, Fix to) {
+        return SphericalUtil.computeDistanceBetween(new LatLng(from.latitude, from.longitude),
+                new LatLng(to.latitude, to.longitude));
+    }
+
+    private static Replay replayAdaptive(List<Fix> trace, RoutePolyline route, int batteryPercent) {
+        AdaptiveSamplingController controller = new AdaptiveSamplingController(route);
+        controller.onBatteryChanged(batteryPercent, false);
+        return replay(trace, fix -> controller.onLocation(fix.latitude, fix.longitude, fix.speed, fix.accuracy,
+                fix.timeMillis));
+    }
+
+    private static String describe(Replay replay) {
+        return String.format("%4d fixes (%3d standing), error mean %5.1f m, p95 %5.1f m, max %5.1f m",
+                replay.fixes, replay.standingFixes, replay.meanError, replay.p95Error, replay.maxError);
+    }
+
+    @Test
+    public void controller_parksAfterAMinuteStandingStill() {
+        AdaptiveSamplingController controller = new AdaptiveSamplingController(null);
+        AdaptiveSamplingController.Policy policy = null;
+        for (int s = 0; s <= 60; s += 5) {
+            policy = controller.onLocation(-1.218, 36.8893, 0.2, 5, s * 1000L);
+        }
+
+        assertEquals(AdaptiveSamplingController.Mode.PARKED, policy.getMode());
+        assertEquals(5000, policy.getIntervalMillis());
+        assertFalse(policy.isHighAccuracy());
+        // Only moving off gets a fix delivered.
+        assertEquals(30, policy.getMinDistanceMeters(), 0);
+    }
+
+    @Test
+    public void controller_leavesParkedWhenMovingOff() {
+        AdaptiveSamplingController controller = new AdaptiveSamplingController(null);
+        for (int s = 0; s <= 60; s += 5) {
+            controller.onLocation(-1.218, 36.8893, 0, 5, s * 1000L);
+        }
+        // No reported speed: it is derived from about 100 m in 10 s.
+        AdaptiveSamplingController.Policy policy =
+                controller.onLocation(-1.2189, 36.8893, Double.NaN, 5, 70000);
+
+        assertEquals(AdaptiveSamplingController.Mode.MOVING, policy.getMode());
+        assertTrue(policy.isHighAccuracy());
+    }
+
+    @Test
+    public void controller_spacesFixesByDistanceWhileMoving() {
+        AdaptiveSamplingController fast = new AdaptiveSamplingController(null);
+        AdaptiveSamplingController slow = new AdaptiveSamplingController(null);
+
+        assertEquals(3000, fast.onLocation(-1.23, 36.87, 16, 5, 0).getIntervalMillis());
+        assertEquals(10000, slow.onLocation(-1.23, 36.87, 4, 5, 0).getIntervalMillis());
+    }
+
+    @Test
+    public void controller_samplesDenselyApproachingAStop() {
+        RoutePolyline route = new RoutePolyline(Arrays.asList(
+                new LatLng(-1.22593, 36.88504), new LatLng(-1.23038, 36.87896), new LatLng(-1.23456, 36.87397)));
+        AdaptiveSamplingController controller = new AdaptiveSamplingController(route);
+        LatLng nearGardenCity = route.positionAt(route.stopDistance(1) - 100);
+        LatLng leavingGardenCity = route.positionAt(route.stopDistance(1) + 300);
+
+        AdaptiveSamplingController.Policy approaching =
+                controller.onLocation(nearGardenCity.latitude, nearGardenCity.longitude, 6, 5, 0);
+        assertEquals(AdaptiveSamplingController.Mode.APPROACHING_STOP, approaching.getMode());
+        assertEquals(3000, approaching.getIntervalMillis());
+        assertEquals(100, controller.getDistanceToNextStop(), 1);
+
+        AdaptiveSamplingController.Policy leaving =
+                controller.onLocation(leavingGardenCity.latitude, leavingGardenCity.longitude, 6, 5, 10000);
+        assertEquals(AdaptiveSamplingController.Mode.MOVING, leaving.getMode());
+    }
+
+    @Test
+    public void controller_savesPowerOnLowBattery() {
+        AdaptiveSamplingController controller = new AdaptiveSamplingController(null);
+        controller.onLocation(-1.23, 36.87, 4, 5, 0);
+
+        AdaptiveSamplingController.Policy low = controller.onBatteryChanged(15, false);
+        assertEquals(20000, low.getIntervalMillis());
+        assertFalse(low.isHighAccuracy());
+
+        AdaptiveSamplingController.Policy charging = controller.onBatteryChanged(15, true);
+        assertEquals(10000, charging.getIntervalMillis());
+        assertTrue(charging.isHighAccuracy());
+    }
+
+    @Test
+    public void replay_adaptiveVersusFixedInterval() throws Exception {
+        for (String name : TRACES) {
+            List<Fix> trace = TraceFixtures.trace(name);
+            RoutePolyline route = TraceFixtures.route(name);
+
+            Replay fixed = replay(trace, fix -> FIXED);
+            Replay adaptive = replayAdaptive(trace, route, 80);
+            Replay lowBattery = replayAdaptive(trace, route, 15);
+
+            System.out.println("Sampling replay (" + name + ", " + trace.size() / 60 + " min):");
+            System.out.println("  fixed 10 s:    " + describe(fixed));
+            System.out.println("  adaptive:      " + describe(adaptive));
+            System.out.println("  low battery:   " + describe(lowBattery));
+
+            // Fixes move from the stage to the road: far fewer while standing, no more overall,
+            // and a smaller error, even at the worst moment such as moving off from a stage.
+            assertTrue("adaptive took " + adaptive.standingFixes + " fixes standing, fixed " + fixed.standingFixes,
+                    adaptive.standingFixes * 3 < fixed.standingFixes * 2);
+            assertTrue("adaptive took " + adaptive.fixes + " fixes, fixed " + fixed.fixes,
+                    adaptive.fixes <= fixed.fixes);
+            assertTrue("adaptive p95 error " + adaptive.p95Error + " m, fixed " + fixed.p95Error + " m",
+                    adaptive.p95Error < fixed.p95Error * 0.75);
+            assertTrue("adaptive max error " + adaptive.maxError + " m, fixed " + fixed.maxError + " m",
+                    adaptive.maxError <= fixed.maxError);
+            assertTrue(lowBattery.fixes < adaptive.fixes);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.example.mymatauapp;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Gate for the tests that time themselves or wait on real sockets. What they see depends on
+ * the machine and what else it is doing, so they are skipped in the normal unit test run and
+ * only run when asked for, with ./gradlew testDebugUnitTest -Pbenchmarks.
+ */
+final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    /** Skips the calling test unless benchmarks were asked for. */
+    static void assumeEnabled() {
+        assumeTrue("only run with -Pbenchmarks", Boolean.getBoolean("benchmarks"));
+    }
+}
@@ -0,0 +1,319 @@
+package com.example.mymatauapp;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.SphericalUtil;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for EtaEngine, plus a backtest that learns from a week of trips and reports the mean
+ * absolute error of its arrival estimates against the recorded arrivals of the next day.
+ *
+ * The trips are built from the trace in resources/traces (see TraceFixtures),
+ * slowed down on Thika Road and in town during the morning and evening rush as the trip's
+ * clock goes through those hours.
+ */
+public class EtaEngineTest {
+
+    private static final String TRACE = "roysambu_town";
+    private static final TimeZone NAIROBI = TimeZone.getTimeZone("Africa/Nairobi");
+    // Midnight in Nairobi on Monday 4 March 2024.
+    private static final long MONDAY = 1709499600000L;
+    private static final long HOUR = 60 * 60 * 1000;
+    private static final long DAY = 24 * HOUR;
+
+    private static final LatLng START = new LatLng(-1.22593, 36.88504);
+    // Three stops 1 km apart heading south.
+    private static final RoutePolyline ROUTE = new RoutePolyline(Arrays.asList(
+            START,
+            SphericalUtil.computeOffset(START, 1000, 180),
+            SphericalUtil.computeOffset(START, 2000, 180)));
+
+    /** A trip's reports: times in milliseconds and distances along the route in metres. */
+    private static class Run {
+        final String tripId;
+        final long[] times;
+        final double[] along;
+
+        Run(String tripId, long[] times, double[] along) {
+            this.tripId = tripId;
+            this.times = times;
+            this.along = along;
+        }
+    }
+
+    private static long at(int day, double hour) {
+        return MONDAY + day * DAY + Math.round(hour * HOUR);
+    }
+
+    /**
+     * Reports a trip every 10 s driving at a constant speed until it is past a distance.
+     */
+    private static void drive(EtaEngine engine, String tripId, long start, double speed, double from, double to) {
+        long time = start;
+        for (double along = from; along <= to + speed * 10; along += speed * 10) {
+            engine.observe(tripId, time, along);
+            time += 10000;
+        }
+    }
+
+    @Test
+    public void estimate_usesTheDefaultSpeedUntilItLearns() {
+        EtaEngine engine = new EtaEngine(ROUTE, NAIROBI);
+
+        assertEquals(2000 / EtaEngine.DEFAULT_SPEED_MPS, engine.estimateSeconds(0, 2, at(0, 12)), 1e-6);
+        assertEquals(0, engine.estimateSeconds(1020, 1, at(0, 12)), 0);
+        assertTrue(Double.isNaN(engine.estimateSeconds(1100, 1, at(0, 12))));
+    }
+
+    @Test
+    public void observe_learnsSegmentSpeedsByHour() {
+        EtaEngine engine = new EtaEngine(ROUTE, NAIROBI);
+        // Crawling at 8 am, quick at noon.
+        drive(engine, "morning", at(0, 8), 2, 0, 2000);
+        drive(engine, "noon", at(0, 12), 10, 0, 2000);
+
+        assertEquals(2, engine.getSegmentSpeed(0, 8), 0.05);
+        assertEquals(10, engine.getSegmentSpeed(1, 12), 0.5);
+        // Hours without data fall back to the segment's all-day average pace.
+        assertEquals(2 / (1 / 2.0 + 1 / 10.0), engine.getSegmentSpeed(0, 15), 0.2);
+        assertEquals(1000 / 2.0 + 500 / 2.0, engine.estimateSeconds(500, 2, at(1, 8)), 10);
+        assertEquals(1500 / 10.0, engine.estimateSeconds(500, 2, at(1, 12)), 5);
+    }
+
+    @Test
+    public void observe_ignoresStaleReportsGapsAndRestarts() {
+        EtaEngine engine = new EtaEngine(ROUTE, NAIROBI);
+        engine.observe("trip", at(0, 8), 900);
+        engine.observe("trip", at(0, 8) + 200000, 1100);
+        // A report older than the last one.
+        engine.observe("trip", at(0, 8) + 100000, 1500);
+        // A gap of an hour.
+        engine.observe("trip", at(0, 9) + 200000, 1900);
+        engine.observe("trip", at(0, 9) + 300000, 2100);
+        // Back near the start.
+        engine.observe("trip", at(0, 9) + 400000, 100);
+        engine.observe("trip", at(0, 9) + 500000, 600);
+
+        assertEquals(EtaEngine.DEFAULT_SPEED_MPS, engine.getSegmentSpeed(0, 9), 1e-9);
+        assertEquals(EtaEngine.DEFAULT_SPEED_MPS, engine.getSegmentSpeed(1, 9), 1e-9);
+        assertTrue(engine.stats(), engine.stats().startsWith("ETA profile: 0 segment traversals"));
+    }
+
+    @Test
+    public void estimate_usesTheHourTheMatatuWillBeOnEachSegment() {
+        EtaEngine engine = new EtaEngine(ROUTE, NAIROBI);
+        drive(engine, "early", at(0, 6.5), 10, 0, 2000);
+        drive(engine, "rush", at(0, 7.0), 1, 0, 1000);
+        drive(engine, "rush2", at(0, 7.5), 1, 990, 2000);
+
+        // Leaving at 6:59, the first segment is quick but the second is driven in the rush.
+        double seconds = engine.estimateSeconds(0, 2, at(0, 6 + 59 / 60.0));
+
+        assertEquals(1000 / 10.0 + 1000 / 1.0, seconds, 1);
+    }
+
+    @Test
+    public void profile_roundTrips() throws Exception {
+        EtaEngine engine = new EtaEngine(ROUTE, NAIROBI);
+        drive(engine, "morning", at(0, 8), 2, 0, 2000);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        engine.writeTo(new DataOutputStream(bytes));
+
+        EtaEngine restored = new EtaEngine(ROUTE, NAIROBI);
+        EtaEngine otherRoute = new EtaEngine(new RoutePolyline(Arrays.asList(START, ROUTE.positionAt(1500))), NAIROBI);
+
+        assertTrue(restored.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))));
+        assertEquals(engine.estimateSeconds(0, 2, at(3, 8)), restored.estimateSeconds(0, 2, at(3, 8)), 1e-9);
+        assertFalse(otherRoute.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))));
+    }
+
+    @Test
+    public void pickupStop_isTheClosestStop() {
+        EtaEngine engine = new EtaEngine(ROUTE, NAIROBI);
+
+        assertEquals(1, engine.pickupStop(SphericalUtil.computeOffset(ROUTE.positionAt(1100), 80, 90)));
+        assertEquals(2, engine.pickupStop(SphericalUtil.computeOffset(ROUTE.positionAt(2000), 500, 180)));
+    }
+
+    // ---- Backtest ----
+
+    /**
+     * How much longer a stretch of the trace takes at an hour of day. Thika Road (up to
+     * Muthaiga, stop 7) jams in the morning towards town and eases in the evening; town is slow
+     * at both rushes.
+     */
+    private static double slowdown(int stop, double hour) {
+        boolean thikaRoad = stop < 7;
+        if (hour >= 6.5 && hour < 9.5) {
+            return thikaRoad ? 2.4 : 1.8;
+        }
+        if (hour >= 16.5 && hour < 19.5) {
+            return thikaRoad ? 1.4 : 2.0;
+        }
+        if (hour >= 5.5 && hour < 10.5 || hour >= 15.5 && hour < 20.5) {
+            return thikaRoad ? 1.5 : 1.4;
+        }
+        return 1;
+    }
+
+    /**
+     * Replays the trace from its departure, stretched in time by slowdown and a random
+     * factor for the trip, reporting every 15 s as a trip would.
+     */
+    private static Run run(String tripId, List<TraceFixtures.Fix> trace, RoutePolyline route,
+                           long start, Random random) {
+        int departure = 0;
+        while (route.project(new LatLng(trace.get(departure).latitude, trace.get(departure).longitude))
+                .getDistanceAlong() < 20) {
+            departure++;
+        }
+        departure = Math.max(0, departure - 30);
+        double tripFactor = 1 + 0.08 * random.nextGaussian();
+        List<Long> times = new ArrayList<>();
+        List<Double> along = new ArrayList<>();
+        double time = start;
+        long lastReport = start - 15000;
+        for (int i = departure; i < trace.size(); i++) {
+            TraceFixtures.Fix fix = trace.get(i);
+            double distance = route.project(new LatLng(fix.latitude, fix.longitude)).getDistanceAlong();
+            if (i > departure) {
+                double hour = (Math.floorMod((long) time - MONDAY, DAY)) / (double) HOUR;
+                int stop = Math.max(0, route.nextStop(distance, true) - 1);
+                time += (fix.timeMillis - trace.get(i - 1).timeMillis) * slowdown(stop, hour) * tripFactor;
+            }
+            if ((long) time - lastReport >= 15000 || i == trace.size() - 1) {
+                lastReport = (long) time;
+                times.add((long) time);
+                along.add(distance);
+            }
+        }
+        long[] timeArray = new long[times.size()];
+        double[] alongArray = new double[along.size()];
+        for (int i = 0; i < timeArray.length; i++) {
+            timeArray[i] = times.get(i);
+            alongArray[i] = along.get(i);
+        }
+        return new Run(tripId, timeArray, alongArray);
+    }
+
+    /**
+     * @return When a run first reached each stop, by interpolating between reports, or -1 if
+     * it never did.
+     */
+    private static long[] arrivals(Run run, RoutePolyline route) {
+        long[] arrivals = new long[route.stopCount()];
+        Arrays.fill(arrivals, -1);
+        for (int i = 1; i < run.times.length; i++) {
+            for (int stop = 0; stop < route.stopCount(); stop++) {
+                double d = route.stopDistance(stop);
+                if (arrivals[stop] < 0 && run.along[i - 1] <= d && run.along[i] > d) {
+                    double fraction = (d - run.along[i - 1]) / (run.along[i] - run.along[i - 1]);
+                    arrivals[stop] = run.times[i - 1] + Math.round(fraction * (run.times[i] - run.times[i - 1]));
+                }
+            }
+        }
+        return arrivals;
+    }
+
+    /** Accumulates absolute errors in seconds. */
+    private static class Errors {
+        double sum;
+        int count;
+
+        void add(double predicted, double actual) {
+            sum += Math.abs(predicted - actual);
+            count++;
+        }
+
+        double mae() {
+            return sum / count;
+        }
+    }
+
+    @Test
+    public void backtest_reportsMaeAgainstRecordedArrivals() throws Exception {
+        List<TraceFixtures.Fix> trace = TraceFixtures.trace(TRACE);
+        RoutePolyline route = TraceFixtures.route(TRACE);
+        Random random = new Random(17);
+        int trainingDays = 7;
+        // A departure every 30 minutes from 5:00 to 21:30.
+        List<List<Run>> days = new ArrayList<>();
+        for (int day = 0; day <= trainingDays; day++) {
+            List<Run> runs = new ArrayList<>();
+            for (double hour = 5; hour <= 21.5; hour += 0.5) {
+                runs.add(run("day" + day + "-" + hour, trace, route, at(day, hour), random));
+            }
+            days.add(runs);
+        }
+
+        EtaEngine engine = new EtaEngine(route, NAIROBI);
+        for (int day = 0; day < trainingDays; day++) {
+            for (Run run : days.get(day)) {
+                for (int i = 0; i < run.times.length; i++) {
+                    engine.observe(run.tripId, run.times[i], run.along[i]);
+                }
+            }
+        }
+
+        // Every minute of each trip on the last day, estimate the arrival at every stop ahead.
+        Errors straightLine = new Errors();
+        Errors alongRoute = new Errors();
+        Errors learned = new Errors();
+        Errors learnedRush = new Errors();
+        Errors learnedOffPeak = new Errors();
+        for (Run run : days.get(trainingDays)) {
+            long[] arrivals = arrivals(run, route);
+            long lastEstimate = run.times[0] - 60000;
+            for (int i = 0; i < run.times.length; i++) {
+                long now = run.times[i];
+                if (now - lastEstimate < 60000) {
+                    continue;
+                }
+                lastEstimate = now;
+                LatLng position = route.positionAt(run.along[i]);
+                for (int stop = 0; stop < route.stopCount(); stop++) {
+                    if (arrivals[stop] <= now) {
+                        continue;
+                    }
+                    double actual = (arrivals[stop] - now) / 1000.0;
+                    LatLng stopPosition = route.positionAt(route.stopDistance(stop));
+                    // What LandingPage did before: straight-line distance at a constant speed.
+                    straightLine.add(SphericalUtil.computeDistanceBetween(position, stopPosition)
+                            / EtaEngine.DEFAULT_SPEED_MPS, actual);
+                    alongRoute.add((route.stopDistance(stop) - run.along[i]) / EtaEngine.DEFAULT_SPEED_MPS, actual);
+                    double estimate = engine.estimateSeconds(run.along[i], stop, now);
+                    learned.add(estimate, actual);
+                    double hour = Math.floorMod(now - MONDAY, DAY) / (double) HOUR;
+                    (slowdown(0, hour) > 1 ? learnedRush : learnedOffPeak).add(estimate, actual);
+                }
+            }
+        }
+
+        System.out.println(String.format("ETA backtest (%s, %d training days, %d trips a day, %d estimates):",
+                TRACE, trainingDays, days.get(0).size(), learned.count));
+        System.out.println(String.format("  straight line at %.2f m/s: MAE %5.0f s", EtaEngine.DEFAULT_SPEED_MPS,
+                straightLine.mae()));
+        System.out.println(String.format("  along route at %.2f m/s:   MAE %5.0f s", EtaEngine.DEFAULT_SPEED_MPS,
+                alongRoute.mae()));
+        System.out.println(String.format("  learned profile:            MAE %5.0f s (rush %.0f s, off-peak %.0f s)",
+                learned.mae(), learnedRush.mae(), learnedOffPeak.mae()));
+        System.out.println("  " + engine.stats());
+
+        assertTrue(learned.mae() < alongRoute.mae() / 2);
+        assertTrue(learned.mae() < straightLine.mae() / 2);
+        assertTrue("learned MAE " + learned.mae() + " s", learned.mae() < 120);
+    }
+}
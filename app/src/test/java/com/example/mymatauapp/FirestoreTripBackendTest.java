@@ -0,0 +1,80 @@
+package com.example.mymatauapp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class FirestoreTripBackendTest {
+
+    private static TripEvent position(double latitude, double longitude, long lastUpdated, Long... breadcrumbs) {
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("latitude", latitude);
+        fields.put("longitude", longitude);
+        fields.put("lastUpdated", lastUpdated);
+        fields.put("breadcrumbs", Arrays.asList(breadcrumbs));
+        return TripEvent.position("trip", fields);
+    }
+
+    @Test
+    public void fold_joinsTheBreadcrumbsOfConsecutivePositions() {
+        Map<String, Object> fields = new HashMap<>();
+        // Two uploads journaled in a dead zone, 30 s apart, each with one earlier fix.
+        FirestoreTripBackend.fold(fields, position(-1.28000, 36.82000, 100_000, -127990L, 3681990L, 10L));
+        FirestoreTripBackend.fold(fields, position(-1.28020, 36.82020, 130_000, -128010L, 3682010L, 15L));
+
+        assertEquals(-1.28020, (Double) fields.get("latitude"), 1e-9);
+        assertEquals(130_000L, fields.get("lastUpdated"));
+        // The first upload's breadcrumb and its own fix, now timed from the second upload,
+        // then the second upload's breadcrumb.
+        assertEquals(Arrays.asList(
+                -127990L, 3681990L, 40L,
+                -128000L, 3682000L, 30L,
+                -128010L, 3682010L, 15L), fields.get("breadcrumbs"));
+    }
+
+    @Test
+    public void fold_keepsTheTrailAcrossOtherEvents() {
+        Map<String, Object> fields = new HashMap<>();
+        FirestoreTripBackend.fold(fields, TripEvent.status("trip", "full"));
+        FirestoreTripBackend.fold(fields, position(-1.28000, 36.82000, 100_000));
+        assertEquals(Collections.emptyList(), fields.get("breadcrumbs"));
+
+        FirestoreTripBackend.fold(fields, TripEvent.status("trip", "available"));
+        FirestoreTripBackend.fold(fields, position(-1.28010, 36.82010, 105_000));
+        assertEquals("available", fields.get("status"));
+        assertEquals(Arrays.asList(-128000L, 3682000L, 5L), fields.get("breadcrumbs"));
+    }
+
+    @Test
+    public void fold_thinsALongBacklogButKeepsTheNewest() {
+        Map<String, Object> fields = new HashMap<>();
+        int positions = 3 * FirestoreTripBackend.MAX_BREADCRUMBS;
+        for (int i = 0; i < positions; i++) {
+            FirestoreTripBackend.fold(fields, position(-1.28 - i * 1e-4, 36.82, 5_000L * i));
+        }
+
+        @SuppressWarnings("unchecked")
+        List<Long> breadcrumbs = (List<Long>) fields.get("breadcrumbs");
+        int count = breadcrumbs.size() / 3;
+        assertTrue(count <= FirestoreTripBackend.MAX_BREADCRUMBS);
+        assertTrue(count > FirestoreTripBackend.MAX_BREADCRUMBS / 2);
+        // The newest breadcrumb is the position just before the latest, 5 s earlier.
+        assertEquals(5L, (long) breadcrumbs.get(breadcrumbs.size() - 1));
+        // The trail still reaches back to near the start, oldest first.
+        List<Long> ages = new ArrayList<>();
+        for (int i = 2; i < breadcrumbs.size(); i += 3) {
+            ages.add(breadcrumbs.get(i));
+        }
+        assertTrue(ages.get(0) > 5L * (positions - 10));
+        for (int i = 1; i < ages.size(); i++) {
+            assertTrue(ages.get(i) < ages.get(i - 1));
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.example.mymatauapp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for Gazetteer against the bundled place list, plus a latency benchmark on a
+ * synthetic index much larger than the bundled one.
+ */
+public class GazetteerTest {
+
+    // Unit tests run from the module directory.
+    private static final File PLACES_CSV = new File("src/main/places/" + GazetteerCsv.PLACES_FILE);
+
+    private Gazetteer gazetteer;
+
+    @Before
+    public void setUp() throws Exception {
+        gazetteer = GazetteerCsv.read(PLACES_CSV).build();
+    }
+
+    private static List<String> names(List<PlaceResult> results) {
+        List<String> names = new ArrayList<>();
+        for (PlaceResult result : results) {
+            names.add(result.getFormattedAddress());
+        }
+        return names;
+    }
+
+    @Test
+    public void search_findsPlacesByPrefixOfAnyWord() {
+        assertEquals("Westlands", gazetteer.search("westl", 5).get(0).getFormattedAddress());
+        assertTrue(names(gazetteer.search("city", 5)).contains("Garden City Mall"));
+        assertEquals("Garden City Mall", gazetteer.search("Garden C", 5).get(0).getFormattedAddress());
+    }
+
+    @Test
+    public void search_ranksHigherPriorityPlacesFirst() {
+        // Kencom Stage and Kenyatta University both start with "ken"; stages have the higher priority.
+        List<String> stages = names(gazetteer.search("stage", 10));
+        assertEquals(5, stages.size());
+        assertTrue(stages.contains("Odeon Stage"));
+        assertEquals("Kencom Stage", gazetteer.search("ken", 1).get(0).getFormattedAddress());
+    }
+
+    @Test
+    public void search_ignoresCaseAccentsAndApostrophes() {
+        assertEquals("Lang'ata", gazetteer.search("LANGATA", 1).get(0).getFormattedAddress());
+        assertEquals("Lang'ata", gazetteer.search("lang\u2019ata", 1).get(0).getFormattedAddress());
+        assertEquals("Lang'ata", gazetteer.search("Lang\u00e1ta", 1).get(0).getFormattedAddress());
+    }
+
+    @Test
+    public void search_toleratesTypos() {
+        assertEquals("Westlands", gazetteer.search("westlnds", 1).get(0).getFormattedAddress());
+        assertEquals("Kasarani", gazetteer.search("kasrani", 1).get(0).getFormattedAddress());
+        assertEquals("Kitengela", gazetteer.search("kitangela", 1).get(0).getFormattedAddress());
+    }
+
+    @Test
+    public void search_returnsNothingForUnknownPlaces() {
+        assertTrue(gazetteer.search("mombasa", 5).isEmpty());
+        assertTrue(gazetteer.search("", 5).isEmpty());
+        assertTrue(gazetteer.search("  ,  ", 5).isEmpty());
+    }
+
+    @Test
+    public void search_keepsCoordinates() {
+        PlaceResult odeon = gazetteer.search("odeon", 1).get(0);
+        assertEquals(-1.28329, odeon.getLatitude(), 1e-6);
+        assertEquals(36.82475, odeon.getLongitude(), 1e-6);
+    }
+
+    @Test
+    public void write_roundTripsThroughTheFileFormat() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GazetteerCsv.read(PLACES_CSV).write(out);
+        Gazetteer read = Gazetteer.read(ByteBuffer.wrap(out.toByteArray()));
+
+        assertEquals(gazetteer.placeCount(), read.placeCount());
+        for (String query : Arrays.asList("west", "kas", "mall", "stage", "rongai")) {
+            assertEquals(names(gazetteer.search(query, 8)), names(read.search(query, 8)));
+        }
+    }
+
+    private static byte[] smallGazetteer() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new Gazetteer.Builder()
+                .add("Garden City Mall", -1.2323, 36.8785, 3)
+                .add("Kasarani Stage", -1.2219, 36.8972, 2)
+                .add("Westlands", -1.2676, 36.8108, 2)
+                .write(out);
+        return out.toByteArray();
+    }
+
+    private static void assertRejected(byte[] file) {
+        try {
+            Gazetteer.read(ByteBuffer.wrap(file));
+            fail("A corrupt gazetteer file was opened");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void read_rejectsACorruptHeaderOrTruncatedFile() throws Exception {
+        byte[] good = smallGazetteer();
+        // placeCount, nodeCount, topCount and nameByteCount, made negative and far too large.
+        for (int count = 2; count <= 5; count++) {
+            for (int value : new int[] {-1, Integer.MIN_VALUE, Integer.MAX_VALUE, 1 << 20}) {
+                byte[] corrupt = good.clone();
+                ByteBuffer.wrap(corrupt).order(ByteOrder.LITTLE_ENDIAN).putInt(count * 4, value);
+                assertRejected(corrupt);
+            }
+        }
+        for (int length = 0; length < good.length; length++) {
+            assertRejected(Arrays.copyOf(good, length));
+        }
+    }
+
+    @Test
+    public void read_survivesCorruptTables() throws Exception {
+        byte[] good = smallGazetteer();
+        // Flipping a bit in the tables either leaves a usable gazetteer or is rejected; a
+        // search never throws.
+        for (int i = 7 * 4; i < good.length; i++) {
+            for (int bit : new int[] {0x01, 0x40, 0x80}) {
+                byte[] corrupt = good.clone();
+                corrupt[i] ^= bit;
+                try {
+                    Gazetteer read = Gazetteer.read(ByteBuffer.wrap(corrupt));
+                    for (String query : Arrays.asList("gar", "kasrani", "west", "stage")) {
+                        read.search(query, 8);
+                    }
+                } catch (IOException expected) {
+                }
+            }
+        }
+    }
+
+    /** 20,000 made-up place names, and prefixes of them as typed, some with a typo. */
+    private static class SyntheticPlaces {
+        final Gazetteer.Builder builder = new Gazetteer.Builder();
+        final List<String> queries = new ArrayList<>();
+
+        SyntheticPlaces() {
+            Random random = new Random(2024);
+            String[] syllables = {"ka", "ki", "ku", "ma", "mu", "ngo", "nga", "ri", "ru", "si", "ta", "to",
+                    "wa", "we", "ya", "la", "le", "bu", "ba", "go", "ji", "ko", "mo", "ni"};
+            String[] suffixes = {"", " Stage", " Estate", " Road", " Mall", " Market", " Primary School"};
+
+            List<String> names = new ArrayList<>();
+            for (int i = 0; i < 20_000; i++) {
+                StringBuilder name = new StringBuilder();
+                int length = 2 + random.nextInt(3);
+                for (int s = 0; s < length; s++) {
+                    name.append(syllables[random.nextInt(syllables.length)]);
+                }
+                name.setCharAt(0, Character.toUpperCase(name.charAt(0)));
+                name.append(suffixes[random.nextInt(suffixes.length)]);
+                names.add(name.toString());
+                builder.add(name.toString(), -1.4 + random.nextDouble() * 0.3, 36.7 + random.nextDouble() * 0.3,
+                        random.nextInt(4));
+            }
+
+            // Queries as they arrive while typing: growing prefixes, some with a typo.
+            for (int i = 0; i < 2_000; i++) {
+                String name = Gazetteer.normalize(names.get(random.nextInt(names.size())));
+                String prefix = name.substring(0, Math.min(name.length(), 3 + random.nextInt(8)));
+                if (random.nextInt(4) == 0 && prefix.length() > 3) {
+                    int at = 1 + random.nextInt(prefix.length() - 1);
+                    prefix = prefix.substring(0, at) + "x" + prefix.substring(at + 1);
+                }
+                queries.add(prefix);
+            }
+        }
+    }
+
+    @Test
+    public void search_matchesMostTypedPrefixesOfALargeGazetteer() {
+        SyntheticPlaces places = new SyntheticPlaces();
+        Gazetteer index = places.builder.build();
+
+        int found = 0;
+        for (String query : places.queries) {
+            if (!index.search(query, 8).isEmpty()) {
+                found++;
+            }
+        }
+        assertTrue(found + " of " + places.queries.size() + " prefixes matched", found > places.queries.size() * 0.9);
+    }
+
+    @Test
+    public void benchmark_largeSyntheticGazetteer() {
+        Benchmarks.assumeEnabled();
+        SyntheticPlaces places = new SyntheticPlaces();
+        List<String> queries = places.queries;
+        long buildStart = System.nanoTime();
+        Gazetteer index = places.builder.build();
+        long buildMillis = (System.nanoTime() - buildStart) / 1_000_000;
+
+        // Warm up the JIT, and collect the garbage left by the build, before measuring.
+        for (int round = 0; round < 3; round++) {
+            for (String query : queries) {
+                index.search(query, 8);
+            }
+        }
+        System.gc();
+
+        long[] micros = new long[queries.size()];
+        for (int i = 0; i < queries.size(); i++) {
+            long start = System.nanoTime();
+            index.search(queries.get(i), 8);
+            micros[i] = (System.nanoTime() - start) / 1000;
+        }
+        Arrays.sort(micros);
+        long median = micros[micros.length / 2];
+        long p95 = micros[(int) (micros.length * 0.95)];
+        long p99 = micros[(int) (micros.length * 0.99)];
+
+        // The budget for serving autocomplete locally is 5 ms per keystroke.
+        System.out.println("Gazetteer benchmark: " + index.placeCount() + " places, build " + buildMillis
+                + " ms, median " + median + " us, p95 " + p95 + " us, p99 " + p99 + " us");
+    }
+}
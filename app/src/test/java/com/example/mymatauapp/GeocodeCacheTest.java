@@ -0,0 +1,137 @@
+package com.example.mymatauapp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class GeocodeCacheTest {
+
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+    private static final List<PlaceResult> WESTLANDS = Collections.singletonList(
+            new PlaceResult("Westlands, Nairobi", -1.2676, 36.8108));
+    private static final List<PlaceResult> KILIMANI = Collections.singletonList(
+            new PlaceResult("Kilimani, Nairobi", -1.2893, 36.7869));
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("geocode").toFile();
+    }
+
+    private GeocodeCache open(int memoryEntries, long maxDiskBytes, long ttlMillis) {
+        return new GeocodeCache(directory, memoryEntries, maxDiskBytes, ttlMillis);
+    }
+
+    private static void assertPlaces(List<PlaceResult> expected, List<PlaceResult> actual) {
+        assertNotNull(actual);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getFormattedAddress(), actual.get(i).getFormattedAddress());
+            assertEquals(expected.get(i).getLatitude(), actual.get(i).getLatitude(), 0);
+            assertEquals(expected.get(i).getLongitude(), actual.get(i).getLongitude(), 0);
+        }
+    }
+
+    /** Makes every disk entry a second older, so the order they were written in is unambiguous. */
+    private void ageEntries() {
+        for (File file : directory.listFiles()) {
+            assertTrue(file.setLastModified(file.lastModified() - 1000));
+        }
+    }
+
+    @Test
+    public void get_hitsMemoryForTheSameOrAPrefixedQuery() {
+        GeocodeCache cache = open(8, 64 * 1024, DAY_MILLIS);
+        assertNull(cache.getFromMemory("westlands"));
+        cache.put("West", WESTLANDS);
+
+        assertPlaces(WESTLANDS, cache.getFromMemory("  WEST "));
+        assertPlaces(WESTLANDS, cache.get("westl"));
+        assertNull(cache.getFromMemory("wester"));
+
+        assertEquals(1, cache.getMemoryHitCount());
+        assertEquals(1, cache.getPrefixHitCount());
+        assertEquals(0, cache.getMemoryMissCount());
+        assertEquals(0, cache.getDiskHitCount());
+        assertEquals(0, cache.getMissCount());
+    }
+
+    @Test
+    public void get_hitsDiskAfterARestart() {
+        open(8, 64 * 1024, DAY_MILLIS).put("westlands", WESTLANDS);
+
+        GeocodeCache cache = open(8, 64 * 1024, DAY_MILLIS);
+        assertNull(cache.getFromMemory("westlands"));
+        assertPlaces(WESTLANDS, cache.get("westlands"));
+        // Now back in memory.
+        assertPlaces(WESTLANDS, cache.getFromMemory("westlands"));
+        assertNull(cache.get("kilimani"));
+
+        assertEquals(1, cache.getMemoryHitCount());
+        assertEquals(2, cache.getMemoryMissCount());
+        assertEquals(1, cache.getDiskHitCount());
+        assertEquals(1, cache.getDiskMissCount());
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertTrue(cache.stats(), cache.stats().startsWith("Geocode cache: 2 hits, 1 misses, 67% hit rate; "
+                + "memory 1 hits (0 by prefix), 2 misses; disk 1 hits, 1 misses"));
+    }
+
+    @Test
+    public void get_missesOnceTheEntryExpires() throws InterruptedException {
+        open(8, 64 * 1024, 50).put("westlands", WESTLANDS);
+        Thread.sleep(100);
+
+        GeocodeCache cache = open(8, 64 * 1024, 50);
+        assertNull(cache.get("westlands"));
+        assertEquals(1, cache.getMemoryMissCount());
+        assertEquals(1, cache.getMissCount());
+        // The expired file is gone.
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    @Test
+    public void put_evictsTheLeastRecentlyUsedFromMemory() {
+        GeocodeCache cache = open(2, 64 * 1024, DAY_MILLIS);
+        cache.put("westlands", WESTLANDS);
+        cache.put("kilimani", KILIMANI);
+        assertPlaces(WESTLANDS, cache.getFromMemory("westlands"));
+        cache.put("roysambu", Collections.emptyList());
+
+        // Kilimani was used least recently, but is still on disk.
+        assertNull(cache.getFromMemory("kilimani"));
+        assertPlaces(WESTLANDS, cache.getFromMemory("westlands"));
+        assertPlaces(KILIMANI, cache.get("kilimani"));
+        assertEquals(1, cache.getMemoryMissCount());
+        assertEquals(1, cache.getDiskHitCount());
+    }
+
+    @Test
+    public void put_keepsTheDiskUnderItsLimitByDroppingTheOldest() {
+        open(8, 64 * 1024, DAY_MILLIS).put("westlands", WESTLANDS);
+        long entryBytes = directory.listFiles()[0].length();
+        assertTrue(directory.listFiles()[0].delete());
+
+        GeocodeCache writer = open(8, 2 * entryBytes, DAY_MILLIS);
+        for (String query : Arrays.asList("westlands", "westlanda", "westlandb", "westlandc")) {
+            writer.put(query, WESTLANDS);
+            ageEntries();
+        }
+        assertEquals(2, directory.listFiles().length);
+
+        GeocodeCache cache = open(8, 2 * entryBytes, DAY_MILLIS);
+        assertNull(cache.get("westlands"));
+        assertNull(cache.get("westlanda"));
+        assertPlaces(WESTLANDS, cache.get("westlandb"));
+        assertPlaces(WESTLANDS, cache.get("westlandc"));
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.mymatauapp;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.SphericalUtil;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class GeohashTest {
+
+    private static final LatLng ROYSAMBU = new LatLng(-1.21844, 36.88842);
+
+    @Test
+    public void encode_matchesKnownGeohashes() {
+        assertEquals("u4pruydqqvj", Geohash.encode(57.64911, 10.40744, 11));
+        assertEquals("ezs42", Geohash.encode(42.605, -5.603, 5));
+        // Prefixes of one another as precision grows.
+        assertTrue(Geohash.encode(ROYSAMBU.latitude, ROYSAMBU.longitude, 8)
+                .startsWith(Geohash.encode(ROYSAMBU.latitude, ROYSAMBU.longitude, 6)));
+    }
+
+    @Test
+    public void center_liesInTheCell() {
+        String cell = Geohash.encode(ROYSAMBU.latitude, ROYSAMBU.longitude, 6);
+        LatLng center = Geohash.center(cell);
+
+        assertEquals(cell, Geohash.encode(center.latitude, center.longitude, 6));
+        assertTrue(SphericalUtil.computeDistanceBetween(center, ROYSAMBU) < 700);
+    }
+
+    @Test
+    public void cellsCovering_holdsEveryPointInTheRadius() {
+        Set<String> cells = Geohash.cellsCovering(ROYSAMBU, 1000, 6);
+        Random random = new Random(5);
+        for (int i = 0; i < 2000; i++) {
+            LatLng point = SphericalUtil.computeOffset(ROYSAMBU, 1000 * Math.sqrt(random.nextDouble()),
+                    360 * random.nextDouble());
+            assertTrue(cells.contains(Geohash.encode(point.latitude, point.longitude, 6)));
+        }
+        // A 2 km circle over 1.2 km by 0.6 km cells: a dozen or so, not a whole neighbourhood.
+        assertTrue(cells.size() + " cells", cells.size() <= 20);
+    }
+
+    @Test
+    public void cellsAlong_holdsEveryPointNearTheStretch() {
+        LatLng end = SphericalUtil.computeOffset(ROYSAMBU, 5000, 225);
+        RoutePolyline route = new RoutePolyline(Arrays.asList(ROYSAMBU, end));
+        Set<String> cells = Geohash.cellsAlong(route, 1000, 4000, 150, 6);
+
+        Random random = new Random(7);
+        for (int i = 0; i < 2000; i++) {
+            LatLng onRoute = route.positionAt(1000 + 3000 * random.nextDouble());
+            LatLng point = SphericalUtil.computeOffset(onRoute, 150 * random.nextDouble(), 360 * random.nextDouble());
+            assertTrue(cells.contains(Geohash.encode(point.latitude, point.longitude, 6)));
+        }
+        // 2.5 km before the stretch, off the other end of the route.
+        LatLng before = SphericalUtil.computeOffset(ROYSAMBU, 1500, 45);
+        assertFalse(cells.contains(Geohash.encode(before.latitude, before.longitude, 6)));
+    }
+}
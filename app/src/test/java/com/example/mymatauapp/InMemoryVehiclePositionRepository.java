@@ -0,0 +1,117 @@
+package com.example.mymatauapp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A VehiclePositionRepository held in memory, for tests and offline load tests. Listeners
+ * are called synchronously by publish and remove.
+ *
+ * It counts document deliveries the way Firestore sends them: a write sends one document to
+ * each listener whose query the document enters, changes within, or leaves, and a new
+ * listener gets every document its query matches.
+ */
+public class InMemoryVehiclePositionRepository implements VehiclePositionRepository {
+
+    private static class Entry {
+        final String routeId;
+        final String cell;
+        final Listener listener;
+        boolean failed;
+
+        Entry(String routeId, String cell, Listener listener) {
+            this.routeId = routeId;
+            this.cell = cell;
+            this.listener = listener;
+        }
+
+        boolean matches(VehiclePosition vehicle) {
+            return vehicle != null && vehicle.getRouteId().equals(routeId)
+                    && (cell == null || cell.equals(vehicle.getCell()));
+        }
+    }
+
+    private final Map<String, VehiclePosition> vehicles = new LinkedHashMap<>();
+    private final List<Entry> entries = new ArrayList<>();
+    private long deliveredDocuments;
+    private long listens;
+
+    @Override
+    public Registration listen(String routeId, String cell, Listener listener) {
+        Entry entry = new Entry(routeId, cell, listener);
+        entries.add(entry);
+        listens++;
+        List<Change> changes = new ArrayList<>();
+        for (VehiclePosition vehicle : vehicles.values()) {
+            if (entry.matches(vehicle)) {
+                changes.add(Change.added(vehicle));
+            }
+        }
+        deliveredDocuments += changes.size();
+        listener.onChanges(changes, null);
+        return () -> entries.remove(entry);
+    }
+
+    /**
+     * Writes a trip's position, replacing its previous one.
+     */
+    public void publish(VehiclePosition vehicle) {
+        changed(vehicle.getTripId(), vehicles.put(vehicle.getTripId(), vehicle), vehicle);
+    }
+
+    /**
+     * Removes a trip, as when it is no longer available.
+     */
+    public void remove(String tripId) {
+        VehiclePosition removed = vehicles.remove(tripId);
+        if (removed != null) {
+            changed(tripId, removed, null);
+        }
+    }
+
+    private void changed(String tripId, VehiclePosition before, VehiclePosition after) {
+        for (Entry entry : new ArrayList<>(entries)) {
+            if (entry.failed) {
+                continue;
+            }
+            boolean wasIn = entry.matches(before);
+            boolean isIn = entry.matches(after);
+            if (wasIn || isIn) {
+                deliveredDocuments++;
+                Change change = !isIn ? Change.removed(tripId) : wasIn ? Change.modified(after) : Change.added(after);
+                entry.listener.onChanges(Collections.singletonList(change), null);
+            }
+        }
+    }
+
+    /**
+     * Fails every listener, as Firestore does when a query is denied or its stream breaks: each
+     * is called once with the error and then never again, but stays registered until removed.
+     */
+    public void failListeners(Exception error) {
+        for (Entry entry : new ArrayList<>(entries)) {
+            if (!entry.failed) {
+                entry.failed = true;
+                entry.listener.onChanges(null, error);
+            }
+        }
+    }
+
+    /** The documents sent to listeners so far. */
+    public long getDeliveredDocuments() {
+        return deliveredDocuments;
+    }
+
+    /** The listeners started so far. */
+    public long getListens() {
+        return listens;
+    }
+
+    /** The listeners currently registered. */
+    public int getListenerCount() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,198 @@
+package com.example.mymatauapp;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for JourneyPlanner, plus a timing benchmark on a synthetic city-scale network.
+ */
+public class JourneyPlannerTest {
+
+    private static JourneyPlanner plannerFor(List<LatLng> stops, List<String> names, List<int[]> routes) {
+        RouteNetwork.Builder builder = new RouteNetwork.Builder();
+        for (int r = 0; r < routes.size(); r++) {
+            builder.beginRoute(names.get(r));
+            for (int stop : routes.get(r)) {
+                builder.addStop(stops.get(stop).latitude, stops.get(stop).longitude);
+            }
+        }
+        RouteNetwork network = builder.build();
+        return new JourneyPlanner(network, new StopSpatialIndex(network), new StopRouteIndex(network));
+    }
+
+    @Test
+    public void plan_changesMatatuAtSharedStage() {
+        // Two routes meeting at Odeon: Roysambu -> Odeon and Odeon -> Rongai.
+        List<LatLng> stops = Arrays.asList(
+                new LatLng(-1.2178, 36.8897),  // 0 Roysambu
+                new LatLng(-1.2504, 36.8601),  // 1 KCA University
+                new LatLng(-1.2833, 36.8248),  // 2 Odeon
+                new LatLng(-1.3000, 36.8150),  // 3 Lang'ata
+                new LatLng(-1.3800, 36.7600)); // 4 Rongai
+        List<String> names = Arrays.asList("Roysambu to Odeon", "Odeon to Rongai");
+        List<int[]> routes = Arrays.asList(new int[]{0, 1, 2}, new int[]{2, 3, 4});
+        JourneyPlanner planner = plannerFor(stops, names, routes);
+
+        List<Journey> journeys = planner.plan(new LatLng(-1.2180, 36.8890), new LatLng(-1.3805, 36.7605));
+
+        assertEquals(1, journeys.size());
+        Journey journey = journeys.get(0);
+        assertEquals(2, journey.getMatatuLegCount());
+        assertEquals(1, journey.getTransferCount());
+
+        List<Journey.Leg> legs = journey.getLegs();
+        assertEquals(Journey.Mode.WALK, legs.get(0).getMode());
+        assertEquals("Roysambu to Odeon", legs.get(1).getRouteName());
+        assertEquals(stops.get(2), legs.get(1).getEnd());
+        assertEquals("Odeon to Rongai", legs.get(2).getRouteName());
+        assertEquals(stops.get(2), legs.get(2).getStart());
+        assertEquals(Journey.Mode.WALK, legs.get(3).getMode());
+        assertEquals(journey.getArrivalTime(), legs.get(3).getArrivalTime());
+    }
+
+    @Test
+    public void plan_walksBetweenNearbyStages() {
+        // The routes do not share a stop, but their ends are ~150 m apart.
+        List<LatLng> stops = Arrays.asList(
+                new LatLng(-1.2178, 36.8897),
+                new LatLng(-1.2833, 36.8248),  // Odeon
+                new LatLng(-1.2846, 36.8250),  // Ambassadeur, a short walk away
+                new LatLng(-1.3800, 36.7600));
+        List<String> names = Arrays.asList("A", "B");
+        List<int[]> routes = Arrays.asList(new int[]{0, 1}, new int[]{2, 3});
+        JourneyPlanner planner = plannerFor(stops, names, routes);
+
+        List<Journey> journeys = planner.plan(stops.get(0), stops.get(3));
+
+        assertEquals(1, journeys.size());
+        List<Journey.Leg> legs = journeys.get(0).getLegs();
+        assertEquals(5, legs.size());
+        assertEquals(Journey.Mode.WALK, legs.get(2).getMode());
+        assertEquals(stops.get(1), legs.get(2).getStart());
+        assertEquals(stops.get(2), legs.get(2).getEnd());
+    }
+
+    @Test
+    public void plan_returnsParetoFrontByTransfers() {
+        // A slow direct route and a faster two-leg alternative.
+        List<LatLng> stops = new ArrayList<>();
+        for (int i = 0; i <= 10; i++) {
+            stops.add(new LatLng(-1.20 - i * 0.01, 36.80)); // 0..10 straight south
+        }
+        stops.add(new LatLng(-1.25, 36.95)); // 11: the far end of a long detour
+        List<String> names = Arrays.asList("Detour", "Express north", "Express south");
+        List<int[]> routes = Arrays.asList(
+                new int[]{0, 11, 10},
+                new int[]{0, 5},
+                new int[]{5, 10});
+        JourneyPlanner planner = plannerFor(stops, names, routes);
+
+        List<Journey> journeys = planner.plan(stops.get(0), stops.get(10));
+
+        assertEquals(2, journeys.size());
+        assertEquals(0, journeys.get(0).getTransferCount());
+        assertEquals(1, journeys.get(1).getTransferCount());
+        assertTrue(journeys.get(1).getArrivalTime() < journeys.get(0).getArrivalTime());
+    }
+
+    /** A 60 x 60 grid of stages, 400 routes across it and 300 random queries. */
+    private static class CityNetwork {
+        final List<LatLng> stops = new ArrayList<>();
+        final List<String> names = new ArrayList<>();
+        final List<int[]> routes = new ArrayList<>();
+        final List<LatLng[]> queries = new ArrayList<>();
+
+        CityNetwork() {
+            Random random = new Random(2024);
+
+            // Stages roughly 450 m apart around the CBD.
+            int side = 60;
+            double step = 0.004;
+            for (int row = 0; row < side; row++) {
+                for (int col = 0; col < side; col++) {
+                    stops.add(new LatLng(-1.40 + row * step, 36.70 + col * step));
+                }
+            }
+
+            // Routes that wander across the grid for 20 to 60 stages each.
+            for (int r = 0; r < 400; r++) {
+                int length = 20 + random.nextInt(41);
+                int row = random.nextInt(side);
+                int col = random.nextInt(side);
+                int dRow = random.nextInt(3) - 1;
+                int dCol = dRow == 0 ? (random.nextBoolean() ? 1 : -1) : random.nextInt(3) - 1;
+                int[] sequence = new int[length];
+                for (int p = 0; p < length; p++) {
+                    sequence[p] = row * side + col;
+                    if (random.nextInt(5) == 0) {
+                        // Occasionally turn, like a real route following the road network.
+                        dRow = random.nextInt(3) - 1;
+                        dCol = dRow == 0 ? (random.nextBoolean() ? 1 : -1) : random.nextInt(3) - 1;
+                    }
+                    row = Math.max(0, Math.min(side - 1, row + dRow));
+                    col = Math.max(0, Math.min(side - 1, col + dCol));
+                }
+                names.add("Route " + r);
+                routes.add(sequence);
+            }
+
+            for (int i = 0; i < 300; i++) {
+                queries.add(new LatLng[]{
+                        new LatLng(-1.40 + random.nextDouble() * side * step, 36.70 + random.nextDouble() * side * step),
+                        new LatLng(-1.40 + random.nextDouble() * side * step, 36.70 + random.nextDouble() * side * step)});
+            }
+        }
+    }
+
+    @Test
+    public void plan_findsJourneysAcrossACityScaleNetwork() {
+        CityNetwork city = new CityNetwork();
+        JourneyPlanner planner = plannerFor(city.stops, city.names, city.routes);
+
+        int found = 0;
+        for (LatLng[] query : city.queries) {
+            if (!planner.plan(query[0], query[1]).isEmpty()) {
+                found++;
+            }
+        }
+        assertTrue("Journeys found for " + found + " queries", found > city.queries.size() / 2);
+    }
+
+    @Test
+    public void benchmark_cityScaleSyntheticNetwork() {
+        Benchmarks.assumeEnabled();
+        CityNetwork city = new CityNetwork();
+        List<LatLng[]> queries = city.queries;
+
+        long buildStart = System.nanoTime();
+        JourneyPlanner planner = plannerFor(city.stops, city.names, city.routes);
+        long buildMillis = (System.nanoTime() - buildStart) / 1_000_000;
+
+        // Warm up the JIT before measuring.
+        for (int i = 0; i < 50; i++) {
+            planner.plan(queries.get(i)[0], queries.get(i)[1]);
+        }
+
+        long[] micros = new long[queries.size()];
+        for (int i = 0; i < queries.size(); i++) {
+            long start = System.nanoTime();
+            planner.plan(queries.get(i)[0], queries.get(i)[1]);
+            micros[i] = (System.nanoTime() - start) / 1000;
+        }
+        Arrays.sort(micros);
+        long median = micros[micros.length / 2];
+        long p95 = micros[(int) (micros.length * 0.95)];
+
+        // Phones are several times slower than a development machine; the budget there is 25 ms.
+        System.out.println("JourneyPlanner benchmark: " + city.stops.size() + " stops, " + city.routes.size()
+                + " routes, build " + buildMillis + " ms, median " + median + " us, p95 " + p95 + " us");
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.mymatauapp;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.*;
+
+public class LocationProcessingStatsTest {
+
+    private long nanos;
+    private final Queue<Runnable> queue = new ArrayDeque<>();
+    private final LocationProcessingStats stats = new LocationProcessingStats(() -> nanos);
+
+    private void runQueued() {
+        Runnable task;
+        while ((task = queue.poll()) != null) {
+            task.run();
+        }
+    }
+
+    @Test
+    public void wrap_countsQueueDepth() {
+        Executor executor = stats.wrap(queue::add);
+
+        executor.execute(() -> { });
+        executor.execute(() -> { });
+        executor.execute(() -> { });
+        assertEquals(3, stats.getQueueDepth());
+        runQueued();
+
+        assertEquals(0, stats.getQueueDepth());
+        assertEquals(3, stats.getMaxQueueDepth());
+    }
+
+    @Test
+    public void wrap_uncountsRejectedTasks() {
+        Executor executor = stats.wrap(command -> {
+            throw new RejectedExecutionException();
+        });
+
+        try {
+            executor.execute(() -> { });
+            fail("The task was not rejected");
+        } catch (RejectedExecutionException expected) {
+            assertEquals(0, stats.getQueueDepth());
+        }
+    }
+
+    @Test
+    public void onFixProcessed_measuresFromDelivery() {
+        Executor executor = stats.wrap(queue::add);
+        // One result with two fixes waits 4 ms and takes 1 ms per fix.
+        executor.execute(() -> {
+            nanos += 1_000_000;
+            stats.onFixProcessed();
+            nanos += 1_000_000;
+            stats.onFixProcessed();
+        });
+        nanos += 4_000_000;
+        runQueued();
+        // And one with a single fix that takes 10 ms.
+        executor.execute(() -> {
+            nanos += 10_000_000;
+            stats.onFixProcessed();
+        });
+        runQueued();
+
+        assertEquals(3, stats.getProcessedCount());
+        assertEquals((5 + 6 + 10) / 3.0, stats.getMeanLatencyMillis(), 1e-9);
+        assertEquals(10, stats.getMaxLatencyMillis(), 1e-9);
+        assertEquals(6, stats.getLatencyPercentileMillis(50), 1e-9);
+        assertEquals(10, stats.getLatencyPercentileMillis(95), 1e-9);
+    }
+
+    @Test
+    public void percentiles_coverTheLatestFixes() {
+        Executor executor = stats.wrap(queue::add);
+        for (int i = 0; i < 1000; i++) {
+            long latency = i < 500 ? 100_000_000 : 1_000_000;
+            executor.execute(() -> {
+                nanos += latency;
+                stats.onFixProcessed();
+            });
+            runQueued();
+        }
+
+        assertEquals(1, stats.getLatencyPercentileMillis(95), 1e-9);
+        assertEquals(100, stats.getMaxLatencyMillis(), 1e-9);
+        assertEquals(0, new LocationProcessingStats().getLatencyPercentileMillis(95), 0);
+    }
+}
@@ -0,0 +1,266 @@
+package com.example.mymatauapp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LocationUploadBatcherTest {
+
+    private static final long CADENCE_MILLIS = 5000;
+    private static final int MAX_BREADCRUMBS = 4;
+
+    /** Runs posted tasks in virtual time, as the handler's thread would. */
+    private static class FakeScheduler implements LocationUploadBatcher.Scheduler {
+        long now;
+        final List<Runnable> tasks = new ArrayList<>();
+        final List<Long> due = new ArrayList<>();
+
+        @Override
+        public void postDelayed(Runnable task, long delayMillis) {
+            tasks.add(task);
+            due.add(now + delayMillis);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            for (int i = tasks.size() - 1; i >= 0; i--) {
+                if (tasks.get(i) == task) {
+                    tasks.remove(i);
+                    due.remove(i);
+                }
+            }
+        }
+
+        @Override
+        public long now() {
+            return now;
+        }
+
+        /** Runs every task due by the given time, in order, moving the clock along. */
+        void advanceTo(long time) {
+            while (true) {
+                int next = -1;
+                for (int i = 0; i < tasks.size(); i++) {
+                    if (due.get(i) <= time && (next < 0 || due.get(i) < due.get(next))) {
+                        next = i;
+                    }
+                }
+                if (next < 0) {
+                    break;
+                }
+                now = Math.max(now, due.remove(next));
+                tasks.remove(next).run();
+            }
+            now = time;
+        }
+    }
+
+    /** Records uploads and when they were asked for; completes them at once unless told to hold them. */
+    private static class FakeSink implements LocationUploadBatcher.Sink {
+        final FakeScheduler scheduler;
+        boolean online = true;
+        boolean hold;
+        Exception error;
+        final List<LocationUploadBatcher.Upload> uploads = new ArrayList<>();
+        final List<Long> uploadTimes = new ArrayList<>();
+        final List<Long> offlineTimes = new ArrayList<>();
+        LocationUploadBatcher.Callback pending;
+
+        FakeSink(FakeScheduler scheduler) {
+            this.scheduler = scheduler;
+        }
+
+        @Override
+        public boolean isOnline() {
+            if (!online) {
+                offlineTimes.add(scheduler.now);
+            }
+            return online;
+        }
+
+        @Override
+        public void upload(LocationUploadBatcher.Upload upload, LocationUploadBatcher.Callback callback) {
+            uploads.add(upload);
+            uploadTimes.add(scheduler.now);
+            if (hold) {
+                pending = callback;
+            } else {
+                callback.onComplete(error);
+            }
+        }
+
+        LocationUploadBatcher.Upload last() {
+            return uploads.get(uploads.size() - 1);
+        }
+    }
+
+    private final FakeScheduler scheduler = new FakeScheduler();
+    private final FakeSink sink = new FakeSink(scheduler);
+    private final LocationUploadBatcher batcher =
+            new LocationUploadBatcher(sink, scheduler, CADENCE_MILLIS, MAX_BREADCRUMBS);
+
+    /** Offers a fix at the current virtual time, numbered by its latitude. */
+    private void offer(int i) {
+        batcher.offer(i, 36.88, 10, 100 * i, 1, 1_700_000_000_000L + scheduler.now);
+    }
+
+    /** The latitudes of an upload's breadcrumbs, oldest first. */
+    private static List<Long> breadcrumbLatitudes(LocationUploadBatcher.Upload upload) {
+        List<Long> array = upload.getBreadcrumbArray();
+        List<Long> latitudes = new ArrayList<>();
+        for (int i = 0; i < array.size(); i += 3) {
+            latitudes.add(array.get(i) / 100_000);
+        }
+        return latitudes;
+    }
+
+    @Test
+    public void offer_uploadsTheFirstFixThenCoalescesUntilTheCadence() {
+        offer(0);
+        scheduler.advanceTo(0);
+        assertEquals(1, sink.uploads.size());
+        assertEquals(0, sink.last().getBreadcrumbCount());
+
+        for (int i = 1; i <= 4; i++) {
+            scheduler.advanceTo(i * 1000L);
+            offer(i);
+        }
+        assertEquals(1, sink.uploads.size());
+
+        scheduler.advanceTo(CADENCE_MILLIS);
+        assertEquals(2, sink.uploads.size());
+        assertEquals(Long.valueOf(CADENCE_MILLIS), sink.uploadTimes.get(1));
+        LocationUploadBatcher.Upload upload = sink.last();
+        assertEquals(4, upload.getLatitude(), 0);
+        assertEquals(400, upload.getDistanceAlongRoute(), 0);
+        assertEquals(Arrays.asList(1L, 2L, 3L), breadcrumbLatitudes(upload));
+        // Seconds before the latest fix, at 1e5 resolution.
+        assertEquals(Arrays.asList(100_000L, 3_688_000L, 3L), upload.getBreadcrumbArray().subList(0, 3));
+
+        // Nothing more to send, so nothing more is scheduled.
+        scheduler.advanceTo(60_000);
+        assertEquals(2, sink.uploads.size());
+    }
+
+    @Test
+    public void offer_waitsForTheUploadInFlight() {
+        sink.hold = true;
+        offer(0);
+        scheduler.advanceTo(0);
+        for (int i = 1; i <= 3; i++) {
+            scheduler.advanceTo(i * 10_000L);
+            offer(i);
+        }
+        assertEquals(1, sink.uploads.size());
+
+        sink.pending.onComplete(null);
+        scheduler.advanceTo(30_000 + CADENCE_MILLIS);
+        assertEquals(2, sink.uploads.size());
+        assertEquals(Arrays.asList(1L, 2L), breadcrumbLatitudes(sink.last()));
+    }
+
+    @Test
+    public void offer_capsTheBreadcrumbsByThinningTheTrail() {
+        offer(0);
+        scheduler.advanceTo(0);
+        for (int i = 1; i <= 11; i++) {
+            scheduler.advanceTo(i * 100L);
+            offer(i);
+        }
+        scheduler.advanceTo(CADENCE_MILLIS);
+
+        // Ten earlier fixes, thinned to every other one each time the cap is passed, newest kept.
+        LocationUploadBatcher.Upload upload = sink.last();
+        assertEquals(11, upload.getLatitude(), 0);
+        List<Long> latitudes = breadcrumbLatitudes(upload);
+        assertTrue(latitudes.toString(), latitudes.size() <= MAX_BREADCRUMBS);
+        assertEquals(Long.valueOf(10), latitudes.get(latitudes.size() - 1));
+        for (int i = 1; i < latitudes.size(); i++) {
+            assertTrue(latitudes.toString(), latitudes.get(i) > latitudes.get(i - 1));
+        }
+        assertTrue(latitudes.toString(), latitudes.get(0) <= 3);
+    }
+
+    @Test
+    public void offline_backsOffExponentiallyThenSendsEverythingInOneUpload() {
+        sink.online = false;
+        for (int i = 0; i < 60; i++) {
+            scheduler.advanceTo(i * 1000L);
+            offer(i);
+        }
+        scheduler.advanceTo(60_000);
+
+        // At 0 s, then 10 and 20 s apart, the next due 40 s later: one try per backoff step, not per fix.
+        assertEquals(Arrays.asList(0L, 10_000L, 30_000L), sink.offlineTimes);
+        assertTrue(sink.uploads.isEmpty());
+
+        sink.online = true;
+        scheduler.advanceTo(70_000);
+        assertEquals(Arrays.asList(70_000L), sink.uploadTimes);
+        LocationUploadBatcher.Upload upload = sink.last();
+        assertEquals(59, upload.getLatitude(), 0);
+        assertTrue(upload.getBreadcrumbCount() <= MAX_BREADCRUMBS);
+
+        // Back on the normal cadence.
+        offer(60);
+        scheduler.advanceTo(70_000 + CADENCE_MILLIS);
+        assertEquals(Arrays.asList(70_000L, 70_000L + CADENCE_MILLIS), sink.uploadTimes);
+    }
+
+    @Test
+    public void uploadFailure_keepsTheFixesForTheRetry() {
+        offer(0);
+        sink.error = new Exception("unavailable");
+        scheduler.advanceTo(0);
+        assertEquals(1, sink.uploads.size());
+
+        scheduler.advanceTo(1000);
+        offer(1);
+        sink.error = null;
+        scheduler.advanceTo(2 * CADENCE_MILLIS);
+
+        assertEquals(Arrays.asList(0L, 2 * CADENCE_MILLIS), sink.uploadTimes);
+        assertEquals(1, sink.last().getLatitude(), 0);
+        assertEquals(Arrays.asList(0L), breadcrumbLatitudes(sink.last()));
+    }
+
+    @Test
+    public void flush_uploadsAtOnceAndStopDropsTheRest() {
+        offer(0);
+        scheduler.advanceTo(0);
+        scheduler.advanceTo(1000);
+        offer(1);
+        offer(2);
+
+        // As when tracking stops: send what is pending without waiting for the cadence.
+        batcher.flush();
+        batcher.stop();
+        assertEquals(Arrays.asList(0L, 1000L), sink.uploadTimes);
+        assertEquals(2, sink.last().getLatitude(), 0);
+        assertEquals(Arrays.asList(1L), breadcrumbLatitudes(sink.last()));
+
+        scheduler.advanceTo(60_000);
+        assertEquals(2, sink.uploads.size());
+        assertTrue(scheduler.tasks.isEmpty());
+    }
+
+    @Test
+    public void stop_dropsFixesBehindAnUploadInFlight() {
+        sink.hold = true;
+        offer(0);
+        scheduler.advanceTo(0);
+        offer(1);
+
+        batcher.flush();
+        batcher.stop();
+        sink.pending.onComplete(null);
+        scheduler.advanceTo(60_000);
+
+        assertEquals(1, sink.uploads.size());
+        assertEquals(0, sink.last().getLatitude(), 0);
+    }
+}
@@ -0,0 +1,187 @@
+package com.example.mymatauapp;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Tests for OpenCageResponseParser, plus a benchmark against the org.json tree parsing it
+ * replaced. The sample responses in resources/opencage have the shape of full OpenCage
+ * responses, annotations included.
+ */
+public class OpenCageResponseParserTest {
+
+    private static final List<String> SAMPLES = Arrays.asList("westlands", "garden_city", "langata");
+
+    private static byte[] sample(String name) throws IOException {
+        try (InputStream in = OpenCageResponseParserTest.class.getResourceAsStream("/opencage/" + name + ".json")) {
+            assertNotNull("missing sample " + name, in);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] chunk = new byte[8192];
+            int count;
+            while ((count = in.read(chunk)) > 0) {
+                out.write(chunk, 0, count);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static Reader reader(byte[] body) {
+        return new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The parsing LandingPage used to do: read the whole body, build a JSONObject tree, then
+     * pick out the fields.
+     */
+    private static List<PlaceResult> parseWithOrgJson(byte[] body) throws Exception {
+        BufferedReader reader = new BufferedReader(reader(body));
+        StringBuilder response = new StringBuilder();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            response.append(line);
+        }
+        reader.close();
+
+        List<PlaceResult> results = new ArrayList<>();
+        JSONArray resultsArray = new JSONObject(response.toString()).getJSONArray("results");
+        for (int i = 0; i < resultsArray.length(); i++) {
+            JSONObject resultObject = resultsArray.getJSONObject(i);
+            JSONObject geometry = resultObject.getJSONObject("geometry");
+            results.add(new PlaceResult(resultObject.getString("formatted"),
+                    geometry.getDouble("lat"), geometry.getDouble("lng")));
+        }
+        return results;
+    }
+
+    private static void assertSamePlaces(List<PlaceResult> expected, List<PlaceResult> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getFormattedAddress(), actual.get(i).getFormattedAddress());
+            assertEquals(expected.get(i).getLatitude(), actual.get(i).getLatitude(), 0);
+            assertEquals(expected.get(i).getLongitude(), actual.get(i).getLongitude(), 0);
+        }
+    }
+
+    @Test
+    public void parse_readsFormattedAddressAndGeometry() throws Exception {
+        List<PlaceResult> results = OpenCageResponseParser.parse(reader(sample("westlands")));
+
+        assertEquals(8, results.size());
+        assertEquals("Westlands, Nairobi, Kenya", results.get(0).getFormattedAddress());
+        assertEquals(-1.2675, results.get(0).getLatitude(), 0);
+        assertEquals(36.8108, results.get(0).getLongitude(), 0);
+    }
+
+    @Test
+    public void parse_agreesWithOrgJsonOnSamples() throws Exception {
+        for (String name : SAMPLES) {
+            byte[] body = sample(name);
+            assertSamePlaces(parseWithOrgJson(body), OpenCageResponseParser.parse(reader(body)));
+        }
+    }
+
+    @Test
+    public void parse_decodesEscapesAndNonAsciiText() throws Exception {
+        String json = "{\"results\":[{\"components\":{\"name\":\"a \\\"quoted\\\" } ] name\"},"
+                + "\"formatted\":\"Caf\\u00e9 \\\"Java\\\" \\/ Lang\u2019ata\",\"geometry\":{\"lat\":-1.5,\"lng\":3.61e1}}],"
+                + "\"status\":{\"code\":200,\"ok\":true,\"note\":null}}";
+
+        List<PlaceResult> results = OpenCageResponseParser.parse(new StringReader(json));
+
+        assertEquals(1, results.size());
+        assertEquals("Caf\u00e9 \"Java\" / Lang\u2019ata", results.get(0).getFormattedAddress());
+        assertEquals(-1.5, results.get(0).getLatitude(), 0);
+        assertEquals(36.1, results.get(0).getLongitude(), 1e-12);
+    }
+
+    @Test
+    public void parse_leavesOutResultsWithoutCoordinates() throws Exception {
+        String json = "{\"results\":[{\"formatted\":\"Nowhere\"},"
+                + "{\"formatted\":\"Ngara\",\"geometry\":{\"lat\":-1.27465,\"lng\":36.82437}}],\"total_results\":2}";
+
+        List<PlaceResult> results = OpenCageResponseParser.parse(new StringReader(json));
+
+        assertEquals(1, results.size());
+        assertEquals("Ngara", results.get(0).getFormattedAddress());
+    }
+
+    @Test
+    public void parse_returnsNoResultsForEmptyResponse() throws Exception {
+        String json = "{\"results\":[],\"status\":{\"code\":200,\"message\":\"OK\"},\"total_results\":0}";
+        assertTrue(OpenCageResponseParser.parse(new StringReader(json)).isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void parse_rejectsTruncatedResponse() throws Exception {
+        byte[] body = sample("garden_city");
+        OpenCageResponseParser.parse(reader(Arrays.copyOf(body, body.length / 2)));
+    }
+
+    @Test(expected = IOException.class)
+    public void parse_rejectsNonJson() throws Exception {
+        OpenCageResponseParser.parse(new StringReader("<html>502 Bad Gateway</html>"));
+    }
+
+    @Test
+    public void benchmark_streamingVersusOrgJson() throws Exception {
+        Benchmarks.assumeEnabled();
+        // Per-thread allocation counts are a HotSpot extension.
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        assumeTrue("no per-thread allocation counts on this JVM",
+                threadBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) threadBean;
+        long thread = Thread.currentThread().getId();
+        int iterations = 2_000;
+
+        for (String name : SAMPLES) {
+            byte[] body = sample(name);
+            // Warm up the JIT before measuring.
+            for (int i = 0; i < iterations; i++) {
+                parseWithOrgJson(body);
+                OpenCageResponseParser.parse(reader(body));
+            }
+
+            long bytesBefore = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                parseWithOrgJson(body);
+            }
+            long treeNanos = (System.nanoTime() - start) / iterations;
+            long treeBytes = (threads.getThreadAllocatedBytes(thread) - bytesBefore) / iterations;
+
+            bytesBefore = threads.getThreadAllocatedBytes(thread);
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                OpenCageResponseParser.parse(reader(body));
+            }
+            long streamNanos = (System.nanoTime() - start) / iterations;
+            long streamBytes = (threads.getThreadAllocatedBytes(thread) - bytesBefore) / iterations;
+
+            System.out.println("OpenCage parse benchmark (" + name + ", " + body.length + " bytes): org.json "
+                    + treeNanos / 1000 + " us / " + treeBytes / 1024 + " KB, streaming "
+                    + streamNanos / 1000 + " us / " + streamBytes / 1024 + " KB per response");
+
+            assertTrue("streaming parse of " + name + " allocated " + streamBytes + " bytes, org.json "
+                    + treeBytes, streamBytes * 2 < treeBytes);
+        }
+    }
+}
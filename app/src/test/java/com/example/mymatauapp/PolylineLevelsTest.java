@@ -0,0 +1,161 @@
+package com.example.mymatauapp;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PolylineLevelsTest {
+
+    private static final double METERS_PER_DEGREE = 111195;
+
+    /**
+     * A GPS trace from Roysambu towards town: one fix every few metres along a gently winding
+     * road, with a few metres of noise.
+     */
+    private static List<LatLng> trace(int fixes, long seed) {
+        Random random = new Random(seed);
+        List<LatLng> points = new ArrayList<>(fixes);
+        double latitude = -1.21844;
+        double longitude = 36.88842;
+        double heading = Math.toRadians(200);
+        for (int i = 0; i < fixes; i++) {
+            heading += Math.toRadians(random.nextGaussian() * 2);
+            latitude += Math.cos(heading) * 5 / METERS_PER_DEGREE;
+            longitude += Math.sin(heading) * 5 / METERS_PER_DEGREE;
+            points.add(new LatLng(latitude + random.nextGaussian() * 2 / METERS_PER_DEGREE,
+                    longitude + random.nextGaussian() * 2 / METERS_PER_DEGREE));
+        }
+        return points;
+    }
+
+    /** The distance in metres from a point to the closest segment of a line. */
+    private static double distanceToLine(LatLng point, List<LatLng> line) {
+        double cos = Math.cos(Math.toRadians(point.latitude));
+        double best = Double.POSITIVE_INFINITY;
+        for (int i = 0; i + 1 < line.size(); i++) {
+            double ax = (line.get(i).longitude - point.longitude) * cos * METERS_PER_DEGREE;
+            double ay = (line.get(i).latitude - point.latitude) * METERS_PER_DEGREE;
+            double bx = (line.get(i + 1).longitude - point.longitude) * cos * METERS_PER_DEGREE;
+            double by = (line.get(i + 1).latitude - point.latitude) * METERS_PER_DEGREE;
+            double dx = bx - ax;
+            double dy = by - ay;
+            double lengthSquared = dx * dx + dy * dy;
+            double t = lengthSquared == 0 ? 0 : Math.max(0, Math.min(1, -(ax * dx + ay * dy) / lengthSquared));
+            best = Math.min(best, Math.hypot(ax + t * dx, ay + t * dy));
+        }
+        return best;
+    }
+
+    @Test
+    public void straightLine_simplifiesToItsEnds() {
+        List<LatLng> points = new ArrayList<>();
+        for (int i = 0; i <= 100; i++) {
+            points.add(new LatLng(-1.2 - i * 0.0001, 36.9 + i * 0.0001));
+        }
+        PolylineLevels levels = new PolylineLevels(points);
+
+        assertEquals(101, levels.getLevel(0).size());
+        assertEquals(Arrays.asList(points.get(0), points.get(100)), levels.getLevel(1));
+    }
+
+    @Test
+    public void everyLevel_staysWithinItsToleranceOfTheTrace() {
+        List<LatLng> trace = trace(3000, 1);
+        PolylineLevels levels = new PolylineLevels(trace);
+        double[] tolerances = {0, 1, 4, 16, 64, 256, 1024};
+
+        int previous = Integer.MAX_VALUE;
+        for (int level = 0; level < levels.levelCount(); level++) {
+            List<LatLng> points = levels.getLevel(level);
+            assertTrue(points.size() <= previous);
+            previous = points.size();
+            assertEquals(trace.get(0), points.get(0));
+            assertEquals(trace.get(trace.size() - 1), points.get(points.size() - 1));
+            for (LatLng point : trace) {
+                // A little slack for the local projection.
+                assertTrue("Level " + level, distanceToLine(point, points) <= tolerances[level] * 1.01 + 0.01);
+            }
+        }
+    }
+
+    @Test
+    public void levelForZoom_keepsUnderAPixelOfError() {
+        PolylineLevels levels = new PolylineLevels(trace(100, 2));
+
+        assertEquals(0, levels.levelForZoom(Double.NaN));
+        // About 0.15 m a pixel: every fix.
+        assertEquals(0, levels.levelForZoom(20));
+        // About 4.8 m a pixel: 4 m.
+        assertEquals(2, levels.levelForZoom(15));
+        // About 150 m a pixel: 64 m.
+        assertEquals(4, levels.levelForZoom(10));
+        assertEquals(levels.levelCount() - 1, levels.levelForZoom(2));
+    }
+
+    @Test
+    public void visibleRuns_dropWhatIsOffScreenAndSplitAtGaps() {
+        // Out east and back, passing the same screen twice.
+        List<LatLng> points = new ArrayList<>();
+        for (int i = 0; i <= 40; i++) {
+            points.add(new LatLng(-1.2 + (i % 2) * 0.001, 36.8 + i * 0.01));
+        }
+        for (int i = 40; i >= 0; i--) {
+            points.add(new LatLng(-1.3 + (i % 2) * 0.001, 36.8 + i * 0.01));
+        }
+        PolylineLevels levels = new PolylineLevels(points);
+        // The eastern end, about 0.05 degrees wide, where the line turns back.
+        LatLngBounds screen = new LatLngBounds(new LatLng(-1.35, 37.17), new LatLng(-1.15, 37.22));
+
+        List<List<LatLng>> runs = levels.visibleRuns(Double.NaN, screen);
+        assertEquals(1, levels.visibleRuns(Double.NaN, null).size());
+        // The turn joins both passes into one run, which skips the western points.
+        assertEquals(1, runs.size());
+        assertTrue(runs.get(0).size() < points.size() / 4);
+
+        // A screen over the middle sees the outbound and return passes apart.
+        LatLngBounds middle = new LatLngBounds(new LatLng(-1.35, 36.99), new LatLng(-1.15, 37.01));
+        List<List<LatLng>> middleRuns = levels.visibleRuns(Double.NaN, middle);
+        assertEquals(2, middleRuns.size());
+        for (List<LatLng> run : middleRuns) {
+            assertTrue(run.size() >= 2);
+        }
+
+        LatLngBounds elsewhere = new LatLngBounds(new LatLng(0.5, 35.0), new LatLng(0.6, 35.1));
+        assertTrue(levels.visibleRuns(Double.NaN, elsewhere).isEmpty());
+    }
+
+    @Test
+    public void longTrace_drawsAboutAScreenfulOfPointsAtAnyZoom() {
+        List<LatLng> trace = trace(20000, 3);
+        long started = System.nanoTime();
+        PolylineLevels levels = new PolylineLevels(trace);
+        double buildMillis = (System.nanoTime() - started) / 1e6;
+        System.out.println("  " + trace.size() + " fixes built into " + levels + " in "
+                + String.format("%.1f", buildMillis) + " ms");
+
+        // A 1080 x 1920 phone screen centred on the middle of the trace.
+        LatLng center = trace.get(trace.size() / 2);
+        for (int zoom = 10; zoom <= 20; zoom += 2) {
+            double metersPerPixel = 156543.03392 * Math.cos(Math.toRadians(center.latitude)) / Math.pow(2, zoom);
+            double halfHeight = 960 * metersPerPixel / METERS_PER_DEGREE;
+            double halfWidth = 540 * metersPerPixel / METERS_PER_DEGREE / Math.cos(Math.toRadians(center.latitude));
+            LatLngBounds screen = new LatLngBounds(
+                    new LatLng(center.latitude - halfHeight, center.longitude - halfWidth),
+                    new LatLng(center.latitude + halfHeight, center.longitude + halfWidth));
+            int drawn = 0;
+            for (List<LatLng> run : levels.visibleRuns(zoom, screen)) {
+                drawn += run.size();
+            }
+            System.out.println("  zoom " + zoom + ": " + drawn + " points drawn");
+            assertTrue("Zoom " + zoom + " drew " + drawn, drawn > 0 && drawn < 2500);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.example.mymatauapp;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.SphericalUtil;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for PositionPublishFilter, plus a replay of the traces in resources/traces (see
+ * TraceFixtures) that compares publishing every fix with publishing through
+ * the filter, as a reader extrapolating with PositionPublishFilter.predict sees it.
+ */
+public class PositionPublishFilterTest {
+
+    private static final List<String> TRACES = Arrays.asList("roysambu_town");
+    // Every this many fixes, the replay replaces one with a spike SPIKE_METERS north of it.
+    private static final int SPIKE_EVERY = 151;
+    private static final double SPIKE_METERS = 400;
+
+    private static final RoutePolyline ROUTE = new RoutePolyline(Arrays.asList(
+            new LatLng(-1.22593, 36.88504), new LatLng(-1.23038, 36.87896), new LatLng(-1.23456, 36.87397)));
+
+    private static class Replay {
+        int writes;
+        int spikesPublished;
+        double meanError;
+        double p95Error;
+        double maxError;
+    }
+
+    private static double distance(LatLng a, LatLng b) {
+        return SphericalUtil.computeDistanceBetween(a, b);
+    }
+
+    /**
+     * Feeds a 1 Hz trace to a filter, or publishes every fix if the filter is null, and
+     * measures every second how far the reader's position is from the trace.
+     */
+    private static Replay replay(List<TraceFixtures.Fix> trace, RoutePolyline route,
+                                 PositionPublishFilter filter) {
+        Replay replay = new Replay();
+        double[] errors = new double[trace.size()];
+        LatLng published = null;
+        double publishedSpeed = 0;
+        long publishedAt = 0;
+        for (int i = 0; i < trace.size(); i++) {
+            TraceFixtures.Fix fix = trace.get(i);
+            LatLng actual = new LatLng(fix.latitude, fix.longitude);
+            boolean spike = i % SPIKE_EVERY == SPIKE_EVERY - 1;
+            LatLng reported = spike ? SphericalUtil.computeOffset(actual, SPIKE_METERS, 0) : actual;
+
+            boolean publish = filter == null
+                    || filter.offer(reported.latitude, reported.longitude, fix.accuracy, fix.timeMillis)
+                    == PositionPublishFilter.Decision.PUBLISH;
+            if (publish) {
+                replay.writes++;
+                if (spike) {
+                    replay.spikesPublished++;
+                }
+                published = reported;
+                publishedSpeed = filter == null ? 0 : filter.getSpeed();
+                publishedAt = fix.timeMillis;
+            }
+            LatLng seen = published == null ? actual
+                    : PositionPublishFilter.predict(route, published, publishedSpeed, fix.timeMillis - publishedAt);
+            errors[i] = distance(seen, actual);
+            replay.meanError += errors[i] / trace.size();
+        }
+        Arrays.sort(errors);
+        replay.p95Error = errors[(int) (errors.length * 0.95)];
+        replay.maxError = errors[errors.length - 1];
+        return replay;
+    }
+
+    private static String describe(Replay replay) {
+        return String.format("%4d writes (%d spikes), error mean %5.1f m, p95 %5.1f m, max %5.1f m",
+                replay.writes, replay.spikesPublished, replay.meanError, replay.p95Error, replay.maxError);
+    }
+
+    @Test
+    public void predict_movesAlongTheRouteAtTheSpeed() {
+        LatLng start = ROUTE.positionAt(100);
+
+        LatLng predicted = PositionPublishFilter.predict(ROUTE, start, 10, 30000);
+
+        assertEquals(400, ROUTE.project(predicted).getDistanceAlong(), 0.5);
+        assertEquals(0, ROUTE.project(predicted).getOffset(), 0.5);
+    }
+
+    @Test
+    public void predict_keepsTheOffsetAndStopsAtTheEnd() {
+        LatLng offRoad = SphericalUtil.computeOffset(ROUTE.positionAt(200), 20, 45);
+
+        LatLng predicted = PositionPublishFilter.predict(ROUTE, offRoad, -5, 10000);
+        LatLng end = PositionPublishFilter.predict(ROUTE, ROUTE.positionAt(100), 50, 60000);
+
+        assertEquals(ROUTE.project(offRoad).getDistanceAlong() - 50, ROUTE.project(predicted).getDistanceAlong(), 0.5);
+        assertEquals(ROUTE.project(offRoad).getOffset(), ROUTE.project(predicted).getOffset(), 0.5);
+        assertEquals(0, distance(ROUTE.positionAt(ROUTE.length()), end), 0.5);
+    }
+
+    @Test
+    public void offer_suppressesFixesThatFollowThePrediction() {
+        PositionPublishFilter filter = new PositionPublishFilter(ROUTE);
+        int published = 0;
+        for (int s = 0; s <= 50; s++) {
+            LatLng position = ROUTE.positionAt(10 * s);
+            if (filter.offer(position.latitude, position.longitude, 5, s * 1000L) == PositionPublishFilter.Decision.PUBLISH) {
+                published++;
+            }
+        }
+
+        // The first fix, and one once the speed estimate has settled.
+        assertTrue("published " + published, published <= 3);
+        assertEquals(10, filter.getSpeed(), 0.5);
+    }
+
+    @Test
+    public void offer_publishesDeviationsAndHeartbeats() {
+        PositionPublishFilter filter = new PositionPublishFilter(ROUTE);
+        LatLng stop = ROUTE.positionAt(300);
+        assertEquals(PositionPublishFilter.Decision.PUBLISH, filter.offer(stop.latitude, stop.longitude, 5, 0));
+        assertEquals(PositionPublishFilter.Decision.SUPPRESS, filter.offer(stop.latitude, stop.longitude, 5, 30000));
+
+        assertEquals(PositionPublishFilter.Decision.PUBLISH, filter.offer(stop.latitude, stop.longitude, 5, 60000));
+
+        LatLng moved = ROUTE.positionAt(340);
+        assertEquals(PositionPublishFilter.Decision.PUBLISH, filter.offer(moved.latitude, moved.longitude, 5, 65000));
+    }
+
+    @Test
+    public void offer_rejectsJumpsStaleAndInaccurateFixes() {
+        PositionPublishFilter filter = new PositionPublishFilter(ROUTE);
+        LatLng position = ROUTE.positionAt(300);
+        LatLng far = ROUTE.positionAt(900);
+        filter.offer(position.latitude, position.longitude, 5, 10000);
+
+        assertEquals(PositionPublishFilter.Decision.REJECT, filter.offer(far.latitude, far.longitude, 5, 11000));
+        assertEquals(PositionPublishFilter.Decision.REJECT, filter.offer(position.latitude, position.longitude, 5, 9000));
+        assertEquals(PositionPublishFilter.Decision.REJECT, filter.offer(position.latitude, position.longitude, 500, 12000));
+    }
+
+    @Test
+    public void offer_acceptsAJumpThatPersists() {
+        PositionPublishFilter filter = new PositionPublishFilter(ROUTE);
+        LatLng position = ROUTE.positionAt(300);
+        LatLng far = ROUTE.positionAt(900);
+        filter.offer(position.latitude, position.longitude, 5, 0);
+
+        PositionPublishFilter.Decision last = null;
+        for (int s = 1; s <= 4; s++) {
+            last = filter.offer(far.latitude, far.longitude, 5, s * 1000L);
+        }
+
+        assertEquals(PositionPublishFilter.Decision.PUBLISH, last);
+    }
+
+    @Test
+    public void replay_filteredVersusEveryFix() throws Exception {
+        for (String name : TRACES) {
+            List<TraceFixtures.Fix> trace = TraceFixtures.trace(name);
+            RoutePolyline route = TraceFixtures.route(name);
+
+            Replay everyFix = replay(trace, route, null);
+            PositionPublishFilter filter = new PositionPublishFilter(route);
+            Replay filtered = replay(trace, route, filter);
+
+            System.out.println("Publish replay (" + name + ", " + trace.size() + " fixes at 1 Hz, a "
+                    + (int) SPIKE_METERS + " m spike every " + SPIKE_EVERY + "):");
+            System.out.println("  every fix: " + describe(everyFix));
+            System.out.println("  filtered:  " + describe(filtered));
+            System.out.println("  " + filter.stats());
+
+            assertEquals(0, filtered.spikesPublished);
+            assertTrue("filtered wrote " + filtered.writes + " of " + everyFix.writes,
+                    filtered.writes * 10 <= everyFix.writes);
+            // Apart from the spikes, publishing every fix has no error; the filter's error is
+            // bounded by the deviation threshold.
+            assertTrue("filtered p95 error " + filtered.p95Error + " m", filtered.p95Error <= 30);
+            assertTrue("filtered max error " + filtered.maxError + " m, every fix " + everyFix.maxError + " m",
+                    filtered.maxError < everyFix.maxError);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.example.mymatauapp;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.SphericalUtil;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for RouteMatcher, plus a replay of the traces in resources/traces (see
+ * TraceFixtures) that measures how long a fix takes to match.
+ */
+public class RouteMatcherTest {
+
+    private static final List<String> TRACES = Arrays.asList("roysambu_town");
+
+    private static final LatLng START = new LatLng(-1.22593, 36.88504);
+    // Three stops 500 m apart heading north-east.
+    private static final RoutePolyline STRAIGHT = new RoutePolyline(Arrays.asList(
+            START,
+            SphericalUtil.computeOffset(START, 500, 45),
+            SphericalUtil.computeOffset(START, 1000, 45)));
+    // 1 km north, 40 m east, and 1 km back south: the legs are closer than GPS error.
+    private static final LatLng TURN = SphericalUtil.computeOffset(START, 1000, 0);
+    private static final RoutePolyline HAIRPIN = new RoutePolyline(Arrays.asList(
+            START,
+            TURN,
+            SphericalUtil.computeOffset(TURN, 40, 90),
+            SphericalUtil.computeOffset(START, 40, 90)));
+
+    @Test
+    public void offer_tracksDistanceAlongAndNextStop() {
+        RouteMatcher matcher = new RouteMatcher(STRAIGHT);
+        for (int s = 0; s <= 90; s++) {
+            double along = 10 * s + 5;
+            LatLng onRoute = SphericalUtil.computeOffset(START, along, 45);
+            LatLng fix = SphericalUtil.computeOffset(onRoute, s % 2 == 0 ? 8 : -8, 135);
+
+            assertTrue(matcher.offer(fix.latitude, fix.longitude, 5, s * 1000L));
+
+            assertEquals(along, matcher.getDistanceAlong(), 0.5);
+            assertEquals(8, matcher.getOffset(), 0.5);
+            assertEquals(along < 500 ? 1 : 2, matcher.getNextStopIndex());
+        }
+        assertTrue(matcher.isForward());
+    }
+
+    @Test
+    public void offer_followsTheDirectionOfTravel() {
+        RouteMatcher matcher = new RouteMatcher(STRAIGHT);
+        for (int s = 0; s <= 30; s++) {
+            LatLng fix = SphericalUtil.computeOffset(START, 800 - 10 * s, 45);
+            matcher.offer(fix.latitude, fix.longitude, 5, s * 1000L);
+        }
+
+        assertFalse(matcher.isForward());
+        assertEquals(500, matcher.getDistanceAlong(), 0.5);
+        assertEquals(0, matcher.getNextStopIndex());
+    }
+
+    @Test
+    public void offer_staysOnTheLegItIsTravelling() {
+        RouteMatcher matcher = new RouteMatcher(HAIRPIN);
+        Random random = new Random(3);
+        int flips = 0;
+        int nearestFlips = 0;
+        for (int s = 0; s <= 80; s++) {
+            LatLng onRoute = SphericalUtil.computeOffset(START, 12 * s, 0);
+            // Noise pulls fixes up to 30 m east, closer to the way back than to the way out.
+            LatLng fix = SphericalUtil.computeOffset(onRoute, 30 * random.nextDouble(), 90);
+
+            assertTrue(matcher.offer(fix.latitude, fix.longitude, 10, s * 1000L));
+
+            // The first fix has no history, and may be matched to either leg.
+            if (s > 0 && Math.abs(matcher.getDistanceAlong() - 12 * s) > 35) {
+                flips++;
+            }
+            if (Math.abs(HAIRPIN.project(fix).getDistanceAlong() - 12 * s) > 35) {
+                nearestFlips++;
+            }
+        }
+
+        assertTrue("nearest segment flipped only " + nearestFlips + " times", nearestFlips > 10);
+        assertEquals(0, flips);
+        assertEquals(1, matcher.getNextStopIndex());
+    }
+
+    @Test
+    public void offer_doesNotMatchFixesOffTheRoute() {
+        RouteMatcher matcher = new RouteMatcher(STRAIGHT);
+        LatLng onRoute = STRAIGHT.positionAt(300);
+        LatLng far = SphericalUtil.computeOffset(onRoute, 500, 135);
+        assertTrue(matcher.offer(onRoute.latitude, onRoute.longitude, 5, 0));
+
+        assertFalse(matcher.offer(far.latitude, far.longitude, 5, 60000));
+
+        assertFalse(matcher.isMatched());
+        assertTrue(Double.isNaN(matcher.getDistanceAlong()));
+        assertEquals(-1, matcher.getNextStopIndex());
+        assertTrue(matcher.offer(onRoute.latitude, onRoute.longitude, 5, 120000));
+        assertEquals(300, matcher.getDistanceAlong(), 0.5);
+        assertFalse(new RouteMatcher(null).offer(onRoute.latitude, onRoute.longitude, 5, 0));
+    }
+
+    @Test
+    public void offer_restartsAfterAnImpossibleJump() {
+        RouteMatcher matcher = new RouteMatcher(STRAIGHT);
+        LatLng first = STRAIGHT.positionAt(50);
+        LatLng second = STRAIGHT.positionAt(950);
+
+        matcher.offer(first.latitude, first.longitude, 5, 0);
+        matcher.offer(second.latitude, second.longitude, 5, 1000);
+
+        assertEquals(950, matcher.getDistanceAlong(), 0.5);
+        assertEquals(2, matcher.getNextStopIndex());
+    }
+
+    /**
+     * A route of 20,000 points 10 m apart, such as a recorded GPS trace, winding back and forth
+     * in 1 km legs 30 m apart.
+     */
+    private static RoutePolyline serpentine(List<Double> along) {
+        List<LatLng> stops = new ArrayList<>();
+        LatLng legStart = START;
+        for (int leg = 0; leg < 200; leg++) {
+            double heading = leg % 2 == 0 ? 0 : 180;
+            for (int i = 0; i < 100; i++) {
+                stops.add(SphericalUtil.computeOffset(legStart, 10 * i, heading));
+            }
+            legStart = SphericalUtil.computeOffset(legStart, 1000, heading);
+            // The 30 m across to the next leg is one segment.
+            legStart = SphericalUtil.computeOffset(legStart, 30, 90);
+        }
+        RoutePolyline route = new RoutePolyline(stops);
+        for (int i = 0; i < stops.size(); i++) {
+            along.add(route.stopDistance(i));
+        }
+        return route;
+    }
+
+    /** A fix every 10 m along a route, each within 5 m of it, as {latitudes, longitudes}. */
+    private static double[][] fixesAlong(RoutePolyline route) {
+        Random random = new Random(7);
+        int fixes = (int) (route.length() / 10);
+        double[][] coordinates = new double[2][fixes];
+        for (int s = 0; s < fixes; s++) {
+            LatLng fix = SphericalUtil.computeOffset(route.positionAt(10 * s), 5 * random.nextDouble(),
+                    360 * random.nextDouble());
+            coordinates[0][s] = fix.latitude;
+            coordinates[1][s] = fix.longitude;
+        }
+        return coordinates;
+    }
+
+    /** Matches fixes a second apart from the start of a route, checking each lands where it was taken. */
+    private static void follow(RoutePolyline route, double[][] coordinates) {
+        RouteMatcher matcher = new RouteMatcher(route);
+        for (int s = 0; s < coordinates[0].length; s++) {
+            assertTrue(matcher.offer(coordinates[0][s], coordinates[1][s], 5, s * 1000L));
+            assertEquals(10 * s, matcher.getDistanceAlong(), 15);
+        }
+    }
+
+    @Test
+    public void offer_followsALongRouteThatDoublesBack() {
+        RoutePolyline route = serpentine(new ArrayList<>());
+        follow(route, fixesAlong(route));
+    }
+
+    @Test
+    public void offer_reacquiresALongRouteAnywhere() {
+        List<Double> along = new ArrayList<>();
+        RoutePolyline route = serpentine(along);
+        RouteMatcher matcher = new RouteMatcher(route);
+        LatLng first = route.positionAt(along.get(50));
+        assertTrue(matcher.offer(first.latitude, first.longitude, 5, 0));
+
+        // Far along the route a second later, out of reach: matched from scratch.
+        for (int stop : new int[] {19_950, 7_025, 12_399}) {
+            LatLng fix = SphericalUtil.computeOffset(route.positionAt(along.get(stop)), 8, 45);
+            assertTrue(matcher.offer(fix.latitude, fix.longitude, 5, stop));
+            assertEquals(along.get(stop), matcher.getDistanceAlong(), 10);
+        }
+        assertTrue(matcher.stats(), matcher.stats().endsWith("3 matching breaks."));
+
+        LatLng beside = SphericalUtil.computeOffset(route.positionAt(along.get(19_950)), 250, 90);
+        assertFalse(matcher.offer(beside.latitude, beside.longitude, 5, 30_000));
+    }
+
+    @Test
+    public void replay_matchesEveryFixToTheEnd() throws Exception {
+        for (String name : TRACES) {
+            List<TraceFixtures.Fix> trace = TraceFixtures.trace(name);
+            RoutePolyline route = TraceFixtures.route(name);
+            RouteMatcher matcher = replay(trace, route);
+
+            assertEquals(route.length(), matcher.getDistanceAlong(), 10);
+            // At the last stop, or just short of it.
+            assertTrue(matcher.getNextStopIndex() == -1 || matcher.getNextStopIndex() == route.stopCount() - 1);
+        }
+    }
+
+    @Test
+    public void benchmark_replayTakesMicrosecondsPerFix() throws Exception {
+        Benchmarks.assumeEnabled();
+        for (String name : TRACES) {
+            List<TraceFixtures.Fix> trace = TraceFixtures.trace(name);
+            RoutePolyline route = TraceFixtures.route(name);
+
+            // Warm up the JIT, then time a full pass.
+            for (int pass = 0; pass < 20; pass++) {
+                replay(trace, route);
+            }
+            long start = System.nanoTime();
+            RouteMatcher matcher = replay(trace, route);
+            double microsPerFix = (System.nanoTime() - start) / 1e3 / trace.size();
+
+            System.out.println(String.format("Route matching (%s, %d fixes, %d stops): %.2f us per fix. %s",
+                    name, trace.size(), route.stopCount(), microsPerFix, matcher.stats()));
+        }
+    }
+
+    @Test
+    public void benchmark_costDoesNotGrowWithTheRoute() {
+        Benchmarks.assumeEnabled();
+        RoutePolyline route = serpentine(new ArrayList<>());
+        double[][] coordinates = fixesAlong(route);
+
+        // Warm up the JIT, then time a full pass; about the same per fix as the short traces.
+        for (int pass = 0; pass < 2; pass++) {
+            follow(route, coordinates);
+        }
+        long start = System.nanoTime();
+        follow(route, coordinates);
+        double microsPerFix = (System.nanoTime() - start) / 1e3 / coordinates[0].length;
+
+        System.out.println(String.format("Route matching (serpentine, %d fixes, %.0f km): %.2f us per fix",
+                coordinates[0].length, route.length() / 1000, microsPerFix));
+    }
+
+    /**
+     * Matches a trace, checking that the vehicle never appears to go backwards by more than
+     * GPS noise and that the next stop is the one ahead.
+     */
+    private static RouteMatcher replay(List<TraceFixtures.Fix> trace, RoutePolyline route) {
+        RouteMatcher matcher = new RouteMatcher(route);
+        double furthest = 0;
+        for (TraceFixtures.Fix fix : trace) {
+            assertTrue(matcher.offer(fix.latitude, fix.longitude, fix.accuracy, fix.timeMillis));
+            double along = matcher.getDistanceAlong();
+            assertTrue("went back from " + furthest + " to " + along, along > furthest - 15);
+            furthest = Math.max(furthest, along);
+            int next = matcher.getNextStopIndex();
+            if (next >= 0) {
+                assertTrue(route.stopDistance(next) > along);
+                assertTrue(next == 0 || route.stopDistance(next - 1) <= along);
+            }
+        }
+        return matcher;
+    }
+}
@@ -0,0 +1,138 @@
+package com.example.mymatauapp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class RouteNetworkFileTest {
+
+    /** Roysambu -> KCA -> Odeon, and Odeon -> Lang'ata -> Rongai, sharing the Odeon stop. */
+    private static RouteNetwork network() {
+        return new RouteNetwork.Builder()
+                .beginRoute("Roysambu to Odeon")
+                .addStop(-1.2178, 36.8897, "Roysambu")
+                .addStop(-1.2504, 36.8601, "KCA University")
+                .addStop(-1.2833, 36.8248, "Odeon")
+                .beginRoute("Odeon to Rongai")
+                .addStop(-1.2833, 36.8248, "Odeon")
+                .addStop(-1.3000, 36.8150, "Lang'ata")
+                .addStop(-1.3800, 36.7600, "Rongai")
+                .build();
+    }
+
+    private static byte[] write(RouteNetwork network) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RouteNetworkFile.write(network, out);
+        return out.toByteArray();
+    }
+
+    private static void putHeader(byte[] file, int index, int value) {
+        ByteBuffer.wrap(file).order(ByteOrder.LITTLE_ENDIAN).putInt(index * 4, value);
+    }
+
+    private static void assertRejected(byte[] file) {
+        try {
+            RouteNetworkFile.read(ByteBuffer.wrap(file));
+            fail("A corrupt route network file was opened");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void read_roundTripsWhatWasWritten() throws IOException {
+        RouteNetwork written = network();
+        RouteNetworkFile file = RouteNetworkFile.read(ByteBuffer.wrap(write(written)));
+        RouteNetwork read = file.getNetwork();
+
+        assertEquals(written.stopCount(), read.stopCount());
+        for (int s = 0; s < written.stopCount(); s++) {
+            assertEquals(written.stopLatE6(s), read.stopLatE6(s));
+            assertEquals(written.stopLngE6(s), read.stopLngE6(s));
+            assertEquals(written.stopName(s), read.stopName(s));
+        }
+        assertEquals(written.routeCount(), read.routeCount());
+        for (int r = 0; r < written.routeCount(); r++) {
+            assertEquals(written.routeName(r), read.routeName(r));
+            assertEquals(written.routeLength(r), read.routeLength(r));
+            for (int i = 0; i < written.routeLength(r); i++) {
+                assertEquals(written.routeStop(r, i), read.routeStop(r, i));
+            }
+        }
+
+        StopRouteIndex expected = new StopRouteIndex(written);
+        StopRouteIndex index = file.getStopRouteIndex();
+        assertNotNull(index);
+        assertEquals(expected.entryCount(), index.entryCount());
+        for (int s = 0; s < expected.stopCount(); s++) {
+            assertEquals(expected.entriesStart(s), index.entriesStart(s));
+            assertEquals(expected.entriesEnd(s), index.entriesEnd(s));
+        }
+        for (int e = 0; e < expected.entryCount(); e++) {
+            assertEquals(expected.entryRoute(e), index.entryRoute(e));
+            assertEquals(expected.entryPosition(e), index.entryPosition(e));
+        }
+    }
+
+    @Test
+    public void read_rejectsACorruptHeader() throws IOException {
+        byte[] good = write(network());
+
+        byte[] magic = good.clone();
+        putHeader(magic, 0, 0);
+        assertRejected(magic);
+
+        byte[] version = good.clone();
+        putHeader(version, 1, RouteNetworkFile.VERSION + 1);
+        assertRejected(version);
+
+        // Every count, made negative and made far too large.
+        for (int count = 3; count <= 7; count++) {
+            for (int value : new int[] {-1, Integer.MIN_VALUE, Integer.MAX_VALUE, 1 << 20}) {
+                byte[] corrupt = good.clone();
+                putHeader(corrupt, count, value);
+                assertRejected(corrupt);
+            }
+        }
+    }
+
+    @Test
+    public void read_rejectsTruncatedFiles() throws IOException {
+        byte[] good = write(network());
+        for (int length = 0; length < good.length; length++) {
+            byte[] truncated = new byte[length];
+            System.arraycopy(good, 0, truncated, 0, length);
+            assertRejected(truncated);
+        }
+    }
+
+    @Test
+    public void read_rejectsOffsetsAndReferencesOutOfRange() throws IOException {
+        byte[] good = write(network());
+        // Flipping any byte of the tables either leaves a consistent network or is rejected;
+        // it never throws anything else.
+        int tablesEnd = good.length - "RoysambuKCA UniversityOdeonLang'ataRongai".length()
+                - "Roysambu to OdeonOdeon to Rongai".length();
+        for (int i = 8 * 4; i < tablesEnd; i++) {
+            for (int bit : new int[] {0x01, 0x40, 0x80}) {
+                byte[] corrupt = good.clone();
+                corrupt[i] ^= bit;
+                try {
+                    RouteNetworkFile file = RouteNetworkFile.read(ByteBuffer.wrap(corrupt));
+                    RouteNetwork network = file.getNetwork();
+                    for (int r = 0; r < network.routeCount(); r++) {
+                        network.routeName(r);
+                        for (int p = 0; p < network.routeLength(r); p++) {
+                            network.stopName(network.routeStop(r, p));
+                        }
+                    }
+                } catch (IOException expected) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.example.mymatauapp;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RoutePlanningServiceTest {
+
+    private static final LatLng ROYSAMBU = new LatLng(-1.2178, 36.8897);
+    private static final LatLng KCA = new LatLng(-1.2504, 36.8601);
+    private static final LatLng ODEON = new LatLng(-1.2833, 36.8248);
+    private static final LatLng LANGATA = new LatLng(-1.3000, 36.8150);
+    private static final LatLng RONGAI = new LatLng(-1.3800, 36.7600);
+
+    /** Roysambu -> KCA -> Odeon, and Odeon -> Lang'ata -> Rongai. */
+    private static MatatuRouteManager network() {
+        RouteNetwork.Builder builder = new RouteNetwork.Builder();
+        builder.beginRoute("Roysambu to Odeon");
+        for (LatLng stop : Arrays.asList(ROYSAMBU, KCA, ODEON)) {
+            builder.addStop(stop.latitude, stop.longitude);
+        }
+        builder.beginRoute("Odeon to Rongai");
+        for (LatLng stop : Arrays.asList(ODEON, LANGATA, RONGAI)) {
+            builder.addStop(stop.latitude, stop.longitude);
+        }
+        return new MatatuRouteManager(builder.build());
+    }
+
+    private static LatLng near(LatLng stop) {
+        return new LatLng(stop.latitude + 0.0003, stop.longitude + 0.0003);
+    }
+
+    @Test
+    public void compute_ridesOneRouteBetweenTheNearestStages() {
+        RoutePlan plan = RoutePlanningService.compute(network(), near(ROYSAMBU), near(ODEON), () -> false);
+
+        assertEquals(RoutePlan.Kind.SINGLE_ROUTE, plan.getKind());
+        List<Journey.Leg> legs = plan.getLegs();
+        assertEquals(3, legs.size());
+        assertEquals(Journey.Mode.WALK, legs.get(0).getMode());
+        assertEquals(Arrays.asList(ROYSAMBU, KCA, ODEON), legs.get(1).getPoints());
+        assertEquals(Journey.Mode.WALK, legs.get(2).getMode());
+        assertNull(plan.getLine(0));
+        assertEquals(3, plan.getLine(1).pointCount());
+        assertEquals(1, plan.getMatatuLegCount());
+        // Two short walks and about 10 km at 20 km/h.
+        assertTrue(plan.getEtaSeconds() > 1800 && plan.getEtaSeconds() < 2050);
+        assertEquals(legs.get(2).getArrivalTime(), plan.getEtaSeconds());
+        assertTrue(plan.getBounds().contains(KCA));
+    }
+
+    @Test
+    public void compute_changesMatatuWhenNoRouteGoesAllTheWay() {
+        RoutePlan plan = RoutePlanningService.compute(network(), near(ROYSAMBU), near(RONGAI), () -> false);
+
+        assertEquals(RoutePlan.Kind.JOURNEY, plan.getKind());
+        assertEquals(2, plan.getMatatuLegCount());
+        assertEquals(1, plan.getTransferCount());
+        assertEquals("Roysambu to Odeon", plan.getLegs().get(1).getRouteName());
+        assertNotNull(plan.getLine(1));
+        assertTrue(plan.getBounds().contains(LANGATA));
+    }
+
+    @Test
+    public void compute_walksWhenNoMatatuConnects() {
+        RoutePlan noStages = RoutePlanningService.compute(new MatatuRouteManager(new RouteNetwork.Builder().build()),
+                ROYSAMBU, ODEON, () -> false);
+        assertEquals(RoutePlan.Kind.NO_STAGES, noStages.getKind());
+        assertTrue(noStages.getLegs().isEmpty());
+
+        // From Rongai back to Roysambu, against the direction of both routes.
+        RoutePlan direct = RoutePlanningService.compute(network(), near(RONGAI), near(ROYSAMBU), () -> false);
+        assertEquals(RoutePlan.Kind.DIRECT, direct.getKind());
+        assertEquals(0, direct.getMatatuLegCount());
+        assertEquals(Arrays.asList(near(RONGAI), near(ROYSAMBU)), direct.getLegs().get(0).getPoints());
+    }
+
+    @Test(expected = CancellationException.class)
+    public void compute_stopsOnceCancelled() {
+        RoutePlanningService.compute(network(), near(ROYSAMBU), near(ODEON), () -> true);
+    }
+
+    @Test
+    public void plan_cancelsThePlanBeforeIt() throws Exception {
+        // Plans wait for the graph, so the first is still pending when the second is asked for.
+        CompletableFuture<MatatuRouteManager> graph = new CompletableFuture<>();
+        ExecutorService main = Executors.newSingleThreadExecutor();
+        try {
+            RoutePlanningService service = new RoutePlanningService(graph, main);
+            Future<CompletableFuture<RoutePlan>> first = main.submit(() -> service.plan(near(ROYSAMBU), near(ODEON)));
+            Future<CompletableFuture<RoutePlan>> second = main.submit(() -> service.plan(near(ROYSAMBU), near(RONGAI)));
+            CompletableFuture<RoutePlan> firstPlan = first.get();
+            CompletableFuture<RoutePlan> secondPlan = second.get();
+            graph.complete(network());
+
+            assertEquals(RoutePlan.Kind.JOURNEY, secondPlan.get(5, TimeUnit.SECONDS).getKind());
+            assertTrue(firstPlan.isCancelled());
+            assertTrue(service.stats(), service.stats().startsWith("Route planning: 2 plans asked for, 1 planned"));
+            assertTrue(service.stats(), service.stats().endsWith(", 1 cancelled before finishing"));
+        } finally {
+            main.shutdownNow();
+        }
+    }
+
+    @Test
+    public void plan_completesOnTheCallbackExecutor() throws Exception {
+        ExecutorService main = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "main"));
+        try {
+            RoutePlanningService service = new RoutePlanningService(CompletableFuture.completedFuture(network()), main);
+            CountDownLatch delivered = new CountDownLatch(1);
+            String[] thread = new String[1];
+            main.submit(() -> service.plan(near(ROYSAMBU), near(ODEON)).thenAccept(plan -> {
+                thread[0] = Thread.currentThread().getName();
+                delivered.countDown();
+            })).get();
+
+            assertTrue(delivered.await(5, TimeUnit.SECONDS));
+            assertEquals("main", thread[0]);
+        } finally {
+            main.shutdownNow();
+        }
+    }
+
+    @Test
+    public void plan_failsWhenTheGraphFails() throws Exception {
+        BlockingQueue<Runnable> main = new LinkedBlockingQueue<>();
+        CompletableFuture<MatatuRouteManager> graph = new CompletableFuture<>();
+        RoutePlanningService service = new RoutePlanningService(graph, main::add);
+        CompletableFuture<RoutePlan> plan = service.plan(near(ROYSAMBU), near(ODEON));
+        IllegalStateException failure = new IllegalStateException("No route network");
+        graph.completeExceptionally(failure);
+
+        Runnable delivery = main.poll(5, TimeUnit.SECONDS);
+        assertNotNull(delivery);
+        assertFalse(plan.isDone());
+        delivery.run();
+        try {
+            plan.getNow(null);
+            fail("The plan completed without a route graph");
+        } catch (CompletionException e) {
+            assertSame(failure, e.getCause());
+        }
+    }
+
+    @Test
+    public void plan_cancelledAfterFinishingIsNotDelivered() throws Exception {
+        // The test thread stands in for the main thread, running callbacks only when it drains them.
+        BlockingQueue<Runnable> main = new LinkedBlockingQueue<>();
+        RoutePlanningService service = new RoutePlanningService(CompletableFuture.completedFuture(network()), main::add);
+        CompletableFuture<RoutePlan> plan = service.plan(near(ROYSAMBU), near(ODEON));
+        Runnable delivery = main.poll(5, TimeUnit.SECONDS);
+        assertNotNull(delivery);
+
+        // A new destination is picked before the finished plan reaches the main thread.
+        service.cancel();
+        delivery.run();
+        assertTrue(plan.isCancelled());
+    }
+}
@@ -0,0 +1,112 @@
+package com.example.mymatauapp;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.SphericalUtil;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the k-d tree in StopSpatialIndex against the brute-force haversine scan
+ * that MatatuRouteManager.findNearestStop used to do.
+ */
+public class StopSpatialIndexTest {
+
+    private static final int STOP_COUNT = 5000;
+    private static final int QUERY_COUNT = 500;
+
+    private static List<LatLng> randomNairobiPoints(Random random, int count) {
+        List<LatLng> points = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            // Roughly the Nairobi metropolitan area.
+            double lat = -1.45 + random.nextDouble() * 0.35;
+            double lng = 36.65 + random.nextDouble() * 0.40;
+            points.add(new LatLng(lat, lng));
+        }
+        return points;
+    }
+
+    private static LatLng bruteForceNearest(List<LatLng> stops, LatLng location) {
+        LatLng nearestStop = null;
+        double minDistance = Double.MAX_VALUE;
+        for (LatLng stop : stops) {
+            double distance = SphericalUtil.computeDistanceBetween(location, stop);
+            if (distance < minDistance) {
+                minDistance = distance;
+                nearestStop = stop;
+            }
+        }
+        return nearestStop;
+    }
+
+    @Test
+    public void nearest_matchesBruteForceScan() {
+        Random random = new Random(42);
+        List<LatLng> stops = randomNairobiPoints(random, STOP_COUNT);
+        StopSpatialIndex index = new StopSpatialIndex(stops);
+
+        for (LatLng query : randomNairobiPoints(random, QUERY_COUNT)) {
+            assertEquals(bruteForceNearest(stops, query), index.nearest(query));
+        }
+    }
+
+    @Test
+    public void kNearest_matchesSortedBruteForceScan() {
+        Random random = new Random(7);
+        List<LatLng> stops = randomNairobiPoints(random, STOP_COUNT);
+        StopSpatialIndex index = new StopSpatialIndex(stops);
+        int k = 10;
+
+        for (LatLng query : randomNairobiPoints(random, QUERY_COUNT)) {
+            List<LatLng> expected = new ArrayList<>(stops);
+            expected.sort((a, b) -> Double.compare(
+                    SphericalUtil.computeDistanceBetween(query, a),
+                    SphericalUtil.computeDistanceBetween(query, b)));
+            assertEquals(expected.subList(0, k), index.kNearest(query, k));
+        }
+    }
+
+    @Test
+    public void withinRadius_matchesBruteForceScan() {
+        Random random = new Random(3);
+        List<LatLng> stops = randomNairobiPoints(random, STOP_COUNT);
+        StopSpatialIndex index = new StopSpatialIndex(stops);
+        double radius = 750.0;
+
+        for (LatLng query : randomNairobiPoints(random, QUERY_COUNT)) {
+            List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < stops.size(); i++) {
+                if (SphericalUtil.computeDistanceBetween(query, stops.get(i)) <= radius) {
+                    expected.add(i);
+                }
+            }
+            int[] actual = index.withinRadiusIndices(query, radius);
+            Arrays.sort(actual);
+            assertEquals(expected.size(), actual.length);
+            for (int i = 0; i < actual.length; i++) {
+                assertEquals((int) expected.get(i), actual[i]);
+            }
+        }
+    }
+
+    @Test
+    public void smallAndEmptyIndexes_behave() {
+        StopSpatialIndex empty = new StopSpatialIndex(new ArrayList<>());
+        LatLng cbd = new LatLng(-1.2889, 36.8208);
+        assertNull(empty.nearest(cbd));
+        assertEquals(0, empty.kNearest(cbd, 3).size());
+        assertEquals(0, empty.withinRadiusIndices(cbd, 1000).length);
+
+        List<LatLng> single = new ArrayList<>();
+        single.add(cbd);
+        StopSpatialIndex one = new StopSpatialIndex(single);
+        assertEquals(cbd, one.nearest(new LatLng(-1.30, 36.80)));
+        assertEquals(1, one.kNearest(cbd, 5).size());
+    }
+}
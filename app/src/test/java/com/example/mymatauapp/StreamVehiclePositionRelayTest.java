@@ -0,0 +1,391 @@
+package com.example.mymatauapp;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import okhttp3.OkHttpClient;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for StreamVehiclePositionTransport end to end, over loopback sockets to the local
+ * VehiclePositionRelayServer, plus a load test that reports how long positions take from
+ * publish to render over the relay. They wait on real connections and threads, so they only
+ * run with the benchmarks; StreamVehiclePositionTransportTest covers the transport without them.
+ */
+public class StreamVehiclePositionRelayTest {
+
+    private static final String ROUTE_ID = "Roysambu to Nairobi Town";
+    private static final String CELL = "kzf0t4";
+    private static final String OTHER_CELL = "kzf0t5";
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private static final int VEHICLES = 40;
+    private static final int RIDERS = 100;
+    private static final long PUBLISH_MILLIS = 200; // ten times the transport's cadence
+    private static final int PUBLISHES = 25;
+    private static final double SPEED_MPS = 60; // a 2 s publish interval's distance per 200 ms
+    private static final double WATCH_METERS = 1500;
+
+    private static final OkHttpClient CLIENT = new OkHttpClient.Builder().build();
+
+    private static VehiclePosition vehicle(String tripId, String cell, long lastUpdated) {
+        LatLng center = Geohash.center(cell);
+        return new VehiclePosition(tripId, "KDA " + tripId, ROUTE_ID, center.latitude, center.longitude, 8, -1, -1,
+                lastUpdated, Collections.emptyList());
+    }
+
+    @Before
+    public void setUp() {
+        Benchmarks.assumeEnabled();
+    }
+
+    private static StreamVehiclePositionTransport transport(VehiclePositionRelayServer relay) {
+        return new StreamVehiclePositionTransport(CLIENT, relay.getUrl(), Runnable::run);
+    }
+
+    /** Publishes and waits for the transport to hand the position on. */
+    private static void publish(VehiclePositionTransport transport, VehiclePosition position) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_SECONDS * 1000;
+        while (!transport.isOnline()) {
+            assertTrue("Not connected", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        AtomicReference<Exception> error = new AtomicReference<>();
+        transport.publish(position, error::set);
+        assertNull(error.get());
+    }
+
+    /** Queues the changes a listener is given. */
+    private static class Calls implements VehiclePositionRepository.Listener {
+        final BlockingQueue<List<VehiclePositionRepository.Change>> queue = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onChanges(List<VehiclePositionRepository.Change> changes, Exception error) {
+            assertNull(error);
+            queue.add(changes);
+        }
+
+        /** @return The next call's changes, as "TYPE tripId" strings. */
+        List<String> next() throws InterruptedException {
+            List<VehiclePositionRepository.Change> changes = queue.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            assertNotNull("No call", changes);
+            List<String> described = new ArrayList<>();
+            for (VehiclePositionRepository.Change change : changes) {
+                described.add(change.getType() + " " + change.getTripId());
+            }
+            return described;
+        }
+    }
+
+    @Test
+    public void listen_getsTheCellsTripsThenTheirChanges() throws Exception {
+        try (VehiclePositionRelayServer relay = new VehiclePositionRelayServer(0)) {
+            StreamVehiclePositionTransport publisher = transport(relay);
+            StreamVehiclePositionTransport rider = transport(relay);
+            publish(publisher, vehicle("a", CELL, 1));
+            publish(publisher, vehicle("b", OTHER_CELL, 1));
+            Calls calls = new Calls();
+
+            rider.listen(ROUTE_ID, CELL, calls);
+            assertEquals(Collections.singletonList("ADDED a"), calls.next());
+
+            publish(publisher, vehicle("a", CELL, 2));
+            assertEquals(Collections.singletonList("MODIFIED a"), calls.next());
+            publish(publisher, vehicle("a", OTHER_CELL, 3));
+            assertEquals(Collections.singletonList("REMOVED a"), calls.next());
+            publish(publisher, vehicle("b", CELL, 4));
+            assertEquals(Collections.singletonList("ADDED b"), calls.next());
+            publisher.end("b");
+            assertEquals(Collections.singletonList("REMOVED b"), calls.next());
+
+            publisher.close();
+            rider.close();
+        }
+    }
+
+    @Test
+    public void listen_firstCallIsMadeForAnEmptyCell() throws Exception {
+        try (VehiclePositionRelayServer relay = new VehiclePositionRelayServer(0)) {
+            StreamVehiclePositionTransport rider = transport(relay);
+            Calls calls = new Calls();
+            Calls wholeRoute = new Calls();
+
+            rider.listen(ROUTE_ID, CELL, calls);
+            rider.listen(ROUTE_ID, null, wholeRoute);
+
+            assertEquals(Collections.emptyList(), calls.next());
+            assertEquals(Collections.emptyList(), wholeRoute.next());
+            rider.close();
+        }
+    }
+
+    @Test
+    public void remove_stopsTheListener() throws Exception {
+        try (VehiclePositionRelayServer relay = new VehiclePositionRelayServer(0)) {
+            StreamVehiclePositionTransport publisher = transport(relay);
+            StreamVehiclePositionTransport rider = transport(relay);
+            Calls removed = new Calls();
+            Calls kept = new Calls();
+            VehiclePositionRepository.Registration registration = rider.listen(ROUTE_ID, CELL, removed);
+            rider.listen(ROUTE_ID, CELL, kept);
+            removed.next();
+            kept.next();
+
+            registration.remove();
+            publish(publisher, vehicle("a", CELL, 1));
+
+            assertEquals(Collections.singletonList("ADDED a"), kept.next());
+            assertTrue(removed.queue.isEmpty());
+            publisher.close();
+            rider.close();
+        }
+    }
+
+    @Test
+    public void reconnect_tellsListenersOnlyWhatChangedMeanwhile() throws Exception {
+        try (VehiclePositionRelayServer relay = new VehiclePositionRelayServer(0)) {
+            StreamVehiclePositionTransport publisher = transport(relay);
+            StreamVehiclePositionTransport rider = transport(relay);
+            publish(publisher, vehicle("a", CELL, 1));
+            publish(publisher, vehicle("b", CELL, 1));
+            Calls calls = new Calls();
+            rider.listen(ROUTE_ID, CELL, calls);
+            assertEquals(new HashSet<>(Arrays.asList("ADDED a", "ADDED b")), new HashSet<>(calls.next()));
+
+            // The relay restarts, forgetting every trip. Before the rider is back, a is
+            // published again and b is not.
+            relay.restart();
+            StreamVehiclePositionTransport republisher = transport(relay);
+            publish(republisher, vehicle("a", CELL, 2));
+
+            assertEquals(new HashSet<>(Arrays.asList("MODIFIED a", "REMOVED b")), new HashSet<>(calls.next()));
+            assertTrue(rider.stats().contains("2 connects"));
+            publisher.close();
+            republisher.close();
+            rider.close();
+        }
+    }
+
+    @Test
+    public void publish_failsWhileDisconnected() throws Exception {
+        int port;
+        try (ServerSocket unused = new ServerSocket(0)) {
+            port = unused.getLocalPort();
+        }
+        StreamVehiclePositionTransport transport = new StreamVehiclePositionTransport(CLIENT,
+                "ws://127.0.0.1:" + port + "/positions", Runnable::run);
+        AtomicReference<Exception> error = new AtomicReference<>();
+
+        assertFalse(transport.isOnline());
+        transport.publish(vehicle("a", CELL, 1), error::set);
+
+        assertTrue(error.get() instanceof IOException);
+        transport.close();
+    }
+
+    /**
+     * 40 matatus publish along the Roysambu route to 100 riders, each watching the cells
+     * within 1.5 km of a point on the route, each on its own connection. The latency is from
+     * publish to the rider's VehicleBoard taking the change in, on the rider's own thread.
+     */
+    @Test
+    public void loadTest_publishToRenderLatency() throws Exception {
+        RoutePolyline route = TraceFixtures.route("roysambu_town");
+        Random random = new Random(21);
+        Map<String, Long> publishedAt = new ConcurrentHashMap<>();
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger riderCalls = new AtomicInteger();
+        AtomicInteger wrongCalls = new AtomicInteger();
+
+        try (VehiclePositionRelayServer relay = new VehiclePositionRelayServer(0)) {
+            List<StreamVehiclePositionTransport> transports = new ArrayList<>();
+            List<ExecutorService> riderThreads = new ArrayList<>();
+            List<Set<String>> riderCells = new ArrayList<>();
+            // Per rider, the positions it has rendered, so a trip crossing between two of its
+            // cells counts once.
+            List<Set<String>> rendered = new ArrayList<>();
+            int cellCount = 0;
+
+            for (int i = 0; i < RIDERS; i++) {
+                ExecutorService riderThread = Executors.newSingleThreadExecutor();
+                StreamVehiclePositionTransport transport = new StreamVehiclePositionTransport(CLIENT,
+                        relay.getUrl(), riderThread);
+                LatLng rider = route.positionAt(random.nextDouble() * route.length());
+                Set<String> cells = Geohash.cellsCovering(rider, WATCH_METERS, VehiclePositionRepository.CELL_PRECISION);
+                Set<String> seen = new HashSet<>();
+                VehicleBoard board = new VehicleBoard(vehicle -> vehicle.getLastUpdated());
+                VehicleSubscription subscription = new VehicleSubscription(transport, ROUTE_ID, (changes, error) -> {
+                    if (error != null) {
+                        wrongCalls.incrementAndGet();
+                        return;
+                    }
+                    board.apply(changes);
+                    board.getRows();
+                    long now = System.nanoTime();
+                    riderCalls.incrementAndGet();
+                    for (VehiclePositionRepository.Change change : changes) {
+                        if (change.getType() == VehiclePositionRepository.Change.Type.REMOVED) {
+                            continue;
+                        }
+                        String key = change.getTripId() + ":" + change.getVehicle().getLastUpdated();
+                        Long at = publishedAt.get(key);
+                        if (at == null || !cells.contains(change.getVehicle().getCell())) {
+                            wrongCalls.incrementAndGet();
+                        } else if (seen.add(key)) {
+                            latencies.add(now - at);
+                        }
+                    }
+                });
+                riderThread.execute(() -> subscription.setCells(cells));
+                transports.add(transport);
+                riderThreads.add(riderThread);
+                riderCells.add(cells);
+                rendered.add(seen);
+                cellCount += cells.size();
+            }
+            // Every cell's first call, empty as nothing has been published yet, and no other.
+            long deadline = System.currentTimeMillis() + TIMEOUT_SECONDS * 1000;
+            while (riderCalls.get() < cellCount) {
+                assertTrue("Riders not synced", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+
+            List<StreamVehiclePositionTransport> publishers = new ArrayList<>();
+            for (int v = 0; v < VEHICLES; v++) {
+                StreamVehiclePositionTransport publisher = transport(relay);
+                while (!publisher.isOnline()) {
+                    Thread.sleep(5);
+                }
+                publishers.add(publisher);
+            }
+            long expected = 0;
+            VehiclePosition lastPublished = null;
+            long start = System.currentTimeMillis();
+            for (int tick = 0; tick < PUBLISHES; tick++) {
+                long lastUpdated = start + tick * PUBLISH_MILLIS;
+                for (int v = 0; v < VEHICLES; v++) {
+                    double along = (route.length() * v / VEHICLES + SPEED_MPS * tick) % route.length();
+                    LatLng at = route.positionAt(along);
+                    VehiclePosition position = new VehiclePosition("trip" + v, "KDA " + v, ROUTE_ID,
+                            at.latitude, at.longitude, 12.5, along, route.nextStop(along, true), lastUpdated,
+                            Arrays.asList(Math.round(at.latitude * 1e5) + 3, Math.round(at.longitude * 1e5) - 2, 1L));
+                    for (Set<String> cells : riderCells) {
+                        if (cells.contains(position.getCell())) {
+                            expected++;
+                        }
+                    }
+                    publishedAt.put(position.getTripId() + ":" + lastUpdated, System.nanoTime());
+                    AtomicReference<Exception> error = new AtomicReference<>();
+                    publishers.get(v).publish(position, error::set);
+                    assertNull(error.get());
+                    lastPublished = position;
+                }
+                Thread.sleep(Math.max(0, start + (tick + 1) * PUBLISH_MILLIS - System.currentTimeMillis()));
+            }
+            deadline = System.currentTimeMillis() + TIMEOUT_SECONDS * 1000;
+            while (latencies.size() < expected && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            List<Long> sorted = new ArrayList<>(latencies);
+            Collections.sort(sorted);
+            System.out.println(String.format(Locale.US,
+                    "Stream publish-to-render (%d matatus every %d ms, %d riders on %.1f cells each, loopback):",
+                    VEHICLES, PUBLISH_MILLIS, RIDERS, (double) cellCount / RIDERS));
+            System.out.println(String.format(Locale.US,
+                    "  %d renders of %d expected; p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms",
+                    sorted.size(), expected, percentile(sorted, 50), percentile(sorted, 90),
+                    percentile(sorted, 99), percentile(sorted, 100)));
+            // What every listener on the trip's cell is sent for each write: the whole document.
+            Map<String, Object> document = new HashMap<>(FirestoreVehiclePositionTransport.fieldsOf(lastPublished));
+            document.put("conductorId", "Xk3vQ9pL2mN8rT5wY7zA1bC4dE6f");
+            document.put("startTime", start);
+            document.put("status", "available");
+            document.put("routeId", ROUTE_ID);
+            document.put("matatuId", "KCA 123A");
+            System.out.println(String.format(Locale.US,
+                    "  wire: %.1f bytes per position published, %.1f per position relayed;"
+                            + " the trip document Firestore sends listeners is about %d bytes",
+                    (double) relay.getPositionBytesIn() / relay.getPositionsIn(),
+                    (double) relay.getBytesOut() / relay.getPositionsOut(),
+                    firestoreDocumentBytes("trips/" + lastPublished.getTripId(), document)));
+            System.out.println("  " + relay.stats());
+
+            assertEquals(0, wrongCalls.get());
+            assertEquals(expected, sorted.size());
+
+            for (StreamVehiclePositionTransport transport : publishers) {
+                transport.close();
+            }
+            for (StreamVehiclePositionTransport transport : transports) {
+                transport.close();
+            }
+            for (ExecutorService riderThread : riderThreads) {
+                riderThread.shutdown();
+            }
+        }
+    }
+
+    /** The nearest-rank percentile of sorted nanosecond latencies, in milliseconds. */
+    private static double percentile(List<Long> sorted, double percent) {
+        if (sorted.isEmpty()) {
+            return Double.NaN;
+        }
+        int rank = (int) Math.ceil(percent / 100 * sorted.size());
+        return sorted.get(Math.max(0, rank - 1)) / 1e6;
+    }
+
+    /**
+     * The size of a document by Firestore's storage size rules: its name (each path segment's
+     * UTF-8 plus one, plus 16), 32 bytes, and each field's name (UTF-8 plus one) and value
+     * (8 bytes a number, UTF-8 plus one a string, the sum of its values an array).
+     */
+    private static int firestoreDocumentBytes(String path, Map<String, Object> fields) {
+        int size = 32 + 16;
+        for (String segment : path.split("/")) {
+            size += segment.length() + 1;
+        }
+        for (Map.Entry<String, Object> field : fields.entrySet()) {
+            size += field.getKey().length() + 1 + valueBytes(field.getValue());
+        }
+        return size;
+    }
+
+    private static int valueBytes(Object value) {
+        if (value instanceof String) {
+            return ((String) value).length() + 1;
+        }
+        if (value instanceof List) {
+            int size = 0;
+            for (Object element : (List<?>) value) {
+                size += valueBytes(element);
+            }
+            return size;
+        }
+        return 8;
+    }
+}
@@ -0,0 +1,363 @@
+package com.example.mymatauapp;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import okhttp3.Request;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okio.ByteString;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for StreamVehiclePositionTransport over in-memory sockets, with the test playing the
+ * relay's side of the protocol; StreamVehiclePositionRelayTest runs it against the real relay.
+ */
+public class StreamVehiclePositionTransportTest {
+
+    private static final String ROUTE_ID = "Roysambu to Nairobi Town";
+    private static final String CELL = "kzf0t4";
+    private static final String OTHER_CELL = "kzf0t5";
+
+    private static VehiclePosition vehicle(String tripId, String cell) {
+        LatLng center = Geohash.center(cell);
+        return new VehiclePosition(tripId, "KDA " + tripId, ROUTE_ID, center.latitude, center.longitude, 8, -1, -1,
+                1, Collections.emptyList());
+    }
+
+    /** One connection: records what the transport sends, and plays the relay's messages back. */
+    private static class FakeSocket implements WebSocket {
+        final WebSocketListener listener;
+        final List<byte[]> sent = new ArrayList<>();
+        // The relay's ends of the codec, fresh for each connection as on the real relay.
+        final VehiclePositionCodec.Decoder decoder = new VehiclePositionCodec.Decoder();
+        final VehiclePositionCodec.Encoder encoder = new VehiclePositionCodec.Encoder(64);
+        boolean closed;
+
+        FakeSocket(WebSocketListener listener) {
+            this.listener = listener;
+        }
+
+        void open() {
+            listener.onOpen(this, null);
+        }
+
+        void fail() {
+            listener.onFailure(this, new IOException("Connection reset"), null);
+        }
+
+        /** Sends the transport a message of the frames the relay writes. */
+        void relay(Consumer<VehiclePositionCodec.Encoder> frames) {
+            frames.accept(encoder);
+            listener.onMessage(this, ByteString.of(encoder.flush()));
+        }
+
+        /** @return The frames sent since the last call, such as "subscribe 1 route cell". */
+        List<String> frames() throws IOException {
+            List<String> frames = new ArrayList<>();
+            VehiclePositionCodec.Handler handler = new VehiclePositionCodec.Handler() {
+                @Override
+                public void onPosition(VehiclePosition position, long seq) {
+                    frames.add("position " + position.getTripId());
+                }
+
+                @Override
+                public void onRemoved(String tripId) {
+                    frames.add("removed " + tripId);
+                }
+
+                @Override
+                public void onSubscribe(int subscription, String routeId, String cell) {
+                    frames.add("subscribe " + subscription + " " + routeId + " " + cell);
+                }
+
+                @Override
+                public void onUnsubscribe(int subscription) {
+                    frames.add("unsubscribe " + subscription);
+                }
+
+                @Override
+                public void onSynced(int subscription) {
+                    frames.add("synced " + subscription);
+                }
+            };
+            for (byte[] message : sent) {
+                decoder.decode(message, handler);
+            }
+            sent.clear();
+            return frames;
+        }
+
+        @Override
+        public boolean send(ByteString bytes) {
+            if (closed) {
+                return false;
+            }
+            sent.add(bytes.toByteArray());
+            return true;
+        }
+
+        @Override
+        public boolean send(String text) {
+            return false;
+        }
+
+        @Override
+        public boolean close(int code, String reason) {
+            closed = true;
+            return true;
+        }
+
+        @Override
+        public void cancel() {
+            closed = true;
+        }
+
+        @Override
+        public long queueSize() {
+            return 0;
+        }
+    }
+
+    private static class FakeSockets implements WebSocket.Factory {
+        final List<FakeSocket> opened = new ArrayList<>();
+
+        @Override
+        public WebSocket newWebSocket(Request request, WebSocketListener listener) {
+            FakeSocket socket = new FakeSocket(listener);
+            opened.add(socket);
+            return socket;
+        }
+
+        FakeSocket last() {
+            return opened.get(opened.size() - 1);
+        }
+    }
+
+    /** Holds the reconnects until the test runs them. */
+    private static class FakeReconnector implements StreamVehiclePositionTransport.Reconnector {
+        final List<Runnable> tasks = new ArrayList<>();
+        final List<Long> delays = new ArrayList<>();
+        boolean shutdown;
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            tasks.add(task);
+            delays.add(delayMillis);
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+        }
+
+        void runAll() {
+            List<Runnable> due = new ArrayList<>(tasks);
+            tasks.clear();
+            for (Runnable task : due) {
+                task.run();
+            }
+        }
+    }
+
+    /** Records the changes a listener is given. */
+    private static class Calls implements VehiclePositionRepository.Listener {
+        final List<List<String>> calls = new ArrayList<>();
+
+        @Override
+        public void onChanges(List<VehiclePositionRepository.Change> changes, Exception error) {
+            assertNull(error);
+            List<String> described = new ArrayList<>();
+            for (VehiclePositionRepository.Change change : changes) {
+                described.add(change.getType() + " " + change.getTripId());
+            }
+            calls.add(described);
+        }
+
+        /** @return The oldest call not yet looked at, as "TYPE tripId" strings. */
+        List<String> next() {
+            assertFalse("No call", calls.isEmpty());
+            return calls.remove(0);
+        }
+    }
+
+    private final FakeSockets sockets = new FakeSockets();
+    private final FakeReconnector reconnector = new FakeReconnector();
+    private final StreamVehiclePositionTransport transport =
+            new StreamVehiclePositionTransport(sockets, "ws://relay/positions", Runnable::run, reconnector);
+
+    /** Listens to a cell and brings the listener up to date with the relay's sync mark. */
+    private FakeSocket listenAndSync(Calls calls) throws IOException {
+        transport.listen(ROUTE_ID, CELL, calls);
+        FakeSocket socket = sockets.last();
+        socket.open();
+        socket.frames();
+        socket.relay(encoder -> encoder.synced(1));
+        assertEquals(Collections.emptyList(), calls.next());
+        return socket;
+    }
+
+    @Test
+    public void listen_subscribesOnceConnectedAndCallsAtTheSyncMark() throws IOException {
+        Calls calls = new Calls();
+        transport.listen(ROUTE_ID, CELL, calls);
+        assertEquals(1, sockets.opened.size());
+        FakeSocket socket = sockets.last();
+        assertEquals(Collections.emptyList(), socket.frames());
+
+        socket.open();
+        assertEquals(Collections.singletonList("subscribe 1 " + ROUTE_ID + " " + CELL), socket.frames());
+        // What the relay has for the cell is held back until its sync mark, then given in one call.
+        socket.relay(encoder -> encoder.position(vehicle("a", CELL), 1));
+        assertTrue(calls.calls.isEmpty());
+        socket.relay(encoder -> {
+            encoder.position(vehicle("b", CELL), 1);
+            encoder.synced(1);
+        });
+        assertEquals(Arrays.asList("ADDED a", "ADDED b"), calls.next());
+        assertTrue(calls.calls.isEmpty());
+    }
+
+    @Test
+    public void listen_firstCallIsMadeForAnEmptyCell() throws IOException {
+        Calls calls = new Calls();
+        Calls wholeRoute = new Calls();
+        transport.listen(ROUTE_ID, CELL, calls);
+        transport.listen(ROUTE_ID, null, wholeRoute);
+        FakeSocket socket = sockets.last();
+        socket.open();
+        assertEquals(Arrays.asList("subscribe 1 " + ROUTE_ID + " " + CELL, "subscribe 2 " + ROUTE_ID + " null"),
+                socket.frames());
+
+        socket.relay(encoder -> {
+            encoder.synced(1);
+            encoder.synced(2);
+        });
+        assertEquals(Collections.emptyList(), calls.next());
+        assertEquals(Collections.emptyList(), wholeRoute.next());
+    }
+
+    @Test
+    public void listen_passesOnEachChangeOnce() throws IOException {
+        Calls calls = new Calls();
+        FakeSocket socket = listenAndSync(calls);
+
+        socket.relay(encoder -> encoder.position(vehicle("a", CELL), 1));
+        assertEquals(Collections.singletonList("ADDED a"), calls.next());
+        socket.relay(encoder -> encoder.position(vehicle("a", CELL), 2));
+        assertEquals(Collections.singletonList("MODIFIED a"), calls.next());
+        // A position already passed on is not passed on again.
+        socket.relay(encoder -> encoder.position(vehicle("a", CELL), 2));
+        assertTrue(calls.calls.isEmpty());
+        socket.relay(encoder -> encoder.position(vehicle("a", OTHER_CELL), 3));
+        assertEquals(Collections.singletonList("REMOVED a"), calls.next());
+        socket.relay(encoder -> {
+            encoder.position(vehicle("b", CELL), 1);
+            encoder.removed("b");
+        });
+        assertEquals(Arrays.asList("ADDED b", "REMOVED b"), calls.next());
+    }
+
+    @Test
+    public void remove_unsubscribesAndStopsTheListener() throws IOException {
+        Calls removed = new Calls();
+        Calls kept = new Calls();
+        VehiclePositionRepository.Registration registration = transport.listen(ROUTE_ID, CELL, removed);
+        transport.listen(ROUTE_ID, CELL, kept);
+        FakeSocket socket = sockets.last();
+        socket.open();
+        socket.relay(encoder -> {
+            encoder.synced(1);
+            encoder.synced(2);
+        });
+        socket.frames();
+
+        registration.remove();
+        assertEquals(Collections.singletonList("unsubscribe 1"), socket.frames());
+        socket.relay(encoder -> encoder.position(vehicle("a", CELL), 1));
+
+        assertEquals(Collections.emptyList(), removed.next());
+        assertTrue(removed.calls.isEmpty());
+        assertEquals(Collections.emptyList(), kept.next());
+        assertEquals(Collections.singletonList("ADDED a"), kept.next());
+    }
+
+    @Test
+    public void reconnect_backsOffAndTellsListenersOnlyWhatChangedMeanwhile() throws IOException {
+        Calls calls = new Calls();
+        FakeSocket socket = listenAndSync(calls);
+        socket.relay(encoder -> {
+            encoder.position(vehicle("a", CELL), 1);
+            encoder.position(vehicle("b", CELL), 1);
+        });
+        assertEquals(Arrays.asList("ADDED a", "ADDED b"), calls.next());
+
+        // The connection drops, and the first try to reconnect fails too.
+        socket.fail();
+        assertFalse(transport.isOnline());
+        assertEquals(1, sockets.opened.size());
+        reconnector.runAll();
+        sockets.last().fail();
+        reconnector.runAll();
+        assertEquals(Arrays.asList(1000L, 2000L), reconnector.delays);
+
+        // Back on a relay that has a again, newer, and has forgotten b.
+        FakeSocket reconnected = sockets.last();
+        reconnected.open();
+        assertEquals(Collections.singletonList("subscribe 1 " + ROUTE_ID + " " + CELL), reconnected.frames());
+        reconnected.relay(encoder -> {
+            encoder.position(vehicle("a", CELL), 2);
+            encoder.synced(1);
+        });
+        assertEquals(new HashSet<>(Arrays.asList("MODIFIED a", "REMOVED b")), new HashSet<>(calls.next()));
+        assertTrue(transport.stats(), transport.stats().contains("3 connects"));
+
+        // Once connected, the backoff starts again from the shortest.
+        reconnected.fail();
+        assertEquals(Arrays.asList(1000L, 2000L, 1000L), reconnector.delays);
+    }
+
+    @Test
+    public void publish_failsWhileDisconnectedAndSendsOnceConnected() throws IOException {
+        AtomicReference<Exception> error = new AtomicReference<>();
+        transport.publish(vehicle("a", CELL), error::set);
+        assertTrue(error.get() instanceof IOException);
+        FakeSocket socket = sockets.last();
+
+        socket.open();
+        assertTrue(transport.isOnline());
+        error.set(null);
+        transport.publish(vehicle("a", CELL), error::set);
+        assertNull(error.get());
+        transport.end("a");
+        assertEquals(Arrays.asList("position a", "removed a"), socket.frames());
+    }
+
+    @Test
+    public void close_stopsListenersAndReconnects() throws IOException {
+        Calls calls = new Calls();
+        FakeSocket socket = listenAndSync(calls);
+
+        transport.close();
+        assertTrue(socket.closed);
+        assertTrue(reconnector.shutdown);
+        socket.relay(encoder -> encoder.position(vehicle("a", CELL), 1));
+        socket.fail();
+
+        assertTrue(calls.calls.isEmpty());
+        assertTrue(reconnector.tasks.isEmpty());
+        assertFalse(transport.isOnline());
+        assertEquals(1, sockets.opened.size());
+    }
+}
@@ -0,0 +1,76 @@
+package com.example.mymatauapp;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * The recorded traces in resources/traces that the replay tests share. A trace is seconds,
+ * latitude, longitude, speed and accuracy columns, with the route's stops in a matching _stops
+ * file. roysambu_town is synthetic: a 20 minute wait at the Roysambu stage, then the drive into
+ * town with stops, dwell times and a stretch of stop-and-go traffic, with 2.5 m GPS noise.
+ */
+final class TraceFixtures {
+
+    static final class Fix {
+        final long timeMillis;
+        final double latitude;
+        final double longitude;
+        final double speed;
+        final double accuracy;
+
+        Fix(long timeMillis, double latitude, double longitude, double speed, double accuracy) {
+            this.timeMillis = timeMillis;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.speed = speed;
+            this.accuracy = accuracy;
+        }
+    }
+
+    private TraceFixtures() {
+    }
+
+    /** The fixes of a trace, one a second. */
+    static List<Fix> trace(String name) throws IOException {
+        List<Fix> fixes = new ArrayList<>();
+        for (String[] row : readCsv("/traces/" + name + ".csv")) {
+            fixes.add(new Fix(Long.parseLong(row[0]) * 1000, Double.parseDouble(row[1]),
+                    Double.parseDouble(row[2]), Double.parseDouble(row[3]), Double.parseDouble(row[4])));
+        }
+        return fixes;
+    }
+
+    /** The route a trace drives, through its stops. */
+    static RoutePolyline route(String name) throws IOException {
+        List<LatLng> stops = new ArrayList<>();
+        for (String[] row : readCsv("/traces/" + name + "_stops.csv")) {
+            stops.add(new LatLng(Double.parseDouble(row[1]), Double.parseDouble(row[2])));
+        }
+        return new RoutePolyline(stops);
+    }
+
+    private static List<String[]> readCsv(String resource) throws IOException {
+        try (InputStream in = TraceFixtures.class.getResourceAsStream(resource)) {
+            assertNotNull("missing resource " + resource, in);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            List<String[]> rows = new ArrayList<>();
+            reader.readLine(); // header
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    rows.add(line.split(","));
+                }
+            }
+            return rows;
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package com.example.mymatauapp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for TripEventJournal and TripEvent, plus a benchmark that replays a 10,000 event
+ * backlog, as built up by a long stretch without network.
+ */
+public class TripEventJournalTest {
+
+    private static final long SEGMENT_BYTES = 4 * 1024;
+    private static final long MAX_BYTES = 1024 * 1024;
+    private static final long SYNC_DELAY_MILLIS = 20;
+
+    private File directory;
+
+    /**
+     * A backend that merges events into in-memory trip documents, like Firestore, and can be
+     * taken offline or slowed down.
+     */
+    private static class FakeBackend implements TripEventJournal.Backend {
+        final Map<String, Map<String, Object>> documents = new HashMap<>();
+        final List<Long> applied = new ArrayList<>();
+        volatile boolean online = true;
+        volatile long latencyMillis;
+        int batches;
+
+        @Override
+        public void apply(List<TripEvent> events, TripEventJournal.Callback callback) {
+            if (!online) {
+                callback.onComplete(new IOException("offline"));
+                return;
+            }
+            if (latencyMillis > 0) {
+                try {
+                    Thread.sleep(latencyMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            synchronized (this) {
+                batches++;
+                for (TripEvent event : events) {
+                    documents.computeIfAbsent(event.getTripId(), id -> new HashMap<>()).putAll(event.getFields());
+                    applied.add(event.getSequence());
+                }
+            }
+            callback.onComplete(null);
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("journal").toFile();
+    }
+
+    private TripEventJournal open(FakeBackend backend) {
+        return new TripEventJournal(directory, backend, SEGMENT_BYTES, MAX_BYTES, SYNC_DELAY_MILLIS);
+    }
+
+    private static TripEvent position(String tripId, int i) {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("latitude", -1.2 - i * 1e-5);
+        fields.put("longitude", 36.88 - i * 1e-5);
+        fields.put("lastUpdated", 1700000000000L + i * 15000L);
+        fields.put("speed", 11.5);
+        fields.put("breadcrumbs", Arrays.asList(-120000L - i, 3688000L - i, 10L, -120001L - i, 3688001L - i, 5L));
+        return TripEvent.position(tripId, fields);
+    }
+
+    private static void awaitCheckpoint(TripEventJournal journal, long sequence) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 20000;
+        while (journal.getCheckpoint() < sequence) {
+            assertTrue("checkpoint stuck at " + journal.getCheckpoint() + ", expected " + sequence,
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static List<Long> range(long first, long last) {
+        List<Long> sequences = new ArrayList<>();
+        for (long s = first; s <= last; s++) {
+            sequences.add(s);
+        }
+        return sequences;
+    }
+
+    private int segmentCount() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".seg"));
+        return files == null ? 0 : files.length;
+    }
+
+    @Test
+    public void append_replaysEventsInOrder() throws Exception {
+        FakeBackend backend = new FakeBackend();
+        TripEventJournal journal = open(backend);
+        Map<String, Object> tripData = new HashMap<>();
+        tripData.put("status", "available");
+        tripData.put("routeId", "Roysambu to Nairobi Town");
+        tripData.put("startTime", 1700000000000L);
+
+        journal.append(TripEvent.start("trip-1", tripData), null);
+        for (int i = 0; i < 20; i++) {
+            journal.append(position("trip-1", i), null);
+        }
+        journal.append(TripEvent.status("trip-1", "full"), null);
+        journal.append(TripEvent.end("trip-1", 1700000900000L), null);
+        awaitCheckpoint(journal, 23);
+        journal.close();
+
+        assertEquals(range(1, 23), backend.applied);
+        Map<String, Object> trip = backend.documents.get("trip-1");
+        assertEquals("complete", trip.get("status"));
+        assertEquals(1700000900000L, trip.get("endTime"));
+        assertEquals("Roysambu to Nairobi Town", trip.get("routeId"));
+        assertEquals(-1.2 - 19 * 1e-5, (Double) trip.get("latitude"), 0);
+        assertEquals(Arrays.asList(-120019L, 3687981L, 10L, -120020L, 3687982L, 5L), trip.get("breadcrumbs"));
+    }
+
+    @Test
+    public void append_completesOnceDurable() throws Exception {
+        TripEventJournal journal = open(new FakeBackend());
+        CountDownLatch durable = new CountDownLatch(2);
+        List<Exception> errors = new ArrayList<>();
+        TripEventJournal.Callback callback = error -> {
+            if (error != null) {
+                errors.add(error);
+            }
+            durable.countDown();
+        };
+
+        journal.append(position("trip-1", 0), callback);
+        journal.append(TripEvent.end("trip-1", 1700000900000L), callback);
+
+        assertTrue(durable.await(5, TimeUnit.SECONDS));
+        assertTrue(errors.isEmpty());
+        journal.close();
+    }
+
+    @Test
+    public void replay_retriesFailedBatchesWithoutLosingOrder() throws Exception {
+        FakeBackend backend = new FakeBackend();
+        backend.online = false;
+        TripEventJournal journal = open(backend);
+        for (int i = 0; i < 50; i++) {
+            journal.append(position("trip-1", i), null);
+        }
+        Thread.sleep(100);
+        assertEquals(0, journal.getCheckpoint());
+
+        backend.online = true;
+        journal.replayNow();
+        awaitCheckpoint(journal, 50);
+        journal.close();
+
+        assertEquals(range(1, 50), backend.applied);
+    }
+
+    @Test
+    public void reopen_replaysAgainIdempotentlyWithoutCheckpoint() throws Exception {
+        FakeBackend backend = new FakeBackend();
+        TripEventJournal journal = open(backend);
+        journal.append(TripEvent.status("trip-1", "available"), null);
+        for (int i = 0; i < 30; i++) {
+            journal.append(position("trip-1", i), null);
+        }
+        journal.append(TripEvent.status("trip-1", "full"), null);
+        awaitCheckpoint(journal, 32);
+        journal.close();
+        Map<String, Object> before = new HashMap<>(backend.documents.get("trip-1"));
+
+        // As if the process died after sending but before the checkpoint was written.
+        assertTrue(new File(directory, "checkpoint").delete());
+        FakeBackend again = new FakeBackend();
+        again.documents.put("trip-1", new HashMap<>(before));
+        TripEventJournal reopened = open(again);
+        reopened.replay();
+        awaitCheckpoint(reopened, 32);
+        reopened.append(TripEvent.end("trip-1", 1700000900000L), null);
+        awaitCheckpoint(reopened, 33);
+        reopened.close();
+
+        // Applied segments were deleted; what is left of the journal is sent again.
+        assertTrue(again.applied.get(0) <= 32);
+        assertEquals(range(again.applied.get(0), 33), again.applied);
+        Map<String, Object> after = new HashMap<>(again.documents.get("trip-1"));
+        assertEquals("complete", after.remove("status"));
+        assertEquals(1700000900000L, after.remove("endTime"));
+        before.remove("status");
+        assertEquals(before, after);
+    }
+
+    @Test
+    public void reopen_resumesAfterCheckpointAndCutsTornRecord() throws Exception {
+        FakeBackend backend = new FakeBackend();
+        TripEventJournal journal = open(backend);
+        for (int i = 0; i < 10; i++) {
+            journal.append(position("trip-1", i), null);
+        }
+        awaitCheckpoint(journal, 10);
+        backend.online = false;
+        for (int i = 10; i < 15; i++) {
+            journal.append(position("trip-1", i), null);
+        }
+        journal.close();
+        // A record cut short by a crash: a header promising more bytes than follow.
+        File[] segments = directory.listFiles((dir, name) -> name.endsWith(".seg"));
+        Arrays.sort(segments);
+        try (FileOutputStream out = new FileOutputStream(segments[segments.length - 1], true)) {
+            out.write(new byte[]{0, 0, 1, 0, 1, 2, 3, 4, 5, 6, 7});
+        }
+
+        FakeBackend again = new FakeBackend();
+        TripEventJournal reopened = open(again);
+        reopened.append(position("trip-1", 15), null);
+        awaitCheckpoint(reopened, 16);
+        reopened.close();
+
+        assertEquals(range(11, 16), again.applied);
+    }
+
+    @Test
+    public void segments_rollAndAreDeletedOnceApplied() throws Exception {
+        FakeBackend backend = new FakeBackend();
+        backend.online = false;
+        TripEventJournal journal = open(backend);
+        for (int i = 0; i < 200; i++) {
+            journal.append(position("trip-1", i), null);
+        }
+        journal.getCheckpoint(); // runs after the appends
+        int segmentsWhileOffline = segmentCount();
+
+        backend.online = true;
+        journal.replayNow();
+        awaitCheckpoint(journal, 200);
+        journal.close();
+
+        assertTrue("only " + segmentsWhileOffline + " segments", segmentsWhileOffline > 5);
+        assertEquals(1, segmentCount());
+        assertEquals(range(1, 200), backend.applied);
+    }
+
+    @Test
+    public void segments_dropOldestBeyondMaxBytes() throws Exception {
+        FakeBackend backend = new FakeBackend();
+        backend.online = false;
+        TripEventJournal journal = new TripEventJournal(directory, backend, SEGMENT_BYTES, 4 * SEGMENT_BYTES,
+                SYNC_DELAY_MILLIS);
+        for (int i = 0; i < 500; i++) {
+            journal.append(position("trip-1", i), null);
+        }
+        long dropped = journal.getCheckpoint();
+
+        backend.online = true;
+        journal.replayNow();
+        awaitCheckpoint(journal, 500);
+        journal.close();
+
+        assertTrue(dropped > 0);
+        assertTrue(segmentCount() <= 5);
+        assertEquals(range(dropped + 1, 500), backend.applied);
+    }
+
+    @Test
+    public void event_roundTripsThroughTheJournal() throws Exception {
+        List<TripEvent> received = new ArrayList<>();
+        TripEventJournal recorder = new TripEventJournal(directory, (events, callback) -> {
+            received.addAll(events);
+            callback.onComplete(null);
+        }, SEGMENT_BYTES, MAX_BYTES, SYNC_DELAY_MILLIS);
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("text", "Lang\u2019ata");
+        fields.put("count", 3);
+        fields.put("ratio", 0.25f);
+        fields.put("flag", true);
+        fields.put("list", Arrays.asList(1L, -2L));
+
+        recorder.append(TripEvent.start("trip-\u00e9", fields), null);
+        awaitCheckpoint(recorder, 1);
+        recorder.close();
+
+        TripEvent event = received.get(0);
+        assertEquals(1, event.getSequence());
+        assertEquals(TripEvent.Type.START, event.getType());
+        assertEquals("trip-\u00e9", event.getTripId());
+        assertEquals("Lang\u2019ata", event.getFields().get("text"));
+        assertEquals(3L, event.getFields().get("count"));
+        assertEquals(0.25, event.getFields().get("ratio"));
+        assertEquals(true, event.getFields().get("flag"));
+        assertEquals(Arrays.asList(1L, -2L), event.getFields().get("list"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void event_rejectsUnsupportedFieldTypes() {
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("when", new java.util.Date());
+        TripEvent.position("trip-1", fields);
+    }
+
+    @Test
+    public void benchmark_replaysTenThousandEventBacklog() throws Exception {
+        int events = 10_000;
+        FakeBackend backend = new FakeBackend();
+        backend.online = false;
+        TripEventJournal journal = new TripEventJournal(directory, backend, 256 * 1024, 16 * 1024 * 1024,
+                SYNC_DELAY_MILLIS);
+        CountDownLatch durable = new CountDownLatch(events);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < events; i++) {
+            journal.append(position("trip-" + (i / 2000), i), error -> durable.countDown());
+        }
+        assertTrue(durable.await(60, TimeUnit.SECONDS));
+        long appendNanos = System.nanoTime() - start;
+        String appendStats = journal.stats();
+
+        // A round trip per batch, as to Firestore over a slow mobile link.
+        backend.latencyMillis = 20;
+        backend.online = true;
+        start = System.nanoTime();
+        journal.replayNow();
+        awaitCheckpoint(journal, events);
+        long replayNanos = System.nanoTime() - start;
+        String replayStats = journal.stats();
+        journal.close();
+
+        double appendPerSecond = events / (appendNanos / 1e9);
+        double replayPerSecond = events / (replayNanos / 1e9);
+        System.out.println(String.format("Journal benchmark: appended %d events in %d ms (%.0f/s), "
+                        + "replayed in %d ms (%.0f/s, %d batches, 20 ms per batch)",
+                events, appendNanos / 1_000_000, appendPerSecond, replayNanos / 1_000_000, replayPerSecond,
+                backend.batches));
+        System.out.println("  after append: " + appendStats);
+        System.out.println("  after replay: " + replayStats);
+
+        assertEquals(range(1, events), backend.applied);
+        // 50 batches of 200 at 20 ms each is 1 s; leave room for slow machines.
+        assertTrue("replayed " + replayPerSecond + " events/s", replayPerSecond > 2000);
+    }
+}
@@ -0,0 +1,148 @@
+package com.example.mymatauapp;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class VehicleBoardTest {
+
+    private static final String ROUTE_ID = "Roysambu to Nairobi Town";
+
+    // A matatu at distanceAlongRoute arrives 1 s later for each metre short of 5000; beyond
+    // that it has passed.
+    private static final VehicleBoard.Estimator ESTIMATOR = vehicle -> vehicle.getDistanceAlongRoute() > 5000
+            ? Double.NaN : vehicle.getLastUpdated() + (5000 - vehicle.getDistanceAlongRoute()) * 1000;
+
+    private static VehiclePosition vehicle(String tripId, double along, long lastUpdated) {
+        return new VehiclePosition(tripId, "KDA " + tripId, ROUTE_ID, -1.22, 36.88, 8, along, 1, lastUpdated,
+                Collections.emptyList());
+    }
+
+    private static List<String> tripIds(List<VehicleBoard.Row> rows) {
+        List<String> ids = new ArrayList<>();
+        for (VehicleBoard.Row row : rows) {
+            ids.add(row.getTripId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void getRows_ordersBySoonestArrivalWithPassedMatatusLast() {
+        VehicleBoard board = new VehicleBoard(ESTIMATOR);
+
+        assertTrue(board.apply(Arrays.asList(
+                VehiclePositionRepository.Change.added(vehicle("a", 1000, 0)),
+                VehiclePositionRepository.Change.added(vehicle("b", 6000, 0)),
+                VehiclePositionRepository.Change.added(vehicle("c", 4000, 0)))));
+
+        List<VehicleBoard.Row> rows = board.getRows();
+        assertEquals(Arrays.asList("c", "a", "b"), tripIds(rows));
+        assertEquals(17, rows.get(0).getEtaMinutes(0));
+        assertEquals(67, rows.get(1).getEtaMinutes(0));
+        assertTrue(rows.get(2).hasPassed());
+        assertEquals(-1, rows.get(2).getEtaMinutes(0));
+        assertEquals(0, rows.get(0).getEtaMinutes(10_000_000));
+    }
+
+    @Test
+    public void apply_onlyEstimatesTheChangedTrips() {
+        VehicleBoard board = new VehicleBoard(ESTIMATOR);
+        List<VehiclePositionRepository.Change> added = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            added.add(VehiclePositionRepository.Change.added(vehicle("trip" + i, 100 * i, 0)));
+        }
+        board.apply(added);
+        List<VehicleBoard.Row> before = board.getRows();
+        long estimates = board.getEstimateCount();
+
+        board.apply(Collections.singletonList(VehiclePositionRepository.Change.modified(vehicle("trip3", 4900, 1000))));
+
+        assertEquals(estimates + 1, board.getEstimateCount());
+        List<VehicleBoard.Row> after = board.getRows();
+        assertNotSame(before, after);
+        assertEquals("trip3", after.get(0).getTripId());
+        // Every other row is the same object, so DiffUtil binds only the one that changed.
+        int same = 0;
+        for (VehicleBoard.Row row : after) {
+            if (before.contains(row)) {
+                same++;
+            }
+        }
+        assertEquals(39, same);
+    }
+
+    @Test
+    public void apply_reportsWhetherAnythingChanged() {
+        VehicleBoard board = new VehicleBoard(ESTIMATOR);
+        VehiclePosition a = vehicle("a", 1000, 0);
+        board.apply(Collections.singletonList(VehiclePositionRepository.Change.added(a)));
+        List<VehicleBoard.Row> rows = board.getRows();
+
+        assertFalse(board.apply(Collections.singletonList(VehiclePositionRepository.Change.modified(a))));
+        assertFalse(board.apply(Collections.singletonList(VehiclePositionRepository.Change.removed("z"))));
+        assertSame(rows, board.getRows());
+        assertTrue(board.apply(Collections.singletonList(VehiclePositionRepository.Change.removed("a"))));
+        assertEquals(0, board.getRows().size());
+    }
+
+    @Test
+    public void reestimate_estimatesEveryRowAgain() {
+        double[] offset = {0};
+        VehicleBoard board = new VehicleBoard(vehicle -> ESTIMATOR.arrivalMillis(vehicle) + offset[0]);
+        board.apply(Arrays.asList(
+                VehiclePositionRepository.Change.added(vehicle("a", 1000, 0)),
+                VehiclePositionRepository.Change.added(vehicle("b", 2000, 0))));
+        board.getRows();
+
+        offset[0] = 60000;
+        board.reestimate();
+
+        // 4000 s and the extra minute.
+        assertEquals(68, board.getRows().get(1).getEtaMinutes(0));
+        assertEquals(4, board.getEstimateCount());
+    }
+
+    @Test
+    public void advance_movesRowsAlongAndCountsDownOnlyWhenTheyChange() {
+        long[] now = {0};
+        // Moves 10 m (about 1e-4 degrees) north a second while its speed is not 0.
+        VehicleBoard.Predictor predictor = (vehicle, nowMillis) -> new LatLng(
+                vehicle.getLatitude() + vehicle.getSpeed() * 1e-5 * (nowMillis - vehicle.getLastUpdated()) / 1000,
+                vehicle.getLongitude());
+        VehicleBoard board = new VehicleBoard(ESTIMATOR, predictor, () -> now[0]);
+        VehiclePosition parked = new VehiclePosition("parked", "KDA parked", ROUTE_ID, -1.22, 36.88, 0, 4000, 1, 0,
+                Collections.emptyList());
+        board.apply(Arrays.asList(
+                VehiclePositionRepository.Change.added(vehicle("moving", 1000, 0)),
+                VehiclePositionRepository.Change.added(parked)));
+        List<VehicleBoard.Row> before = board.getRows();
+        assertEquals(17, before.get(0).getEtaMinutes());
+
+        // Nothing has moved and no minute has passed.
+        assertFalse(board.advance());
+        assertSame(before, board.getRows());
+
+        now[0] = 10_000;
+        assertTrue(board.advance());
+        List<VehicleBoard.Row> after = board.getRows();
+        assertNotSame(before, after);
+        VehicleBoard.Row moving = after.get(1);
+        assertEquals("moving", moving.getTripId());
+        assertEquals(-1.22 + 8e-4, moving.getPosition().latitude, 1e-9);
+        // The parked matatu's row is kept as it was.
+        assertSame(before.get(0), after.get(0));
+
+        // A minute on, the parked matatu's ETA has counted down.
+        now[0] = 60_000;
+        board.advance();
+        assertEquals(16, board.getRows().get(0).getEtaMinutes());
+        assertEquals(-1.22, board.getRows().get(0).getPosition().latitude, 0);
+    }
+}
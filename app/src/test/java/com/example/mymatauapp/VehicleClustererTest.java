@@ -0,0 +1,239 @@
+package com.example.mymatauapp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class VehicleClustererTest {
+
+    private static final double METERS_PER_DEGREE = 111195;
+    // Odeon and Githurai 45.
+    private static final double[][] STAGES = {{-1.28233, 36.82535}, {-1.19861, 36.92483}};
+
+    /** Records what a flush reports. */
+    private static class Recorder implements VehicleClusterer.Listener {
+        final Map<Long, VehicleClusterer.Cluster> clusters = new HashMap<>();
+        final List<VehicleClusterer.Cluster> changed = new ArrayList<>();
+        final List<Long> removed = new ArrayList<>();
+
+        @Override
+        public void onClusterChanged(VehicleClusterer.Cluster cluster) {
+            clusters.put(cluster.getKey(), cluster);
+            changed.add(cluster);
+        }
+
+        @Override
+        public void onClusterRemoved(long key) {
+            assertNotNull("Removed a cluster never reported", clusters.remove(key));
+            removed.add(key);
+        }
+
+        void reset() {
+            changed.clear();
+            removed.clear();
+        }
+    }
+
+    private static double offset(double meters) {
+        return meters / METERS_PER_DEGREE;
+    }
+
+    @Test
+    public void vehiclesAtAStage_clusterWithTheirBreakdown() {
+        VehicleClusterer clusterer = new VehicleClusterer(15);
+        Recorder recorder = new Recorder();
+        for (int i = 0; i < 8; i++) {
+            clusterer.update("trip" + i, STAGES[0][0] + offset(i), STAGES[0][1] + offset(i), i >= 5);
+        }
+        clusterer.flush(recorder);
+
+        assertEquals(1, recorder.clusters.size());
+        VehicleClusterer.Cluster cluster = recorder.changed.get(0);
+        assertEquals(8, cluster.getSize());
+        assertEquals("5 available / 3 full", cluster.getLabel());
+        assertNull(cluster.getOnlyId());
+        assertEquals(STAGES[0][0] + offset(3.5), cluster.getLatitude(), 1e-9);
+    }
+
+    @Test
+    public void flush_reportsOnlyTheCellsThatChanged() {
+        VehicleClusterer clusterer = new VehicleClusterer(15);
+        Recorder recorder = new Recorder();
+        clusterer.update("a", STAGES[0][0], STAGES[0][1], false);
+        clusterer.update("b", STAGES[0][0] + offset(2), STAGES[0][1], false);
+        clusterer.update("c", STAGES[1][0], STAGES[1][1], false);
+        clusterer.flush(recorder);
+        assertEquals(2, recorder.changed.size());
+        // None are full, so the labels leave the full count out.
+        for (VehicleClusterer.Cluster cluster : recorder.changed) {
+            assertEquals(cluster.getSize() + " available", cluster.getLabel());
+        }
+
+        // Moving a few metres within Githurai's cell changes only that cluster.
+        recorder.reset();
+        clusterer.update("c", STAGES[1][0] + offset(3), STAGES[1][1], false);
+        clusterer.flush(recorder);
+        assertEquals(1, recorder.changed.size());
+        assertEquals("c", recorder.changed.get(0).getOnlyId());
+        assertTrue(recorder.removed.isEmpty());
+
+        // The same position again is not a change.
+        recorder.reset();
+        clusterer.update("c", STAGES[1][0] + offset(3), STAGES[1][1], false);
+        clusterer.flush(recorder);
+        assertTrue(recorder.changed.isEmpty());
+
+        // Driving from Githurai to Odeon empties one cell and grows the other.
+        recorder.reset();
+        clusterer.update("c", STAGES[0][0] + offset(1), STAGES[0][1], true);
+        clusterer.flush(recorder);
+        assertEquals(1, recorder.removed.size());
+        assertEquals(1, recorder.changed.size());
+        assertEquals("2 available / 1 full", recorder.changed.get(0).getLabel());
+
+        recorder.reset();
+        clusterer.remove("a");
+        clusterer.remove("b");
+        clusterer.remove("c");
+        clusterer.flush(recorder);
+        assertEquals(1, recorder.removed.size());
+        assertTrue(recorder.clusters.isEmpty());
+    }
+
+    @Test
+    public void setZoom_splitsAndMergesClusters() {
+        VehicleClusterer clusterer = new VehicleClusterer(10);
+        Recorder recorder = new Recorder();
+        // Three matatus 200 m apart heading west from Odeon: one cluster across a city, three on
+        // a street.
+        for (int i = 0; i < 3; i++) {
+            clusterer.update("trip" + i, STAGES[0][0], STAGES[0][1] - offset(200 * i), false);
+        }
+        clusterer.flush(recorder);
+        assertEquals(1, recorder.clusters.size());
+
+        clusterer.setZoom(18);
+        clusterer.flush(recorder);
+        assertEquals(3, recorder.clusters.size());
+        for (VehicleClusterer.Cluster cluster : recorder.clusters.values()) {
+            assertEquals(1, cluster.getSize());
+        }
+
+        clusterer.setZoom(10);
+        clusterer.flush(recorder);
+        assertEquals(1, recorder.clusters.size());
+        assertEquals(3, recorder.clusters.values().iterator().next().getSize());
+    }
+
+    /** Five hundred vehicles, most waiting at the two stages and the rest on the road nearby. */
+    private static class Fleet {
+        final int vehicles = 500;
+        final Random random = new Random(24);
+        final double[] latitudes = new double[vehicles];
+        final double[] longitudes = new double[vehicles];
+        final double[] headings = new double[vehicles];
+        final boolean[] full = new boolean[vehicles];
+
+        Fleet() {
+            for (int i = 0; i < vehicles; i++) {
+                double[] stage = STAGES[i % 2];
+                double spread = i % 5 == 0 ? 3000 : 30;
+                latitudes[i] = stage[0] + offset(random.nextGaussian() * spread);
+                longitudes[i] = stage[1] + offset(random.nextGaussian() * spread);
+                headings[i] = random.nextDouble() * 2 * Math.PI;
+                full[i] = random.nextInt(3) == 0;
+            }
+        }
+
+        /** Every vehicle moves about 10 m a snapshot; those waiting at a stage crawl. */
+        void move() {
+            for (int i = 0; i < vehicles; i++) {
+                double step = i % 5 == 0 ? 10 : 0.5;
+                headings[i] += random.nextGaussian() * 0.2;
+                latitudes[i] += offset(Math.cos(headings[i]) * step);
+                longitudes[i] += offset(Math.sin(headings[i]) * step);
+                if (random.nextInt(200) == 0) {
+                    full[i] = !full[i];
+                }
+            }
+        }
+
+        /** Sends a snapshot of the whole fleet to a clusterer and flushes it. */
+        void snapshot(VehicleClusterer clusterer, Recorder recorder) {
+            recorder.reset();
+            for (int i = 0; i < vehicles; i++) {
+                clusterer.update("trip" + i, latitudes[i], longitudes[i], full[i]);
+            }
+            clusterer.flush(recorder);
+        }
+    }
+
+    @Test
+    public void movingFleet_incrementalClustersMatchClusteringFromScratch() {
+        for (int zoom : new int[] {13, 16}) {
+            Fleet fleet = new Fleet();
+            VehicleClusterer clusterer = new VehicleClusterer(zoom);
+            Recorder recorder = new Recorder();
+            for (int tick = 0; tick < 100; tick++) {
+                fleet.move();
+                fleet.snapshot(clusterer, recorder);
+            }
+
+            VehicleClusterer fresh = new VehicleClusterer(zoom);
+            Recorder expected = new Recorder();
+            fleet.snapshot(fresh, expected);
+            assertEquals(expected.clusters.keySet(), recorder.clusters.keySet());
+            for (Map.Entry<Long, VehicleClusterer.Cluster> entry : expected.clusters.entrySet()) {
+                VehicleClusterer.Cluster actual = recorder.clusters.get(entry.getKey());
+                assertEquals(entry.getValue().getLabel(), actual.getLabel());
+                assertEquals(entry.getValue().getLatitude(), actual.getLatitude(), 1e-9);
+                assertEquals(entry.getValue().getLongitude(), actual.getLongitude(), 1e-9);
+            }
+            Set<String> ids = new HashSet<>();
+            for (int i = 0; i < fleet.vehicles; i++) {
+                ids.add("trip" + i);
+            }
+            assertEquals(ids, clusterer.getIds());
+        }
+    }
+
+    @Test
+    public void benchmark_fiveHundredMovingVehiclesClusterWithinAFrame() {
+        Benchmarks.assumeEnabled();
+        for (int zoom : new int[] {13, 16}) {
+            Fleet fleet = new Fleet();
+            VehicleClusterer clusterer = new VehicleClusterer(zoom);
+            Recorder recorder = new Recorder();
+            long[] nanos = new long[400];
+            int reported = 0;
+            for (int tick = 0; tick < nanos.length; tick++) {
+                fleet.move();
+                long started = System.nanoTime();
+                fleet.snapshot(clusterer, recorder);
+                nanos[tick] = System.nanoTime() - started;
+                reported += recorder.changed.size() + recorder.removed.size();
+            }
+
+            // Skip the first snapshots, which warm up the JIT. A 60 fps frame is 16 ms, and the
+            // clustering is only a part of it.
+            long[] measured = Arrays.copyOfRange(nanos, 50, nanos.length);
+            Arrays.sort(measured);
+            double p50 = measured[measured.length / 2] / 1e6;
+            double p99 = measured[measured.length * 99 / 100] / 1e6;
+            System.out.println("  zoom " + zoom + ": " + recorder.clusters.size() + " clusters; a snapshot of "
+                    + fleet.vehicles + " moves takes p50 " + String.format("%.2f", p50) + " ms, p99 "
+                    + String.format("%.2f", p99) + " ms (frame budget 16 ms); "
+                    + reported + " cluster changes reported");
+            System.out.println("  " + clusterer.stats());
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.example.mymatauapp;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class VehiclePositionCodecTest {
+
+    private static final String ROUTE_ID = "Roysambu to Nairobi Town";
+
+    private static VehiclePosition position(String tripId, double latitude, double longitude, long lastUpdated,
+                                            List<Long> breadcrumbs) {
+        return new VehiclePosition(tripId, "KCA 123A", ROUTE_ID, latitude, longitude, 8.37, 1234.5, 3,
+                lastUpdated, breadcrumbs);
+    }
+
+    /** Records what a decoder finds. */
+    private static class Recorder implements VehiclePositionCodec.Handler {
+        final List<VehiclePosition> positions = new ArrayList<>();
+        final List<Long> seqs = new ArrayList<>();
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onPosition(VehiclePosition position, long seq) {
+            positions.add(position);
+            seqs.add(seq);
+            events.add("position " + position.getTripId());
+        }
+
+        @Override
+        public void onRemoved(String tripId) {
+            events.add("removed " + tripId);
+        }
+
+        @Override
+        public void onSubscribe(int subscription, String routeId, String cell) {
+            events.add("subscribe " + subscription + " " + routeId + " " + cell);
+        }
+
+        @Override
+        public void onUnsubscribe(int subscription) {
+            events.add("unsubscribe " + subscription);
+        }
+
+        @Override
+        public void onSynced(int subscription) {
+            events.add("synced " + subscription);
+        }
+    }
+
+    private static void assertSamePosition(VehiclePosition expected, VehiclePosition actual) {
+        assertEquals(expected.getTripId(), actual.getTripId());
+        assertEquals(expected.getMatatuId(), actual.getMatatuId());
+        assertEquals(expected.getRouteId(), actual.getRouteId());
+        assertEquals(expected.getLatitude(), actual.getLatitude(), 1e-6);
+        assertEquals(expected.getLongitude(), actual.getLongitude(), 1e-6);
+        assertEquals(expected.getSpeed(), actual.getSpeed(), 0.01);
+        assertEquals(expected.getDistanceAlongRoute(), actual.getDistanceAlongRoute(), 0.1);
+        assertEquals(expected.getNextStopIndex(), actual.getNextStopIndex());
+        assertEquals(expected.getLastUpdated(), actual.getLastUpdated());
+        assertEquals(expected.getBreadcrumbs(), actual.getBreadcrumbs());
+        assertEquals(expected.getCell(), actual.getCell());
+    }
+
+    @Test
+    public void positions_roundTripAsKeyThenDeltaFrames() throws IOException {
+        VehiclePositionCodec.Encoder encoder = new VehiclePositionCodec.Encoder(0);
+        VehiclePositionCodec.Decoder decoder = new VehiclePositionCodec.Decoder();
+        Recorder recorder = new Recorder();
+        List<VehiclePosition> sent = new ArrayList<>();
+        long seq = 1_700_000_000_000L;
+        double latitude = -1.218440;
+        double longitude = 36.888420;
+        for (int i = 0; i < 20; i++) {
+            // About 30 m every 2 s, with the fix before it a second earlier.
+            latitude -= 0.00021;
+            longitude -= 0.00017;
+            long lastUpdated = 1_700_000_000_000L + i * 2000;
+            List<Long> breadcrumbs = Arrays.asList(Math.round((latitude + 0.0001) * 1e5),
+                    Math.round((longitude + 0.00008) * 1e5), 1L);
+            VehiclePosition position = position("trip1", latitude, longitude, lastUpdated, breadcrumbs);
+            sent.add(position);
+            encoder.position(position, seq + i);
+            decoder.decode(encoder.flush(), recorder);
+        }
+
+        assertEquals(1, encoder.getKeyFrames());
+        assertEquals(19, encoder.getDeltaFrames());
+        assertEquals(20, recorder.positions.size());
+        for (int i = 0; i < sent.size(); i++) {
+            assertSamePosition(sent.get(i), recorder.positions.get(i));
+            assertEquals(seq + i, (long) recorder.seqs.get(i));
+        }
+    }
+
+    @Test
+    public void deltaFrames_areAFewBytes() {
+        VehiclePositionCodec.Encoder encoder = new VehiclePositionCodec.Encoder(0);
+        encoder.position(position("trip1", -1.21844, 36.88842, 1_700_000_000_000L, Collections.emptyList()), 1);
+        int keyFrame = encoder.flush().length;
+        encoder.position(position("trip1", -1.21871, 36.88820, 1_700_000_002_000L, Collections.emptyList()), 2);
+        int deltaFrame = encoder.flush().length;
+
+        assertTrue("Key frame of " + keyFrame + " bytes", keyFrame < 80);
+        assertTrue("Delta frame of " + deltaFrame + " bytes", deltaFrame <= 16);
+    }
+
+    @Test
+    public void offRouteAndMissingValues_roundTrip() throws IOException {
+        VehiclePositionCodec.Encoder encoder = new VehiclePositionCodec.Encoder(0);
+        VehiclePositionCodec.Decoder decoder = new VehiclePositionCodec.Decoder();
+        Recorder recorder = new Recorder();
+        VehiclePosition onRoute = position("trip1", -1.2, 36.9, 1000, Collections.emptyList());
+        VehiclePosition offRoute = new VehiclePosition("trip1", null, ROUTE_ID, -1.2001, 36.9001, Double.NaN, -1, -1,
+                3000, Collections.emptyList());
+
+        encoder.position(onRoute, 5);
+        encoder.position(offRoute, 6);
+        decoder.decode(encoder.flush(), recorder);
+
+        VehiclePosition decoded = recorder.positions.get(1);
+        assertEquals("", decoded.getMatatuId());
+        assertEquals(0, decoded.getSpeed(), 0);
+        assertEquals(-1, decoded.getDistanceAlongRoute(), 0);
+        assertEquals(-1, decoded.getNextStopIndex());
+    }
+
+    @Test
+    public void controlFrames_roundTripInOrder() throws IOException {
+        VehiclePositionCodec.Encoder encoder = new VehiclePositionCodec.Encoder(0);
+        VehiclePositionCodec.Decoder decoder = new VehiclePositionCodec.Decoder();
+        Recorder recorder = new Recorder();
+
+        encoder.subscribe(7, ROUTE_ID, "kzf0t4");
+        encoder.subscribe(8, ROUTE_ID, null);
+        encoder.position(position("trip1", -1.2, 36.9, 1000, Collections.emptyList()), 1);
+        encoder.synced(7);
+        encoder.removed("trip1");
+        encoder.unsubscribe(7);
+        decoder.decode(encoder.flush(), recorder);
+
+        assertEquals(Arrays.asList(
+                "subscribe 7 " + ROUTE_ID + " kzf0t4",
+                "subscribe 8 " + ROUTE_ID + " null",
+                "position trip1",
+                "synced 7",
+                "removed trip1",
+                "unsubscribe 7"), recorder.events);
+        assertTrue(encoder.isEmpty());
+    }
+
+    @Test
+    public void removedTrip_startsAgainWithAKeyFrameInAReusedSlot() throws IOException {
+        VehiclePositionCodec.Encoder encoder = new VehiclePositionCodec.Encoder(0);
+        VehiclePositionCodec.Decoder decoder = new VehiclePositionCodec.Decoder();
+        Recorder recorder = new Recorder();
+
+        encoder.position(position("trip1", -1.2, 36.9, 1000, Collections.emptyList()), 1);
+        encoder.removed("trip1");
+        encoder.position(position("trip2", -1.3, 36.8, 2000, Collections.emptyList()), 1);
+        encoder.position(position("trip2", -1.3001, 36.8, 3000, Collections.emptyList()), 2);
+        decoder.decode(encoder.flush(), recorder);
+
+        assertEquals(2, encoder.getKeyFrames());
+        assertEquals(3, recorder.positions.size());
+        assertEquals("trip2", recorder.positions.get(2).getTripId());
+        assertEquals(-1.3001, recorder.positions.get(2).getLatitude(), 1e-9);
+    }
+
+    @Test
+    public void lostFrame_skipsDeltasUntilTheNextKeyFrame() throws IOException {
+        VehiclePositionCodec.Encoder encoder = new VehiclePositionCodec.Encoder(4);
+        VehiclePositionCodec.Decoder decoder = new VehiclePositionCodec.Decoder();
+        Recorder recorder = new Recorder();
+        List<byte[]> messages = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            encoder.position(position("trip1", -1.2 - i * 0.0003, 36.9, 1000 + i * 2000L, Collections.emptyList()), i + 1);
+            messages.add(encoder.flush());
+        }
+
+        // Frames 1 (key), 2, 3, 4 and 5 (key), 6, 7, 8; the second is lost.
+        for (int i = 0; i < messages.size(); i++) {
+            if (i != 1) {
+                decoder.decode(messages.get(i), recorder);
+            }
+        }
+
+        assertEquals(Arrays.asList(1L, 5L, 6L, 7L, 8L), recorder.seqs);
+        assertEquals(2, decoder.getGapCount());
+        assertEquals(-1.2 - 4 * 0.0003, recorder.positions.get(1).getLatitude(), 1e-9);
+    }
+
+    @Test
+    public void truncatedMessage_throws() {
+        VehiclePositionCodec.Encoder encoder = new VehiclePositionCodec.Encoder(0);
+        encoder.position(position("trip1", -1.2, 36.9, 1000, Collections.emptyList()), 1);
+        byte[] message = encoder.flush();
+        try {
+            new VehiclePositionCodec.Decoder().decode(Arrays.copyOf(message, message.length - 3), new Recorder());
+            fail("Decoded a truncated message");
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,492 @@
+package com.example.mymatauapp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A local stand-in for the vehicle position relay, for tests and for trying the realtime
+ * stream on a development machine (see main).
+ *
+ * It takes VehiclePositionCodec messages from StreamVehiclePositionTransport clients over
+ * WebSocket, keeps each trip's latest position, and forwards every position to the clients
+ * subscribed to its route and to the cell it is in or has just left, encoded against what
+ * each client has already been sent. A position older than the trip's latest, by sequence
+ * number, is dropped.
+ *
+ * Only what the transport uses of WebSocket is implemented: unfragmented binary messages,
+ * pings and closes.
+ */
+public class VehiclePositionRelayServer implements Closeable {
+
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int KEY_FRAME_INTERVAL = 64;
+    private static final int MAX_MESSAGE_BYTES = 1 << 20;
+
+    private static class Latest {
+        final VehiclePosition position;
+        final long seq;
+
+        Latest(VehiclePosition position, long seq) {
+            this.position = position;
+            this.seq = seq;
+        }
+    }
+
+    private static class Subscription {
+        final String routeId;
+        final String cell;
+
+        Subscription(String routeId, String cell) {
+            this.routeId = routeId;
+            this.cell = cell;
+        }
+    }
+
+    /** One client. Its codec state and subscriptions are guarded by the relay's lock. */
+    private class Connection {
+        final Socket socket;
+        final OutputStream out;
+        // Writes run in order on their own thread, so a slow client holds up no one else.
+        final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "RelayWriter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final VehiclePositionCodec.Encoder encoder = new VehiclePositionCodec.Encoder(KEY_FRAME_INTERVAL);
+        final VehiclePositionCodec.Decoder decoder = new VehiclePositionCodec.Decoder();
+        final Map<Integer, Subscription> subscriptions = new HashMap<>();
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        boolean wants(VehiclePosition position) {
+            for (Subscription subscription : subscriptions.values()) {
+                if (subscription.routeId.equals(position.getRouteId())
+                        && (subscription.cell == null || subscription.cell.equals(position.getCell()))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void send(int opcode, byte[] payload) {
+            try {
+                writer.execute(() -> {
+                    try {
+                        writeFrame(out, opcode, payload);
+                    } catch (IOException e) {
+                        close();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // The connection is closing.
+            }
+        }
+
+        void close() {
+            synchronized (lock) {
+                connections.remove(this);
+            }
+            writer.shutdown();
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Closing anyway.
+            }
+        }
+    }
+
+    private final ServerSocket serverSocket;
+    private final Object lock = new Object();
+    // Everything below is guarded by the lock.
+    private final List<Connection> connections = new ArrayList<>();
+    private final Map<String, Latest> latest = new HashMap<>();
+    private long connectionCount;
+    private long messagesIn;
+    private long bytesIn;
+    private long positionsIn;
+    private long positionBytesIn;
+    private long stalePositions;
+    private long messagesOut;
+    private long bytesOut;
+    private long positionsOut;
+    private volatile boolean closed;
+
+    /**
+     * Starts listening on the loopback interface.
+     * @param port The port, or 0 for any free one.
+     */
+    public VehiclePositionRelayServer(int port) throws IOException {
+        this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    public VehiclePositionRelayServer(InetSocketAddress address) throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(address);
+        Thread acceptor = new Thread(this::accept, "RelayAcceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /** The URL clients connect to. */
+    public String getUrl() {
+        return "ws://" + serverSocket.getInetAddress().getHostAddress() + ":" + getPort() + "/positions";
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Thread reader = new Thread(() -> serve(socket), "RelayReader");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("Relay stopped accepting: " + e);
+                }
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        Connection connection = null;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            handshake(in, socket.getOutputStream());
+            connection = new Connection(socket);
+            synchronized (lock) {
+                if (closed) {
+                    socket.close();
+                    return;
+                }
+                connections.add(connection);
+                connectionCount++;
+            }
+            while (true) {
+                int first = in.readUnsignedByte();
+                int second = in.readUnsignedByte();
+                int opcode = first & 0x0F;
+                if ((first & 0x80) == 0 || opcode == 0) {
+                    throw new IOException("Fragmented messages are not supported");
+                }
+                if ((second & 0x80) == 0) {
+                    throw new IOException("Client frames must be masked");
+                }
+                long length = second & 0x7F;
+                if (length == 126) {
+                    length = in.readUnsignedShort();
+                } else if (length == 127) {
+                    length = in.readLong();
+                }
+                if (length < 0 || length > MAX_MESSAGE_BYTES) {
+                    throw new IOException("Message of " + length + " bytes");
+                }
+                byte[] mask = new byte[4];
+                in.readFully(mask);
+                byte[] payload = new byte[(int) length];
+                in.readFully(payload);
+                for (int i = 0; i < payload.length; i++) {
+                    payload[i] ^= mask[i & 3];
+                }
+                if (opcode == 0x2) {
+                    onMessage(connection, payload);
+                } else if (opcode == 0x8) {
+                    connection.send(0x8, payload);
+                    break;
+                } else if (opcode == 0x9) {
+                    connection.send(0xA, payload);
+                }
+                // Text messages and pongs are ignored.
+            }
+        } catch (EOFException e) {
+            // The client went away.
+        } catch (IOException e) {
+            if (!closed && !socket.isClosed()) {
+                System.err.println("Relay dropped a client: " + e);
+            }
+        } finally {
+            if (connection != null) {
+                connection.close();
+            } else {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // Closing anyway.
+                }
+            }
+        }
+    }
+
+    private static void handshake(DataInputStream in, OutputStream out) throws IOException {
+        String requestLine = readLine(in);
+        if (requestLine == null || !requestLine.startsWith("GET ")) {
+            throw new IOException("Not a WebSocket request: " + requestLine);
+        }
+        String key = null;
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Sec-WebSocket-Key")) {
+                key = line.substring(colon + 1).trim();
+            }
+        }
+        if (key == null) {
+            throw new IOException("No Sec-WebSocket-Key");
+        }
+        String accept;
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            accept = Base64.getEncoder().encodeToString(
+                    sha1.digest((key + ACCEPT_GUID).getBytes(StandardCharsets.US_ASCII)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        String response = "HTTP/1.1 101 Switching Protocols\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + accept + "\r\n\r\n";
+        out.write(response.getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    private static String readLine(DataInputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    private static void writeFrame(OutputStream out, int opcode, byte[] payload) throws IOException {
+        out.write(0x80 | opcode);
+        int length = payload.length;
+        if (length < 126) {
+            out.write(length);
+        } else if (length < 65536) {
+            out.write(126);
+            out.write(length >> 8);
+            out.write(length);
+        } else {
+            out.write(127);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out.write((int) ((long) length >> shift));
+            }
+        }
+        out.write(payload);
+        out.flush();
+    }
+
+    private void onMessage(Connection from, byte[] message) throws IOException {
+        synchronized (lock) {
+            messagesIn++;
+            bytesIn += message.length;
+            long positionsBefore = positionsIn;
+            Set<Connection> touched = new LinkedHashSet<>();
+            from.decoder.decode(message, new VehiclePositionCodec.Handler() {
+                @Override
+                public void onPosition(VehiclePosition position, long seq) {
+                    positionsIn++;
+                    Latest previous = latest.get(position.getTripId());
+                    if (previous != null && seq <= previous.seq) {
+                        stalePositions++;
+                        return;
+                    }
+                    latest.put(position.getTripId(), new Latest(position, seq));
+                    for (Connection connection : connections) {
+                        // Clients of the cell it has left are sent it too, to see it go.
+                        if (connection.wants(position)
+                                || (previous != null && connection.wants(previous.position))) {
+                            connection.encoder.position(position, seq);
+                            positionsOut++;
+                            touched.add(connection);
+                        }
+                    }
+                }
+
+                @Override
+                public void onRemoved(String tripId) {
+                    Latest previous = latest.remove(tripId);
+                    if (previous == null) {
+                        return;
+                    }
+                    for (Connection connection : connections) {
+                        if (connection.wants(previous.position)) {
+                            connection.encoder.removed(tripId);
+                            touched.add(connection);
+                        }
+                    }
+                }
+
+                @Override
+                public void onSubscribe(int subscription, String routeId, String cell) {
+                    from.subscriptions.put(subscription, new Subscription(routeId, cell));
+                    for (Latest trip : latest.values()) {
+                        VehiclePosition position = trip.position;
+                        if (routeId.equals(position.getRouteId()) && (cell == null || cell.equals(position.getCell()))) {
+                            from.encoder.position(position, trip.seq);
+                            positionsOut++;
+                        }
+                    }
+                    from.encoder.synced(subscription);
+                    touched.add(from);
+                }
+
+                @Override
+                public void onUnsubscribe(int subscription) {
+                    from.subscriptions.remove(subscription);
+                }
+
+                @Override
+                public void onSynced(int subscription) {
+                    // Only clients are sent sync marks.
+                }
+            });
+            if (positionsIn > positionsBefore) {
+                positionBytesIn += message.length;
+            }
+            for (Connection connection : touched) {
+                if (!connection.encoder.isEmpty()) {
+                    byte[] out = connection.encoder.flush();
+                    messagesOut++;
+                    bytesOut += out.length;
+                    connection.send(0x2, out);
+                }
+            }
+        }
+    }
+
+    /** Positions received from publishers. */
+    public long getPositionsIn() {
+        synchronized (lock) {
+            return positionsIn;
+        }
+    }
+
+    /** Positions sent to subscribers. */
+    public long getPositionsOut() {
+        synchronized (lock) {
+            return positionsOut;
+        }
+    }
+
+    /** The bytes of the messages positions were received in, WebSocket framing aside. */
+    public long getPositionBytesIn() {
+        synchronized (lock) {
+            return positionBytesIn;
+        }
+    }
+
+    /** Message bytes received, WebSocket framing aside. */
+    public long getBytesIn() {
+        synchronized (lock) {
+            return bytesIn;
+        }
+    }
+
+    /** Message bytes sent, WebSocket framing aside. */
+    public long getBytesOut() {
+        synchronized (lock) {
+            return bytesOut;
+        }
+    }
+
+    public int getConnectionCount() {
+        synchronized (lock) {
+            return connections.size();
+        }
+    }
+
+    public String stats() {
+        synchronized (lock) {
+            return String.format(Locale.US, "Relay: %d connections; in %d messages, %d positions (%d stale), %d bytes;"
+                            + " out %d messages, %d positions, %d bytes.",
+                    connectionCount, messagesIn, positionsIn, stalePositions, bytesIn,
+                    messagesOut, positionsOut, bytesOut);
+        }
+    }
+
+    /**
+     * Drops every client and forgets every trip, as a relay that restarts would.
+     */
+    public void restart() {
+        List<Connection> open;
+        synchronized (lock) {
+            open = new ArrayList<>(connections);
+            latest.clear();
+        }
+        for (Connection connection : open) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Stops listening and drops every client.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        List<Connection> open;
+        synchronized (lock) {
+            open = new ArrayList<>(connections);
+        }
+        for (Connection connection : open) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Runs the relay until killed, on all interfaces so an emulator or phone can reach it:
+     * set vehicle_stream_url to ws://10.0.2.2:PORT/positions for the emulator's host.
+     * @param args The port, 8080 if none.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        VehiclePositionRelayServer relay = new VehiclePositionRelayServer(new InetSocketAddress(port));
+        System.out.println("Relaying vehicle positions on port " + relay.getPort());
+        while (true) {
+            Thread.sleep(60000);
+            System.out.println(relay.stats());
+        }
+    }
+}
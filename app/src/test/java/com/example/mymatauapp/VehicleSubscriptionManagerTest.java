@@ -0,0 +1,216 @@
+package com.example.mymatauapp;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class VehicleSubscriptionManagerTest {
+
+    private static final String ROUTE_ID = "Roysambu to Nairobi Town";
+    private static final String CELL = "kzf0t4";
+    private static final String OTHER_CELL = "kzf0t5";
+
+    private static VehiclePosition vehicle(String tripId, String cell, long lastUpdated) {
+        LatLng center = Geohash.center(cell);
+        return new VehiclePosition(tripId, "KDA " + tripId, ROUTE_ID, center.latitude, center.longitude, 8, -1, -1,
+                lastUpdated, Collections.emptyList());
+    }
+
+    /** Applies the changes a consumer is given, checking they are consistent. */
+    private static class Consumer implements VehiclePositionRepository.Listener {
+        final Map<String, VehiclePosition> vehicles = new HashMap<>();
+        final List<List<VehiclePositionRepository.Change>> calls = new ArrayList<>();
+        final List<Exception> errors = new ArrayList<>();
+
+        @Override
+        public void onChanges(List<VehiclePositionRepository.Change> changes, Exception error) {
+            if (error != null) {
+                assertNull(changes);
+                errors.add(error);
+                return;
+            }
+            for (VehiclePositionRepository.Change change : changes) {
+                switch (change.getType()) {
+                    case ADDED:
+                        assertNull(vehicles.put(change.getTripId(), change.getVehicle()));
+                        break;
+                    case MODIFIED:
+                        assertNotNull(vehicles.put(change.getTripId(), change.getVehicle()));
+                        break;
+                    case REMOVED:
+                        assertNotNull(vehicles.remove(change.getTripId()));
+                        break;
+                }
+            }
+            calls.add(changes);
+        }
+    }
+
+    @Test
+    public void listen_sharesOneListenerPerQueryUntilTheLastConsumerLeaves() {
+        InMemoryVehiclePositionRepository repository = new InMemoryVehiclePositionRepository();
+        repository.publish(vehicle("a", CELL, 1));
+        VehicleSubscriptionManager manager = new VehicleSubscriptionManager(repository);
+        Consumer first = new Consumer();
+        Consumer second = new Consumer();
+
+        VehiclePositionRepository.Registration firstRegistration = manager.listen(ROUTE_ID, CELL, first);
+        VehiclePositionRepository.Registration secondRegistration = manager.listen(ROUTE_ID, CELL, second);
+
+        assertEquals(1, repository.getListenerCount());
+        assertEquals(1, manager.getActiveListenerCount());
+        assertEquals(2, manager.getConsumerCount());
+        // The second consumer is handed what the query holds without another listen.
+        assertEquals(1, repository.getListens());
+        assertEquals(first.vehicles, second.vehicles);
+
+        repository.publish(vehicle("b", CELL, 2));
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), second.vehicles.keySet());
+        assertEquals(first.vehicles, second.vehicles);
+
+        firstRegistration.remove();
+        assertEquals(1, repository.getListenerCount());
+        repository.remove("a");
+        assertEquals(Collections.singleton("b"), second.vehicles.keySet());
+        assertEquals(2, first.vehicles.size());
+
+        secondRegistration.remove();
+        assertEquals(0, repository.getListenerCount());
+        assertEquals(0, manager.getActiveListenerCount());
+        // Removing twice does nothing.
+        secondRegistration.remove();
+        assertEquals(0, manager.getConsumerCount());
+    }
+
+    @Test
+    public void pause_removesTheListenersAndResumeDeliversOnlyWhatChanged() {
+        InMemoryVehiclePositionRepository repository = new InMemoryVehiclePositionRepository();
+        repository.publish(vehicle("a", CELL, 1));
+        repository.publish(vehicle("b", CELL, 1));
+        repository.publish(vehicle("c", OTHER_CELL, 1));
+        VehicleSubscriptionManager manager = new VehicleSubscriptionManager(repository);
+        Consumer here = new Consumer();
+        Consumer there = new Consumer();
+        manager.listen(ROUTE_ID, CELL, here);
+        manager.listen(ROUTE_ID, OTHER_CELL, there);
+
+        manager.pause();
+        assertEquals(0, repository.getListenerCount());
+        assertEquals(0, manager.getActiveListenerCount());
+        assertEquals(2, manager.getConsumerCount());
+
+        // Meanwhile, in the background.
+        repository.publish(vehicle("a", CELL, 2));
+        repository.remove("b");
+        repository.publish(vehicle("d", CELL, 2));
+        long delivered = repository.getDeliveredDocuments();
+        assertEquals(1, here.calls.size());
+
+        manager.resume();
+        assertEquals(2, repository.getListenerCount());
+        assertEquals(2, here.calls.size());
+        assertEquals(3, here.calls.get(1).size());
+        assertEquals(new HashSet<>(Arrays.asList("a", "d")), here.vehicles.keySet());
+        assertEquals(2, here.vehicles.get("a").getLastUpdated());
+        // Nothing changed in the other cell, so its consumer is not called.
+        assertEquals(1, there.calls.size());
+        assertEquals(3, repository.getDeliveredDocuments() - delivered);
+    }
+
+    @Test
+    public void subscriptionsOnTheSameCellsShareTheirListeners() {
+        InMemoryVehiclePositionRepository repository = new InMemoryVehiclePositionRepository();
+        repository.publish(vehicle("a", CELL, 1));
+        VehicleSubscriptionManager manager = new VehicleSubscriptionManager(repository);
+        List<VehicleSubscription> subscriptions = new ArrayList<>();
+        List<Consumer> consumers = new ArrayList<>();
+
+        // As if the passenger tapped five destinations on the same route.
+        for (int i = 0; i < 5; i++) {
+            Consumer consumer = new Consumer();
+            VehicleSubscription subscription = new VehicleSubscription(manager, ROUTE_ID, consumer);
+            subscription.setCells(new HashSet<>(Arrays.asList(CELL, OTHER_CELL)));
+            subscriptions.add(subscription);
+            consumers.add(consumer);
+        }
+
+        assertEquals(2, repository.getListenerCount());
+        assertEquals(2, manager.getActiveListenerCount());
+        assertEquals(10, manager.getConsumerCount());
+        for (Consumer consumer : consumers) {
+            assertEquals(Collections.singleton("a"), consumer.vehicles.keySet());
+        }
+
+        for (VehicleSubscription subscription : subscriptions) {
+            subscription.close();
+        }
+        assertEquals(0, repository.getListenerCount());
+    }
+
+    @Test
+    public void upstreamError_dropsTheDeadListenerAndListensAgainLater() {
+        InMemoryVehiclePositionRepository repository = new InMemoryVehiclePositionRepository();
+        repository.publish(vehicle("a", CELL, 1));
+        VehicleSubscriptionManager manager = new VehicleSubscriptionManager(repository);
+        Consumer here = new Consumer();
+        Consumer there = new Consumer();
+        manager.listen(ROUTE_ID, CELL, here);
+        manager.listen(ROUTE_ID, OTHER_CELL, there);
+
+        Exception error = new Exception("PERMISSION_DENIED");
+        repository.failListeners(error);
+        assertEquals(Collections.singletonList(error), here.errors);
+        assertEquals(Collections.singletonList(error), there.errors);
+        assertEquals(0, repository.getListenerCount());
+        assertEquals(0, manager.getActiveListenerCount());
+        assertEquals(2, manager.getConsumerCount());
+        assertTrue(manager.stats(), manager.stats().endsWith("2 failed."));
+
+        // A consumer joining the failed query gets what it held, then the query listens again.
+        repository.publish(vehicle("b", CELL, 2));
+        Consumer joining = new Consumer();
+        manager.listen(ROUTE_ID, CELL, joining);
+        assertEquals(1, manager.getActiveListenerCount());
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), joining.vehicles.keySet());
+        assertEquals(joining.vehicles, here.vehicles);
+
+        // The other query listens again when the screen comes back.
+        manager.pause();
+        manager.resume();
+        assertEquals(2, repository.getListenerCount());
+        assertEquals(2, manager.getActiveListenerCount());
+        assertEquals(Collections.singletonList(error), here.errors);
+    }
+
+    @Test
+    public void destroy_removesEveryListenerForGood() {
+        InMemoryVehiclePositionRepository repository = new InMemoryVehiclePositionRepository();
+        VehicleSubscriptionManager manager = new VehicleSubscriptionManager(repository);
+        Consumer consumer = new Consumer();
+        VehiclePositionRepository.Registration registration = manager.listen(ROUTE_ID, CELL, consumer);
+
+        manager.destroy();
+        repository.publish(vehicle("a", CELL, 1));
+        manager.resume();
+
+        assertEquals(0, repository.getListenerCount());
+        assertEquals(1, consumer.calls.size());
+        // Consumers that close after the manager are fine.
+        registration.remove();
+        try {
+            manager.listen(ROUTE_ID, CELL, consumer);
+            fail("Listened on a destroyed manager");
+        } catch (IllegalStateException expected) {
+        }
+    }
+}
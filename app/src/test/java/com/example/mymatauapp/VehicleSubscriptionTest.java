@@ -0,0 +1,285 @@
+package com.example.mymatauapp;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.SphericalUtil;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for VehicleSubscription, plus an offline load test on InMemoryVehiclePositionRepository
+ * that compares the documents passengers receive listening to a whole route with listening
+ * to the cells matatus approach them through.
+ */
+public class VehicleSubscriptionTest {
+
+    private static final String ROUTE_ID = "Roysambu to Nairobi Town";
+    private static final LatLng ROYSAMBU = new LatLng(-1.21844, 36.88842);
+    private static final int PRECISION = VehiclePositionRepository.CELL_PRECISION;
+
+    private static final int VEHICLES = 40;
+    private static final int RIDERS = 200;
+    private static final long CADENCE_MILLIS = 15000; // LocationTrackingService's upload interval
+    private static final int TICKS = 240; // an hour
+    private static final double APPROACH_METERS = 4000; // as in VehicleSubscription
+
+    private static VehiclePosition vehicle(String tripId, LatLng position, long lastUpdated) {
+        return new VehiclePosition(tripId, "KDA " + tripId, ROUTE_ID, position.latitude, position.longitude,
+                8, -1, -1, lastUpdated, Collections.emptyList());
+    }
+
+    private static String cellOf(LatLng position) {
+        return Geohash.encode(position.latitude, position.longitude, PRECISION);
+    }
+
+    private static Set<String> tripIds(Map<String, VehiclePosition> vehicles) {
+        return new TreeSet<>(vehicles.keySet());
+    }
+
+    /** Applies the changes a listener is given, checking they are consistent. */
+    private static class LatestResult implements VehiclePositionRepository.Listener {
+        final Map<String, VehiclePosition> vehicles = new HashMap<>();
+        int calls;
+
+        @Override
+        public void onChanges(List<VehiclePositionRepository.Change> changes, Exception error) {
+            assertNull(error);
+            for (VehiclePositionRepository.Change change : changes) {
+                switch (change.getType()) {
+                    case ADDED:
+                        assertNull(vehicles.put(change.getTripId(), change.getVehicle()));
+                        break;
+                    case MODIFIED:
+                        assertNotNull(vehicles.put(change.getTripId(), change.getVehicle()));
+                        break;
+                    case REMOVED:
+                        assertNotNull(vehicles.remove(change.getTripId()));
+                        break;
+                }
+            }
+            calls++;
+        }
+    }
+
+    @Test
+    public void setCells_mergesTheCellsAndSeesOnlyThem() {
+        InMemoryVehiclePositionRepository repository = new InMemoryVehiclePositionRepository();
+        LatLng far = SphericalUtil.computeOffset(ROYSAMBU, 5000, 90);
+        LatLng near = SphericalUtil.computeOffset(ROYSAMBU, 100, 0);
+        repository.publish(vehicle("a", ROYSAMBU, 1));
+        repository.publish(vehicle("b", near, 1));
+        repository.publish(vehicle("c", far, 1));
+        LatestResult result = new LatestResult();
+        VehicleSubscription subscription = new VehicleSubscription(repository, ROUTE_ID, result);
+
+        subscription.setCells(new HashSet<>(Arrays.asList(cellOf(ROYSAMBU), cellOf(near))));
+
+        assertEquals(new TreeSet<>(Arrays.asList("a", "b")), tripIds(result.vehicles));
+        repository.publish(vehicle("c", near, 2));
+        assertEquals(new TreeSet<>(Arrays.asList("a", "b", "c")), tripIds(result.vehicles));
+        repository.publish(vehicle("a", far, 3));
+        assertEquals(new TreeSet<>(Arrays.asList("b", "c")), tripIds(result.vehicles));
+    }
+
+    @Test
+    public void setCells_onlyListensToCellsThatJoin() {
+        InMemoryVehiclePositionRepository repository = new InMemoryVehiclePositionRepository();
+        LatLng east = SphericalUtil.computeOffset(ROYSAMBU, 3000, 90);
+        repository.publish(vehicle("a", ROYSAMBU, 1));
+        repository.publish(vehicle("b", east, 1));
+        LatestResult result = new LatestResult();
+        VehicleSubscription subscription = new VehicleSubscription(repository, ROUTE_ID, result);
+        Set<String> before = Geohash.cellsCovering(ROYSAMBU, 1500, PRECISION);
+        Set<String> after = Geohash.cellsCovering(SphericalUtil.computeOffset(ROYSAMBU, 1500, 90), 1500, PRECISION);
+        subscription.setCells(before);
+        long listens = repository.getListens();
+
+        subscription.setCells(after);
+
+        Set<String> joined = new HashSet<>(after);
+        joined.removeAll(before);
+        assertEquals(joined.size(), repository.getListens() - listens);
+        assertEquals(after.size(), repository.getListenerCount());
+        assertEquals(after, subscription.getCells());
+        assertEquals(new TreeSet<>(Arrays.asList("a", "b")), tripIds(result.vehicles));
+
+        subscription.setCells(Geohash.cellsCovering(east, 500, PRECISION));
+
+        assertEquals(new TreeSet<>(Collections.singletonList("b")), tripIds(result.vehicles));
+    }
+
+    @Test
+    public void setCells_countsAVehicleInTwoCellsOnceAtItsLatestPosition() {
+        VehiclePosition west = vehicle("a", ROYSAMBU, 1);
+        VehiclePosition east = vehicle("a", SphericalUtil.computeOffset(ROYSAMBU, 3000, 90), 2);
+        // A repository whose cells lag: each cell still shows the vehicle it last saw there.
+        VehiclePositionRepository lagging = (routeId, cell, listener) -> {
+            listener.onChanges(Collections.singletonList(
+                    VehiclePositionRepository.Change.added(cell.equals(west.getCell()) ? west : east)), null);
+            return () -> { };
+        };
+        LatestResult result = new LatestResult();
+        VehicleSubscription subscription = new VehicleSubscription(lagging, ROUTE_ID, result);
+
+        subscription.setCells(new HashSet<>(Arrays.asList(west.getCell(), east.getCell())));
+
+        assertEquals(1, result.vehicles.size());
+        assertEquals(2, result.vehicles.get("a").getLastUpdated());
+    }
+
+    @Test
+    public void close_stopsListening() {
+        InMemoryVehiclePositionRepository repository = new InMemoryVehiclePositionRepository();
+        LatestResult result = new LatestResult();
+        VehicleSubscription subscription = new VehicleSubscription(repository, ROUTE_ID, result);
+        subscription.setCells(Geohash.cellsCovering(ROYSAMBU, 1000, PRECISION));
+        int calls = result.calls;
+
+        subscription.close();
+        repository.publish(vehicle("a", ROYSAMBU, 1));
+
+        assertEquals(calls, result.calls);
+        assertEquals(0, repository.getListenerCount());
+    }
+
+    /** A vehicle driving the route round and round, restarting at the first stop. */
+    private static class Driver {
+        final String tripId;
+        final double offset;
+        final double speed;
+
+        Driver(String tripId, double offset, double speed) {
+            this.tripId = tripId;
+            this.offset = offset;
+            this.speed = speed;
+        }
+
+        double along(RoutePolyline route, int tick) {
+            return (offset + speed * tick * CADENCE_MILLIS / 1000.0) % route.length();
+        }
+    }
+
+    private static class Rider {
+        int stop;
+        final LatestResult result = new LatestResult();
+        VehicleSubscription subscription;
+    }
+
+    @Test
+    public void loadTest_cellsCutFanOutWithoutMissingApproachingMatatus() throws Exception {
+        // The recorded route, and a 30 km one like Thika Road out to Juja: the longer the
+        // route, the smaller the share of it a rider watches.
+        List<LatLng> stops = new ArrayList<>();
+        for (int stop = 0; stop <= 30; stop++) {
+            stops.add(SphericalUtil.computeOffset(ROYSAMBU, 1000 * stop, 45));
+        }
+        double shortRoute = loadTest("roysambu_town", TraceFixtures.route("roysambu_town"));
+        double longRoute = loadTest("30 km", new RoutePolyline(stops));
+
+        assertTrue(shortRoute + "x", shortRoute > 1.5);
+        assertTrue(longRoute + "x", longRoute > 4);
+    }
+
+    /**
+     * Drives VEHICLES matatus round a route for an hour with RIDERS riders waiting at random
+     * stops, first listening to the whole route and then to the cells approaching their stop.
+     * @return How many times fewer documents the riders receive listening to cells.
+     */
+    private static double loadTest(String name, RoutePolyline route) {
+        Random random = new Random(18);
+        List<Driver> drivers = new ArrayList<>();
+        for (int v = 0; v < VEHICLES; v++) {
+            drivers.add(new Driver("trip" + v, route.length() * v / VEHICLES, 4 + 4 * random.nextDouble()));
+        }
+        List<Rider> riders = new ArrayList<>();
+        for (int r = 0; r < RIDERS; r++) {
+            Rider rider = new Rider();
+            rider.stop = 1 + random.nextInt(route.stopCount() - 1);
+            riders.add(rider);
+        }
+
+        // Listening to the whole route, as LandingPage did.
+        InMemoryVehiclePositionRepository wholeRoute = new InMemoryVehiclePositionRepository();
+        for (int r = 0; r < RIDERS; r++) {
+            wholeRoute.listen(ROUTE_ID, null, new LatestResult());
+        }
+        for (int tick = 0; tick < TICKS; tick++) {
+            for (Driver driver : drivers) {
+                wholeRoute.publish(position(route, driver, tick));
+            }
+        }
+
+        // Listening to the cells on the way to each rider's stop. Halfway through, every rider
+        // walks to the next stop down the route.
+        InMemoryVehiclePositionRepository cells = new InMemoryVehiclePositionRepository();
+        long cellCount = 0;
+        for (Rider rider : riders) {
+            rider.subscription = new VehicleSubscription(cells, ROUTE_ID, rider.result);
+            rider.subscription.setCells(VehicleSubscription.cellsApproaching(route, rider.stop));
+            cellCount += rider.subscription.getCells().size();
+        }
+        long missed = 0;
+        long movedCells = 0;
+        long movedListens = 0;
+        for (int tick = 0; tick < TICKS; tick++) {
+            if (tick == TICKS / 2) {
+                long listens = cells.getListens();
+                for (Rider rider : riders) {
+                    rider.stop = Math.min(rider.stop + 1, route.stopCount() - 1);
+                    rider.subscription.setCells(VehicleSubscription.cellsApproaching(route, rider.stop));
+                    movedCells += rider.subscription.getCells().size();
+                }
+                movedListens = cells.getListens() - listens;
+            }
+            for (Driver driver : drivers) {
+                cells.publish(position(route, driver, tick));
+            }
+            for (Rider rider : riders) {
+                Set<String> seen = tripIds(rider.result.vehicles);
+                double stopAlong = route.stopDistance(rider.stop);
+                for (Driver driver : drivers) {
+                    double along = driver.along(route, tick);
+                    if (along <= stopAlong && along >= stopAlong - APPROACH_METERS && !seen.contains(driver.tripId)) {
+                        missed++;
+                    }
+                }
+            }
+        }
+
+        double minutes = TICKS * CADENCE_MILLIS / 60000.0;
+        double wholeRoutePerRider = wholeRoute.getDeliveredDocuments() / (double) RIDERS / minutes;
+        double cellsPerRider = cells.getDeliveredDocuments() / (double) RIDERS / minutes;
+        System.out.println(String.format("Fan-out (%s, %.1f km; %d matatus every %d s, %d riders, %.0f min):",
+                name, route.length() / 1000, VEHICLES, CADENCE_MILLIS / 1000, RIDERS, minutes));
+        System.out.println(String.format("  whole route: %6.1f documents per rider per minute (%d in all)",
+                wholeRoutePerRider, wholeRoute.getDeliveredDocuments()));
+        System.out.println(String.format("  cells:       %6.1f documents per rider per minute (%d in all), %.1f cells per rider",
+                cellsPerRider, cells.getDeliveredDocuments(), cellCount / (double) RIDERS));
+        System.out.println(String.format("  %.1fx fewer; moving one stop listened to %d new cells of %d, %d approaching matatus missed",
+                wholeRoutePerRider / cellsPerRider, movedListens, movedCells, missed));
+
+        assertEquals(0, missed);
+        assertTrue(movedListens < movedCells / 2);
+        return wholeRoutePerRider / cellsPerRider;
+    }
+
+    private static VehiclePosition position(RoutePolyline route, Driver driver, int tick) {
+        double along = driver.along(route, tick);
+        LatLng position = route.positionAt(along);
+        return new VehiclePosition(driver.tripId, "KDA " + driver.tripId, ROUTE_ID, position.latitude,
+                position.longitude, driver.speed, along, route.nextStop(along, true), tick * CADENCE_MILLIS,
+                Collections.emptyList());
+    }
+}